@@ -19,13 +19,30 @@
  */
 package org.dataone.client;
 
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
-import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.dataone.client.exception.ClientSideException;
+import org.dataone.client.rest.MultipartD1Node;
+import org.dataone.client.rest.NodeHealthTracker;
+import org.dataone.service.exceptions.BaseException;
 import org.dataone.service.types.v1.NodeReference;
 import org.dataone.service.types.v1.NodeType;
 
@@ -33,16 +50,36 @@ import org.dataone.service.types.v1.NodeType;
  * An abstract Service Locator class to resolve NodeReferences into MNode or 
  * CNode objects.  In the standard implementation, the NodeLocator would 
  * populate its nodes from a cn.NodeList call.
+ * <p>
+ * The NodeLocator also exposes the NodeHealthTracker fed by the requests made
+ * to its nodes, so that callers can skip nodes whose circuit is open and 
+ * prefer healthier replicas (see rankByHealth()).  An optional background 
+ * probe pings nodes with open circuits, to close them when the nodes recover.
+ * <p>
+ * Nodes are held in concurrent maps, and indexed by node id and by normalized
+ * base url, so that lookups from many threads are lock-free and (for the 
+ * indexes) constant-time.  Only putNode() takes a lock.
  *  
  * @author rnahf
  *
  */
 public abstract class NodeLocator {
 
-	/** this property can be re-initialized by concrete subclasses */
-	// TODO: this is here to avoid needing to check for NPEs in methods, 
-	// but should it be a tree map? or the simpler HashMap?  
-	protected Map<NodeReference, D1Node> nodeMap = new TreeMap<NodeReference,D1Node>();
+	/** this property can be re-initialized by concrete subclasses, but 
+	 * should be populated through putNode(), to keep the indexes in step */
+	protected Map<NodeReference, D1Node> nodeMap = new ConcurrentSkipListMap<NodeReference,D1Node>();
+	
+	/* the nodes keyed by the value of their NodeReference */
+	private final ConcurrentMap<String, D1Node> nodeIdIndex = new ConcurrentHashMap<String, D1Node>();
+	
+	/* the nodes keyed by their normalized base (service) urls */
+	private final ConcurrentMap<String, D1Node> baseUrlIndex = new ConcurrentHashMap<String, D1Node>();
+	
+	protected static Log log = LogFactory.getLog(NodeLocator.class);
+	
+	private volatile NodeHealthTracker healthTracker = NodeHealthTracker.getInstance();
+	
+	private ScheduledExecutorService healthProbe;
 	
 	
 	/**
@@ -51,10 +88,17 @@ public abstract class NodeLocator {
 	 * @param node
 	 */
 	//TODO: is the NodeReference parameter necessary, if contained in the CNode itself?
-	public void putNode(NodeReference nodeRef, D1Node node) {
+	public synchronized void putNode(NodeReference nodeRef, D1Node node) {
 	    if (node.getNodeId() == null)
 	        node.setNodeId(nodeRef);
-		nodeMap.put(nodeRef, node);
+		D1Node previous = nodeMap.put(nodeRef, node);
+		if (previous != null) {
+			for (String key : baseUrlKeys(previous.getNodeBaseServiceUrl())) 
+				baseUrlIndex.remove(key, previous);
+		}
+		nodeIdIndex.put(nodeRef.getValue(), node);
+		for (String key : baseUrlKeys(node.getNodeBaseServiceUrl()))
+			baseUrlIndex.put(key, node);
 	}
 	
 	/**
@@ -68,17 +112,21 @@ public abstract class NodeLocator {
 	public D1Node getNode(NodeReference nodeReference) 
 	throws ClientSideException 
 	{
-		D1Node d1n = nodeMap.get(nodeReference);
+		D1Node d1n = nodeReference == null ? null : nodeIdIndex.get(nodeReference.getValue());
 		if (d1n == null) 
-			throw new ClientSideException("No node found for " + nodeReference.getValue(), null);
+			throw new ClientSideException("No node found for " + 
+					(nodeReference == null ? null : nodeReference.getValue()), null);
 		
-		return nodeMap.get(nodeReference);
+		return d1n;
 	}
 	
 	
 	/**
 	 * Return a node associated with the baseUrl parameter, or 
-	 * throw a ClientSideException
+	 * throw a ClientSideException.  The url is matched after normalization 
+	 * (see normalizeBaseUrl()), against either the node's base service url, or
+	 * the same url without its trailing service version element (the baseURL 
+	 * of the Node record).
 	 * 
 	 * @param baseUrl
 	 * @return
@@ -87,12 +135,68 @@ public abstract class NodeLocator {
 	public D1Node getNode(String baseUrl) 
 	throws ClientSideException
 	{
-		for (Entry<NodeReference, D1Node> en : nodeMap.entrySet()) {
-			if (baseUrl.equals(en.getValue().getNodeBaseServiceUrl())) {
-				return en.getValue();
+		D1Node d1n = baseUrl == null ? null : baseUrlIndex.get(normalizeBaseUrl(baseUrl));
+		if (d1n == null)
+			throw new ClientSideException("No node found for " + baseUrl);
+		
+		return d1n;
+	}
+	
+	/**
+	 * Normalizes a base url for comparison: lowercases the scheme and host,
+	 * drops the default port for http and https, and removes trailing slashes.
+	 * Urls that can't be parsed only have their trailing slashes removed.
+	 * 
+	 * @param baseUrl
+	 * @return
+	 */
+	public static String normalizeBaseUrl(String baseUrl) 
+	{
+		String url = baseUrl.trim();
+		try {
+			URI uri = new URI(url);
+			if (!uri.isOpaque() && uri.getScheme() != null && uri.getHost() != null) {
+				String scheme = uri.getScheme().toLowerCase(Locale.ROOT);
+				int port = uri.getPort();
+				if (("http".equals(scheme) && port == 80) || ("https".equals(scheme) && port == 443))
+					port = -1;
+				StringBuilder sb = new StringBuilder(scheme).append("://");
+				if (uri.getRawUserInfo() != null)
+					sb.append(uri.getRawUserInfo()).append('@');
+				sb.append(uri.getHost().toLowerCase(Locale.ROOT));
+				if (port != -1)
+					sb.append(':').append(port);
+				if (uri.getRawPath() != null)
+					sb.append(uri.getRawPath());
+				if (uri.getRawQuery() != null)
+					sb.append('?').append(uri.getRawQuery());
+				url = sb.toString();
 			}
+		} catch (URISyntaxException e) {
+			; // not a hierarchical url, so compare it as-is
 		}
-		throw new ClientSideException("No node found for " + baseUrl);
+		int end = url.length();
+		while (end > 0 && url.charAt(end - 1) == '/')
+			end--;
+		return url.substring(0, end);
+	}
+	
+	/*
+	 * the keys under which a node is indexed: its normalized base service url,
+	 * and the same url without a trailing version element (e.g. "/v2")
+	 */
+	private static List<String> baseUrlKeys(String baseServiceUrl) 
+	{
+		List<String> keys = new ArrayList<String>(2);
+		if (baseServiceUrl == null)
+			return keys;
+		
+		String key = normalizeBaseUrl(baseServiceUrl);
+		keys.add(key);
+		int slash = key.lastIndexOf('/');
+		if (slash > 0 && key.substring(slash + 1).matches("v\\d+"))
+			keys.add(key.substring(0, slash));
+		return keys;
 	}
 
 	
@@ -130,4 +234,103 @@ public abstract class NodeLocator {
 	 * @return
 	 */
 	public abstract D1Node getCNode() throws ClientSideException;
+	
+	
+	/**
+	 * Returns the tracker of the health of the nodes, fed by the outcomes of
+	 * the requests made to them.
+	 * @return
+	 */
+	public NodeHealthTracker getHealthTracker() 
+	{
+		return this.healthTracker;
+	}
+	
+	public void setHealthTracker(NodeHealthTracker healthTracker) 
+	{
+		this.healthTracker = healthTracker;
+	}
+	
+	/**
+	 * Returns whether a request may be sent to the node now, i.e. its circuit
+	 * is not open.  (A true answer may claim the node's half-open trial request.)
+	 * @param nodeReference
+	 * @return
+	 */
+	public boolean isAvailable(NodeReference nodeReference) 
+	{
+		return this.healthTracker.allowRequest(nodeReference);
+	}
+	
+	/**
+	 * Orders the nodes (for example the replica holders of an object) from the
+	 * healthiest to the least healthy, so reads can go to the best one first.
+	 * @param nodeReferences
+	 * @return
+	 */
+	public List<NodeReference> rankByHealth(Collection<NodeReference> nodeReferences) 
+	{
+		return this.healthTracker.rankByHealth(nodeReferences);
+	}
+	
+	/**
+	 * Starts a background task that pings the nodes whose circuits are due a 
+	 * trial request, so that a recovered node's circuit closes without waiting
+	 * for application traffic to test it.  The ping's outcome reaches the 
+	 * health tracker through the node's rest client.  Replaces any probe 
+	 * already running.
+	 * @param interval
+	 * @param unit
+	 */
+	public synchronized void startHealthProbe(long interval, TimeUnit unit) 
+	{
+		stopHealthProbe();
+		healthProbe = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "d1-node-health-probe");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		healthProbe.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					probeNodes();
+				} catch (RuntimeException e) {
+					log.warn("Node health probe failed: " + e.getMessage(), e);
+				}
+			}
+		}, interval, interval, unit);
+	}
+	
+	/**
+	 * Stops the background health probe, if running.
+	 */
+	public synchronized void stopHealthProbe() 
+	{
+		if (healthProbe != null) {
+			healthProbe.shutdownNow();
+			healthProbe = null;
+		}
+	}
+	
+	/**
+	 * Pings each node that is due a trial request.
+	 */
+	protected void probeNodes() 
+	{
+		List<Entry<NodeReference, D1Node>> entries = new ArrayList<Entry<NodeReference, D1Node>>(nodeMap.entrySet());
+		for (Entry<NodeReference, D1Node> en : entries) {
+			if (!(en.getValue() instanceof MultipartD1Node) || !healthTracker.isTrialDue(en.getKey()))
+				continue;
+			try {
+				((MultipartD1Node) en.getValue()).ping();
+				log.info("Health probe: " + en.getKey().getValue() + " answered ping");
+			} catch (BaseException e) {
+				log.debug("Health probe: " + en.getKey().getValue() + " ping failed: " + e.getDescription());
+			}
+		}
+	}
 }
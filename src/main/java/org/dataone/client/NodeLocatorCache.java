@@ -0,0 +1,285 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.dataone.client;
+
+import java.io.Closeable;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Holds the current NodeLocator of a client (such as D1Client) and keeps it 
+ * fresh without blocking the threads that read it.  The locator is published 
+ * through a volatile field, so get() is a lock-free read.  Once a locator is
+ * loaded, a background task reloads it every refresh interval, and a caller
+ * that finds it stale (for example after failed reloads) schedules an 
+ * immediate reload but is served the stale locator meanwhile 
+ * (stale-while-revalidate).
+ * <p>
+ * Only the very first load, when there is no locator to serve, is done on the 
+ * calling thread, and concurrent first callers wait for the one load.  Failed
+ * loads are not retried more often than the retry interval.
+ * <p>
+ * close() stops the background reloads of a cache that is no longer needed
+ * (for example when an application is undeployed); a closed cache still 
+ * serves its NodeLocator, but no longer refreshes it.  The refresh thread is
+ * a daemon, and ends when no cache has reloads scheduled.
+ * <p>
+ * Subclasses provide the load() method, which does the (network) work of 
+ * building a new NodeLocator.
+ * 
+ * @author rnahf
+ *
+ */
+public abstract class NodeLocatorCache implements Closeable {
+
+	protected static Log log = LogFactory.getLog(NodeLocatorCache.class);
+	
+	private final long refreshIntervalMillis;
+	private final long retryIntervalMillis;
+	
+	private volatile NodeLocator nodeLocator;
+	private volatile long lastRefresh = 0;
+	private volatile long lastRefreshAttempt = 0;
+	
+	private final Object initLock = new Object();
+	private final AtomicBoolean refreshInFlight = new AtomicBoolean(false);
+	private final AtomicBoolean refreshScheduled = new AtomicBoolean(false);
+	private volatile ScheduledFuture<?> periodicRefresh;
+	private volatile boolean closed = false;
+	
+	/* 
+	 * one daemon thread does the background reloads of all caches, and ends 
+	 * when it has been idle for a minute
+	 */
+	private static class RefreshExecutorHolder {
+		static final ScheduledThreadPoolExecutor INSTANCE = new ScheduledThreadPoolExecutor(1,
+				new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "d1-nodelocator-refresh");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		static {
+			INSTANCE.setKeepAliveTime(1, TimeUnit.MINUTES);
+			INSTANCE.allowCoreThreadTimeOut(true);
+			INSTANCE.setRemoveOnCancelPolicy(true);
+		}
+	}
+	
+	/**
+	 * @param refreshInterval - how long a loaded NodeLocator is fresh
+	 * @param retryInterval - the minimum time between load attempts, after a failure
+	 * @param unit
+	 */
+	public NodeLocatorCache(long refreshInterval, long retryInterval, TimeUnit unit) 
+	{
+		this.refreshIntervalMillis = unit.toMillis(refreshInterval);
+		this.retryIntervalMillis = unit.toMillis(retryInterval);
+	}
+	
+	/**
+	 * Builds a new NodeLocator.  Called from the background refresh thread, 
+	 * except for the first load.
+	 * @return
+	 * @throws Exception
+	 */
+	protected abstract NodeLocator load() throws Exception;
+	
+	/**
+	 * Returns the current NodeLocator, loading it on the calling thread only if
+	 * there is none yet.  Returns null if there is none and it couldn't be loaded.
+	 * @return
+	 */
+	public NodeLocator get() 
+	{
+		NodeLocator current = this.nodeLocator;
+		if (current == null) 
+			return loadInitial();
+		
+		if (currentTimeMillis() - this.lastRefresh > this.refreshIntervalMillis) 
+			refreshAsync();
+		
+		return current;
+	}
+	
+	/**
+	 * Replaces the current NodeLocator (as when the client is pointed to a 
+	 * different environment), and restarts its freshness interval.  A reload
+	 * already in flight will not overwrite it.
+	 * @param nodeLocator
+	 */
+	public void set(NodeLocator nodeLocator) 
+	{
+		synchronized (this.initLock) {
+			this.nodeLocator = nodeLocator;
+			this.lastRefresh = currentTimeMillis();
+		}
+		if (nodeLocator != null)
+			scheduleRefresh();
+	}
+	
+	/**
+	 * Schedules an immediate reload on the background thread, unless one is 
+	 * already in flight, the last attempt was within the retry interval, or 
+	 * the cache is closed.
+	 * @return true if a reload was scheduled
+	 */
+	public boolean refreshAsync() 
+	{
+		if (this.closed)
+			return false;
+		if (currentTimeMillis() - this.lastRefreshAttempt <= this.retryIntervalMillis)
+			return false;
+		if (!this.refreshInFlight.compareAndSet(false, true))
+			return false;
+		try {
+			RefreshExecutorHolder.INSTANCE.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						refresh();
+					} finally {
+						refreshInFlight.set(false);
+					}
+				}
+			});
+			return true;
+		} catch (RuntimeException e) {
+			this.refreshInFlight.set(false);
+			log.warn("Could not schedule a NodeLocator refresh: " + e.getMessage(), e);
+			return false;
+		}
+	}
+	
+	/**
+	 * Stops the background reloads of this cache.  The current NodeLocator is
+	 * still returned by get(), and can still be replaced with set(), but is no
+	 * longer refreshed.  A reload already in flight may still publish its 
+	 * NodeLocator.
+	 */
+	@Override
+	public synchronized void close() 
+	{
+		this.closed = true;
+		ScheduledFuture<?> f = this.periodicRefresh;
+		if (f != null)
+			f.cancel(false);
+	}
+	
+	/**
+	 * Returns whether close() was called.
+	 * @return
+	 */
+	public boolean isClosed() 
+	{
+		return this.closed;
+	}
+	
+	/**
+	 * Loads a new NodeLocator on the calling thread and publishes it, unless
+	 * the current one was replaced (by set()) while loading.  Failures are 
+	 * logged, keeping the current NodeLocator.
+	 * @return true if a new NodeLocator was published
+	 */
+	protected boolean refresh() 
+	{
+		NodeLocator expected = this.nodeLocator;
+		this.lastRefreshAttempt = currentTimeMillis();
+		NodeLocator loaded;
+		try {
+			loaded = load();
+		} catch (Throwable e) {
+			log.warn("Could not refresh the NodeLocator, using previous one.", e);
+			return false;
+		}
+		if (loaded == null)
+			return false;
+		
+		synchronized (this.initLock) {
+			if (this.nodeLocator != expected) 
+				return false;
+			this.nodeLocator = loaded;
+			this.lastRefresh = currentTimeMillis();
+		}
+		scheduleRefresh();
+		return true;
+	}
+	
+	/**
+	 * The clock used to tell when the NodeLocator is stale.  Overridden in tests.
+	 */
+	protected long currentTimeMillis() 
+	{
+		return System.currentTimeMillis();
+	}
+	
+	/*
+	 * the first load has nothing stale to serve, so the callers wait for it,
+	 * and only one of them does the work
+	 */
+	private NodeLocator loadInitial() 
+	{
+		synchronized (this.initLock) {
+			if (this.nodeLocator == null 
+					&& currentTimeMillis() - this.lastRefreshAttempt > this.retryIntervalMillis) {
+				this.lastRefreshAttempt = currentTimeMillis();
+				try {
+					NodeLocator loaded = load();
+					if (loaded != null) {
+						this.nodeLocator = loaded;
+						this.lastRefresh = currentTimeMillis();
+					}
+				} catch (Throwable e) {
+					log.warn("Could not load the NodeLocator.", e);
+				}
+			}
+		}
+		if (this.nodeLocator != null)
+			scheduleRefresh();
+		return this.nodeLocator;
+	}
+	
+	/* starts the periodic background reload, once, unless the cache is closed */
+	private synchronized void scheduleRefresh() 
+	{
+		if (this.closed || !this.refreshScheduled.compareAndSet(false, true))
+			return;
+		this.periodicRefresh = RefreshExecutorHolder.INSTANCE.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				if (refreshInFlight.compareAndSet(false, true)) {
+					try {
+						refresh();
+					} finally {
+						refreshInFlight.set(false);
+					}
+				}
+			}
+		}, this.refreshIntervalMillis, this.refreshIntervalMillis, TimeUnit.MILLISECONDS);
+	}
+}
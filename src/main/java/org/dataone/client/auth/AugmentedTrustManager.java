@@ -0,0 +1,261 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.dataone.client.auth;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.net.ssl.X509TrustManager;
+import javax.security.auth.x500.X500Principal;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.bouncycastle.asn1.ASN1OctetString;
+import org.bouncycastle.asn1.x509.AuthorityKeyIdentifier;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.SubjectKeyIdentifier;
+
+/**
+ * The X509TrustManager used when 'certificate.truststore.includeD1CAs' is true:
+ * it trusts a server chain if any certificate in it is signed by one of the 
+ * DataONE-trusted CAs or the JVM's CAs, and otherwise defers to the JVM's 
+ * TrustManager.
+ * <p>
+ * The trust anchors are indexed once, by subject DN and by subject key 
+ * identifier, so each certificate in a chain is only verified against the
+ * anchors that could have issued it (matched by its authority key identifier,
+ * or else its issuer DN), rather than against every anchor.  Chains that pass
+ * are remembered, keyed by the leaf certificate's fingerprint, until the 
+ * earliest expiration in the chain or the ttl, so repeated handshakes with the
+ * same server need no signature verification at all.
+ * 
+ * @author rnahf
+ *
+ */
+class AugmentedTrustManager implements X509TrustManager {
+
+    static Log log = LogFactory.getLog(AugmentedTrustManager.class);
+
+    private final X509TrustManager defaultTrustManager;
+    private final X509Certificate[] acceptedIssuers;
+    private final Set<X509Certificate> anchors;
+    private final Map<X500Principal, List<X509Certificate>> anchorsBySubject;
+    private final Map<String, List<X509Certificate>> anchorsByKeyId;
+
+    private final long validatedChainTtlMillis;
+    private final Map<String, ValidatedChain> validatedChains;
+
+
+    /**
+     * @param defaultTrustManager - the JVM TrustManager
+     * @param d1CaCertificates - the supplemental DataONE-trusted CAs
+     * @param validatedChainCacheSize - the number of validated server chains to remember
+     * @param validatedChainTtlMillis - how long a validated chain is remembered
+     */
+    AugmentedTrustManager(X509TrustManager defaultTrustManager, Collection<X509Certificate> d1CaCertificates,
+            final int validatedChainCacheSize, long validatedChainTtlMillis) 
+    {
+        this.defaultTrustManager = defaultTrustManager;
+        this.validatedChainTtlMillis = validatedChainTtlMillis;
+
+        // DataONE-trusted CAs as accepted issuers, no matter what, then the defaults
+        List<X509Certificate> combined = new ArrayList<X509Certificate>();
+        if (d1CaCertificates != null)
+            combined.addAll(d1CaCertificates);
+        combined.addAll(Arrays.asList(defaultTrustManager.getAcceptedIssuers()));
+        this.acceptedIssuers = combined.toArray(new X509Certificate[0]);
+
+        this.anchors = new HashSet<X509Certificate>(combined);
+        this.anchorsBySubject = new HashMap<X500Principal, List<X509Certificate>>();
+        this.anchorsByKeyId = new HashMap<String, List<X509Certificate>>();
+        for (X509Certificate anchor : combined) {
+            index(anchorsBySubject, anchor.getSubjectX500Principal(), anchor);
+            String keyId = getSubjectKeyIdentifier(anchor);
+            if (keyId != null)
+                index(anchorsByKeyId, keyId, anchor);
+        }
+
+        this.validatedChains = Collections.synchronizedMap(
+                new LinkedHashMap<String, ValidatedChain>(16, 0.75f, true) {
+                    private static final long serialVersionUID = 1L;
+
+                    @Override
+                    protected boolean removeEldestEntry(Map.Entry<String, ValidatedChain> eldest) {
+                        return size() > validatedChainCacheSize;
+                    }
+                });
+    }
+
+    private static <K> void index(Map<K, List<X509Certificate>> map, K key, X509Certificate cert) {
+        List<X509Certificate> list = map.get(key);
+        if (list == null) {
+            list = new ArrayList<X509Certificate>(1);
+            map.put(key, list);
+        }
+        list.add(cert);
+    }
+
+
+    @Override
+    public void checkClientTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+
+        // check DataONE-trusted CAs in addition to the default
+        for (X509Certificate cert : chain) {
+            if (anchors.contains(cert)) 
+                return;
+        }
+        // try the default which will succeed or throw an exception
+        defaultTrustManager.checkClientTrusted(chain, authType);
+    }
+
+    @Override
+    public void checkServerTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+
+        if (chain == null || chain.length == 0)
+            throw new CertificateException("Empty server certificate chain");
+
+        String leafFingerprint = fingerprint(chain[0]);
+        String chainFingerprint = fingerprint(chain);
+        long now = System.currentTimeMillis();
+
+        ValidatedChain validated = validatedChains.get(leafFingerprint);
+        if (validated != null && validated.chainFingerprint.equals(chainFingerprint)
+                && now < validated.expires) 
+            return;
+
+        if (!isIssuedByAnchor(chain)) {
+            // try the default, which will either succeed, in which case we are good, or will throw exception
+            try {
+                defaultTrustManager.checkServerTrusted(chain, authType);
+            } catch (CertificateException ce) {
+                if (log.isTraceEnabled()) {
+                    log.trace("CertMan Custom TrustManager: server cert chain subjectDNs: ");
+                    for (X509Certificate cert: chain) {
+                        log.trace("CertMan Custom TrustManager:   subjDN: " + cert.getSubjectDN() +
+                                " / issuerDN: " + cert.getIssuerX500Principal());
+                    }
+                }
+                throw ce;
+            }
+        }
+
+        long expires = now + validatedChainTtlMillis;
+        for (X509Certificate cert : chain) 
+            expires = Math.min(expires, cert.getNotAfter().getTime());
+        validatedChains.put(leafFingerprint, new ValidatedChain(chainFingerprint, expires));
+    }
+
+    /* true if any certificate in the chain is signed by one of its possible issuers among the anchors */
+    private boolean isIssuedByAnchor(X509Certificate[] chain) {
+        for (X509Certificate cert : chain) {
+            for (X509Certificate caCert : getCandidateIssuers(cert)) {
+                if (CertificateManager.verify(cert, caCert, false)) 
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    private List<X509Certificate> getCandidateIssuers(X509Certificate cert) {
+        String keyId = getAuthorityKeyIdentifier(cert);
+        if (keyId != null) {
+            List<X509Certificate> byKeyId = anchorsByKeyId.get(keyId);
+            if (byKeyId != null)
+                return byKeyId;
+        }
+        List<X509Certificate> bySubject = anchorsBySubject.get(cert.getIssuerX500Principal());
+        return bySubject != null ? bySubject : Collections.<X509Certificate>emptyList();
+    }
+
+    @Override
+    public X509Certificate[] getAcceptedIssuers() {
+        return acceptedIssuers.clone();
+    }
+
+    /**
+     * @return the number of server chains currently remembered as validated
+     */
+    int getValidatedChainCount() {
+        return validatedChains.size();
+    }
+
+
+    private static String getSubjectKeyIdentifier(X509Certificate cert) {
+        byte[] ext = cert.getExtensionValue(Extension.subjectKeyIdentifier.getId());
+        if (ext == null)
+            return null;
+        try {
+            return Hex.encodeHexString(SubjectKeyIdentifier.getInstance(
+                    ASN1OctetString.getInstance(ext).getOctets()).getKeyIdentifier());
+        } catch (RuntimeException e) {
+            log.debug("Could not parse the subject key identifier of " + cert.getSubjectX500Principal(), e);
+            return null;
+        }
+    }
+
+    private static String getAuthorityKeyIdentifier(X509Certificate cert) {
+        byte[] ext = cert.getExtensionValue(Extension.authorityKeyIdentifier.getId());
+        if (ext == null)
+            return null;
+        try {
+            byte[] keyId = AuthorityKeyIdentifier.getInstance(
+                    ASN1OctetString.getInstance(ext).getOctets()).getKeyIdentifier();
+            return keyId == null ? null : Hex.encodeHexString(keyId);
+        } catch (RuntimeException e) {
+            log.debug("Could not parse the authority key identifier of " + cert.getSubjectX500Principal(), e);
+            return null;
+        }
+    }
+
+    private static String fingerprint(X509Certificate... certs) throws CertificateException {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            for (X509Certificate cert : certs) 
+                md.update(cert.getEncoded());
+            return Hex.encodeHexString(md.digest());
+        } catch (NoSuchAlgorithmException | CertificateEncodingException e) {
+            throw new CertificateException("Could not compute the certificate fingerprint", e);
+        }
+    }
+
+    private static class ValidatedChain {
+        final String chainFingerprint;
+        final long expires;
+
+        ValidatedChain(String chainFingerprint, long expires) {
+            this.chainFingerprint = chainFingerprint;
+            this.expires = expires;
+        }
+    }
+}
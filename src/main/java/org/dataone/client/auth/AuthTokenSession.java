@@ -38,6 +38,9 @@ import org.dataone.service.types.v1.Session;
  * Other expensive-to-build objects are properties that can be set after 
  * instance construction.
  * 
+ * By default the HttpClient is shared by all AuthTokenSessions, and the token 
+ * travels with each request instead (see D1Client.http.authToken.sharedClient).
+ * 
  * @author rnahf
  *
  */
@@ -39,6 +39,7 @@ import java.security.KeyStore;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
+import java.security.MessageDigest;
 import java.security.PrivateKey;
 import java.security.SecureRandom;
 import java.security.Security;
@@ -52,16 +53,20 @@ import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Observable;
 import java.util.Observer;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.net.ssl.KeyManager;
 import javax.net.ssl.KeyManagerFactory;
@@ -73,6 +78,8 @@ import javax.security.auth.x500.X500Principal;
 import javax.servlet.http.HttpServletRequest;
 import org.dataone.exceptions.MarshallingException;
 
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.ObjectUtils;
 import org.apache.commons.lang.StringUtils;
@@ -80,6 +87,7 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
 import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.conn.ssl.X509HostnameVerifier;
 import org.bouncycastle.asn1.ASN1InputStream;
 import org.bouncycastle.asn1.ASN1Primitive;
 import org.bouncycastle.asn1.DEROctetString;
@@ -171,8 +179,47 @@ public class CertificateManager extends Observable {
 
     private Map<String, PrivateKey> keys;
 
+    /* the subjects registered by registerDefaultCertificate() */
+    private final Set<String> defaultCertificateSubjects = 
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
     private boolean trustStoreIncludesD1CAs = true;
 
+    private int tlsSessionCacheSize;
+    private int tlsSessionTimeoutSeconds;
+
+    /* initialized SSLContexts and their socket factories, per key material and protocol preference */
+    private final Map<String, TlsContext> tlsContexts = Collections.synchronizedMap(
+            new LinkedHashMap<String, TlsContext>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, TlsContext> eldest) {
+                    return size() > TLS_CONTEXT_CACHE_SIZE;
+                }
+            });
+
+    private static final int TLS_CONTEXT_CACHE_SIZE = 32;
+
+    /* 
+     * the coarsest file modification time granularity expected (FAT and some
+     * network file systems record 2 seconds)
+     */
+    private static final long MTIME_GRANULARITY_MILLIS = 2000;
+
+    /* parsed PEM credentials per file path, with the file state they were parsed from */
+    private final ConcurrentMap<String, CachedCredential> credentialCache = new ConcurrentHashMap<String, CachedCredential>();
+
+    private static String processUid;
+
+    /* Sessions derived from client certificates by getSession(HttpServletRequest) */
+    private final SessionCache sessionCache = new SessionCache(
+            Settings.getConfiguration().getInt("certificate.sessionCache.size", 1000),
+            Settings.getConfiguration().getLong("certificate.sessionCache.ttlSeconds", 600) * 1000);
+
+    /* the TrustManager shared by the SSLContexts, built on first use */
+    private volatile X509TrustManager trustManager;
+
     /*
      * Some useful links to background info:
      *
@@ -194,6 +241,8 @@ public class CertificateManager extends Observable {
 	    	keyStorePassword = Settings.getConfiguration().getString("certificate.keystore.password", "changeit");
 	    	keyStoreType = Settings.getConfiguration().getString("certificate.keystore.type", KeyStore.getDefaultType());
 	    	trustStoreIncludesD1CAs = Settings.getConfiguration().getBoolean("certificate.truststore.includeD1CAs", true);
+	    	tlsSessionCacheSize = Settings.getConfiguration().getInt("tls.sessionCache.size", 1000);
+	    	tlsSessionTimeoutSeconds = Settings.getConfiguration().getInt("tls.sessionCache.timeoutSeconds", 3600);
 	    	certificates = new HashMap<String, X509Certificate>();
 	    	keys = new HashMap<String, PrivateKey>();
 	    	CILOGON_OID_SUBJECT_INFO = Settings.getConfiguration().getString("cilogon.oid.subjectinfo", "1.3.6.1.4.1.34998.2.1");
@@ -304,6 +353,18 @@ public class CertificateManager extends Observable {
         X509Session session = this.getX509Session(certFile);
         String subjectDN = this.getSubjectDN(session.getCertificate());
         this.registerCertificate(subjectDN, session.getCertificate(), session.getPrivateKey());
+        this.defaultCertificateSubjects.add(subjectDN);
+    }
+
+    /**
+     * Returns true if the subject's certificate was registered with 
+     * registerDefaultCertificate(), so is replaced when the default certificate 
+     * changes.
+     * @param subjectString
+     * @return
+     */
+    public boolean isDefaultCertificateSubject(String subjectString) {
+        return subjectString != null && this.defaultCertificateSubjects.contains(subjectString);
     }
     
     
@@ -318,6 +379,7 @@ public class CertificateManager extends Observable {
         if (log.isDebugEnabled())
             log.debug("registering certificate for: " + subjectString);
 
+        defaultCertificateSubjects.remove(subjectString);
         certificates.put(subjectString, certificate);
         keys.put(subjectString, key);
 
@@ -333,6 +395,18 @@ public class CertificateManager extends Observable {
         }
     }
 
+    /**
+     * Removes the certificate and key registered for the subject, if any.
+     * @param subjectString
+     */
+    public void unregisterCertificate(String subjectString) {
+        if (subjectString == null)
+            return;
+        defaultCertificateSubjects.remove(subjectString);
+        certificates.remove(subjectString);
+        keys.remove(subjectString);
+    }
+
 
 
     /**
@@ -498,13 +572,12 @@ public class CertificateManager extends Observable {
         X509Certificate cert = null;
         try {
             // load up the PEM
-            KeyStore keyStore = getKeyStore((String)null);
-            if (keyStore != null) 
-                cert = (X509Certificate) keyStore.getCertificate("cilogon");
+            X509Session x509Session = selectSession((String)null);
+            if (x509Session != null) 
+                cert = x509Session.getCertificate();
         } catch (FileNotFoundException e) {
             log.warn(e.getMessage());
-        } catch (KeyStoreException | NoSuchAlgorithmException | 
-                CertificateException | IOException e) {
+        } catch (IOException e) {
             log.error(e.getMessage(),e);
         }
         return cert;
@@ -519,9 +592,9 @@ public class CertificateManager extends Observable {
         PrivateKey key = null;
         try {
             // load up the PEM
-            KeyStore keyStore = getKeyStore((String) null);
-            // get it from the store
-            key = (PrivateKey) keyStore.getKey("cilogon", keyStorePassword.toCharArray());
+            X509Session x509Session = selectSession((String) null);
+            if (x509Session != null)
+                key = x509Session.getPrivateKey();
         } catch (Exception e) {
             log.error(e.getMessage(), e);
         }
@@ -685,7 +758,8 @@ public class CertificateManager extends Observable {
 
     /**
      * extracts the principal from the certificate passed in with the request
-     * and creates the dataone Session object.
+     * and creates the dataone Session object.  Sessions are cached per 
+     * certificate (see getSessionCache()).
      *
      * @param request
 
@@ -693,43 +767,69 @@ public class CertificateManager extends Observable {
      * @throws InvalidToken
      */
     public Session getSession(HttpServletRequest request) throws InvalidToken {
-        Session session = null;
 
         X509Certificate x509Cert = getCertificate(request);
-        if (x509Cert != null) {
-            String subjectDN = getSubjectDN(x509Cert);
-            Subject subject = new Subject();
-            subject .setValue(subjectDN);
-            session = new Session();
-            session.setSubject(subject);
+        if (x509Cert == null) 
+            return null;
+        return getSession(x509Cert);
+    }
 
+    /**
+     * Creates the dataone Session for the client certificate, using the 
+     * SessionCache if the certificate has been seen recently.
+     * 
+     * @param x509Cert
+     * @return
+     * @throws InvalidToken - if the SubjectInfo extension could not be read
+     */
+    public Session getSession(X509Certificate x509Cert) throws InvalidToken {
 
-            SubjectInfo subjectInfo = null;
-            try {
-                subjectInfo = getSubjectInfo(x509Cert);
-            } catch (Exception e) {
-                // throw an InvalidToken
-                String msg = "Could not get SubjectInfo from certificate for: " + subject.getValue();
-                log.error(msg, e);
-                throw new InvalidToken("", msg);
-            }
-            
-            // set the bare minimum if we have to
-            if (subjectInfo == null) {
-            	subjectInfo = new SubjectInfo();
-            	Person person = new Person();
-            	person.setSubject(subject);
-            	person.setFamilyName("Unknown");
-            	person.addGivenName("Unknown");
-				subjectInfo.addPerson(person);
-            }
+        Session session = sessionCache.get(x509Cert);
+        if (session != null)
+            return session;
+
+        String subjectDN = getSubjectDN(x509Cert);
+        Subject subject = new Subject();
+        subject .setValue(subjectDN);
+        session = new Session();
+        session.setSubject(subject);
+
+
+        SubjectInfo subjectInfo = null;
+        try {
+            subjectInfo = getSubjectInfo(x509Cert);
+        } catch (Exception e) {
+            // throw an InvalidToken
+            String msg = "Could not get SubjectInfo from certificate for: " + subject.getValue();
+            log.error(msg, e);
+            throw new InvalidToken("", msg);
+        }
 
-            // set in the certificate
-            session.setSubjectInfo(subjectInfo);
+        // set the bare minimum if we have to
+        if (subjectInfo == null) {
+            subjectInfo = new SubjectInfo();
+            Person person = new Person();
+            person.setSubject(subject);
+            person.setFamilyName("Unknown");
+            person.addGivenName("Unknown");
+            subjectInfo.addPerson(person);
         }
+
+        // set in the certificate
+        session.setSubjectInfo(subjectInfo);
+
+        sessionCache.put(x509Cert, session);
         return session;
     }
 
+    /**
+     * @return the cache of Sessions derived from client certificates, with 
+     * its hit and miss counts
+     */
+    public SessionCache getSessionCache() {
+        return sessionCache;
+    }
+
     /**
      * Get the client certificate from the request object
      * @param request
@@ -795,18 +895,18 @@ public class CertificateManager extends Observable {
     {
         // our return object
         log.info("Entering getSSLSocketFactory");
-        KeyStore keyStore = null;
+        X509Session x509Session = null;
 
-        // get the keystore that will provide the material
+        // get the certificate that will provide the material
         // Catch the exception here so that the TLS connection scheme
         // will still be setup if the client certificate is not found.
         try {
-            keyStore = getKeyStore(subjectString);
+            x509Session = selectSession(subjectString);
         } catch (FileNotFoundException e) {
             // these are somewhat expected for anonymous d1 client use
             log.warn("Client certificate could not be located. Setting up SocketFactory without it." + e.getMessage());
         }
-        return getSSLSocketFactory(keyStore);
+        return getSSLSocketFactory(x509Session);
     }
 
 
@@ -814,37 +914,7 @@ public class CertificateManager extends Observable {
     throws NoSuchAlgorithmException, UnrecoverableKeyException, KeyStoreException,
     KeyManagementException, CertificateException, IOException
     {
-        return getSSLSocketFactory(getKeyStore(x509Session));
-    }
-
-    private SSLSocketFactory getSSLSocketFactory(KeyStore keyStore)
-    throws NoSuchAlgorithmException, UnrecoverableKeyException, KeyStoreException,
-    KeyManagementException
-    {
-        SSLSocketFactory socketFactory = null;
-
-        // create SSL context
-        SSLContext ctx = buildSSLContext(); 
-
-        // based on config options, we get an appropriate truststore
-        X509TrustManager tm = getTrustManager();
-
-        // specify the client key manager
-        KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
-        keyManagerFactory.init(keyStore, keyStorePassword.toCharArray());
-        KeyManager[] keyManagers = keyManagerFactory.getKeyManagers();
-
-        // initialize the context
-        ctx.init(keyManagers, new TrustManager[]{tm}, new SecureRandom());
-        if (trustStoreIncludesD1CAs) {
-            log.info("getSSLSocketFactory: using allow-all hostname verifier");
-            //socketFactory = new SSLSocketFactory(ctx, SSLSocketFactory.STRICT_HOSTNAME_VERIFIER);
-            //socketFactory = new SSLSocketFactory(ctx, SSLSocketFactory.BROWSER_COMPATIBLE_HOSTNAME_VERIFIER);
-            socketFactory = new SSLSocketFactory(ctx, SSLSocketFactory.ALLOW_ALL_HOSTNAME_VERIFIER);
-        } else {
-            socketFactory = new SSLSocketFactory(ctx);
-        }
-        return socketFactory;
+        return getTlsContext(x509Session).getSSLSocketFactory();
     }
 
     
@@ -913,18 +983,18 @@ public class CertificateManager extends Observable {
     {
         // our return object
         log.info("Entering getSSLConnectionSocketFactory");
-        KeyStore keyStore = null;
+        X509Session x509Session = null;
 
-        // get the keystore that will provide the material
+        // get the certificate that will provide the material
         // Catch the exception here so that the TLS connection scheme
         // will still be setup if the client certificate is not found.
         try {
-            keyStore = getKeyStore(subjectString);
+            x509Session = selectSession(subjectString);
         } catch (FileNotFoundException e) {
             // these are somewhat expected for anonymous d1 client use
             log.warn("Client certificate could not be located. Setting up SocketFactory without it." + e.getMessage());
         }
-        return getSSLConnectionSocketFactory(keyStore);
+        return getSSLConnectionSocketFactory(x509Session);
     }
 
 
@@ -932,16 +1002,169 @@ public class CertificateManager extends Observable {
     throws NoSuchAlgorithmException, UnrecoverableKeyException, KeyStoreException,
     KeyManagementException, CertificateException, IOException
     {
-        return getSSLConnectionSocketFactory(getKeyStore(x509Session));
+        return getTlsContext(x509Session).connectionSocketFactory;
+    }
+
+    /**
+     * Returns an SSLContext initialized with the client certificate from the
+     * X509Session and the same TrustManager used by getSSLConnectionSocketFactory().
+     * This is for connection layers that do not use SocketFactories, such as
+     * the non-blocking I/O used by HttpAsyncClient.
+     * 
+     * @param x509Session - the client certificate to use. (null for an anonymous connection)
+     * @return an initialized SSLContext
+     * @throws NoSuchAlgorithmException
+     * @throws UnrecoverableKeyException
+     * @throws KeyStoreException
+     * @throws KeyManagementException
+     * @throws CertificateException
+     * @throws IOException
+     */
+    public SSLContext getSSLContext(X509Session x509Session)
+    throws NoSuchAlgorithmException, UnrecoverableKeyException, KeyStoreException,
+    KeyManagementException, CertificateException, IOException
+    {
+        return getTlsContext(x509Session).sslContext;
+    }
+
+    /**
+     * Discards the cached SSLContexts (and their TLS session caches) and the
+     * TrustManager with its trust-anchor index and validated chains, so that
+     * subsequent socket factories pick up changes to the trust configuration.
+     */
+    public void clearSSLContextCache() {
+        trustManager = null;
+        tlsContexts.clear();
+    }
+
+    /*
+     * Returns the cached SSLContext and socket factories for the key material 
+     * and configured protocol preference, building them if needed.  Sharing
+     * them lets every HttpClient using the same certificate resume TLS sessions
+     * established by the others, instead of doing full handshakes.
+     */
+    private TlsContext getTlsContext(X509Session x509Session)
+    throws NoSuchAlgorithmException, UnrecoverableKeyException, KeyStoreException,
+    KeyManagementException, CertificateException, IOException
+    {
+        String tlsPreferences = Settings.getConfiguration().getString("tls.protocol.preferences",defaultTlsPreferences);
+        String key = tlsPreferences + "|" + getKeyMaterialId(x509Session);
+
+        synchronized (tlsContexts) {
+            TlsContext tlsContext = tlsContexts.get(key);
+            if (tlsContext == null) {
+                SSLContext ctx = buildInitializedSSLContext(getKeyStore(x509Session));
+                if (trustStoreIncludesD1CAs) 
+                    log.info("getTlsContext: using allow-all hostname verifier");
+                tlsContext = new TlsContext(ctx, getHostnameVerifier());
+                tlsContexts.put(key, tlsContext);
+            }
+            return tlsContext;
+        }
+    }
+
+    /*
+     * identifies the certificate and private key of the session by their 
+     * SHA-256 digests
+     */
+    private static String getKeyMaterialId(X509Session x509Session) 
+    throws NoSuchAlgorithmException, CertificateException 
+    {
+        if (x509Session == null || x509Session.getCertificate() == null)
+            return "anonymous";
+
+        MessageDigest md = MessageDigest.getInstance("SHA-256");
+        String id = Hex.encodeHexString(md.digest(x509Session.getCertificate().getEncoded()));
+        PrivateKey key = x509Session.getPrivateKey();
+        if (key != null) {
+            byte[] encoded = key.getEncoded();
+            id += ":" + (encoded != null ? Hex.encodeHexString(md.digest(encoded)) 
+                    : Integer.toHexString(System.identityHashCode(key)));
+        }
+        return id;
+    }
+
+    /* an initialized SSLContext and the socket factories sharing it */
+    private static class TlsContext {
+        final SSLContext sslContext;
+        final X509HostnameVerifier hostnameVerifier;
+        final SSLConnectionSocketFactory connectionSocketFactory;
+        private SSLSocketFactory socketFactory;
+
+        TlsContext(SSLContext sslContext, X509HostnameVerifier hostnameVerifier) {
+            this.sslContext = sslContext;
+            this.hostnameVerifier = hostnameVerifier;
+            this.connectionSocketFactory = new TlsSessionStatistics.TrackingSSLConnectionSocketFactory(
+                    sslContext, hostnameVerifier);
+        }
+
+        /* the (deprecated) v4.1-era socket factory, built on first use */
+        synchronized SSLSocketFactory getSSLSocketFactory() {
+            if (socketFactory == null)
+                socketFactory = new SSLSocketFactory(sslContext, hostnameVerifier);
+            return socketFactory;
+        }
+    }
+
+    /* a certificate and key parsed from a PEM file, and the file state they were parsed from */
+    private static class CachedCredential {
+        final long lastModified;
+        final long length;
+        final byte[] digest;
+        /* when the content was read, or last found unchanged */
+        final long verifiedAt;
+        final X509Certificate certificate;
+        final PrivateKey privateKey;
+
+        CachedCredential(long lastModified, long length, byte[] digest, long verifiedAt,
+                X509Certificate certificate, PrivateKey privateKey) {
+            this.lastModified = lastModified;
+            this.length = length;
+            this.digest = digest;
+            this.verifiedAt = verifiedAt;
+            this.certificate = certificate;
+            this.privateKey = privateKey;
+        }
+
+        /* 
+         * true if the file could have been rewritten, with the same modification
+         * time, after it was verified 
+         */
+        boolean isRacy() {
+            return verifiedAt - lastModified < MTIME_GRANULARITY_MILLIS;
+        }
+
+        CachedCredential verifiedAt(long time) {
+            return new CachedCredential(lastModified, length, digest, time, certificate, privateKey);
+        }
+
+        boolean holds(X509Certificate otherCertificate, PrivateKey otherKey) {
+            return Objects.equals(certificate, otherCertificate)
+                    && (privateKey == null ? otherKey == null 
+                            : otherKey != null && Arrays.equals(privateKey.getEncoded(), otherKey.getEncoded()));
+        }
     }
 
+    /**
+     * Returns the hostname verifier matching the one configured into the 
+     * SSLConnectionSocketFactories built by this CertificateManager.
+     * @return
+     */
+    public X509HostnameVerifier getHostnameVerifier() {
+        if (trustStoreIncludesD1CAs) {
+            return SSLConnectionSocketFactory.ALLOW_ALL_HOSTNAME_VERIFIER;
+        } 
+        return SSLConnectionSocketFactory.BROWSER_COMPATIBLE_HOSTNAME_VERIFIER;
+    }
 
-    private SSLConnectionSocketFactory getSSLConnectionSocketFactory(KeyStore keyStore)
+    /*
+     * creates an SSLContext using the preferred TLS protocol, and initializes
+     * it with the key material from the keyStore and the (augmented) TrustManager
+     */
+    private SSLContext buildInitializedSSLContext(KeyStore keyStore)
     throws NoSuchAlgorithmException, KeyStoreException, UnrecoverableKeyException,
     KeyManagementException
     {
-
-        SSLConnectionSocketFactory socketFactory = null;
         SSLContext ctx = buildSSLContext();
         
         // based on config options, we get an appropriate truststore
@@ -954,15 +1177,11 @@ public class CertificateManager extends Observable {
 
         // initialize the context
         ctx.init(keyManagers, new TrustManager[]{tm}, new SecureRandom());
-        if (trustStoreIncludesD1CAs) {
-            log.info("getSSLConnectionSocketFactory: using allow-all hostname verifier");
-            //socketFactory = new SSLSocketFactory(ctx, SSLSocketFactory.STRICT_HOSTNAME_VERIFIER);
-            //socketFactory = new SSLSocketFactory(ctx, SSLSocketFactory.BROWSER_COMPATIBLE_HOSTNAME_VERIFIER);
-            socketFactory = new SSLConnectionSocketFactory(ctx, SSLConnectionSocketFactory.ALLOW_ALL_HOSTNAME_VERIFIER);
-        } else {
-            socketFactory = new SSLConnectionSocketFactory(ctx);
-        }
-        return socketFactory;
+        
+        // size the session cache so sessions can be resumed across connections
+        ctx.getClientSessionContext().setSessionCacheSize(tlsSessionCacheSize);
+        ctx.getClientSessionContext().setSessionTimeout(tlsSessionTimeoutSeconds);
+        return ctx;
     }
 
     /**
@@ -977,7 +1196,9 @@ public class CertificateManager extends Observable {
      */
     private X509TrustManager getTrustManager() throws NoSuchAlgorithmException, KeyStoreException {
 
-        X509TrustManager tm = null;
+        X509TrustManager tm = trustManager;
+        if (tm != null)
+            return tm;
 
         X509TrustManager jvmTrustManager = null;
 
@@ -1008,70 +1229,9 @@ public class CertificateManager extends Observable {
             log.info("creating custom TrustManager");
 
             // create a trustmanager from the default that is augmented with DataONE-trusted CAs
-            final X509TrustManager defaultTrustManager = jvmTrustManager;
-            tm = new X509TrustManager() {
-
-                private List<X509Certificate> d1CaCertificates = getSupplementalCACertificates();
-
-                public void checkClientTrusted(X509Certificate[] chain, String authType) throws CertificateException {
-
-                    // check DataONE-trusted CAs in addition to the default
-                    boolean trusted = false;
-                    List<X509Certificate> combinedIssuers = Arrays.asList(getAcceptedIssuers());
-                    for (X509Certificate cert: chain) {
-                        if (combinedIssuers.contains(cert)) {
-                            trusted = true;
-                            break;
-                        }
-                    }
-                    if (!trusted) {
-                        //throw new CertificateException("Certificate issuer not found in trusted CAs");
-                        // try the default which will succeed or throw an exception
-                        defaultTrustManager.checkClientTrusted(chain, authType);
-                    }
-                }
-
-                public void checkServerTrusted(X509Certificate[] chain, String authType) throws CertificateException {
-
-                    // check DataONE-trusted CAs in addition to the default
-                    boolean trusted = false;
-                    List<X509Certificate> combinedIssuers = Arrays.asList(getAcceptedIssuers());
-                    for (X509Certificate cert: chain) {
-                        for (X509Certificate caCert : combinedIssuers) {
-                            if (CertificateManager.verify(cert, caCert, false)) {
-                                trusted = true;
-                                break;
-                            }
-                        }
-                    }
-                    if (!trusted) {
-                        //throw new CertificateException("Certificate issuer not found in trusted CAs");
-                        // try the default, which will either succeed, in which case we are good, or will throw exception
-                        try {
-                            defaultTrustManager.checkServerTrusted(chain, authType);
-                        } catch (CertificateException ce) {
-                            if (log.isTraceEnabled()) {
-                                log.trace("CertMan Custom TrustManager: server cert chain subjectDNs: ");
-                                for (X509Certificate cert: chain) {
-                                    log.trace("CertMan Custom TrustManager:   subjDN: " + cert.getSubjectDN() +
-                                            " / issuerDN: " + cert.getIssuerX500Principal());
-                                }
-                            }
-                            throw ce;
-                        }
-                    }
-                }
-
-                public X509Certificate[] getAcceptedIssuers() {
-                    List<X509Certificate> combinedIssuers = new ArrayList<X509Certificate>();
-                    // add DataONE-trusted CAs as accepted issuers, no matter what
-                    combinedIssuers.addAll(d1CaCertificates);
-                    // include the entries from the default
-                    combinedIssuers.addAll(Arrays.asList(defaultTrustManager.getAcceptedIssuers()));
-
-                    return combinedIssuers.toArray(new X509Certificate[0]);
-                }
-            };
+            tm = new AugmentedTrustManager(jvmTrustManager, getSupplementalCACertificates(),
+                    Settings.getConfiguration().getInt("certificate.truststore.validatedChainCache.size", 256),
+                    Settings.getConfiguration().getLong("certificate.truststore.validatedChainCache.ttlSeconds", 3600) * 1000);
 
 
 //  uncomment the following to create an all-trusting trust manager
@@ -1096,6 +1256,7 @@ public class CertificateManager extends Observable {
             log.info("using JVM TrustManager");
             tm = jvmTrustManager;
         }
+        this.trustManager = tm;
         return tm;
     }
 
@@ -1198,17 +1359,101 @@ public class CertificateManager extends Observable {
     }
 
     /*
-     * reads the PEM file from the file-system and extracts the certificate and
-     * private key.  Supports KeyPair and PrivateKey PEM objects.
+     * returns the certificate and private key from the PEM file, parsing it
+     * only if it is new or changed since it was last parsed.  The file is taken
+     * to be unchanged if its modification time and size are, unless it was read
+     * within the modification time's granularity of being written (so could 
+     * have been rewritten in the same tick), in which case its digest is also
+     * compared.  If a re-parsed file holds a different credential, observers
+     * are notified, by the one thread whose reload replaces the cached entry.
      */
     private X509Session getX509Session(File pemFile) throws
     FileNotFoundException, IOException {
 
+        String path = pemFile.getAbsolutePath();
+        long lastModified = pemFile.lastModified();
+        long length = pemFile.length();
+
+        CachedCredential cached = credentialCache.get(path);
+        if (cached != null && cached.lastModified == lastModified && cached.length == length) {
+            if (!cached.isRacy()) 
+                return X509Session.create(cached.certificate, cached.privateKey);
+
+            byte[] pem = readFile(pemFile);
+            if (Arrays.equals(digest(pem), cached.digest)) {
+                long now = System.currentTimeMillis();
+                if (now - lastModified >= MTIME_GRANULARITY_MILLIS)
+                    // a later rewrite would change the modification time now
+                    credentialCache.replace(path, cached, cached.verifiedAt(now));
+                return X509Session.create(cached.certificate, cached.privateKey);
+            }
+            return reload(path, pem, lastModified, length, cached);
+        }
+        return reload(path, readFile(pemFile), lastModified, length, cached);
+    }
+
+    /*
+     * parses the PEM content read from the file, caching the credential in 
+     * place of the previous entry, and notifying observers if it changed.
+     */
+    private X509Session reload(String path, byte[] pem, long lastModified, long length, 
+            CachedCredential previous) throws IOException {
+
+        X509Session session = parseX509Session(pem);
+        CachedCredential loaded = new CachedCredential(lastModified, length, digest(pem),
+                System.currentTimeMillis(), session.getCertificate(), session.getPrivateKey());
+
+        boolean replaced = previous == null 
+                ? credentialCache.putIfAbsent(path, loaded) == null
+                : credentialCache.replace(path, previous, loaded);
+        if (!replaced) 
+            // another thread reloaded the file, and notified observers if needed
+            return session;
+
+        if (previous != null && !previous.holds(session.getCertificate(), session.getPrivateKey())) {
+            log.info("The certificate at " + path + " changed. Notifying observers.");
+            // subjects registered from the old default certificate now get the new one
+            for (String subject : this.defaultCertificateSubjects) {
+                if (previous.holds(certificates.get(subject), keys.get(subject))) {
+                    certificates.put(subject, session.getCertificate());
+                    keys.put(subject, session.getPrivateKey());
+                }
+            }
+            try {
+                this.certificateMD5Checksum = ChecksumUtil.checksum(new ByteArrayInputStream(pem), "MD5").getValue();
+            } catch (NoSuchAlgorithmException e) {
+                this.certificateMD5Checksum = "";
+            }
+            setChanged();
+            notifyObservers();
+        }
+        return session;
+    }
+
+    private static byte[] readFile(File file) throws FileNotFoundException, IOException {
+        FileInputStream fis = new FileInputStream(file);
+        try {
+            return IOUtils.toByteArray(fis);
+        } finally {
+            IOUtils.closeQuietly(fis);
+        }
+    }
+
+    private static byte[] digest(byte[] content) {
+        return DigestUtils.sha256(content);
+    }
+
+    /*
+     * extracts the certificate and private key from the PEM content.  
+     * Supports KeyPair and PrivateKey PEM objects.
+     */
+    private X509Session parseX509Session(byte[] pem) throws IOException {
+
         PrivateKey privateKey = null;
         X509Certificate certificate = null;
         PEMParser pemReader = null;
         try {
-            pemReader = new PEMParser(new FileReader(pemFile));
+            pemReader = new PEMParser(new InputStreamReader(new ByteArrayInputStream(pem), "US-ASCII"));
             Object pemObject = null;
             JcaPEMKeyConverter converter = new JcaPEMKeyConverter();
             while ((pemObject = pemReader.readObject()) != null) {
@@ -1310,26 +1555,14 @@ public class CertificateManager extends Observable {
         return certificate;
     }
 
-    /**
-     * Locate the default certificate.  The default location is constructed based
-     * on user environment properties, so this method constructs a path and tests
-     * whether or not the resulting path exists.
-     *
-     * see also {@link http://www.cilogon.org/cert-howto#TOC-Finding-CILogon-Certificates}
-     *
-     * @return File object of known-to-exist location
-     * @throws FileNotFoundException  if no default certificate can be located
+    /*
+     * the user id of this process, determined once, since finding it means 
+     * running 'id -u'
      */
-    public File locateDefaultCertificate() throws FileNotFoundException {
-        StringBuffer location = new StringBuffer();
+    private static synchronized String getProcessUid() {
+        if (processUid != null)
+            return processUid;
 
-        // the tmp dir
-        String tmp = System.getProperty("tmpdir");
-        if (tmp == null) {
-            tmp = "/tmp";
-        }
-
-        // UID
         String uid = null;
         BufferedReader reader = null;
         try {
@@ -1352,6 +1585,32 @@ public class CertificateManager extends Observable {
         if (uid == null) {
             uid = System.getProperty("user.name");
         }
+        processUid = uid;
+        return uid;
+    }
+
+    /**
+     * Locate the default certificate.  The default location is constructed based
+     * on user environment properties, so this method constructs a path and tests
+     * whether or not the resulting path exists.
+     *
+     * see also {@link http://www.cilogon.org/cert-howto#TOC-Finding-CILogon-Certificates}
+     *
+     * @return File object of known-to-exist location
+     * @throws FileNotFoundException  if no default certificate can be located
+     */
+    public File locateDefaultCertificate() throws FileNotFoundException {
+        StringBuffer location = new StringBuffer();
+
+        // the tmp dir
+        String tmp = System.getProperty("tmpdir");
+        if (tmp == null) {
+            tmp = "/tmp";
+        }
+
+        // UID
+        String uid = getProcessUid();
+
         location.append(tmp);
         location.append("/");
         location.append("x509up_u");
@@ -0,0 +1,208 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.dataone.client.auth;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.codec.binary.Hex;
+import org.dataone.service.types.v1.Session;
+import org.dataone.service.types.v1.Subject;
+import org.dataone.service.types.v1.SubjectInfo;
+
+/**
+ * A concurrent cache of the Sessions derived from client certificates by 
+ * {@link CertificateManager#getSession(javax.servlet.http.HttpServletRequest)},
+ * keyed by the certificate's SHA-256 fingerprint.  Deriving a Session means 
+ * formatting the subject DN and unmarshalling the SubjectInfo extension, while
+ * services see the same client certificates over and over.
+ * <p>
+ * Entries expire after the ttl, or when the certificate does (notAfter), 
+ * whichever comes first.  When the cache is full, the least recently used 
+ * entries are evicted first.
+ * <p>
+ * Each lookup returns a new Session and Subject, but the SubjectInfo is shared
+ * between the Sessions for a certificate, so it should be treated as read-only.
+ * 
+ * @author rnahf
+ *
+ */
+public class SessionCache {
+
+    private final int maxEntries;
+    private final long ttlMillis;
+
+    /* in access order, for eviction; guarded by itself */
+    private final Map<String, CachedSession> entries;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+
+    /**
+     * @param maxEntries - the number of certificates to remember (0 disables the cache)
+     * @param ttlMillis - how long an entry is used before it is derived again
+     */
+    public SessionCache(int maxEntries, long ttlMillis) {
+        this.maxEntries = maxEntries;
+        this.ttlMillis = ttlMillis;
+        this.entries = new LinkedHashMap<String, CachedSession>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedSession> eldest) {
+                if (size() <= SessionCache.this.maxEntries)
+                    return false;
+                evictions.incrementAndGet();
+                return true;
+            }
+        };
+    }
+
+
+    /**
+     * Returns the cached Session for the certificate, or null if there isn't
+     * a current one.
+     * @param certificate
+     * @return
+     */
+    public Session get(X509Certificate certificate) {
+        if (maxEntries <= 0)
+            return null;
+
+        String key = fingerprint(certificate);
+        CachedSession entry = null;
+        if (key != null) {
+            synchronized (entries) {
+                entry = entries.get(key);
+                if (entry != null && currentTimeMillis() >= entry.expires) {
+                    entries.remove(key);
+                    entry = null;
+                }
+            }
+        }
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return entry.newSession();
+    }
+
+    /**
+     * Caches the Session derived from the certificate.
+     * @param certificate
+     * @param session
+     */
+    public void put(X509Certificate certificate, Session session) {
+        if (maxEntries <= 0 || session == null || session.getSubject() == null)
+            return;
+        String key = fingerprint(certificate);
+        if (key == null)
+            return;
+
+        long expires = Math.min(currentTimeMillis() + ttlMillis, 
+                certificate.getNotAfter().getTime());
+        CachedSession entry = new CachedSession(session.getSubject().getValue(), 
+                session.getSubjectInfo(), expires);
+        synchronized (entries) {
+            // evicts the least recently used entry if the cache is full
+            entries.put(key, entry);
+        }
+    }
+
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    /**
+     * @return the fraction of lookups that were hits, or 0 if there were none
+     */
+    public double getHitRatio() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+
+    /**
+     * The clock used to expire entries.  Overridden in tests.
+     */
+    protected long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    private static String fingerprint(X509Certificate certificate) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            return Hex.encodeHexString(md.digest(certificate.getEncoded()));
+        } catch (NoSuchAlgorithmException | CertificateEncodingException e) {
+            // not cacheable
+            return null;
+        }
+    }
+
+    private static class CachedSession {
+        final String subjectValue;
+        final SubjectInfo subjectInfo;
+        final long expires;
+
+        CachedSession(String subjectValue, SubjectInfo subjectInfo, long expires) {
+            this.subjectValue = subjectValue;
+            this.subjectInfo = subjectInfo;
+            this.expires = expires;
+        }
+
+        Session newSession() {
+            Subject subject = new Subject();
+            subject.setValue(subjectValue);
+            Session session = new Session();
+            session.setSubject(subject);
+            session.setSubjectInfo(subjectInfo);
+            return session;
+        }
+    }
+}
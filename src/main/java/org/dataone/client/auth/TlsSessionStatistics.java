@@ -0,0 +1,114 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.dataone.client.auth;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.conn.ssl.X509HostnameVerifier;
+
+/**
+ * Counts the full and abbreviated (resumed) TLS handshakes made by the 
+ * SSLConnectionSocketFactories from CertificateManager, process-wide.
+ * <p>
+ * A handshake is counted as resumed when the session it completes with was
+ * created before the handshake started, that is, it was taken from the 
+ * SSLContext's session cache.
+ * 
+ * @author rnahf
+ *
+ */
+public class TlsSessionStatistics {
+
+    private final AtomicLong fullHandshakes = new AtomicLong();
+    private final AtomicLong resumedHandshakes = new AtomicLong();
+
+    private static class SingletonHolder {
+        public static final TlsSessionStatistics INSTANCE = new TlsSessionStatistics();
+    }
+
+    public static TlsSessionStatistics getInstance() {
+        return SingletonHolder.INSTANCE;
+    }
+
+    TlsSessionStatistics() { }
+
+
+    /**
+     * Records a completed handshake.
+     * @param resumed - true if the session was resumed from the session cache
+     */
+    public void handshakeCompleted(boolean resumed) {
+        if (resumed)
+            resumedHandshakes.incrementAndGet();
+        else
+            fullHandshakes.incrementAndGet();
+    }
+
+    public long getFullHandshakeCount() {
+        return fullHandshakes.get();
+    }
+
+    public long getResumedHandshakeCount() {
+        return resumedHandshakes.get();
+    }
+
+    /**
+     * @return the fraction of handshakes that were resumed, or 0 if there were none
+     */
+    public double getResumptionRatio() {
+        long resumed = resumedHandshakes.get();
+        long total = resumed + fullHandshakes.get();
+        return total == 0 ? 0 : (double) resumed / total;
+    }
+
+    public void reset() {
+        fullHandshakes.set(0);
+        resumedHandshakes.set(0);
+    }
+
+
+    /**
+     * An SSLConnectionSocketFactory that reports each socket's handshake to 
+     * the TlsSessionStatistics
+     */
+    static class TrackingSSLConnectionSocketFactory extends SSLConnectionSocketFactory {
+
+        TrackingSSLConnectionSocketFactory(SSLContext sslContext, X509HostnameVerifier hostnameVerifier) {
+            super(sslContext, hostnameVerifier);
+        }
+
+        @Override
+        protected void prepareSocket(SSLSocket socket) {
+            final long started = System.currentTimeMillis();
+            socket.addHandshakeCompletedListener(new HandshakeCompletedListener() {
+                @Override
+                public void handshakeCompleted(HandshakeCompletedEvent event) {
+                    getInstance().handshakeCompleted(event.getSession().getCreationTime() < started);
+                }
+            });
+        }
+    }
+}
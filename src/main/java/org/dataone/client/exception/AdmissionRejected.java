@@ -0,0 +1,25 @@
+package org.dataone.client.exception;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a request is refused by client-side admission control for a node
+ * (its concurrency limit's wait queue is full, or it could not be admitted 
+ * within its timeout), without having been sent.
+ * 
+ * @author rnahf
+ *
+ */
+public class AdmissionRejected extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Construct an AdmissionRejected exception with the message.
+     * 
+     * @param message the description of this exception
+     */
+    public AdmissionRejected(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,24 @@
+package org.dataone.client.exception;
+
+import java.io.IOException;
+
+/**
+ * Thrown instead of sending a request to a node whose circuit is open, 
+ * because its recent requests have failed (see NodeHealthTracker).
+ * 
+ * @author rnahf
+ *
+ */
+public class NodeUnavailable extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Construct a NodeUnavailable exception with the message.
+     * 
+     * @param message the description of this exception
+     */
+    public NodeUnavailable(String message) {
+        super(message);
+    }
+}
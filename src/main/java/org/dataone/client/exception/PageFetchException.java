@@ -0,0 +1,25 @@
+package org.dataone.client.exception;
+
+/**
+ * Thrown from the hasNext() and next() methods of a paged iterator when a 
+ * page could not be fetched.  Iterator methods can't throw checked exceptions,
+ * so the exception returned by the service call (usually a BaseException) is
+ * the cause.
+ * 
+ * @author rnahf
+ *
+ */
+public class PageFetchException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Construct a PageFetchException with the message and the cause.
+     * 
+     * @param message the description of this exception
+     * @param cause the exception thrown fetching the page
+     */
+    public PageFetchException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
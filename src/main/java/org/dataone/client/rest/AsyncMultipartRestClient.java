@@ -0,0 +1,81 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.dataone.client.rest;
+
+import java.io.Closeable;
+import java.io.InputStream;
+import java.util.concurrent.Future;
+
+import org.apache.http.Header;
+import org.apache.http.concurrent.FutureCallback;
+import org.dataone.client.auth.X509Session;
+import org.dataone.mimemultipart.SimpleMultipartEntity;
+
+/**
+ * The non-blocking sibling of {@link MultipartRestClient}.  Instead of holding 
+ * the calling thread for the duration of the request, each method submits
+ * the request and returns immediately with a Future for the result.  An optional
+ * FutureCallback is notified upon completion, failure, or cancellation.
+ * <p>
+ * Error responses are deserialized using the same ExceptionHandler.filterErrors
+ * rules as the blocking implementation, so a failed Future's ExecutionException 
+ * (or the callback's failed() parameter) will be either a DataONE BaseException
+ * subclass, or a ClientSideException for client-side and transport problems.
+ * <p>
+ * IMPORTANT: Users are responsible for closing the input streams returned
+ * by the Futures, and for closing the client when finished with it.
+ * 
+ * @author rnahf
+ *
+ */
+public interface AsyncMultipartRestClient extends Closeable {
+
+    /**
+     * Submits an HTTP GET request.
+     *
+     * @param url - the encoded url string
+     * @param timeoutMillisecs - null uses the default timeout
+     * @param callback - can be null
+     * @return a Future for the InputStream from the http Response
+     */
+    public Future<InputStream> doGetRequest(String url, Integer timeoutMillisecs,
+            FutureCallback<InputStream> callback);
+
+    public Future<InputStream> doGetRequest(String url, Integer timeoutMillisecs, 
+            boolean followRedirect, FutureCallback<InputStream> callback);
+
+    public Future<Header[]> doGetRequestForHeaders(String url, Integer timeoutMillisecs,
+            FutureCallback<Header[]> callback);
+
+    public Future<InputStream> doDeleteRequest(String url, Integer timeoutMillisecs,
+            FutureCallback<InputStream> callback);
+
+    public Future<Header[]> doHeadRequest(String url, Integer timeoutMillisecs,
+            FutureCallback<Header[]> callback);
+
+    public Future<InputStream> doPutRequest(String url, SimpleMultipartEntity entity, 
+            Integer timeoutMillisecs, FutureCallback<InputStream> callback);
+
+    public Future<InputStream> doPostRequest(String url, SimpleMultipartEntity entity, 
+            Integer timeoutMillisecs, FutureCallback<InputStream> callback);
+
+    public X509Session getSession();
+
+}
@@ -0,0 +1,82 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.dataone.client.rest;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A RequestMetricsListener that passes each request's timings to several 
+ * listeners, so that a RestClient can feed both the metrics and the node 
+ * health tracking.  A listener that throws does not keep the others from 
+ * being called.
+ * 
+ * @author rnahf
+ *
+ */
+public class CompositeRequestMetricsListener implements RequestMetricsListener {
+
+    protected static Log log = LogFactory.getLog(CompositeRequestMetricsListener.class);
+
+    private final List<RequestMetricsListener> listeners;
+
+    public CompositeRequestMetricsListener(List<RequestMetricsListener> listeners) {
+        this.listeners = Collections.unmodifiableList(new ArrayList<RequestMetricsListener>(listeners));
+    }
+
+    /**
+     * Combines the listeners, ignoring nulls.
+     * @param listeners
+     * @return null if there are none, the listener itself if there is only one,
+     * otherwise a CompositeRequestMetricsListener
+     */
+    public static RequestMetricsListener of(RequestMetricsListener... listeners) {
+        List<RequestMetricsListener> list = new ArrayList<RequestMetricsListener>();
+        for (RequestMetricsListener l : listeners) {
+            if (l != null)
+                list.add(l);
+        }
+        if (list.isEmpty())
+            return null;
+        if (list.size() == 1)
+            return list.get(0);
+        return new CompositeRequestMetricsListener(list);
+    }
+
+    public List<RequestMetricsListener> getListeners() {
+        return listeners;
+    }
+
+    @Override
+    public void requestCompleted(RequestTimings timings) {
+        for (RequestMetricsListener l : listeners) {
+            try {
+                l.requestCompleted(timings);
+            } catch (RuntimeException e) {
+                log.warn("RequestMetricsListener threw an exception: " + e.getMessage(), e);
+            }
+        }
+    }
+}
@@ -9,9 +9,12 @@ import java.security.cert.CertificateException;
 import java.util.Observable;
 import java.util.Observer;
 
+import org.apache.http.client.HttpClient;
 import org.dataone.client.auth.CertificateManager;
+import org.dataone.client.auth.X509Session;
 import org.dataone.client.exception.ClientSideException;
 import org.dataone.client.utils.HttpUtils;
+import org.dataone.client.utils.RotatingSSLConnectionSocketFactory;
 import org.dataone.exceptions.MarshallingException;
 
 /**
@@ -21,12 +24,20 @@ import org.dataone.exceptions.MarshallingException;
  * <p>
  * Update is triggered by the CertificateManager.setCertificateLocation method,
  * so that this MultipartRestClient is always in sync with CertificateManager.
+ * <p>
+ * If D1Client.http.rotateKeyMaterial is true (the default), only the SSL key
+ * material of the HttpClient is replaced on update, so the connection pool is
+ * kept, and connections made with the previous certificate are drained as 
+ * their requests complete (see RotatingSSLConnectionSocketFactory).
  * <p> 
  * @author rnahf
  *
  */
 public class DefaultHttpMultipartRestClient extends HttpMultipartRestClient implements Observer {
 
+    /* null unless rotating key material */
+    private final RotatingSSLConnectionSocketFactory rotatingSocketFactory;
+    
     /**
      * This MultipartRestClient implementation only uses the default or the set 
      * certificate location from CertificateManager to derive the Session.  It
@@ -37,18 +48,59 @@ public class DefaultHttpMultipartRestClient extends HttpMultipartRestClient impl
      * @throws ClientSideException
      */
     public DefaultHttpMultipartRestClient() throws IOException, ClientSideException {
-        super((String)null);
+        this(CertificateManager.getInstance().selectSession((String)null));
+    }
+
+    private DefaultHttpMultipartRestClient(X509Session x509Session) 
+    throws IOException, ClientSideException {
+        this(x509Session, HttpUtils.ROTATE_KEY_MATERIAL 
+                ? buildRotatingSocketFactory(x509Session) : null);
+    }
+
+    private DefaultHttpMultipartRestClient(X509Session x509Session, 
+            RotatingSSLConnectionSocketFactory rotatingSocketFactory) 
+    throws IOException, ClientSideException {
+        super(buildHttpClient(x509Session, rotatingSocketFactory), x509Session);
+        this.rotatingSocketFactory = rotatingSocketFactory;
         observeCertificateManager();
     }
 
+    private static RotatingSSLConnectionSocketFactory buildRotatingSocketFactory(X509Session x509Session) 
+    throws IOException, ClientSideException {
+        try {
+            return new RotatingSSLConnectionSocketFactory(
+                    CertificateManager.getInstance().getSSLConnectionSocketFactory(x509Session));
+        } catch (UnrecoverableKeyException | KeyManagementException
+                | NoSuchAlgorithmException | KeyStoreException
+                | CertificateException e) {
+            throw new ClientSideException("Could not create the SSL socket factory.", e);
+        }
+    }
+
+    private static HttpClient buildHttpClient(X509Session x509Session, 
+            RotatingSSLConnectionSocketFactory rotatingSocketFactory) 
+    throws IOException, ClientSideException {
+        if (rotatingSocketFactory != null) {
+            return HttpUtils.getHttpClientBuilder(rotatingSocketFactory, null).build();
+        }
+        try {
+            return HttpUtils.createHttpClient(x509Session);
+        } catch (UnrecoverableKeyException | KeyManagementException
+                | NoSuchAlgorithmException | KeyStoreException
+                | CertificateException | InstantiationException
+                | IllegalAccessException | MarshallingException e) {
+            throw new ClientSideException("Could not create HttpClient.", e);
+        }
+    }
+    
     protected void observeCertificateManager() {
         CertificateManager.getInstance().addObserver(this);
     }
 
     /**
      * Updates the RestClient with new Session and certificate information from 
-     * the CertificateManager.  Problems with replacing the HttpClient are logged
-     * as errors.
+     * the CertificateManager.  Problems with replacing the HttpClient (or its
+     * key material) are logged as errors.
      */
     @Override
     public void update(Observable observable, Object changeTypeString) {
@@ -60,8 +112,14 @@ public class DefaultHttpMultipartRestClient extends HttpMultipartRestClient impl
                 
                 // using null for the selectSession parameter ensures we use the 
                 // new default session configured into CertificateManager.
-                this.x509Session = ((CertificateManager)observable).selectSession((String)null);
-                this.rc.setHttpClient(HttpUtils.createHttpClient(x509Session));
+                X509Session newSession = ((CertificateManager)observable).selectSession((String)null);
+                if (rotatingSocketFactory != null) {
+                    rotatingSocketFactory.rotate(((CertificateManager)observable)
+                            .getSSLConnectionSocketFactory(newSession));
+                } else {
+                    this.rc.setHttpClient(HttpUtils.createHttpClient(newSession));
+                }
+                this.x509Session = newSession;
                
             } catch (UnrecoverableKeyException | KeyManagementException
                     | NoSuchAlgorithmException | KeyStoreException
@@ -0,0 +1,507 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.dataone.client.rest;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.dataone.configuration.Settings;
+
+/**
+ * A persistent, size-bounded cache of object bytes and SystemMetadata on local
+ * disk, used by MultipartD1Node.get() and getSystemMetadata() when 
+ * 'D1Client.diskCache.enabled' is true.  It survives JVM restarts.
+ * <p>
+ * Object content is immutable per pid in DataONE, so it is stored content-addressed,
+ * under the hash of its checksum, and verified against that checksum when 
+ * stored.  A separate index maps each (partition, pid) to its checksum, so 
+ * pids with identical content share one file.  Cache hits are read through a
+ * memory-mapped buffer.
+ * <p>
+ * Entries are partitioned (normally by session subject) so that content 
+ * fetched with one identity is never handed to another, and authorization is 
+ * not bypassed.  SystemMetadata is mutable, so it is also recorded with its 
+ * serialVersion, and callers revalidate entries older than 
+ * {@link #getSystemMetadataTtlMillis()}.
+ * <p>
+ * Data files are evicted least-recently-used first when the total size exceeds
+ * 'D1Client.diskCache.maxBytes'.  Recency is kept in the file modification
+ * times, so it is preserved across restarts.
+ * 
+ * @author rnahf
+ *
+ */
+public class DiskObjectCache {
+
+    protected static Log log = LogFactory.getLog(DiskObjectCache.class);
+
+    public static final String ENABLED_PARAM = "D1Client.diskCache.enabled";
+    public static final String DIRECTORY_PARAM = "D1Client.diskCache.directory";
+    public static final String MAX_BYTES_PARAM = "D1Client.diskCache.maxBytes";
+    public static final String MAX_OBJECT_BYTES_PARAM = "D1Client.diskCache.maxObjectBytes";
+    public static final String SYSMETA_TTL_PARAM = "D1Client.diskCache.systemMetadata.ttlSeconds";
+
+    private static final String OBJECTS_DIR = "objects";
+    private static final String META_DIR = "meta";
+    private static final String INDEX_DIR = "index";
+    private static final String TEMP_DIR = "tmp";
+
+    private final File baseDir;
+    private final long maxBytes;
+    private final long maxObjectBytes;
+    private final long systemMetadataTtlMillis;
+
+    /* data files (relative paths) in least-recently-used order, with their sizes. guarded by this */
+    private final LinkedHashMap<String, Long> lru = new LinkedHashMap<String, Long>(64, 0.75f, true);
+    private long totalBytes;
+
+
+    private static class SingletonHolder {
+        public static final DiskObjectCache INSTANCE = build();
+
+        private static DiskObjectCache build() {
+            if (!Settings.getConfiguration().getBoolean(ENABLED_PARAM, false))
+                return null;
+            String dir = Settings.getConfiguration().getString(DIRECTORY_PARAM, 
+                    new File(System.getProperty("java.io.tmpdir"), "d1_object_cache").getPath());
+            try {
+                return new DiskObjectCache(new File(dir),
+                        Settings.getConfiguration().getLong(MAX_BYTES_PARAM, 1024L * 1024 * 1024),
+                        Settings.getConfiguration().getLong(MAX_OBJECT_BYTES_PARAM, 256L * 1024 * 1024),
+                        Settings.getConfiguration().getLong(SYSMETA_TTL_PARAM, 300) * 1000);
+            } catch (IOException e) {
+                log.error("Could not open the disk cache at " + dir + ". Continuing without it.", e);
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Returns the configured process-wide cache, or null if the disk cache is
+     * not enabled (or could not be opened).
+     * @return
+     */
+    public static DiskObjectCache getDefault() {
+        return SingletonHolder.INSTANCE;
+    }
+
+
+    /**
+     * Opens (or creates) a cache in the given directory.
+     * @param baseDir
+     * @param maxBytes - the total size of the data files kept
+     * @param maxObjectBytes - the largest object that will be cached
+     * @param systemMetadataTtlMillis - how long SystemMetadata may be used without revalidation
+     * @throws IOException
+     */
+    public DiskObjectCache(File baseDir, long maxBytes, long maxObjectBytes, long systemMetadataTtlMillis) 
+    throws IOException {
+        this.baseDir = baseDir;
+        this.maxBytes = maxBytes;
+        this.maxObjectBytes = Math.min(maxObjectBytes, Integer.MAX_VALUE);
+        this.systemMetadataTtlMillis = systemMetadataTtlMillis;
+
+        for (String dir : new String[] { OBJECTS_DIR, META_DIR, INDEX_DIR, TEMP_DIR }) {
+            FileUtils.forceMkdir(new File(baseDir, dir));
+        }
+        FileUtils.cleanDirectory(new File(baseDir, TEMP_DIR));
+        loadLru();
+    }
+
+    /* rebuilds the LRU order from the data files' modification times */
+    private void loadLru() {
+        List<File> files = new ArrayList<File>();
+        for (String dir : new String[] { OBJECTS_DIR, META_DIR }) {
+            File[] listed = new File(baseDir, dir).listFiles();
+            if (listed != null)
+                files.addAll(Arrays.asList(listed));
+        }
+        sortByModified(files);
+        synchronized (this) {
+            for (File f : files) {
+                lru.put(f.getParentFile().getName() + "/" + f.getName(), f.length());
+                totalBytes += f.length();
+            }
+        }
+        evict();
+    }
+
+    private static void sortByModified(List<File> files) {
+        Collections.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long diff = a.lastModified() - b.lastModified();
+                return diff < 0 ? -1 : diff > 0 ? 1 : 0;
+            }
+        });
+    }
+
+    public long getMaxObjectBytes() {
+        return maxObjectBytes;
+    }
+
+    public long getSystemMetadataTtlMillis() {
+        return systemMetadataTtlMillis;
+    }
+
+    /**
+     * @return the total size of the cached data files
+     */
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+
+    /**
+     * Returns a stream over the cached content of the pid, or null if it isn't
+     * cached for the partition.
+     * @param partition
+     * @param pid
+     * @return
+     * @throws IOException
+     */
+    public InputStream getObject(String partition, String pid) throws IOException {
+        File indexFile = new File(new File(baseDir, INDEX_DIR), hash(partition + "\n" + pid));
+        if (!indexFile.exists())
+            return null;
+
+        String dataName = null;
+        try {
+            dataName = FileUtils.readFileToString(indexFile, "UTF-8").trim();
+        } catch (IOException e) {
+            // deleted by a concurrent eviction
+            return null;
+        }
+        InputStream is = openMapped(OBJECTS_DIR + "/" + dataName);
+        if (is == null) 
+            FileUtils.deleteQuietly(indexFile); // the content was evicted
+        return is;
+    }
+
+    /**
+     * Reads the content into the cache, verifying it against the checksum, and
+     * returns a stream over the cached copy.  If the content doesn't match the
+     * checksum, it isn't cached, and a stream over the downloaded copy is 
+     * returned instead (deleted when closed).  The content stream is closed,
+     * unless the checksum algorithm isn't supported, in which case it is
+     * returned as-is.
+     * @param partition
+     * @param pid
+     * @param checksumAlgorithm - the DataONE checksum algorithm name (e.g. "MD5", "SHA-1")
+     * @param checksumValue
+     * @param content
+     * @return
+     * @throws IOException
+     */
+    public InputStream putObject(String partition, String pid, String checksumAlgorithm, 
+            String checksumValue, InputStream content) throws IOException 
+    {
+        MessageDigest digest = null;
+        try {
+            digest = MessageDigest.getInstance(checksumAlgorithm);
+        } catch (NoSuchAlgorithmException e) {
+            log.warn("Cannot verify checksum algorithm " + checksumAlgorithm + ". Not caching " + pid);
+            return content;
+        }
+
+        File temp = File.createTempFile("object", ".tmp", new File(baseDir, TEMP_DIR));
+        try {
+            OutputStream os = Files.newOutputStream(temp.toPath());
+            try {
+                IOUtils.copyLarge(new DigestInputStream(content, digest), os);
+            } finally {
+                IOUtils.closeQuietly(os);
+                IOUtils.closeQuietly(content);
+            }
+        } catch (IOException e) {
+            FileUtils.deleteQuietly(temp);
+            throw e;
+        }
+
+        String actual = Hex.encodeHexString(digest.digest());
+        if (!actual.equalsIgnoreCase(checksumValue)) {
+            log.warn(String.format("Content of %s does not match its checksum (%s %s, computed %s). Not caching it.",
+                    pid, checksumAlgorithm, checksumValue, actual));
+            return new DeleteOnCloseInputStream(temp);
+        }
+
+        String dataName = hash(checksumAlgorithm.toUpperCase() + ":" + checksumValue.toLowerCase());
+        String relPath = OBJECTS_DIR + "/" + dataName;
+        File dataFile = new File(baseDir, relPath);
+        Files.move(temp.toPath(), dataFile.toPath(), StandardCopyOption.REPLACE_EXISTING, 
+                StandardCopyOption.ATOMIC_MOVE);
+        writeAtomically(new File(new File(baseDir, INDEX_DIR), hash(partition + "\n" + pid)), 
+                dataName.getBytes(StandardCharsets.UTF_8));
+        added(relPath, dataFile.length());
+
+        InputStream is = openMapped(relPath);
+        return is != null ? is : new FileInputStream(dataFile);
+    }
+
+
+    /**
+     * Cached SystemMetadata, as the serialized bytes
+     */
+    public static class CachedSystemMetadata {
+        private final byte[] bytes;
+        private final BigInteger serialVersion;
+        private final long validatedTime;
+
+        CachedSystemMetadata(byte[] bytes, BigInteger serialVersion, long validatedTime) {
+            this.bytes = bytes;
+            this.serialVersion = serialVersion;
+            this.validatedTime = validatedTime;
+        }
+
+        public byte[] getBytes() {
+            return bytes;
+        }
+
+        public BigInteger getSerialVersion() {
+            return serialVersion;
+        }
+
+        /** @return when the entry was stored or last revalidated (milliseconds since the epoch) */
+        public long getValidatedTime() {
+            return validatedTime;
+        }
+    }
+
+    /**
+     * Returns the cached SystemMetadata for the key (normally the request url), 
+     * or null.
+     * @param partition
+     * @param key
+     * @return
+     */
+    public CachedSystemMetadata getSystemMetadata(String partition, String key) {
+        String name = hash(partition + "\n" + key);
+        File versionFile = new File(new File(baseDir, INDEX_DIR), name + ".meta");
+        String relPath = META_DIR + "/" + name;
+        try {
+            if (!versionFile.exists())
+                return null;
+            String version = FileUtils.readFileToString(versionFile, "UTF-8").trim();
+            long validated = versionFile.lastModified();
+            byte[] bytes = FileUtils.readFileToByteArray(new File(baseDir, relPath));
+            touched(relPath);
+            return new CachedSystemMetadata(bytes, 
+                    version.isEmpty() ? null : new BigInteger(version), validated);
+        } catch (IOException | NumberFormatException e) {
+            // evicted or damaged
+            FileUtils.deleteQuietly(versionFile);
+            return null;
+        }
+    }
+
+    /**
+     * Stores the serialized SystemMetadata under the key.
+     * @param partition
+     * @param key
+     * @param bytes
+     * @param serialVersion
+     * @throws IOException
+     */
+    public void putSystemMetadata(String partition, String key, byte[] bytes, BigInteger serialVersion) 
+    throws IOException {
+        String name = hash(partition + "\n" + key);
+        String relPath = META_DIR + "/" + name;
+        writeAtomically(new File(baseDir, relPath), bytes);
+        writeAtomically(new File(new File(baseDir, INDEX_DIR), name + ".meta"), 
+                (serialVersion == null ? "" : serialVersion.toString()).getBytes(StandardCharsets.UTF_8));
+        added(relPath, bytes.length);
+    }
+
+    /**
+     * Marks the cached SystemMetadata as revalidated now.
+     * @param partition
+     * @param key
+     */
+    public void revalidatedSystemMetadata(String partition, String key) {
+        File versionFile = new File(new File(baseDir, INDEX_DIR), hash(partition + "\n" + key) + ".meta");
+        versionFile.setLastModified(System.currentTimeMillis());
+    }
+
+
+    /* returns a stream over the memory-mapped data file, or null if it doesn't exist */
+    private InputStream openMapped(String relPath) throws IOException {
+        File f = new File(baseDir, relPath);
+        FileChannel channel = null;
+        try {
+            channel = FileChannel.open(f.toPath(), StandardOpenOption.READ);
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            touched(relPath);
+            return new ByteBufferInputStream(buffer);
+        } catch (java.nio.file.NoSuchFileException e) {
+            synchronized (this) {
+                Long size = lru.remove(relPath);
+                if (size != null)
+                    totalBytes -= size;
+            }
+            return null;
+        } finally {
+            if (channel != null)
+                channel.close();  // the mapping stays valid
+        }
+    }
+
+    private void writeAtomically(File target, byte[] bytes) throws IOException {
+        File temp = File.createTempFile("entry", ".tmp", new File(baseDir, TEMP_DIR));
+        try {
+            FileUtils.writeByteArrayToFile(temp, bytes);
+            Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            FileUtils.deleteQuietly(temp);
+        }
+    }
+
+    private void touched(String relPath) {
+        synchronized (this) {
+            lru.get(relPath);
+        }
+        new File(baseDir, relPath).setLastModified(System.currentTimeMillis());
+    }
+
+    private void added(String relPath, long size) {
+        synchronized (this) {
+            Long previous = lru.put(relPath, size);
+            totalBytes += size - (previous == null ? 0 : previous);
+        }
+        evict();
+    }
+
+    /* deletes least-recently-used data files until the total is within bounds */
+    private void evict() {
+        List<String> toDelete = new ArrayList<String>();
+        synchronized (this) {
+            Iterator<Map.Entry<String, Long>> it = lru.entrySet().iterator();
+            while (totalBytes > maxBytes && it.hasNext()) {
+                Map.Entry<String, Long> eldest = it.next();
+                totalBytes -= eldest.getValue();
+                toDelete.add(eldest.getKey());
+                it.remove();
+            }
+        }
+        for (String relPath : toDelete) {
+            if (log.isDebugEnabled())
+                log.debug("DiskObjectCache evicting " + relPath);
+            FileUtils.deleteQuietly(new File(baseDir, relPath));
+        }
+    }
+
+    private static String hash(String value) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            return Hex.encodeHexString(md.digest(value.getBytes("UTF-8")));
+        } catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
+            // both are required to be supported by every JVM
+            throw new IllegalStateException(e);
+        }
+    }
+
+
+    /* an InputStream over a (memory-mapped) ByteBuffer */
+    private static class ByteBufferInputStream extends InputStream {
+
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0)
+                return 0;
+            if (!buffer.hasRemaining())
+                return -1;
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public long skip(long n) {
+            int skipped = (int) Math.max(0, Math.min(n, buffer.remaining()));
+            buffer.position(buffer.position() + skipped);
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+
+    /* a stream over a temporary file that deletes the file when closed */
+    private static class DeleteOnCloseInputStream extends FilterInputStream {
+
+        private final File file;
+
+        DeleteOnCloseInputStream(File file) throws IOException {
+            super(new FileInputStream(file));
+            this.file = file;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                FileUtils.deleteQuietly(file);
+            }
+        }
+    }
+}
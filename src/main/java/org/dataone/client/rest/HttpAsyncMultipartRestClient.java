@@ -0,0 +1,395 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.dataone.client.rest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.KeyManagementException;
+import java.security.KeyStoreException;
+import java.security.NoSuchAlgorithmException;
+import java.security.UnrecoverableKeyException;
+import java.security.cert.CertificateException;
+import java.util.concurrent.Future;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.Header;
+import org.apache.http.HttpException;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpDelete;
+import org.apache.http.client.methods.HttpEntityEnclosingRequestBase;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpHead;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.concurrent.BasicFuture;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.dataone.client.auth.CertificateManager;
+import org.dataone.client.auth.X509Session;
+import org.dataone.client.exception.ClientSideException;
+import org.dataone.client.utils.HttpUtils;
+import org.dataone.mimemultipart.SimpleMultipartEntity;
+import org.dataone.service.exceptions.BaseException;
+import org.dataone.service.util.Constants;
+import org.dataone.service.util.ExceptionHandler;
+
+/**
+ * An implementation of AsyncMultipartRestClient that uses the non-blocking
+ * apache HttpAsyncClient.  Requests are multiplexed over a pool of connections
+ * serviced by a small number of I/O dispatch threads, so the number of requests
+ * in flight is not limited by the number of application threads.
+ * <p>
+ * The SSL setup is the same as for HttpMultipartRestClient: the X509Session 
+ * determines the client certificate, and the CertificateManager provides the
+ * TrustManager.
+ * <p>
+ * Response bodies are buffered in memory by the I/O layer before the Future
+ * completes, and request entities are serialized into memory before being 
+ * submitted, so this client is best suited to the many small requests typical 
+ * of harvesting (metadata, checksums, lists).  Large object transfers are better 
+ * served by HttpMultipartRestClient.
+ * 
+ * @author rnahf
+ *
+ */
+public class HttpAsyncMultipartRestClient implements AsyncMultipartRestClient {
+
+    protected static Log log = LogFactory.getLog(HttpAsyncMultipartRestClient.class);
+
+    protected CloseableHttpAsyncClient httpAsyncClient;
+
+    protected X509Session x509Session;
+
+    /**
+     * creates an HttpAsyncMultipartRestClient configured with the certificate 
+     * in the default or set location in the CertificateManager.
+     * 
+     * @throws IOException
+     * @throws ClientSideException
+     */
+    public HttpAsyncMultipartRestClient() throws IOException, ClientSideException {
+        this((String)null);
+    }
+
+    /**
+     * creates an HttpAsyncMultipartRestClient configured with the certificate
+     * registered to the CertificateManager.
+     * 
+     * @param subjectString
+     * @throws IOException
+     * @throws ClientSideException
+     */
+    public HttpAsyncMultipartRestClient(String subjectString) 
+    throws IOException, ClientSideException {
+        this(CertificateManager.getInstance().selectSession(subjectString));
+    }
+
+    /**
+     * creates an HttpAsyncMultipartRestClient configured with the certificate 
+     * contained in the X509Session, and starts its I/O reactor.
+     * 
+     * @param x509Session
+     * @throws IOException
+     * @throws ClientSideException
+     */
+    public HttpAsyncMultipartRestClient(X509Session x509Session) 
+    throws IOException, ClientSideException {
+        try {
+            this.httpAsyncClient = HttpUtils.getHttpAsyncClientBuilder(x509Session).build();
+        } catch (UnrecoverableKeyException | KeyManagementException
+                | NoSuchAlgorithmException | KeyStoreException
+                | CertificateException e) {
+            throw new ClientSideException("Could not create HttpAsyncClient.", e);
+        }
+        this.x509Session = x509Session;
+        this.httpAsyncClient.start();
+    }
+
+    /**
+     * Constructor for users that build their own HttpAsyncClient.  The user 
+     * needs to ensure that the X509Session is the one used when making the
+     * client, or is null.  The client is started if it is not already running.
+     * 
+     * @param httpAsyncClient
+     * @param x509Session
+     */
+    public HttpAsyncMultipartRestClient(CloseableHttpAsyncClient httpAsyncClient, 
+            X509Session x509Session) {
+        this.httpAsyncClient = httpAsyncClient;
+        this.x509Session = x509Session;
+        if (!this.httpAsyncClient.isRunning())
+            this.httpAsyncClient.start();
+    }
+
+    /**
+     * Gets the HttpAsyncClient instance used to make the connections
+     * @return
+     */
+    public CloseableHttpAsyncClient getHttpAsyncClient() {
+        return this.httpAsyncClient;
+    }
+
+    @Override
+    public X509Session getSession() {
+        return this.x509Session;
+    }
+
+    /**
+     * Shuts down the I/O reactor and the connection pool.  Requests in flight
+     * are failed.
+     */
+    @Override
+    public void close() throws IOException {
+        this.httpAsyncClient.close();
+    }
+
+
+    @Override
+    public Future<InputStream> doGetRequest(String url, Integer timeoutMillisecs,
+            FutureCallback<InputStream> callback) {
+        return doGetRequest(url, timeoutMillisecs, false, callback);
+    }
+
+    @Override
+    public Future<InputStream> doGetRequest(String url, Integer timeoutMillisecs,
+            final boolean followRedirect, FutureCallback<InputStream> callback) {
+
+        HttpGet req = new HttpGet(url);
+        req.setConfig(determineRequestConfig(timeoutMillisecs, followRedirect));
+        return execute(req, new ResponseFilter<InputStream>() {
+            @Override
+            public InputStream filter(HttpResponse response) 
+            throws BaseException, IOException, HttpException {
+                // as in HttpMultipartRestClient, allow the 303 through if 
+                // we're not following redirects
+                return ExceptionHandler.filterErrors(response, !followRedirect);
+            }
+        }, callback);
+    }
+
+    @Override
+    public Future<Header[]> doGetRequestForHeaders(String url, Integer timeoutMillisecs,
+            FutureCallback<Header[]> callback) {
+
+        HttpGet req = new HttpGet(url);
+        req.setConfig(determineRequestConfig(timeoutMillisecs, true));
+        return execute(req, headerFilter(Constants.GET), callback);
+    }
+
+    @Override
+    public Future<InputStream> doDeleteRequest(String url, Integer timeoutMillisecs,
+            FutureCallback<InputStream> callback) {
+
+        HttpDelete req = new HttpDelete(url);
+        req.setConfig(determineRequestConfig(timeoutMillisecs, true));
+        return execute(req, BODY_FILTER, callback);
+    }
+
+    @Override
+    public Future<Header[]> doHeadRequest(String url, Integer timeoutMillisecs,
+            FutureCallback<Header[]> callback) {
+
+        HttpHead req = new HttpHead(url);
+        req.setConfig(determineRequestConfig(timeoutMillisecs, true));
+        return execute(req, headerFilter(Constants.HEAD), callback);
+    }
+
+    @Override
+    public Future<InputStream> doPutRequest(String url, SimpleMultipartEntity entity,
+            Integer timeoutMillisecs, FutureCallback<InputStream> callback) {
+        return doRequestMMBody(new HttpPut(url), entity, timeoutMillisecs, callback);
+    }
+
+    @Override
+    public Future<InputStream> doPostRequest(String url, SimpleMultipartEntity entity,
+            Integer timeoutMillisecs, FutureCallback<InputStream> callback) {
+        return doRequestMMBody(new HttpPost(url), entity, timeoutMillisecs, callback);
+    }
+
+
+    /*
+     * buffers the mime-multipart entity into memory (the NIO request producer
+     * cannot stream from MultipartEntities) and submits the request
+     */
+    private Future<InputStream> doRequestMMBody(HttpEntityEnclosingRequestBase req, 
+            SimpleMultipartEntity mpe, Integer timeoutMillisecs, FutureCallback<InputStream> callback) {
+
+        req.setConfig(determineRequestConfig(timeoutMillisecs, true));
+        if (mpe != null) {
+            try {
+                ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                mpe.writeTo(baos);
+                ByteArrayEntity bufferedEntity = new ByteArrayEntity(baos.toByteArray());
+                bufferedEntity.setContentType(mpe.getContentType());
+                req.setEntity(bufferedEntity);
+            } catch (IOException e) {
+                BasicFuture<InputStream> failed = new BasicFuture<InputStream>(callback);
+                failed.failed(new ClientSideException("Could not buffer the request entity for: " 
+                        + req.getMethod() + " " + req.getURI(), e));
+                return failed;
+            } finally {
+                if (! mpe.cleanupTempFiles() ) {
+                    log.warn("Failed to clean up temp files for: " + req.getMethod() + " " + req.getURI());
+                }
+            }
+        }
+        return execute(req, BODY_FILTER, callback);
+    }
+
+
+    /*
+     * submits the request to the HttpAsyncClient, and converts the HttpResponse 
+     * into the result type (or DataONE exception) when it arrives.
+     */
+    private <T> Future<T> execute(HttpRequestBase req, final ResponseFilter<T> filter, 
+            FutureCallback<T> callback) {
+
+        final String latestCall = req.getMethod() + " " + req.getURI();
+        log.info("HttpAsyncMultipartRestClient.execute, call Info: " + latestCall);
+
+        final ResultFuture<T> result = new ResultFuture<T>(callback);
+        result.responseFuture = this.httpAsyncClient.execute(req, new FutureCallback<HttpResponse>() {
+
+            @Override
+            public void completed(HttpResponse response) {
+                try {
+                    result.completed(filter.filter(response));
+                } catch (BaseException be) {
+                    result.failed(be);
+                } catch (IOException | HttpException | IllegalStateException e) {
+                    result.failed(new ClientSideException("", e));
+                }
+            }
+
+            @Override
+            public void failed(Exception ex) {
+                result.failed(new ClientSideException("Request failed: " + latestCall, ex));
+            }
+
+            @Override
+            public void cancelled() {
+                result.cancel();
+            }
+        });
+        return result;
+    }
+
+
+    /**
+     * Gets the RequestConfig from the RequestPolicyRegistry, as HttpMultipartRestClient
+     * does: a null timeout uses the "D1Client.http.default.timeouts.ms" setting.
+     */
+    private RequestConfig determineRequestConfig(Integer timeoutMillis, boolean followRedirect) {
+        return RequestPolicyRegistry.getInstance().getRequestConfig(timeoutMillis, followRedirect);
+    }
+
+
+    private static ResponseFilter<Header[]> headerFilter(final String method) {
+        return new ResponseFilter<Header[]>() {
+            @Override
+            public Header[] filter(HttpResponse response) 
+            throws BaseException, IOException, HttpException {
+                return ExceptionHandler.filterErrorsHeader(response, method);
+            }
+        };
+    }
+
+    private static final ResponseFilter<InputStream> BODY_FILTER = new ResponseFilter<InputStream>() {
+        @Override
+        public InputStream filter(HttpResponse response) 
+        throws BaseException, IOException, HttpException {
+            return ExceptionHandler.filterErrors(response);
+        }
+    };
+
+    /*
+     * converts the raw response into the result, applying the DataONE 
+     * exception deserialization.
+     */
+    private interface ResponseFilter<T> {
+        T filter(HttpResponse response) throws BaseException, IOException, HttpException;
+    }
+
+    /*
+     * A BasicFuture that also cancels the underlying http exchange
+     */
+    private static class ResultFuture<T> extends BasicFuture<T> {
+
+        volatile Future<HttpResponse> responseFuture;
+
+        ResultFuture(FutureCallback<T> callback) {
+            super(callback != null ? new GuardedCallback<T>(callback) : null);
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            Future<HttpResponse> f = this.responseFuture;
+            if (f != null)
+                f.cancel(mayInterruptIfRunning);
+            return super.cancel(mayInterruptIfRunning);
+        }
+    }
+
+    /*
+     * Calls the caller's callback, logging what it throws.  Callbacks run on 
+     * an I/O dispatch thread, where an exception would shut down the I/O
+     * reactor and fail every other request of the client.
+     */
+    private static class GuardedCallback<T> implements FutureCallback<T> {
+
+        private final FutureCallback<T> callback;
+
+        GuardedCallback(FutureCallback<T> callback) {
+            this.callback = callback;
+        }
+
+        @Override
+        public void completed(T result) {
+            try {
+                this.callback.completed(result);
+            } catch (RuntimeException e) {
+                log.error("FutureCallback.completed() threw an exception", e);
+            }
+        }
+
+        @Override
+        public void failed(Exception ex) {
+            try {
+                this.callback.failed(ex);
+            } catch (RuntimeException e) {
+                log.error("FutureCallback.failed() threw an exception", e);
+            }
+        }
+
+        @Override
+        public void cancelled() {
+            try {
+                this.callback.cancelled();
+            } catch (RuntimeException e) {
+                log.error("FutureCallback.cancelled() threw an exception", e);
+            }
+        }
+    }
+}
@@ -22,6 +22,7 @@
 
 package org.dataone.client.rest;
 
+import java.io.Closeable;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
@@ -60,9 +61,9 @@ import org.dataone.exceptions.MarshallingException;
  * This class wraps the RestClient, adding uniform exception deserialization and
  * the setup of SSL for standard DataONE communications.
  *
- * Timeouts are converted into RequestConfigs in this class, and produced by copying
- * the existing default one and setting connection request, connection, and socket timeouts
- * with the supplied value.
+ * Timeouts are converted into RequestConfigs by the {@link RequestPolicyRegistry},
+ * which sets connection request, connection, and socket timeouts to the supplied 
+ * value, and reuses the RequestConfigs it prebuilds for the policy timeouts.
  *
  */
 public class HttpMultipartRestClient implements MultipartRestClient {
@@ -71,13 +72,16 @@ public class HttpMultipartRestClient implements MultipartRestClient {
 
     protected RestClient rc;
 
-    protected RequestConfig baseRequestConfig;
-
     protected X509Session x509Session;
+
+    /* true if the HttpClient is shared with other instances, so is not closed by this one */
+    private boolean sharedHttpClient;
     
     public static final String DEFAULT_TIMEOUT_PARAM = "D1Client.http.default.timeouts.ms";
     
     public static final Integer DEFAULT_TIMEOUT_VALUE = 30000;
+
+    public static final String METRICS_ENABLED_PARAM = "D1Client.http.metrics.enabled";
     
     /** 
      * HttpMRC requires a RestClient / HttpClient.
@@ -142,6 +146,7 @@ public class HttpMultipartRestClient implements MultipartRestClient {
         this.rc = new RestClient(httpClient);
         this.x509Session = x509session;
         setDefaultTimeout(DEFAULT_TIMEOUT_VALUE);
+        rc.setRequestMetricsListener(defaultRequestMetricsListener());
     }
 
     /**
@@ -169,6 +174,7 @@ public class HttpMultipartRestClient implements MultipartRestClient {
         this.rc = new RestClient(httpClientBuilder.setConnectionManager(connMan).build());
         this.x509Session = x509session;
         setDefaultTimeout(DEFAULT_TIMEOUT_VALUE);
+        rc.setRequestMetricsListener(defaultRequestMetricsListener());
     }
 
     
@@ -220,10 +226,26 @@ public class HttpMultipartRestClient implements MultipartRestClient {
         }
         this.x509Session = x509Session;
         setDefaultTimeout(DEFAULT_TIMEOUT_VALUE);
+        rc.setRequestMetricsListener(defaultRequestMetricsListener());
     }
     
+    /**
+     * creates an HttpMultipartRestClient that sends the AuthTokenSession's token
+     * with each request.  If D1Client.http.authToken.sharedClient is true (the
+     * default), it uses the HttpClient shared by all token sessions, otherwise
+     * a dedicated one.
+     * 
+     * @param authTokenSession
+     */
     public HttpMultipartRestClient(AuthTokenSession authTokenSession) {
-        this.rc = new RestClient(HttpUtils.createHttpClient(authTokenSession.getAuthToken()));
+        if (HttpUtils.SHARE_AUTH_TOKEN_CLIENT) {
+            this.rc = new RestClient(HttpUtils.getSharedAuthTokenHttpClient());
+            this.rc.setAuthToken(authTokenSession.getAuthToken());
+            this.sharedHttpClient = true;
+        } else {
+            this.rc = new RestClient(HttpUtils.createHttpClient(authTokenSession.getAuthToken()));
+        }
+        rc.setRequestMetricsListener(defaultRequestMetricsListener());
     }
 
     /**
@@ -288,6 +310,57 @@ public class HttpMultipartRestClient implements MultipartRestClient {
         return rc.getLatestRequestUrl(t);
     }
 
+    /**
+     * Sets the listener notified with the timings of each request made via 
+     * this instance (replacing the default InMemoryRequestMetrics and 
+     * NodeHealthTracker), or null to turn off measurement.
+     * @param listener
+     */
+    public void setRequestMetricsListener(RequestMetricsListener listener)
+    {
+        rc.setRequestMetricsListener(listener);
+    }
+
+    public RequestMetricsListener getRequestMetricsListener()
+    {
+        return rc.getRequestMetricsListener();
+    }
+
+    /*
+     * the process-wide InMemoryRequestMetrics and NodeHealthTracker, unless 
+     * disabled by 'D1Client.http.metrics.enabled' or 'D1Client.health.enabled'
+     */
+    private static RequestMetricsListener defaultRequestMetricsListener()
+    {
+        RequestMetricsListener metrics = null;
+        if (Settings.getConfiguration().getBoolean(METRICS_ENABLED_PARAM, true))
+            metrics = InMemoryRequestMetrics.getInstance();
+        return CompositeRequestMetricsListener.of(metrics, NodeHealthTracker.getDefault());
+    }
+
+    /**
+     * Gets the journal of the most recent http requests made via this instance,
+     * from all threads.
+     * @return
+     */
+    public RequestJournal getRequestJournal()
+    {
+        return rc.getRequestJournal();
+    }
+
+
+    /**
+     * Closes the underlying HttpClient if it is Closeable, which shuts down its
+     * connection manager and releases all of its connections.  This instance
+     * cannot be used after it is closed.  (The HttpClient shared by 
+     * AuthTokenSessions is left open.)
+     * @throws IOException
+     */
+    public void close() throws IOException
+    {
+        if (!sharedHttpClient && getHttpClient() instanceof Closeable)
+            ((Closeable) getHttpClient()).close();
+    }
 
     /**
      * Calls closeIdleConnections on the underlying connection manager. This will
@@ -500,8 +573,7 @@ public class HttpMultipartRestClient implements MultipartRestClient {
 
 
     /*
-     * function to either build a RequestConfig based on a base RequestConfig
-     * passed in on the constructor, or one from scratch.
+     * the RequestConfig for a request that follows redirects
      */
     private RequestConfig determineTimeoutConfig(Integer milliseconds)
     {
@@ -509,46 +581,28 @@ public class HttpMultipartRestClient implements MultipartRestClient {
     }
     
     /**
-     * Returns a {@link RequestConfig} that is either based on the
-     * existing base RequestConfig passed into the constructor, or
-     * one built from scratch. All timeouts are set to the 
+     * Returns the {@link RequestConfig} from the {@link RequestPolicyRegistry}
+     * for the request.  All timeouts are set to the 
      * <code>timeoutMillis</code> parameter (unless it's null, 
-     * in which case it tries to use the default timeout value: 
-     * "D1Client.http.default.timeouts.ms" using {@link Settings#getConfiguration()}). 
+     * in which case it uses the default timeout value: 
+     * "D1Client.http.default.timeouts.ms"). 
      * Enabling redirects is set by the <code>followRedirect</code> 
-     * parameter (unless it's null, in which case the default is true).
+     * parameter.  The RequestConfigs for the policy timeouts are prebuilt,
+     * and rebuilt by the registry when the configuration changes.
      * 
      * @param timeoutMillis 
      *      an Integer for the number of milliseconds to use for the
      *      connect timeout, connection request timeout, and the 
-     *      socket timeout. None are set if this is null.
+     *      socket timeout.
      * @param followRedirect
      *      a boolean that determines if redirects should be followed.
-     *      The default value for this is true.
      *      
      * @return the RequestConfig based on the given <code>timeoutMillis</code>
      *      and <code>followRedirect</code> parameters. 
      */
-    private RequestConfig determineRequestConfig(Integer timeoutMillis, Boolean followRedirect)
+    private RequestConfig determineRequestConfig(Integer timeoutMillis, boolean followRedirect)
     {
-        RequestConfig.Builder rcBuilder = null;
-        if (this.baseRequestConfig != null)
-            rcBuilder = RequestConfig.copy(this.baseRequestConfig);
-        else
-            rcBuilder = RequestConfig.custom();
-        
-        if (timeoutMillis == null)
-            timeoutMillis = Settings.getConfiguration().getInteger(DEFAULT_TIMEOUT_PARAM, null);
-        
-        if (timeoutMillis != null)
-            rcBuilder.setConnectTimeout(timeoutMillis)
-                .setConnectionRequestTimeout(timeoutMillis)
-                .setSocketTimeout(timeoutMillis);
-
-        if(followRedirect != null)
-            rcBuilder.setRedirectsEnabled(followRedirect);
-        
-        return rcBuilder.build();
+        return RequestPolicyRegistry.getInstance().getRequestConfig(timeoutMillis, followRedirect);
     }
 
 
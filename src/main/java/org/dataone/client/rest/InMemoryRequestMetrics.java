@@ -0,0 +1,371 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.dataone.client.rest;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.dataone.client.auth.TlsSessionStatistics;
+
+/**
+ * A RequestMetricsListener that aggregates request timings in memory, per
+ * node, operation and http status, using only atomic counters and a fixed
+ * latency histogram for each, so it is cheap enough to leave on in production.
+ * <p>
+ * The process-wide instance returned by {@link #getInstance()} is the default
+ * listener for HttpMultipartRestClients (unless 'D1Client.http.metrics.enabled'
+ * is false), and is registered with the platform MBeanServer as 
+ * "org.dataone.client:type=RequestMetrics".
+ * 
+ * @author rnahf
+ *
+ */
+public class InMemoryRequestMetrics implements RequestMetricsListener, RequestMetricsMXBean {
+
+    protected static Log log = LogFactory.getLog(InMemoryRequestMetrics.class);
+
+    public static final String OBJECT_NAME = "org.dataone.client:type=RequestMetrics";
+
+    /** the upper bounds of the latency histogram buckets, in milliseconds */
+    private static final long[] BUCKET_BOUNDS_MILLIS = 
+        { 1, 2, 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000, 60000 };
+
+    private final ConcurrentMap<String, RequestStats> stats = new ConcurrentHashMap<String, RequestStats>();
+
+    private final RequestStats totals = new RequestStats(null, null, 0);
+
+
+    private static class SingletonHolder {
+        public static final InMemoryRequestMetrics INSTANCE = new InMemoryRequestMetrics();
+        static {
+            INSTANCE.registerMBean(OBJECT_NAME);
+        }
+    }
+
+    /**
+     * Returns the process-wide instance, registered with JMX
+     * @return
+     */
+    public static InMemoryRequestMetrics getInstance() {
+        return SingletonHolder.INSTANCE;
+    }
+
+
+    /**
+     * Registers this instance with the platform MBeanServer under the given 
+     * name.  Failures are logged, not thrown.
+     * @param objectName
+     * @return true if registered
+     */
+    public boolean registerMBean(String objectName) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(objectName);
+            if (!server.isRegistered(name)) 
+                server.registerMBean(this, name);
+            return true;
+        } catch (JMException | SecurityException e) {
+            log.warn("Could not register request metrics with JMX: " + e.getMessage());
+            return false;
+        }
+    }
+
+
+    @Override
+    public void requestCompleted(RequestTimings timings) {
+        String node = timings.getNode();
+        String operation = timings.getOperation();
+        int status = timings.getStatus();
+
+        String key = node + " " + operation + " " + status;
+        RequestStats s = stats.get(key);
+        if (s == null) {
+            RequestStats newStats = new RequestStats(node, operation, status);
+            s = stats.putIfAbsent(key, newStats);
+            if (s == null)
+                s = newStats;
+        }
+        s.record(timings);
+        totals.record(timings);
+    }
+
+    /**
+     * Returns the live statistics for each node, operation and status seen
+     * @return
+     */
+    public Collection<RequestStats> getRequestStats() {
+        return Collections.unmodifiableCollection(stats.values());
+    }
+
+    /**
+     * Returns the live statistics over all requests
+     * @return
+     */
+    public RequestStats getTotals() {
+        return totals;
+    }
+
+    @Override
+    public long getRequestCount() {
+        return totals.getCount();
+    }
+
+    @Override
+    public long getErrorCount() {
+        return totals.getErrorCount();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return totals.getBytesOut();
+    }
+
+    @Override
+    public long getBytesIn() {
+        return totals.getBytesIn();
+    }
+
+    @Override
+    public long[] getLatencyBucketBoundsMillis() {
+        return BUCKET_BOUNDS_MILLIS.clone();
+    }
+
+    @Override
+    public long[] getLatencyHistogram() {
+        return totals.getLatencyHistogram();
+    }
+
+    @Override
+    public String[] getStatistics() {
+        List<String> lines = new ArrayList<String>();
+        for (RequestStats s : stats.values()) {
+            lines.add(s.toString());
+        }
+        Collections.sort(lines);
+        return lines.toArray(new String[lines.size()]);
+    }
+
+    @Override
+    public long getTlsFullHandshakeCount() {
+        return TlsSessionStatistics.getInstance().getFullHandshakeCount();
+    }
+
+    @Override
+    public long getTlsResumedHandshakeCount() {
+        return TlsSessionStatistics.getInstance().getResumedHandshakeCount();
+    }
+
+    @Override
+    public void reset() {
+        stats.clear();
+        totals.reset();
+        TlsSessionStatistics.getInstance().reset();
+    }
+
+
+    /**
+     * Aggregated statistics for one node, operation and status.  All values
+     * are updated atomically, but not as a group, so a reader may see the
+     * effects of a request in some values and not yet in others.
+     */
+    public static class RequestStats {
+
+        private final String node;
+        private final String operation;
+        private final int status;
+
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong errorCount = new AtomicLong();
+        private final AtomicLong bytesOut = new AtomicLong();
+        private final AtomicLong bytesIn = new AtomicLong();
+        private final AtomicLong totalNanos = new AtomicLong();
+        private final AtomicLong poolWaitNanos = new AtomicLong();
+        private final AtomicLong connectNanos = new AtomicLong();
+        private final AtomicLong tlsNanos = new AtomicLong();
+        private final AtomicLong requestSendNanos = new AtomicLong();
+        private final AtomicLong serverWaitNanos = new AtomicLong();
+        private final AtomicLong responseTransferNanos = new AtomicLong();
+        private final AtomicLongArray histogram = new AtomicLongArray(BUCKET_BOUNDS_MILLIS.length + 1);
+
+        RequestStats(String node, String operation, int status) {
+            this.node = node;
+            this.operation = operation;
+            this.status = status;
+        }
+
+        void record(RequestTimings t) {
+            count.incrementAndGet();
+            if (t.isError())
+                errorCount.incrementAndGet();
+            bytesOut.addAndGet(t.getRequestBytes());
+            bytesIn.addAndGet(t.getResponseBytes());
+            totalNanos.addAndGet(t.getTotalNanos());
+            poolWaitNanos.addAndGet(t.getPoolWaitNanos());
+            connectNanos.addAndGet(t.getConnectNanos());
+            tlsNanos.addAndGet(t.getTlsNanos());
+            requestSendNanos.addAndGet(t.getRequestSendNanos());
+            serverWaitNanos.addAndGet(t.getServerWaitNanos());
+            responseTransferNanos.addAndGet(t.getResponseTransferNanos());
+            histogram.incrementAndGet(bucket(TimeUnit.NANOSECONDS.toMillis(t.getTotalNanos())));
+        }
+
+        void reset() {
+            for (AtomicLong a : new AtomicLong[] { count, errorCount, bytesOut, bytesIn, 
+                    totalNanos, poolWaitNanos, connectNanos, tlsNanos, requestSendNanos,
+                    serverWaitNanos, responseTransferNanos }) {
+                a.set(0);
+            }
+            for (int i = 0; i < histogram.length(); i++) {
+                histogram.set(i, 0);
+            }
+        }
+
+        private static int bucket(long millis) {
+            int i = 0;
+            while (i < BUCKET_BOUNDS_MILLIS.length && millis > BUCKET_BOUNDS_MILLIS[i])
+                i++;
+            return i;
+        }
+
+        public String getNode() {
+            return node;
+        }
+
+        public String getOperation() {
+            return operation;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        public long getErrorCount() {
+            return errorCount.get();
+        }
+
+        public long getBytesOut() {
+            return bytesOut.get();
+        }
+
+        public long getBytesIn() {
+            return bytesIn.get();
+        }
+
+        public long getTotalNanos() {
+            return totalNanos.get();
+        }
+
+        public long getPoolWaitNanos() {
+            return poolWaitNanos.get();
+        }
+
+        public long getConnectNanos() {
+            return connectNanos.get();
+        }
+
+        public long getTlsNanos() {
+            return tlsNanos.get();
+        }
+
+        public long getRequestSendNanos() {
+            return requestSendNanos.get();
+        }
+
+        public long getServerWaitNanos() {
+            return serverWaitNanos.get();
+        }
+
+        public long getResponseTransferNanos() {
+            return responseTransferNanos.get();
+        }
+
+        /**
+         * @return a copy of the latency histogram (see getLatencyBucketBoundsMillis())
+         */
+        public long[] getLatencyHistogram() {
+            long[] copy = new long[histogram.length()];
+            for (int i = 0; i < copy.length; i++) {
+                copy[i] = histogram.get(i);
+            }
+            return copy;
+        }
+
+        /**
+         * Returns the upper bound of the histogram bucket containing the given 
+         * percentile of latencies, in milliseconds (Long.MAX_VALUE for the 
+         * unbounded last bucket), or 0 if there are no requests.
+         * @param percentile - between 0 and 100
+         * @return
+         */
+        public long getLatencyPercentileMillis(double percentile) {
+            long[] h = getLatencyHistogram();
+            long total = 0;
+            for (long c : h) {
+                total += c;
+            }
+            if (total == 0)
+                return 0;
+            long threshold = (long) Math.ceil(total * percentile / 100.0);
+            long seen = 0;
+            for (int i = 0; i < h.length; i++) {
+                seen += h[i];
+                if (seen >= threshold)
+                    return i < BUCKET_BOUNDS_MILLIS.length ? BUCKET_BOUNDS_MILLIS[i] : Long.MAX_VALUE;
+            }
+            return Long.MAX_VALUE;
+        }
+
+        private static double meanMillis(long nanos, long n) {
+            return n == 0 ? 0 : nanos / 1000000.0 / n;
+        }
+
+        @Override
+        public String toString() {
+            long n = getCount();
+            return String.format("%s %s %d: count=%d errors=%d out=%d in=%d "
+                    + "mean(ms) total=%.1f poolWait=%.1f connect=%.1f tls=%.1f send=%.1f "
+                    + "serverWait=%.1f transfer=%.1f p50<=%d p99<=%d",
+                    node, operation, status, n, getErrorCount(), getBytesOut(), getBytesIn(),
+                    meanMillis(getTotalNanos(), n), meanMillis(getPoolWaitNanos(), n),
+                    meanMillis(getConnectNanos(), n), meanMillis(getTlsNanos(), n),
+                    meanMillis(getRequestSendNanos(), n), meanMillis(getServerWaitNanos(), n),
+                    meanMillis(getResponseTransferNanos(), n),
+                    getLatencyPercentileMillis(50), getLatencyPercentileMillis(99));
+        }
+    }
+}
@@ -0,0 +1,194 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.dataone.client.rest;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+
+/**
+ * Entity wrappers that count the bytes written for a request body, or read
+ * from a response body, for RequestTimings.  The response wrapper completes 
+ * the timings when the body has been read to the end or closed.
+ * 
+ * @author rnahf
+ *
+ */
+class MeteredEntity {
+
+    private MeteredEntity() {}
+
+
+    /**
+     * wraps a request entity, counting the bytes written
+     */
+    static class Request extends HttpEntityWrapper {
+
+        private final RequestTimings timings;
+
+        Request(HttpEntity wrapped, RequestTimings timings) {
+            super(wrapped);
+            this.timings = timings;
+        }
+
+        @Override
+        public void writeTo(OutputStream outstream) throws IOException {
+            CountingOutputStream cos = new CountingOutputStream(outstream);
+            try {
+                super.writeTo(cos);
+            } finally {
+                timings.setRequestBytes(cos.count);
+            }
+        }
+    }
+
+
+    /**
+     * wraps a response entity, counting the bytes read and completing the
+     * timings at the end of the stream
+     */
+    static class Response extends HttpEntityWrapper {
+
+        private final RequestTimings timings;
+        private InputStream content;
+
+        Response(HttpEntity wrapped, RequestTimings timings) {
+            super(wrapped);
+            this.timings = timings;
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            if (content == null || wrappedEntity.isRepeatable()) {
+                try {
+                    content = new CountingInputStream(super.getContent(), timings);
+                } catch (IOException e) {
+                    timings.complete(0, true);
+                    throw e;
+                }
+            }
+            return content;
+        }
+
+        @Override
+        public void writeTo(OutputStream outstream) throws IOException {
+            InputStream is = getContent();
+            try {
+                byte[] buffer = new byte[4096];
+                int n;
+                while ((n = is.read(buffer)) != -1) {
+                    outstream.write(buffer, 0, n);
+                }
+            } finally {
+                is.close();
+            }
+        }
+
+        @Override
+        public boolean isStreaming() {
+            return content == null ? super.isStreaming() : true;
+        }
+    }
+
+
+    private static class CountingOutputStream extends FilterOutputStream {
+
+        private long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+
+
+    private static class CountingInputStream extends FilterInputStream {
+
+        private final RequestTimings timings;
+        private long count;
+
+        CountingInputStream(InputStream in, RequestTimings timings) {
+            super(in);
+            this.timings = timings;
+        }
+
+        @Override
+        public int read() throws IOException {
+            try {
+                int b = in.read();
+                if (b >= 0) 
+                    count++;
+                else
+                    timings.complete(count, false);
+                return b;
+            } catch (IOException e) {
+                timings.complete(count, true);
+                throw e;
+            }
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            try {
+                int n = in.read(b, off, len);
+                if (n > 0) 
+                    count += n;
+                else if (n == -1)
+                    timings.complete(count, false);
+                return n;
+            } catch (IOException e) {
+                timings.complete(count, true);
+                throw e;
+            }
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = in.skip(n);
+            count += skipped;
+            return skipped;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                timings.complete(count, false);
+            }
+        }
+    }
+}
@@ -22,6 +22,7 @@
 
 package org.dataone.client.rest;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.math.BigInteger;
@@ -31,6 +32,7 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
 
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.io.input.AutoCloseInputStream;
 import org.apache.commons.lang.StringUtils;
 import org.dataone.exceptions.MarshallingException;
@@ -40,7 +42,10 @@ import org.dataone.client.D1Node;
 import org.dataone.client.auth.AuthTokenSession;
 import org.dataone.client.auth.X509Session;
 import org.dataone.client.exception.ClientSideException;
+import org.dataone.client.rest.RequestPolicy.Operation;
 import org.dataone.client.utils.ExceptionUtils;
+import org.dataone.client.utils.StreamingListReader;
+import org.dataone.client.utils.StreamingListReader.EntryHandler;
 import org.dataone.configuration.Settings;
 import org.dataone.mimemultipart.SimpleMultipartEntity;
 import org.dataone.service.exceptions.BaseException;
@@ -106,6 +111,9 @@ public abstract class MultipartD1Node implements D1Node {
 
     protected NodeType nodeType;
 
+    /** the property that turns on streaming of object uploads (create and update) */
+    public static final String STREAMING_UPLOADS_PARAM = "D1Client.http.streamingUploads";
+
     
     /**
      * Utility method to be used in finally blocks for methods that have to 
@@ -126,9 +134,70 @@ public abstract class MultipartD1Node implements D1Node {
     }
     
     
+    /**
+     * Returns the entity to use for requests that upload objects.  If 
+     * 'D1Client.http.streamingUploads' is true, a StreamingMultipartEntity
+     * is returned, so that the object is streamed to the connection instead
+     * of being spooled to a temp file first.
+     * @return
+     */
+    protected SimpleMultipartEntity newUploadEntity() {
+        if (Settings.getConfiguration().getBoolean(STREAMING_UPLOADS_PARAM, false)) 
+            return new StreamingMultipartEntity();
+        return new SimpleMultipartEntity();
+    }
+
+    /**
+     * Returns the current RequestPolicy for the operation.  API methods 
+     * should use this rather than looking up timeouts in the Settings, 
+     * as policies are resolved once and refreshed when the configuration changes. 
+     * @param operation
+     * @return
+     */
+    protected static RequestPolicy getPolicy(Operation operation) {
+        return RequestPolicyRegistry.getInstance().getPolicy(operation);
+    }
+
+    /**
+     * GETs the url with the session's client and the operation's request 
+     * policy: its timeout, and whether redirects are followed.
+     * @param session
+     * @param url
+     * @param operation
+     * @return
+     */
+    protected InputStream doGetRequest(Session session, String url, Operation operation) 
+    throws BaseException, ClientSideException {
+        RequestPolicy policy = getPolicy(operation);
+        return getRestClient(session).doGetRequest(url, policy.getTimeout(), policy.isFollowRedirects());
+    }
+
+    /**
+     * Adds the object part to an entity from newUploadEntity(), passing along
+     * the object size (usually from the SystemMetadata) when streaming, so the 
+     * request can be sent with a Content-Length instead of chunked.
+     * 
+     * @param mpe
+     * @param object
+     * @param size - the object size, or null if unknown
+     * @throws IOException
+     */
+    protected static void addObjectPart(SimpleMultipartEntity mpe, InputStream object, BigInteger size) 
+    throws IOException {
+        if (mpe instanceof StreamingMultipartEntity) {
+            ((StreamingMultipartEntity) mpe).addFilePart("object", object, 
+                    size == null ? -1 : size.longValue());
+        } else {
+            mpe.addFilePart("object", object);
+        }
+    }
+
+
     /**
      * API methods should use this method to get the MultipartRestClient to
-     * be used for the call.
+     * be used for the call.  Sessions that don't carry their own MultipartRestClient
+     * get a shared one from the MultipartRestClientRegistry, so that calls with
+     * the same certificate reuse the same connection pool.
      * @param sessionFromMethod - this should be the session from the API method parameter
      * @return
      * @throws ServiceFailure 
@@ -147,7 +216,7 @@ public abstract class MultipartD1Node implements D1Node {
         else {
             try {
                 String subjectString = (sessionFromMethod.getSubject() == null) ? null : sessionFromMethod.getSubject().getValue();
-                this.latestRestClient = new HttpMultipartRestClient(subjectString);
+                this.latestRestClient = MultipartRestClientRegistry.getInstance().getRestClient(subjectString);
             } catch (IOException | ClientSideException e) {
                 throw new ServiceFailure("0000", "Error creating MultipartRestClient " +
                         "for API Session parameter: " + e.getLocalizedMessage());
@@ -251,6 +320,7 @@ public abstract class MultipartD1Node implements D1Node {
             nodeBaseServiceUrl = nodeBaseServiceUrl + "/";
         }
         this.nodeBaseServiceUrl = nodeBaseServiceUrl;
+        NodeAdmissionControl.registerNode(this.nodeId, this.nodeBaseServiceUrl);
     }
 
     /**
@@ -265,6 +335,7 @@ public abstract class MultipartD1Node implements D1Node {
      */
     public void setNodeId(NodeReference nodeId) {
         this.nodeId = nodeId;
+        NodeAdmissionControl.registerNode(this.nodeId, this.nodeBaseServiceUrl);
     }
 
     public void setNodeType(NodeType nodeType) {
@@ -363,8 +434,7 @@ public abstract class MultipartD1Node implements D1Node {
         }
         InputStream remoteStream = null;
         try {
-            remoteStream = getRestClient(session).doGetRequest(url.getUrl(),
-                    Settings.getConfiguration().getInteger("D1Client.D1Node.get.timeout", null));
+            remoteStream = fetchObject(session, pid, url.getUrl());
             is = new AutoCloseInputStream(remoteStream);
 
         } catch (BaseException be) {
@@ -384,6 +454,108 @@ public abstract class MultipartD1Node implements D1Node {
     }
 
 
+    /**
+     * Gets the object bytes, through the DiskObjectCache if it is enabled.
+     * Cache hits are served without contacting the node.  On a miss, describe()
+     * supplies the checksum used to verify the content before it is stored.
+     * Objects without a checksum, or larger than the cache's object limit, are
+     * streamed directly.
+     */
+    protected InputStream fetchObject(Session session, Identifier pid, String url)
+    throws BaseException, ClientSideException
+    {
+        DiskObjectCache cache = DiskObjectCache.getDefault();
+        if (cache == null)
+            return doGetRequest(session, url, Operation.GET);
+
+        String partition = getCachePartition(session);
+        try {
+            InputStream cached = cache.getObject(partition, pid.getValue());
+            if (cached != null)
+                return cached;
+        } catch (IOException e) {
+            log.warn("Could not read " + pid.getValue() + " from the disk cache: " + e.getMessage());
+        }
+
+        DescribeResponse description = describe(session, pid);
+        InputStream remoteStream = doGetRequest(session, url, Operation.GET);
+
+        Checksum checksum = description.getDataONE_Checksum();
+        BigInteger length = description.getContent_Length();
+        if (checksum == null || checksum.getValue() == null || length == null 
+                || length.longValue() > cache.getMaxObjectBytes()) 
+            return remoteStream;
+
+        try {
+            return cache.putObject(partition, pid.getValue(), checksum.getAlgorithm(), 
+                    checksum.getValue(), remoteStream);
+        } catch (IOException e) {
+            throw new ClientSideException("Could not read the object from " + url, e);
+        }
+    }
+
+    /**
+     * Gets and deserializes the SystemMetadata at the url, through the 
+     * DiskObjectCache if it is enabled.  Cached entries younger than the cache's
+     * ttl are served without contacting the node; older ones are revalidated 
+     * with describe(), and reused if the serialVersion is unchanged.
+     */
+    protected <T extends org.dataone.service.types.v1.SystemMetadata> T fetchSystemMetadata(
+            Session session, Identifier pid, String url, Class<T> type) 
+    throws BaseException, ClientSideException
+    {
+        DiskObjectCache cache = DiskObjectCache.getDefault();
+        if (cache == null || pid == null) 
+            return deserializeServiceType(type, doGetRequest(session, url, Operation.GET_SYSTEM_METADATA));
+
+        String partition = getCachePartition(session);
+        DiskObjectCache.CachedSystemMetadata cached = cache.getSystemMetadata(partition, url);
+        if (cached != null) {
+            boolean fresh = System.currentTimeMillis() - cached.getValidatedTime() 
+                    < cache.getSystemMetadataTtlMillis();
+            if (!fresh && cached.getSerialVersion() != null) {
+                BigInteger current = describe(session, pid).getSerialVersion();
+                if (cached.getSerialVersion().equals(current)) {
+                    cache.revalidatedSystemMetadata(partition, url);
+                    fresh = true;
+                }
+            }
+            if (fresh) 
+                return deserializeServiceType(type, new ByteArrayInputStream(cached.getBytes()));
+        }
+
+        byte[] bytes = null;
+        InputStream is = doGetRequest(session, url, Operation.GET_SYSTEM_METADATA);
+        try {
+            bytes = IOUtils.toByteArray(is);
+        } catch (IOException e) {
+            throw new ClientSideException("Could not read the SystemMetadata from " + url, e);
+        } finally {
+            IOUtils.closeQuietly(is);
+        }
+        T sysmeta = deserializeServiceType(type, new ByteArrayInputStream(bytes));
+        try {
+            cache.putSystemMetadata(partition, url, bytes, sysmeta.getSerialVersion());
+        } catch (IOException e) {
+            log.warn("Could not write the SystemMetadata for " + pid.getValue() + " to the disk cache: "
+                    + e.getMessage());
+        }
+        return sysmeta;
+    }
+
+    /* 
+     * cached content is kept per subject, so that what one identity was 
+     * authorized to read is never served to another
+     */
+    private String getCachePartition(Session session) {
+        if (session == null)
+            session = this.defaultSession;
+        if (session == null || session.getSubject() == null || session.getSubject().getValue() == null)
+            return "default";
+        return session.getSubject().getValue();
+    }
+
+
     public boolean systemMetadataChanged(Session session, Identifier pid, long serialVersion,
             Date dateSystemMetadataLastModified)
                     throws InvalidToken, ServiceFailure, NotAuthorized, NotImplemented, InvalidRequest {
@@ -883,6 +1055,27 @@ public abstract class MultipartD1Node implements D1Node {
         }
     }
     
+    /**
+     * Passes each entry of a list response to the handler as it is read, 
+     * instead of unmarshalling the whole list, then closes the response.  
+     * A wrapper of StreamingListReader for the streaming list methods.
+     * 
+     * @param reader - the reader of the response
+     * @param handler
+     * @return the list with its attributes (count, start, total), but no entries
+     * @throws ServiceFailure
+     */
+    protected <L, E> L readListEntries(StreamingListReader<L, E> reader, EntryHandler<E> handler)
+            throws ServiceFailure {
+        try {
+            L header = reader.getListHeader();
+            reader.readAll(handler);
+            return header;
+        } finally {
+            reader.close();
+        }
+    }
+    
     protected InputStream view(Session session, String theme, Identifier id) throws InvalidToken,
             ServiceFailure, NotAuthorized, InvalidRequest, NotImplemented, NotFound {
 
@@ -899,8 +1092,7 @@ public abstract class MultipartD1Node implements D1Node {
         
         InputStream remoteStream = null;
         try {
-            remoteStream = getRestClient(session).doGetRequest(url.getUrl(),
-                    Settings.getConfiguration().getInteger("D1Client.D1Node.get.timeout", null));
+            remoteStream = doGetRequest(session, url.getUrl(), Operation.GET);
         } catch (BaseException be) {
             if (be instanceof InvalidToken)      throw (InvalidToken) be;
             if (be instanceof NotAuthorized)     throw (NotAuthorized) be;
@@ -928,8 +1120,7 @@ public abstract class MultipartD1Node implements D1Node {
         
         OptionList optionList = null;
         try {
-            InputStream is = getRestClient(defaultSession).doGetRequest(url.getUrl(),
-                    Settings.getConfiguration().getInteger("D1Client.D1Node.get.timeout", null));
+            InputStream is = doGetRequest(defaultSession, url.getUrl(), Operation.GET);
             optionList = deserializeServiceType(OptionList.class, is);
         } catch (BaseException be) {
             if (be instanceof InvalidToken)      throw (InvalidToken) be;
@@ -0,0 +1,584 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.dataone.client.rest;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Objects;
+import java.util.Observable;
+import java.util.Observer;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.Header;
+import org.dataone.client.auth.CertificateManager;
+import org.dataone.client.auth.X509Session;
+import org.dataone.client.exception.ClientSideException;
+import org.dataone.configuration.Settings;
+import org.dataone.mimemultipart.SimpleMultipartEntity;
+import org.dataone.service.exceptions.BaseException;
+
+/**
+ * A process-wide cache of HttpMultipartRestClients, keyed by the fingerprint
+ * of the client certificate used to build them.  API calls made with a Session
+ * that doesn't carry its own MultipartRestClient use this registry, so that
+ * repeated calls with the same credentials reuse the same connection pool 
+ * (and its warm, already-handshaken connections) instead of building a new 
+ * HttpClient for every call.
+ * <p>
+ * The registry is bounded (property 'D1Client.http.restClientRegistry.maxEntries')
+ * and evicts the least-recently-used client when full.
+ * <p>
+ * Because entries are keyed by certificate fingerprint, a rotated certificate
+ * always gets a new client.  The client built for the old certificate stays in
+ * the registry until evicted, or until it is explicitly invalidated, either by 
+ * calling {@link #invalidate(String)}, or, for the default certificate (whether
+ * selected by a null subject or registered with 
+ * CertificateManager.registerDefaultCertificate()), when the CertificateManager
+ * notifies its observers that it changed.
+ * <p>
+ * Evicted and invalidated clients are no longer handed out, but callers may 
+ * still hold them, and may be in the middle of requests.  So each handed-out
+ * client counts its requests in flight (until their response streams are 
+ * closed or read to the end), and its connection pool is closed when the last
+ * of them finishes.  Requests made later through a retired client are passed
+ * to the registry's current client for the same subject.
+ * <p>
+ * If 'D1Client.http.retry.enabled' is true, the clients handed out are wrapped
+ * in a RetryingMultipartRestClient.
+ * 
+ * @author rnahf
+ *
+ */
+public class MultipartRestClientRegistry implements Observer {
+
+    protected static Log log = LogFactory.getLog(MultipartRestClientRegistry.class);
+
+    public static final String MAX_ENTRIES_PARAM = "D1Client.http.restClientRegistry.maxEntries";
+
+    public static final String RETRY_ENABLED_PARAM = "D1Client.http.retry.enabled";
+
+    /** the key used for sessions without a client certificate */
+    protected static final String ANONYMOUS_KEY = "anonymous";
+
+    private final int maxEntries;
+
+    /* guarded by itself */
+    private final LinkedHashMap<String, RegistryEntry> registry;
+
+    /* evicted entries waiting to be closed outside of the lock, guarded by registry */
+    private final List<RegistryEntry> evicted = new ArrayList<RegistryEntry>();
+
+
+    private static class SingletonHolder {
+        public static final MultipartRestClientRegistry INSTANCE = new MultipartRestClientRegistry(
+                Settings.getConfiguration().getInt(MAX_ENTRIES_PARAM, 20));
+        static {
+            CertificateManager.getInstance().addObserver(INSTANCE);
+        }
+    }
+
+    /**
+     * Returns the process-wide registry instance
+     * @return
+     */
+    public static MultipartRestClientRegistry getInstance() {
+        return SingletonHolder.INSTANCE;
+    }
+
+
+    /**
+     * Creates a registry that holds at most maxEntries clients.  Most applications
+     * should use getInstance() instead.
+     * @param maxEntries
+     */
+    public MultipartRestClientRegistry(int maxEntries) {
+        this.maxEntries = Math.max(1, maxEntries);
+        this.registry = new LinkedHashMap<String, RegistryEntry>(16, 0.75f, /* accessOrder */ true) {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Entry<String, RegistryEntry> eldest) {
+                if (size() > MultipartRestClientRegistry.this.maxEntries) {
+                    evicted.add(eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+
+    /**
+     * Returns the cached MultipartRestClient for the certificate selected by
+     * the subjectString (see CertificateManager.selectSession()), building and
+     * caching a new one if needed.
+     * 
+     * @param subjectString - the subject of a registered certificate, or null 
+     *              for the default certificate
+     * @return
+     * @throws IOException
+     * @throws ClientSideException
+     */
+    public MultipartRestClient getRestClient(String subjectString) 
+    throws IOException, ClientSideException {
+
+        CertificateManager cm = CertificateManager.getInstance();
+        X509Session x509Session = cm.selectSession(subjectString);
+        String key = fingerprint(x509Session);
+        boolean fromDefaultCertificate = x509Session != null && x509Session.getCertificate() != null
+                && (subjectString == null || cm.isDefaultCertificateSubject(subjectString));
+
+        synchronized (registry) {
+            RegistryEntry entry = registry.get(key);
+            if (entry != null)
+                return entry.view;
+        }
+
+        // building the client is slow, so don't hold the lock while doing it
+        HttpMultipartRestClient newClient = new HttpMultipartRestClient(x509Session);
+        boolean lostRace = false;
+        MultipartRestClient result = null;
+        synchronized (registry) {
+            RegistryEntry entry = registry.get(key);
+            if (entry == null) {
+                if (log.isDebugEnabled())
+                    log.debug("MultipartRestClientRegistry: caching new client for " + key);
+                entry = new RegistryEntry(subjectString, fromDefaultCertificate, newClient);
+                registry.put(key, entry);
+                result = entry.view;
+            } else {
+                // another thread won the race
+                result = entry.view;
+                lostRace = true;
+            }
+        }
+        if (lostRace)
+            closeQuietly(newClient);
+
+        retireEvicted();
+        return result;
+    }
+
+
+    /**
+     * Retires all of the clients that were built for the subjectString
+     * (null for the default certificate).  Use this when a registered certificate
+     * is replaced or revoked.
+     * @param subjectString
+     */
+    public void invalidate(String subjectString) {
+        synchronized (registry) {
+            Iterator<RegistryEntry> it = registry.values().iterator();
+            while (it.hasNext()) {
+                RegistryEntry entry = it.next();
+                if (Objects.equals(subjectString, entry.subjectString)) {
+                    it.remove();
+                    evicted.add(entry);
+                }
+            }
+        }
+        retireEvicted();
+    }
+
+    /**
+     * Retires all of the clients that were built with the default certificate,
+     * including those for subjects registered with 
+     * CertificateManager.registerDefaultCertificate().
+     */
+    public void invalidateDefaultCertificate() {
+        synchronized (registry) {
+            Iterator<RegistryEntry> it = registry.values().iterator();
+            while (it.hasNext()) {
+                RegistryEntry entry = it.next();
+                if (entry.fromDefaultCertificate) {
+                    it.remove();
+                    evicted.add(entry);
+                }
+            }
+        }
+        retireEvicted();
+    }
+
+    /**
+     * Retires the client built for the given certificate, if any
+     * @param certificate
+     */
+    public void invalidate(X509Certificate certificate) {
+        RegistryEntry entry = null;
+        synchronized (registry) {
+            entry = registry.remove(fingerprint(certificate));
+            if (entry != null)
+                evicted.add(entry);
+        }
+        retireEvicted();
+    }
+
+    /**
+     * Retires all of the cached clients
+     */
+    public void invalidateAll() {
+        synchronized (registry) {
+            evicted.addAll(registry.values());
+            registry.clear();
+        }
+        retireEvicted();
+    }
+
+    /**
+     * @return the number of cached clients
+     */
+    public int size() {
+        synchronized (registry) {
+            return registry.size();
+        }
+    }
+
+    /**
+     * Invalidates clients built with the default certificate when the 
+     * CertificateManager's default certificate changes.
+     */
+    @Override
+    public void update(Observable observable, Object arg) {
+        if (observable instanceof CertificateManager) {
+            log.info("Default certificate changed, invalidating cached MultipartRestClients for it.");
+            invalidateDefaultCertificate();
+        }
+    }
+
+
+    /*
+     * retires the evicted clients.  Called outside of the registry lock 
+     * because closing shuts down connection pools.
+     */
+    private void retireEvicted() {
+        List<RegistryEntry> toRetire = null;
+        synchronized (registry) {
+            if (evicted.isEmpty())
+                return;
+            toRetire = new ArrayList<RegistryEntry>(evicted);
+            evicted.clear();
+        }
+        for (RegistryEntry entry : toRetire) {
+            entry.retire();
+        }
+    }
+
+    private static void closeQuietly(HttpMultipartRestClient client) {
+        try {
+            client.close();
+        } catch (IOException e) {
+            log.warn("Problem closing evicted HttpMultipartRestClient: " + e.getMessage());
+        }
+    }
+
+
+    protected static String fingerprint(X509Session x509Session) {
+        if (x509Session == null)
+            return ANONYMOUS_KEY;
+        return fingerprint(x509Session.getCertificate());
+    }
+
+    /**
+     * Computes the SHA-256 fingerprint of the certificate, used as the registry key.
+     * @param certificate
+     * @return
+     */
+    protected static String fingerprint(X509Certificate certificate) {
+        if (certificate == null)
+            return ANONYMOUS_KEY;
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            return Hex.encodeHexString(md.digest(certificate.getEncoded()));
+        } catch (NoSuchAlgorithmException | CertificateEncodingException e) {
+            // fall back to something unique to the certificate
+            log.warn("Could not compute certificate fingerprint: " + e.getMessage());
+            return certificate.getSubjectX500Principal().getName() + "#" + certificate.getSerialNumber();
+        }
+    }
+
+
+    /*
+     * a cached client.  Its requests in flight are counted, guarded by the
+     * entry, so that once retired it is closed when the last one finishes.
+     */
+    private class RegistryEntry {
+        final String subjectString;
+        final boolean fromDefaultCertificate;
+        final HttpMultipartRestClient client;
+        /* the client requests are made with, possibly decorated */
+        final MultipartRestClient delegate;
+        /* the client handed out */
+        final MultipartRestClient view;
+
+        private int inFlight = 0;
+        private boolean retired = false;
+        private boolean closed = false;
+
+        RegistryEntry(String subjectString, boolean fromDefaultCertificate, HttpMultipartRestClient client) {
+            this.subjectString = subjectString;
+            this.fromDefaultCertificate = fromDefaultCertificate;
+            this.client = client;
+            this.delegate = Settings.getConfiguration().getBoolean(RETRY_ENABLED_PARAM, false) 
+                    ? new RetryingMultipartRestClient(client) : client;
+            this.view = new RegisteredRestClient(this);
+        }
+
+        /* starts a request, returning false if the client is already closed */
+        synchronized boolean acquire() {
+            if (closed)
+                return false;
+            inFlight++;
+            return true;
+        }
+
+        void release() {
+            boolean close = false;
+            synchronized (this) {
+                inFlight--;
+                if (retired && inFlight == 0 && !closed) {
+                    closed = true;
+                    close = true;
+                }
+            }
+            if (close)
+                closeQuietly(client);
+        }
+
+        void retire() {
+            boolean close = false;
+            synchronized (this) {
+                retired = true;
+                if (inFlight == 0 && !closed) {
+                    closed = true;
+                    close = true;
+                }
+            }
+            if (close)
+                closeQuietly(client);
+        }
+
+        synchronized boolean isClosed() {
+            return closed;
+        }
+    }
+
+    /*
+     * the MultipartRestClient handed out for an entry.  Each request holds
+     * the entry until it fails, or its response stream is closed or read to
+     * the end.  Once the entry is closed, requests go to the registry's 
+     * current client for the subject.
+     */
+    private class RegisteredRestClient implements MultipartRestClient {
+
+        private final RegistryEntry entry;
+
+        RegisteredRestClient(RegistryEntry entry) {
+            this.entry = entry;
+        }
+
+        /* the current client for the subject, for requests made after this one closed */
+        private MultipartRestClient replacement() throws ClientSideException {
+            try {
+                return getRestClient(entry.subjectString);
+            } catch (IOException e) {
+                throw new ClientSideException("Could not build a MultipartRestClient for " 
+                        + entry.subjectString + ": " + e.getMessage(), e);
+            }
+        }
+
+        /* holds the entry until the stream is closed or read to the end */
+        private InputStream releaseOnClose(InputStream is) {
+            if (is == null) {
+                entry.release();
+                return null;
+            }
+            return new FilterInputStream(is) {
+                private boolean released = false;
+
+                private synchronized void release() {
+                    if (!released) {
+                        released = true;
+                        entry.release();
+                    }
+                }
+
+                @Override
+                public int read() throws IOException {
+                    int b = super.read();
+                    if (b < 0)
+                        release();
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int n = super.read(b, off, len);
+                    if (n < 0)
+                        release();
+                    return n;
+                }
+
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        release();
+                    }
+                }
+            };
+        }
+
+        @Override
+        public InputStream doGetRequest(String url, Integer timeoutMillisecs)
+                throws BaseException, ClientSideException {
+            if (!entry.acquire())
+                return replacement().doGetRequest(url, timeoutMillisecs);
+            boolean ok = false;
+            try {
+                InputStream is = releaseOnClose(entry.delegate.doGetRequest(url, timeoutMillisecs));
+                ok = true;
+                return is;
+            } finally {
+                if (!ok)
+                    entry.release();
+            }
+        }
+
+        @Override
+        public InputStream doGetRequest(String url, Integer timeoutMillisecs, boolean followRedirect)
+                throws BaseException, ClientSideException {
+            if (!entry.acquire())
+                return replacement().doGetRequest(url, timeoutMillisecs, followRedirect);
+            boolean ok = false;
+            try {
+                InputStream is = releaseOnClose(
+                        entry.delegate.doGetRequest(url, timeoutMillisecs, followRedirect));
+                ok = true;
+                return is;
+            } finally {
+                if (!ok)
+                    entry.release();
+            }
+        }
+
+        @Override
+        public Header[] doGetRequestForHeaders(String url, Integer timeoutMillisecs)
+                throws BaseException, ClientSideException {
+            if (!entry.acquire())
+                return replacement().doGetRequestForHeaders(url, timeoutMillisecs);
+            try {
+                return entry.delegate.doGetRequestForHeaders(url, timeoutMillisecs);
+            } finally {
+                entry.release();
+            }
+        }
+
+        @Override
+        public InputStream doDeleteRequest(String url, Integer timeoutMillisecs)
+                throws BaseException, ClientSideException {
+            if (!entry.acquire())
+                return replacement().doDeleteRequest(url, timeoutMillisecs);
+            boolean ok = false;
+            try {
+                InputStream is = releaseOnClose(entry.delegate.doDeleteRequest(url, timeoutMillisecs));
+                ok = true;
+                return is;
+            } finally {
+                if (!ok)
+                    entry.release();
+            }
+        }
+
+        @Override
+        public Header[] doHeadRequest(String url, Integer timeoutMillisecs)
+                throws BaseException, ClientSideException {
+            if (!entry.acquire())
+                return replacement().doHeadRequest(url, timeoutMillisecs);
+            try {
+                return entry.delegate.doHeadRequest(url, timeoutMillisecs);
+            } finally {
+                entry.release();
+            }
+        }
+
+        @Override
+        public InputStream doPutRequest(String url, SimpleMultipartEntity entity, Integer timeoutMillisecs)
+                throws BaseException, ClientSideException {
+            if (!entry.acquire())
+                return replacement().doPutRequest(url, entity, timeoutMillisecs);
+            boolean ok = false;
+            try {
+                InputStream is = releaseOnClose(entry.delegate.doPutRequest(url, entity, timeoutMillisecs));
+                ok = true;
+                return is;
+            } finally {
+                if (!ok)
+                    entry.release();
+            }
+        }
+
+        @Override
+        public InputStream doPostRequest(String url, SimpleMultipartEntity entity, Integer timeoutMillisecs)
+                throws BaseException, ClientSideException {
+            if (!entry.acquire())
+                return replacement().doPostRequest(url, entity, timeoutMillisecs);
+            boolean ok = false;
+            try {
+                InputStream is = releaseOnClose(entry.delegate.doPostRequest(url, entity, timeoutMillisecs));
+                ok = true;
+                return is;
+            } finally {
+                if (!ok)
+                    entry.release();
+            }
+        }
+
+        @Override
+        public String getLatestRequestUrl() {
+            return entry.delegate.getLatestRequestUrl();
+        }
+
+        @Override
+        public X509Session getSession() {
+            return entry.delegate.getSession();
+        }
+    }
+
+    /* for tests: whether the client handed out has had its connection pool closed */
+    boolean isClosed(MultipartRestClient handedOut) {
+        return handedOut instanceof RegisteredRestClient 
+                && ((RegisteredRestClient) handedOut).entry.isClosed();
+    }
+}
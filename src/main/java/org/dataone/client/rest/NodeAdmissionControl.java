@@ -0,0 +1,594 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.dataone.client.rest;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.commons.configuration.Configuration;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.HttpEntity;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.dataone.client.exception.AdmissionRejected;
+import org.dataone.configuration.Settings;
+import org.dataone.service.types.v1.NodeReference;
+import org.dataone.service.util.Constants;
+
+/**
+ * Client-side admission control for requests to DataONE nodes, so that bulk
+ * jobs can run at full speed against large nodes while staying within what
+ * small ones can handle.
+ * <p>
+ * Requests are grouped by node and by operation class (read, write or 
+ * replication, see {@link OperationClass}).  Each group can have:
+ * <ul>
+ * <li>a bulkhead: at most <i>maxConcurrent</i> requests in flight, with at 
+ *     most <i>maxQueued</i> requests waiting for one to finish.  A request
+ *     stays in flight until its response body has been read to the end or
+ *     closed.</li>
+ * <li>a token-bucket rate limit of <i>ratePerSecond</i> requests, allowing 
+ *     bursts of up to <i>burst</i> requests.</li>
+ * </ul>
+ * A request that cannot be admitted within its connection request timeout, 
+ * or that finds the wait queue full, fails with {@link AdmissionRejected}
+ * without being sent.
+ * <p>
+ * The limits are read from the configuration, where the class is one of 
+ * 'read', 'write' or 'replication' and the node id is given without its 
+ * 'urn:node:' prefix (for example 'KNB'):
+ * <ul>
+ * <li>D1Client.admission.<i>class</i>.maxConcurrent (default 0, unlimited)</li>
+ * <li>D1Client.admission.<i>class</i>.maxQueued (default 100, negative for unlimited)</li>
+ * <li>D1Client.admission.<i>class</i>.ratePerSecond (default 0, unlimited)</li>
+ * <li>D1Client.admission.<i>class</i>.burst (default the rate, at least 1)</li>
+ * <li>D1Client.admission.node.<i>nodeId</i>.<i>class</i>.* to override them for a node</li>
+ * </ul>
+ * Requests are matched to nodes by the base urls registered with 
+ * {@link #registerNode(NodeReference, String)} (MultipartD1Nodes register 
+ * themselves); requests to other servers are grouped by host.
+ * <p>
+ * The process-wide instance is used by RestClients when 
+ * 'D1Client.admission.enabled' is true, and is registered with the platform
+ * MBeanServer as "org.dataone.client:type=NodeAdmissionControl".
+ * 
+ * @author rnahf
+ *
+ */
+public class NodeAdmissionControl implements NodeAdmissionControlMXBean {
+
+    protected static Log log = LogFactory.getLog(NodeAdmissionControl.class);
+
+    public static final String ENABLED_PARAM = "D1Client.admission.enabled";
+    public static final String PARAM_PREFIX = "D1Client.admission.";
+    public static final String OBJECT_NAME = "org.dataone.client:type=NodeAdmissionControl";
+
+    private static final String NODE_ID_PREFIX = "urn:node:";
+
+    /**
+     * The classes of operations that are limited separately.
+     */
+    public static enum OperationClass {
+        READ, WRITE, REPLICATION;
+
+        /** the resources used only by replication */
+        private static final Set<String> REPLICATION_RESOURCES = Collections.unmodifiableSet(
+                new HashSet<String>(Arrays.asList("replicate", "replica", "replicaNotifications",
+                        "replicaPolicies", "replicaMetadata", "replicaAuthorizations",
+                        "removeReplicaMetadata")));
+
+        /** @return the name used for the class in property names */
+        public String getPropertyName() {
+            return name().toLowerCase();
+        }
+
+        /**
+         * Classifies the request by its REST resource and http method.
+         * @param httpMethod
+         * @param url
+         * @return
+         */
+        public static OperationClass classify(String httpMethod, String url) {
+            if (REPLICATION_RESOURCES.contains(RequestTimings.parseResource(url)))
+                return REPLICATION;
+            if (Constants.GET.equals(httpMethod) || Constants.HEAD.equals(httpMethod))
+                return READ;
+            return WRITE;
+        }
+    }
+
+    /**
+     * An admission granted to a request, released when the request completes.
+     */
+    public interface Permit {
+        /** releases the permit; calls after the first have no effect */
+        public void release();
+    }
+
+
+    /* registered node base urls, mapped to their node id */
+    private static final ConcurrentMap<String, String> nodeBaseUrls = new ConcurrentHashMap<String, String>();
+
+    private final Configuration config;
+    private final ConcurrentMap<String, Gate> gates = new ConcurrentHashMap<String, Gate>();
+
+
+    private static class SingletonHolder {
+        public static final NodeAdmissionControl INSTANCE = 
+                new NodeAdmissionControl(Settings.getConfiguration());
+        static {
+            INSTANCE.registerMBean(OBJECT_NAME);
+        }
+    }
+
+    /**
+     * Returns the process-wide instance, registered with JMX
+     * @return
+     */
+    public static NodeAdmissionControl getInstance() {
+        return SingletonHolder.INSTANCE;
+    }
+
+    /**
+     * @return the process-wide instance if 'D1Client.admission.enabled' is true,
+     * otherwise null
+     */
+    public static NodeAdmissionControl getDefault() {
+        if (Settings.getConfiguration().getBoolean(ENABLED_PARAM, false))
+            return getInstance();
+        return null;
+    }
+
+    /**
+     * @param config - the configuration the limits are read from
+     */
+    public NodeAdmissionControl(Configuration config) {
+        this.config = config;
+    }
+
+
+    /**
+     * Registers the base url of a node, so that requests to it are limited by
+     * the node's settings.
+     * @param nodeId
+     * @param baseUrl
+     */
+    public static void registerNode(NodeReference nodeId, String baseUrl) {
+        if (nodeId == null || nodeId.getValue() == null || baseUrl == null)
+            return;
+        nodeBaseUrls.put(baseUrl, nodeId.getValue());
+    }
+
+    /**
+     * Returns the node that a request url is grouped under: the id of the
+     * registered node with the longest matching base url, otherwise the url's 
+     * scheme, host and port.
+     * @param url
+     * @return
+     */
+    public static String resolveNode(String url) {
+        String node = null;
+        int matched = -1;
+        for (Entry<String, String> en : nodeBaseUrls.entrySet()) {
+            if (en.getKey().length() > matched && url.startsWith(en.getKey())) {
+                node = en.getValue();
+                matched = en.getKey().length();
+            }
+        }
+        if (node != null)
+            return node;
+
+        int hostStart = url.indexOf("://");
+        hostStart = hostStart < 0 ? 0 : hostStart + 3;
+        int pathStart = url.indexOf('/', hostStart);
+        return pathStart < 0 ? url : url.substring(0, pathStart);
+    }
+
+
+    /**
+     * Waits for the request to be admitted, then returns the permit to release
+     * when it completes.
+     * 
+     * @param httpMethod
+     * @param url
+     * @param requestConfig - the request's config; its connection request 
+     *              timeout, if set, is the longest time to wait for admission
+     * @return
+     * @throws AdmissionRejected - if the request cannot be admitted
+     * @throws InterruptedIOException - if interrupted while waiting
+     */
+    public Permit acquire(String httpMethod, String url, RequestConfig requestConfig) 
+    throws IOException {
+        Gate gate = getGate(resolveNode(url), OperationClass.classify(httpMethod, url));
+
+        long maxWaitMillis = requestConfig != null && requestConfig.getConnectionRequestTimeout() > 0
+                ? requestConfig.getConnectionRequestTimeout() 
+                : RequestPolicyRegistry.getInstance().getDefaultTimeout();
+        return gate.acquire(TimeUnit.MILLISECONDS.toNanos(maxWaitMillis));
+    }
+
+    /**
+     * Wraps the response entity so that the permit is released when the body
+     * has been read to the end or closed.
+     * @param entity
+     * @param permit
+     * @return
+     */
+    static HttpEntity releaseOnCompletion(HttpEntity entity, Permit permit) {
+        if (entity == null) {
+            permit.release();
+            return null;
+        }
+        return new PermitEntity(entity, permit);
+    }
+
+    private Gate getGate(String node, OperationClass opClass) {
+        String key = node + " " + opClass.getPropertyName();
+        Gate gate = gates.get(key);
+        if (gate == null) {
+            int maxConcurrent = getLimit(node, opClass, "maxConcurrent", 0);
+            int maxQueued = getLimit(node, opClass, "maxQueued", 100);
+            double rate = getRate(node, opClass, "ratePerSecond", 0);
+            double burst = getRate(node, opClass, "burst", Math.max(1, rate));
+            Gate created = new Gate(node, opClass, maxConcurrent, maxQueued, rate, burst);
+            gate = gates.putIfAbsent(key, created);
+            if (gate == null) {
+                gate = created;
+                if (log.isDebugEnabled())
+                    log.debug("admission limits for " + gate);
+            }
+        }
+        return gate;
+    }
+
+    private String nodeParam(String node, OperationClass opClass, String name) {
+        String shortId = node.startsWith(NODE_ID_PREFIX) ? node.substring(NODE_ID_PREFIX.length()) : node;
+        return PARAM_PREFIX + "node." + shortId + "." + opClass.getPropertyName() + "." + name;
+    }
+
+    private int getLimit(String node, OperationClass opClass, String name, int defaultValue) {
+        int value = config.getInt(PARAM_PREFIX + opClass.getPropertyName() + "." + name, defaultValue);
+        return config.getInt(nodeParam(node, opClass, name), value);
+    }
+
+    private double getRate(String node, OperationClass opClass, String name, double defaultValue) {
+        double value = config.getDouble(PARAM_PREFIX + opClass.getPropertyName() + "." + name, defaultValue);
+        return config.getDouble(nodeParam(node, opClass, name), value);
+    }
+
+
+    @Override
+    public Map<String, Integer> getQueueDepths() {
+        Map<String, Integer> depths = new TreeMap<String, Integer>();
+        for (Entry<String, Gate> en : gates.entrySet()) {
+            depths.put(en.getKey(), en.getValue().waiting.get());
+        }
+        return depths;
+    }
+
+    @Override
+    public int getTotalQueueDepth() {
+        int total = 0;
+        for (Gate gate : gates.values()) {
+            total += gate.waiting.get();
+        }
+        return total;
+    }
+
+    @Override
+    public long getRejectedCount() {
+        long total = 0;
+        for (Gate gate : gates.values()) {
+            total += gate.rejected.get();
+        }
+        return total;
+    }
+
+    @Override
+    public String[] getStatistics() {
+        List<String> lines = new ArrayList<String>();
+        for (Gate gate : gates.values()) {
+            lines.add(gate.toString());
+        }
+        Collections.sort(lines);
+        return lines.toArray(new String[lines.size()]);
+    }
+
+    @Override
+    public void reset() {
+        gates.clear();
+    }
+
+    /**
+     * Registers this instance with the platform MBeanServer under the given 
+     * name.  Failures are logged, not thrown.
+     * @param objectName
+     * @return true if registered
+     */
+    public boolean registerMBean(String objectName) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(objectName);
+            if (!server.isRegistered(name)) 
+                server.registerMBean(this, name);
+            return true;
+        } catch (JMException | SecurityException e) {
+            log.warn("Could not register admission control with JMX: " + e.getMessage());
+            return false;
+        }
+    }
+
+
+    /*
+     * the bulkhead and rate limit for one node and operation class, with its statistics
+     */
+    static class Gate {
+        final String node;
+        final OperationClass opClass;
+        final int maxConcurrent;
+        final int maxQueued;
+        final Semaphore semaphore;
+        final TokenBucket bucket;
+
+        final AtomicInteger waiting = new AtomicInteger();
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicLong admitted = new AtomicLong();
+        final AtomicLong throttled = new AtomicLong();
+        final AtomicLong rejected = new AtomicLong();
+        final AtomicLong waitNanos = new AtomicLong();
+
+        Gate(String node, OperationClass opClass, int maxConcurrent, int maxQueued, 
+                double ratePerSecond, double burst) {
+            this.node = node;
+            this.opClass = opClass;
+            this.maxConcurrent = maxConcurrent;
+            this.maxQueued = maxQueued;
+            this.semaphore = maxConcurrent > 0 ? new Semaphore(maxConcurrent, true) : null;
+            this.bucket = ratePerSecond > 0 ? new TokenBucket(ratePerSecond, burst) : null;
+        }
+
+        Permit acquire(long maxWaitNanos) throws IOException {
+            long start = System.nanoTime();
+            int queued = waiting.incrementAndGet();
+            try {
+                if (bucket != null) {
+                    long delay = bucket.reserve(maxWaitNanos);
+                    if (delay < 0)
+                        throw reject("rate limit would delay the request beyond its timeout");
+                    if (delay > 0) {
+                        throttled.incrementAndGet();
+                        TimeUnit.NANOSECONDS.sleep(delay);
+                    }
+                }
+                if (semaphore != null && !semaphore.tryAcquire()) {
+                    if (maxQueued >= 0 && queued > maxQueued)
+                        throw reject("the wait queue is full (" + maxQueued + ")");
+                    long remaining = maxWaitNanos - (System.nanoTime() - start);
+                    if (remaining <= 0 || !semaphore.tryAcquire(remaining, TimeUnit.NANOSECONDS))
+                        throw reject("timed out waiting for one of " + maxConcurrent + " slots");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                rejected.incrementAndGet();
+                throw new InterruptedIOException("Interrupted while waiting for admission to " + node);
+            } finally {
+                waiting.decrementAndGet();
+            }
+            admitted.incrementAndGet();
+            inFlight.incrementAndGet();
+            waitNanos.addAndGet(System.nanoTime() - start);
+            return new GatePermit(this);
+        }
+
+        private AdmissionRejected reject(String reason) {
+            rejected.incrementAndGet();
+            return new AdmissionRejected("Request to " + node + " (" + opClass.getPropertyName() 
+                    + ") not admitted: " + reason);
+        }
+
+        void release() {
+            inFlight.decrementAndGet();
+            if (semaphore != null)
+                semaphore.release();
+        }
+
+        @Override
+        public String toString() {
+            long count = admitted.get();
+            return String.format("%s %s: maxConcurrent=%d inFlight=%d queued=%d rate=%s "
+                    + "admitted=%d throttled=%d rejected=%d meanWaitMs=%.1f",
+                    node, opClass.getPropertyName(), maxConcurrent, inFlight.get(), waiting.get(),
+                    bucket == null ? "unlimited" : bucket.ratePerSecond + "/s", count, 
+                    throttled.get(), rejected.get(), count == 0 ? 0 : waitNanos.get() / 1e6 / count);
+        }
+    }
+
+    private static class GatePermit implements Permit {
+        private final Gate gate;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        GatePermit(Gate gate) {
+            this.gate = gate;
+        }
+
+        @Override
+        public void release() {
+            if (released.compareAndSet(false, true))
+                gate.release();
+        }
+    }
+
+
+    /*
+     * a token bucket that lets callers reserve a token ahead of time, so
+     * callers are admitted in order and each learns how long to wait
+     */
+    static class TokenBucket {
+        final double ratePerSecond;
+        private final double tokensPerNano;
+        private final double capacity;
+        private double tokens;
+        private long lastRefill;
+
+        TokenBucket(double ratePerSecond, double burst) {
+            this.ratePerSecond = ratePerSecond;
+            this.tokensPerNano = ratePerSecond / 1e9;
+            this.capacity = Math.max(1, burst);
+            this.tokens = this.capacity;
+            this.lastRefill = System.nanoTime();
+        }
+
+        /**
+         * Reserves a token.
+         * @param maxWaitNanos
+         * @return the nanoseconds to wait before using the token, or -1 if 
+         * that would be longer than maxWaitNanos (no token is reserved)
+         */
+        synchronized long reserve(long maxWaitNanos) {
+            long now = System.nanoTime();
+            tokens = Math.min(capacity, tokens + (now - lastRefill) * tokensPerNano);
+            lastRefill = now;
+            if (tokens >= 1) {
+                tokens -= 1;
+                return 0;
+            }
+            long wait = (long) Math.ceil((1 - tokens) / tokensPerNano);
+            if (wait > maxWaitNanos)
+                return -1;
+            tokens -= 1;
+            return wait;
+        }
+    }
+
+
+    /*
+     * releases the permit when the response body has been read to the end or closed
+     */
+    private static class PermitEntity extends HttpEntityWrapper {
+
+        private final Permit permit;
+
+        PermitEntity(HttpEntity wrapped, Permit permit) {
+            super(wrapped);
+            this.permit = permit;
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            try {
+                return new PermitInputStream(super.getContent(), permit);
+            } catch (IOException | RuntimeException e) {
+                permit.release();
+                throw e;
+            }
+        }
+
+        @Override
+        public void writeTo(OutputStream outstream) throws IOException {
+            try {
+                super.writeTo(outstream);
+            } finally {
+                permit.release();
+            }
+        }
+
+        @Override
+        @SuppressWarnings("deprecation")
+        public void consumeContent() throws IOException {
+            try {
+                super.consumeContent();
+            } finally {
+                permit.release();
+            }
+        }
+    }
+
+    /* releases the permit at the end of the stream, on a read error, or when closed */
+    private static class PermitInputStream extends FilterInputStream {
+
+        private final Permit permit;
+
+        PermitInputStream(InputStream in, Permit permit) {
+            super(in);
+            this.permit = permit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            try {
+                int b = in.read();
+                if (b < 0)
+                    permit.release();
+                return b;
+            } catch (IOException e) {
+                permit.release();
+                throw e;
+            }
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            try {
+                int n = in.read(b, off, len);
+                if (n == -1)
+                    permit.release();
+                return n;
+            } catch (IOException e) {
+                permit.release();
+                throw e;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                permit.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,51 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.dataone.client.rest;
+
+import java.util.Map;
+
+/**
+ * The JMX view of the {@link NodeAdmissionControl}, registered as
+ * "org.dataone.client:type=NodeAdmissionControl".
+ * 
+ * @author rnahf
+ *
+ */
+public interface NodeAdmissionControlMXBean {
+
+    /** @return the number of requests waiting for admission, keyed by node and operation class */
+    public Map<String, Integer> getQueueDepths();
+
+    /** @return the number of requests waiting for admission to any node */
+    public int getTotalQueueDepth();
+
+    /** @return the number of requests refused admission */
+    public long getRejectedCount();
+
+    /** 
+     * @return one line per node and operation class, with the limits, requests
+     * in flight and queued, and admission counts
+     */
+    public String[] getStatistics();
+
+    /** discards the limits and statistics, so the limits are read again from the configuration */
+    public void reset();
+}
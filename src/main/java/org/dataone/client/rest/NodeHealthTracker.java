@@ -0,0 +1,428 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.dataone.client.rest;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.dataone.client.exception.NodeUnavailable;
+import org.dataone.configuration.Settings;
+import org.dataone.service.types.v1.NodeReference;
+
+/**
+ * Tracks the health of each node from the outcomes of the requests made to it,
+ * with a circuit breaker per node, so that callers can fail fast instead of
+ * waiting out timeouts against nodes that are down, and prefer healthier 
+ * nodes when there is a choice.
+ * <p>
+ * A request fails for the node if no response was received, the response 
+ * had a 5xx status, or its body could not be read.  (Other error statuses,
+ * such as NotFound, are answers from a healthy node.)  Each node's circuit:
+ * <ul>
+ * <li>is CLOSED while the node is healthy;</li>
+ * <li>OPENs after 'D1Client.health.failureThreshold' consecutive failures;</li>
+ * <li>goes HALF_OPEN after 'D1Client.health.openSeconds', letting one trial 
+ *     request through: its success closes the circuit, its failure opens it
+ *     again.</li>
+ * </ul>
+ * The tracker also keeps exponentially-weighted moving averages of each node's 
+ * latency (to the response headers) and error rate, from which a health score
+ * is derived for ranking nodes (see {@link #rankByHealth(Collection)}).
+ * <p>
+ * Requests are attributed to nodes as in NodeAdmissionControl: by node id if
+ * the base url is registered, otherwise by host.  The process-wide instance
+ * is fed by the HttpMultipartRestClients (unless 'D1Client.health.enabled' is
+ * false), and if 'D1Client.health.failFast' is true their RestClients refuse
+ * requests to nodes with an open circuit with a NodeUnavailable exception.
+ * 
+ * @author rnahf
+ *
+ */
+public class NodeHealthTracker implements RequestMetricsListener {
+
+    protected static Log log = LogFactory.getLog(NodeHealthTracker.class);
+
+    public static final String ENABLED_PARAM = "D1Client.health.enabled";
+    public static final String FAIL_FAST_PARAM = "D1Client.health.failFast";
+    public static final String FAILURE_THRESHOLD_PARAM = "D1Client.health.failureThreshold";
+    public static final String OPEN_SECONDS_PARAM = "D1Client.health.openSeconds";
+
+    /* the weight of the newest sample in the moving averages */
+    private static final double EWMA_WEIGHT = 0.2;
+
+    /**
+     * The states of a node's circuit breaker
+     */
+    public static enum CircuitState { CLOSED, OPEN, HALF_OPEN }
+
+    private final int failureThreshold;
+    private final long openNanos;
+    private final ConcurrentMap<String, NodeState> nodes = new ConcurrentHashMap<String, NodeState>();
+
+
+    private static class SingletonHolder {
+        public static final NodeHealthTracker INSTANCE = new NodeHealthTracker(
+                Settings.getConfiguration().getInt(FAILURE_THRESHOLD_PARAM, 5),
+                TimeUnit.SECONDS.toMillis(Settings.getConfiguration().getLong(OPEN_SECONDS_PARAM, 30)));
+    }
+
+    /**
+     * @return the process-wide instance
+     */
+    public static NodeHealthTracker getInstance() {
+        return SingletonHolder.INSTANCE;
+    }
+
+    /**
+     * @return the process-wide instance unless 'D1Client.health.enabled' is false
+     */
+    public static NodeHealthTracker getDefault() {
+        if (Settings.getConfiguration().getBoolean(ENABLED_PARAM, true))
+            return getInstance();
+        return null;
+    }
+
+    /**
+     * @return the process-wide instance if it is enabled and 'D1Client.health.failFast'
+     * is true, otherwise null
+     */
+    public static NodeHealthTracker getFailFastDefault() {
+        if (Settings.getConfiguration().getBoolean(FAIL_FAST_PARAM, false))
+            return getDefault();
+        return null;
+    }
+
+    /**
+     * @param failureThreshold - the consecutive failures that open a node's circuit
+     * @param openMillis - how long a circuit stays open before a trial request
+     */
+    public NodeHealthTracker(int failureThreshold, long openMillis) {
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.openNanos = TimeUnit.MILLISECONDS.toNanos(openMillis);
+    }
+
+
+    @Override
+    public void requestCompleted(RequestTimings timings) {
+        String node = NodeAdmissionControl.resolveNode(timings.getUrl());
+        int status = timings.getStatus();
+        boolean failed = status < 0 || status >= 500 || (timings.isError() && status < 400);
+        if (failed) {
+            recordFailure(node);
+        } else {
+            recordSuccess(node, timings.getTotalNanos() - timings.getResponseTransferNanos());
+        }
+    }
+
+    /**
+     * Records a successful request to the node, closing its circuit.
+     * @param node - the node id, or scheme and host for unregistered servers
+     * @param latencyNanos - the time until the response was received
+     */
+    public void recordSuccess(String node, long latencyNanos) {
+        if (getState(node).success(latencyNanos))
+            log.info("Circuit closed for " + node);
+    }
+
+    /**
+     * Records a failed request to the node, opening its circuit if it is 
+     * half-open or the failure threshold is reached.
+     * @param node - the node id, or scheme and host for unregistered servers
+     */
+    public void recordFailure(String node) {
+        if (getState(node).failure(System.nanoTime(), failureThreshold))
+            log.warn("Circuit opened for " + node + " after repeated failures");
+    }
+
+    /**
+     * Returns whether a request may be sent to the node: true if its circuit 
+     * is closed, or if it is due a trial request (which this call claims).
+     * @param node - the node id, or scheme and host for unregistered servers
+     * @return
+     */
+    public boolean allowRequest(String node) {
+        NodeState state = nodes.get(node);
+        return state == null || state.allow(System.nanoTime(), openNanos);
+    }
+
+    public boolean allowRequest(NodeReference nodeRef) {
+        return allowRequest(nodeRef.getValue());
+    }
+
+    /**
+     * Throws NodeUnavailable if a request to the url's node is not allowed.
+     * @see #allowRequest(String)
+     * @param url
+     * @throws NodeUnavailable
+     */
+    public void checkAvailable(String url) throws NodeUnavailable {
+        String node = NodeAdmissionControl.resolveNode(url);
+        if (!allowRequest(node))
+            throw new NodeUnavailable("Circuit is open for " + node + ", not sending request: " + url);
+    }
+
+    /**
+     * Returns whether the node's circuit is not closed, but it is due a trial
+     * request.  This does not claim the trial.
+     * @param nodeRef
+     * @return
+     */
+    public boolean isTrialDue(NodeReference nodeRef) {
+        NodeState state = nodes.get(nodeRef.getValue());
+        return state != null && state.isTrialDue(System.nanoTime(), openNanos);
+    }
+
+    /**
+     * @param nodeRef
+     * @return the state of the node's circuit (CLOSED for unknown nodes)
+     */
+    public CircuitState getCircuitState(NodeReference nodeRef) {
+        NodeState state = nodes.get(nodeRef.getValue());
+        return state == null ? CircuitState.CLOSED : state.snapshot(nodeRef.getValue()).getCircuitState();
+    }
+
+    /**
+     * @param nodeRef
+     * @return a snapshot of the node's health, or null if no requests have been
+     * made to it
+     */
+    public NodeHealth getHealth(NodeReference nodeRef) {
+        NodeState state = nodes.get(nodeRef.getValue());
+        return state == null ? null : state.snapshot(nodeRef.getValue());
+    }
+
+    /**
+     * @return snapshots of the health of all of the nodes requests were made to
+     */
+    public List<NodeHealth> getHealthSnapshots() {
+        List<NodeHealth> list = new ArrayList<NodeHealth>();
+        for (Map.Entry<String, NodeState> en : nodes.entrySet()) {
+            list.add(en.getValue().snapshot(en.getKey()));
+        }
+        return list;
+    }
+
+    /**
+     * Orders the nodes from the healthiest to the least healthy, by their
+     * health scores.  Nodes without history are treated as healthy.
+     * @param nodeRefs
+     * @return a new list of the nodes
+     */
+    public List<NodeReference> rankByHealth(Collection<NodeReference> nodeRefs) {
+        final Map<NodeReference, Double> scores = new HashMap<NodeReference, Double>();
+        for (NodeReference ref : nodeRefs) {
+            NodeHealth health = getHealth(ref);
+            scores.put(ref, health == null ? 1.0 : health.getScore());
+        }
+        List<NodeReference> ranked = new ArrayList<NodeReference>(nodeRefs);
+        Collections.sort(ranked, new Comparator<NodeReference>() {
+            @Override
+            public int compare(NodeReference a, NodeReference b) {
+                return Double.compare(scores.get(b), scores.get(a));
+            }
+        });
+        return ranked;
+    }
+
+    /**
+     * forgets the history of all nodes, closing their circuits
+     */
+    public void reset() {
+        nodes.clear();
+    }
+
+    private NodeState getState(String node) {
+        NodeState state = nodes.get(node);
+        if (state == null) {
+            NodeState created = new NodeState();
+            state = nodes.putIfAbsent(node, created);
+            if (state == null)
+                state = created;
+        }
+        return state;
+    }
+
+
+    /*
+     * the circuit and moving averages of one node.  Updates are short, so are
+     * synchronized on the instance.
+     */
+    private static class NodeState {
+        private CircuitState state = CircuitState.CLOSED;
+        private int consecutiveFailures;
+        private long openedAt;
+        private long trialStartedAt;
+        private double latencyEwmaNanos = -1;
+        private double errorRateEwma;
+        private long successes;
+        private long failures;
+        private long opens;
+
+        /* returns true if this closed the circuit */
+        synchronized boolean success(long latencyNanos) {
+            successes++;
+            consecutiveFailures = 0;
+            errorRateEwma = (1 - EWMA_WEIGHT) * errorRateEwma;
+            if (latencyNanos > 0) {
+                latencyEwmaNanos = latencyEwmaNanos < 0 ? latencyNanos 
+                        : (1 - EWMA_WEIGHT) * latencyEwmaNanos + EWMA_WEIGHT * latencyNanos;
+            }
+            if (state == CircuitState.CLOSED)
+                return false;
+            state = CircuitState.CLOSED;
+            return true;
+        }
+
+        /* returns true if this opened the circuit */
+        synchronized boolean failure(long now, int threshold) {
+            failures++;
+            consecutiveFailures++;
+            errorRateEwma = (1 - EWMA_WEIGHT) * errorRateEwma + EWMA_WEIGHT;
+            if (state == CircuitState.HALF_OPEN 
+                    || (state == CircuitState.CLOSED && consecutiveFailures >= threshold)) {
+                state = CircuitState.OPEN;
+                openedAt = now;
+                opens++;
+                return true;
+            }
+            return false;
+        }
+
+        synchronized boolean allow(long now, long openNanos) {
+            if (!isTrialDue(now, openNanos))
+                return state == CircuitState.CLOSED;
+            state = CircuitState.HALF_OPEN;
+            trialStartedAt = now;
+            return true;
+        }
+
+        /* a trial is due when the circuit has been open long enough, or the last trial never finished */
+        synchronized boolean isTrialDue(long now, long openNanos) {
+            switch (state) {
+            case OPEN:
+                return now - openedAt >= openNanos;
+            case HALF_OPEN:
+                return now - trialStartedAt >= openNanos;
+            default:
+                return false;
+            }
+        }
+
+        synchronized NodeHealth snapshot(String node) {
+            return new NodeHealth(node, state, consecutiveFailures, 
+                    latencyEwmaNanos < 0 ? -1 : latencyEwmaNanos / 1e6, errorRateEwma, 
+                    successes, failures, opens);
+        }
+    }
+
+
+    /**
+     * An immutable snapshot of a node's health.
+     */
+    public static class NodeHealth {
+        private final String node;
+        private final CircuitState circuitState;
+        private final int consecutiveFailures;
+        private final double latencyMillis;
+        private final double errorRate;
+        private final long successCount;
+        private final long failureCount;
+        private final long openCount;
+
+        NodeHealth(String node, CircuitState circuitState, int consecutiveFailures, 
+                double latencyMillis, double errorRate, long successCount, long failureCount,
+                long openCount) {
+            this.node = node;
+            this.circuitState = circuitState;
+            this.consecutiveFailures = consecutiveFailures;
+            this.latencyMillis = latencyMillis;
+            this.errorRate = errorRate;
+            this.successCount = successCount;
+            this.failureCount = failureCount;
+            this.openCount = openCount;
+        }
+
+        public String getNode() {
+            return node;
+        }
+
+        public CircuitState getCircuitState() {
+            return circuitState;
+        }
+
+        public int getConsecutiveFailures() {
+            return consecutiveFailures;
+        }
+
+        /** @return the moving average latency, or -1 if no request has succeeded */
+        public double getLatencyMillis() {
+            return latencyMillis;
+        }
+
+        /** @return the moving average fraction of requests that failed */
+        public double getErrorRate() {
+            return errorRate;
+        }
+
+        public long getSuccessCount() {
+            return successCount;
+        }
+
+        public long getFailureCount() {
+            return failureCount;
+        }
+
+        /** @return the number of times the circuit has opened */
+        public long getOpenCount() {
+            return openCount;
+        }
+
+        /**
+         * @return a score from 0 (unavailable) to 1 (no errors, negligible 
+         * latency): the success rate discounted by latency (halved at 1 second),
+         * and halved again for a half-open circuit
+         */
+        public double getScore() {
+            if (circuitState == CircuitState.OPEN)
+                return 0;
+            double score = (1 - errorRate) / (1 + Math.max(0, latencyMillis) / 1000);
+            return circuitState == CircuitState.HALF_OPEN ? score / 2 : score;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %s latency=%.1fms errorRate=%.3f consecutiveFailures=%d "
+                    + "successes=%d failures=%d opens=%d score=%.3f", node, circuitState, 
+                    latencyMillis, errorRate, consecutiveFailures, successCount, failureCount,
+                    openCount, getScore());
+        }
+    }
+}
@@ -0,0 +1,204 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.dataone.client.rest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A fixed-size, lock-free record of the most recent requests made through a 
+ * RestClient.  Recording a request is a single atomic increment and an array
+ * store, so it is cheap enough to sit on the request path, and because the
+ * buffer is fixed-size it does not grow with the number of threads that use
+ * the client.
+ * <p>
+ * Once the buffer is full, each new entry overwrites the oldest one.  Snapshots
+ * taken while other threads are recording are not atomic: an entry may be
+ * replaced by a newer one between the time the snapshot starts and the time 
+ * that slot is read.
+ * 
+ * @author rnahf
+ *
+ */
+public class RequestJournal {
+
+    private final AtomicReferenceArray<Entry> ring;
+    private final AtomicLong sequence = new AtomicLong();
+
+    /**
+     * @param capacity - the number of entries retained (at least 1)
+     */
+    public RequestJournal(int capacity) {
+        this.ring = new AtomicReferenceArray<Entry>(Math.max(1, capacity));
+    }
+
+    /**
+     * @return the maximum number of entries retained
+     */
+    public int getCapacity() {
+        return ring.length();
+    }
+
+    /**
+     * @return the total number of entries recorded since this journal was created
+     */
+    public long getRecordedCount() {
+        return sequence.get();
+    }
+
+    /**
+     * Adds the entry to the journal, replacing the oldest entry if full.
+     * @param entry
+     */
+    public void record(Entry entry) {
+        long seq = sequence.getAndIncrement();
+        ring.set((int) (seq % ring.length()), entry);
+    }
+
+    /**
+     * Returns the retained entries, oldest first.
+     * @return
+     */
+    public List<Entry> getEntries() {
+        long end = sequence.get();
+        long start = Math.max(0, end - ring.length());
+        List<Entry> entries = new ArrayList<Entry>((int) (end - start));
+        for (long seq = start; seq < end; seq++) {
+            Entry e = ring.get((int) (seq % ring.length()));
+            if (e != null)
+                entries.add(e);
+        }
+        return entries;
+    }
+
+    /**
+     * Returns the most recent retained entry recorded by the given thread, or 
+     * null if there is none.
+     * @param t
+     * @return
+     */
+    public Entry getLatestEntry(Thread t) {
+        long threadId = t.getId();
+        long end = sequence.get();
+        long start = Math.max(0, end - ring.length());
+        for (long seq = end - 1; seq >= start; seq--) {
+            Entry e = ring.get((int) (seq % ring.length()));
+            if (e != null && e.getThreadId() == threadId)
+                return e;
+        }
+        return null;
+    }
+
+
+    /**
+     * An immutable description of a single request.  The duration is measured
+     * until the response headers are received (or the request fails), and
+     * the byte counts are the declared Content-Lengths, -1 if unknown.
+     */
+    public static class Entry {
+
+        private final String method;
+        private final String url;
+        private final String description;
+        private final long threadId;
+        private final String threadName;
+        private final long startTime;
+        private final long durationMillis;
+        private final int status;
+        private final long requestBytes;
+        private final long responseBytes;
+
+        /**
+         * @param method - the http method
+         * @param url - the request url
+         * @param description - the description returned by getLatestRequestUrl()
+         * @param thread - the thread that made the request
+         * @param startTime - the start time, in milliseconds since the epoch
+         * @param durationMillis
+         * @param status - the http status code, or -1 if no response was received
+         * @param requestBytes - the request body length, -1 if unknown, 0 if none
+         * @param responseBytes - the response body length, -1 if unknown, 0 if none
+         */
+        public Entry(String method, String url, String description, Thread thread,
+                long startTime, long durationMillis, int status,
+                long requestBytes, long responseBytes)
+        {
+            this.method = method;
+            this.url = url;
+            this.description = description;
+            this.threadId = thread.getId();
+            this.threadName = thread.getName();
+            this.startTime = startTime;
+            this.durationMillis = durationMillis;
+            this.status = status;
+            this.requestBytes = requestBytes;
+            this.responseBytes = responseBytes;
+        }
+
+        public String getMethod() {
+            return method;
+        }
+
+        public String getUrl() {
+            return url;
+        }
+
+        public String getDescription() {
+            return description;
+        }
+
+        public long getThreadId() {
+            return threadId;
+        }
+
+        public String getThreadName() {
+            return threadName;
+        }
+
+        public long getStartTime() {
+            return startTime;
+        }
+
+        public long getDurationMillis() {
+            return durationMillis;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+
+        public long getRequestBytes() {
+            return requestBytes;
+        }
+
+        public long getResponseBytes() {
+            return responseBytes;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s %s [thread %d (%s), status %d, %d ms, sent %d, received %d]",
+                    method, url, threadId, threadName, status, durationMillis, 
+                    requestBytes, responseBytes);
+        }
+    }
+}
@@ -0,0 +1,43 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.dataone.client.rest;
+
+/**
+ * A listener notified when each request made through a RestClient finishes.
+ * Register one with {@link HttpMultipartRestClient#setRequestMetricsListener(RequestMetricsListener)}.
+ * <p>
+ * A request is finished when its response body has been read to the end or 
+ * closed, or when it fails without a response, so the listener is often called
+ * on the thread that consumes the response, after the API method has returned.
+ * Listeners are called on the request path, so should be fast, and must be 
+ * thread-safe.  Exceptions thrown by listeners are logged and ignored.
+ * 
+ * @author rnahf
+ *
+ */
+public interface RequestMetricsListener {
+
+    /**
+     * Called once for each finished request.  The timings are complete and
+     * will not be modified further.
+     * @param timings
+     */
+    public void requestCompleted(RequestTimings timings);
+}
@@ -0,0 +1,63 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.dataone.client.rest;
+
+/**
+ * The JMX view of the {@link InMemoryRequestMetrics}, registered as
+ * "org.dataone.client:type=RequestMetrics".
+ * 
+ * @author rnahf
+ *
+ */
+public interface RequestMetricsMXBean {
+
+    /** @return the number of requests recorded */
+    public long getRequestCount();
+
+    /** @return the number of requests that failed or returned an error status */
+    public long getErrorCount();
+
+    /** @return the total number of request body bytes sent */
+    public long getBytesOut();
+
+    /** @return the total number of response body bytes received */
+    public long getBytesIn();
+
+    /** @return the upper bounds, in milliseconds, of the latency histogram buckets */
+    public long[] getLatencyBucketBoundsMillis();
+
+    /** @return the latency histogram over all requests (the last bucket is unbounded) */
+    public long[] getLatencyHistogram();
+
+    /** 
+     * @return one line per node, operation and status, with counts, bytes, 
+     * mean phase times and latency percentiles
+     */
+    public String[] getStatistics();
+
+    /** @return the number of full TLS handshakes made by CertificateManager socket factories */
+    public long getTlsFullHandshakeCount();
+
+    /** @return the number of TLS handshakes that resumed a cached session */
+    public long getTlsResumedHandshakeCount();
+
+    /** clears all of the statistics */
+    public void reset();
+}
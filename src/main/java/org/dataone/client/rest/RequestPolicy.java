@@ -0,0 +1,196 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.dataone.client.rest;
+
+import org.apache.http.client.config.RequestConfig;
+
+/**
+ * An immutable set of request settings for one DataONE API operation: its
+ * timeout, whether redirects are followed, and how many times a failed call
+ * may be retried.  The RequestConfigs for the policy (with and without 
+ * redirects) are built once, when the policy is resolved, so they can be 
+ * reused for every call.
+ * <p>
+ * Policies are resolved from the configuration by the {@link RequestPolicyRegistry}.
+ * For an operation with the property prefix <i>P</i> the properties are:
+ * <ul>
+ *   <li><i>P</i>.timeout (the historical timeout property for the operation)</li>
+ *   <li><i>P</i>.followRedirects (default false), for the operation's GET requests</li>
+ *   <li><i>P</i>.retries (default 0)</li>
+ * </ul>
+ * 
+ * @author rnahf
+ *
+ */
+public class RequestPolicy {
+
+    /**
+     * The DataONE API operations with their own request settings.
+     */
+    public static enum Operation {
+        /** applies to all other calls, and supplies the timeout when an operation has none */
+        DEFAULT("D1Client.http.default", HttpMultipartRestClient.DEFAULT_TIMEOUT_PARAM),
+        GET("D1Client.D1Node.get"),
+        GET_SYSTEM_METADATA("D1Client.D1Node.getSystemMetadata"),
+        GET_LOG_RECORDS("D1Client.D1Node.getLogRecords"),
+        MN_CREATE("D1Client.MNode.create"),
+        MN_UPDATE("D1Client.MNode.update"),
+        MN_REPLICATE("D1Client.MNode.replicate"),
+        MN_GET_REPLICA("D1Client.MNode.getReplica"),
+        CN_CREATE("D1Client.CNode.create", "D1Client.CNode.create.timeouts"),
+        CN_REGISTER_SYSTEM_METADATA("D1Client.CNode.registerSystemMetadata",
+                "D1Client.CNode.registerSystemMetadata.timeouts"),
+        CN_RESERVE_IDENTIFIER("D1Client.CNode.reserveIdentifier"),
+        CN_REPLICATION("D1Client.CNode.replication");
+
+        private final String propertyPrefix;
+        private final String timeoutProperty;
+
+        private Operation(String propertyPrefix) {
+            this(propertyPrefix, propertyPrefix + ".timeout");
+        }
+
+        private Operation(String propertyPrefix, String timeoutProperty) {
+            this.propertyPrefix = propertyPrefix;
+            this.timeoutProperty = timeoutProperty;
+        }
+
+        public String getTimeoutProperty() {
+            return timeoutProperty;
+        }
+
+        public String getFollowRedirectsProperty() {
+            return propertyPrefix + ".followRedirects";
+        }
+
+        public String getRetriesProperty() {
+            return propertyPrefix + ".retries";
+        }
+    }
+
+
+    private final Operation operation;
+    private final Integer timeoutMillis;
+    private final boolean followRedirects;
+    private final int maxRetries;
+    /* the timeout the RequestConfigs are built with: the operation's own, or the default */
+    private final Integer resolvedTimeoutMillis;
+    private final RequestConfig redirectingConfig;
+    private final RequestConfig nonRedirectingConfig;
+
+    /**
+     * @param operation
+     * @param timeoutMillis - the operation's own timeout, or null to use the default
+     * @param defaultTimeoutMillis - the timeout used to build the RequestConfigs 
+     *                 if timeoutMillis is null (can also be null)
+     * @param followRedirects
+     * @param maxRetries
+     */
+    public RequestPolicy(Operation operation, Integer timeoutMillis, Integer defaultTimeoutMillis,
+            boolean followRedirects, int maxRetries)
+    {
+        this.operation = operation;
+        this.timeoutMillis = timeoutMillis;
+        this.followRedirects = followRedirects;
+        this.maxRetries = Math.max(0, maxRetries);
+        this.resolvedTimeoutMillis = timeoutMillis != null ? timeoutMillis : defaultTimeoutMillis;
+        this.redirectingConfig = buildRequestConfig(this.resolvedTimeoutMillis, true);
+        this.nonRedirectingConfig = buildRequestConfig(this.resolvedTimeoutMillis, false);
+    }
+
+    /**
+     * Builds a RequestConfig with all timeouts set to timeoutMillis (if not 
+     * null), and redirects enabled according to followRedirect (if not null).
+     * @param timeoutMillis
+     * @param followRedirect
+     * @return
+     */
+    public static RequestConfig buildRequestConfig(Integer timeoutMillis, Boolean followRedirect) 
+    {
+        RequestConfig.Builder rcBuilder = RequestConfig.custom();
+
+        if (timeoutMillis != null)
+            rcBuilder.setConnectTimeout(timeoutMillis)
+                .setConnectionRequestTimeout(timeoutMillis)
+                .setSocketTimeout(timeoutMillis);
+
+        if (followRedirect != null)
+            rcBuilder.setRedirectsEnabled(followRedirect);
+
+        return rcBuilder.build();
+    }
+
+    public Operation getOperation() {
+        return operation;
+    }
+
+    /**
+     * @return the operation's configured timeout, or null if it uses the default
+     */
+    public Integer getTimeout() {
+        return timeoutMillis;
+    }
+
+    /**
+     * @return whether the operation's GET requests follow redirects, 
+     * instead of returning the redirect response
+     */
+    public boolean isFollowRedirects() {
+        return followRedirects;
+    }
+
+    /**
+     * @return the number of times a failed call may be retried (0 for no retries)
+     */
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    /**
+     * @return the timeout the policy's RequestConfigs use: the operation's 
+     * own, or the default (null if neither is set)
+     */
+    Integer getResolvedTimeout() {
+        return resolvedTimeoutMillis;
+    }
+
+    /**
+     * @return the prebuilt RequestConfig for the operation, using the default
+     * timeout if the operation doesn't have its own.
+     */
+    public RequestConfig getRequestConfig() {
+        return getRequestConfig(followRedirects);
+    }
+
+    /**
+     * @param followRedirect
+     * @return the prebuilt RequestConfig for the policy's timeout, with 
+     * redirects enabled or not
+     */
+    public RequestConfig getRequestConfig(boolean followRedirect) {
+        return followRedirect ? redirectingConfig : nonRedirectingConfig;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("RequestPolicy[%s: timeout=%s, followRedirects=%s, retries=%d]",
+                operation, timeoutMillis, followRedirects, maxRetries);
+    }
+}
@@ -0,0 +1,186 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.dataone.client.rest;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.configuration.Configuration;
+import org.apache.commons.configuration.event.ConfigurationEvent;
+import org.apache.commons.configuration.event.ConfigurationListener;
+import org.apache.commons.configuration.event.EventSource;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.client.config.RequestConfig;
+import org.dataone.client.rest.RequestPolicy.Operation;
+import org.dataone.configuration.Settings;
+
+/**
+ * Holds the resolved {@link RequestPolicy} for each DataONE API operation, so
+ * that the request path reads an immutable policy instead of doing synchronized
+ * configuration lookups for every call.  It is also where REST clients get
+ * the RequestConfig for a request, so the prebuilt configs of the policies
+ * are the only ones, and change with the configuration.
+ * <p>
+ * Policies are resolved when the registry is created, and re-resolved whenever
+ * the configuration reports a change (for example through 
+ * HttpMultipartRestClient.setDefaultTimeout()).  If the configuration does not
+ * support change listeners, policies are resolved on every lookup, as before.
+ * 
+ * @author rnahf
+ *
+ */
+public class RequestPolicyRegistry implements ConfigurationListener {
+
+    protected static Log log = LogFactory.getLog(RequestPolicyRegistry.class);
+
+    private final Configuration config;
+    private final boolean listening;
+
+    private volatile Resolved resolved;
+
+    /* the policies from one reading of the configuration, also indexed by timeout */
+    private static class Resolved {
+        final Map<Operation, RequestPolicy> policies;
+        final Map<Integer, RequestPolicy> byTimeout = new HashMap<Integer, RequestPolicy>();
+
+        Resolved(Map<Operation, RequestPolicy> policies) {
+            this.policies = policies;
+            for (RequestPolicy policy : policies.values())
+                if (!this.byTimeout.containsKey(policy.getResolvedTimeout()))
+                    this.byTimeout.put(policy.getResolvedTimeout(), policy);
+        }
+    }
+
+
+    private static class SingletonHolder {
+        public static final RequestPolicyRegistry INSTANCE = 
+                new RequestPolicyRegistry(Settings.getConfiguration());
+    }
+
+    /**
+     * Returns the registry backed by the DataONE client Settings
+     * @return
+     */
+    public static RequestPolicyRegistry getInstance() {
+        return SingletonHolder.INSTANCE;
+    }
+
+
+    /**
+     * Creates a registry resolved from the given configuration.  Most
+     * applications should use getInstance() instead.
+     * @param config
+     */
+    public RequestPolicyRegistry(Configuration config) {
+        this.config = config;
+        this.resolved = resolve();
+        if (config instanceof EventSource) {
+            ((EventSource) config).addConfigurationListener(this);
+            this.listening = true;
+        } else {
+            log.warn("configuration does not support change events. RequestPolicies " 
+                    + "will be resolved on every request.");
+            this.listening = false;
+        }
+    }
+
+
+    /**
+     * Returns the policy for the operation
+     * @param operation
+     * @return
+     */
+    public RequestPolicy getPolicy(Operation operation) {
+        return current().policies.get(operation);
+    }
+
+    /**
+     * Returns the RequestConfig for a request with the given timeout: the 
+     * prebuilt one of a policy with that timeout, so it isn't built for every
+     * call.  A null timeout uses the default timeout.  A timeout no policy 
+     * has (one passed in by the application) gets a new RequestConfig.
+     * @param timeoutMillis - the timeout, or null for the default
+     * @param followRedirect
+     * @return
+     */
+    public RequestConfig getRequestConfig(Integer timeoutMillis, boolean followRedirect) {
+        Resolved current = current();
+        RequestPolicy policy = timeoutMillis == null ? current.policies.get(Operation.DEFAULT)
+                : current.byTimeout.get(timeoutMillis);
+        if (policy != null)
+            return policy.getRequestConfig(followRedirect);
+        return RequestPolicy.buildRequestConfig(timeoutMillis, followRedirect);
+    }
+
+    /**
+     * Returns the default timeout (property 'D1Client.http.default.timeouts.ms'),
+     * or null if none is set.
+     * @return
+     */
+    public Integer getDefaultTimeout() {
+        return getPolicy(Operation.DEFAULT).getTimeout();
+    }
+
+    /**
+     * Returns all of the current policies
+     * @return
+     */
+    public Map<Operation, RequestPolicy> getPolicies() {
+        return Collections.unmodifiableMap(current().policies);
+    }
+
+    /**
+     * Re-resolves all of the policies from the configuration.  Called 
+     * automatically when the configuration changes.
+     */
+    public void refresh() {
+        this.resolved = resolve();
+        if (log.isDebugEnabled())
+            log.debug("RequestPolicyRegistry refreshed: " + this.resolved.policies.values());
+    }
+
+    @Override
+    public void configurationChanged(ConfigurationEvent event) {
+        if (!event.isBeforeUpdate())
+            refresh();
+    }
+
+
+    private Resolved current() {
+        return listening ? this.resolved : resolve();
+    }
+
+    private Resolved resolve() {
+        Integer defaultTimeout = config.getInteger(Operation.DEFAULT.getTimeoutProperty(), null);
+
+        Map<Operation, RequestPolicy> policies = new EnumMap<Operation, RequestPolicy>(Operation.class);
+        for (Operation op : Operation.values()) {
+            Integer timeout = op == Operation.DEFAULT ? defaultTimeout 
+                    : config.getInteger(op.getTimeoutProperty(), null);
+            policies.put(op, new RequestPolicy(op, timeout, defaultTimeout,
+                    config.getBoolean(op.getFollowRedirectsProperty(), false),
+                    config.getInt(op.getRetriesProperty(), 0)));
+        }
+        return new Resolved(policies);
+    }
+}
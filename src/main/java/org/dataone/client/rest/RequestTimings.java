@@ -0,0 +1,261 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.dataone.client.rest;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * The timings and sizes of one request, broken into phases:
+ * <ul>
+ *   <li>pool wait - from the start of the request until a connection is 
+ *       leased from the pool (approximate: also includes request preparation)</li>
+ *   <li>connect - establishing the TCP connection (0 if a pooled connection was reused)</li>
+ *   <li>TLS - the TLS handshake (0 for reused or plain http connections)</li>
+ *   <li>request send - writing the request headers and body</li>
+ *   <li>server wait - from the end of the request until the response headers arrive</li>
+ *   <li>response transfer - reading the response body</li>
+ * </ul>
+ * The connect, TLS, send and server-wait phases are recorded by the
+ * instrumented socket factories and request executor installed by HttpUtils,
+ * so they are 0 for HttpClients built some other way.  All durations are
+ * in nanoseconds.
+ * <p>
+ * While a request is executing, its RequestTimings is bound to the executing 
+ * thread, so the instrumentation can find it with {@link #current()}.
+ * 
+ * @author rnahf
+ *
+ */
+public class RequestTimings {
+
+    protected static Log log = LogFactory.getLog(RequestTimings.class);
+
+    private static final ThreadLocal<RequestTimings> CURRENT = new ThreadLocal<RequestTimings>();
+
+    private final RequestMetricsListener listener;
+    private final String method;
+    private final String url;
+    private final long startNanos;
+
+    private long networkStartNanos;
+    private long connectNanos;
+    private long tlsNanos;
+    private long requestSendNanos;
+    private long serverWaitNanos;
+    private long headersReceivedNanos;
+    private long responseTransferNanos;
+    private long totalNanos;
+    private long requestBytes;
+    private long responseBytes;
+    private int status = -1;
+    private boolean failed;
+    private boolean completed;
+
+
+    RequestTimings(RequestMetricsListener listener, String method, String url) {
+        this.listener = listener;
+        this.method = method;
+        this.url = url;
+        this.startNanos = System.nanoTime();
+    }
+
+    /**
+     * Returns the timings of the request being executed by the current 
+     * thread, or null if there is none, or it is not being measured.
+     * @return
+     */
+    public static RequestTimings current() {
+        return CURRENT.get();
+    }
+
+    /* binds the timings to the current thread for the duration of execute() */
+    void bind() {
+        CURRENT.set(this);
+    }
+
+    void unbind() {
+        CURRENT.remove();
+    }
+
+
+    /**
+     * Marks the first use of a connection (the start of a connect, or of 
+     * sending the request on a pooled connection), ending the pool wait phase.
+     * Only the first call has an effect.
+     * @param nanoTime
+     */
+    public void markConnectionLeased(long nanoTime) {
+        if (networkStartNanos == 0)
+            networkStartNanos = nanoTime;
+    }
+
+    public void addConnectTime(long nanos) {
+        connectNanos += nanos;
+    }
+
+    public void addTlsTime(long nanos) {
+        tlsNanos += nanos;
+    }
+
+    public void addRequestSendTime(long nanos) {
+        requestSendNanos += nanos;
+    }
+
+    public void addServerWaitTime(long nanos) {
+        serverWaitNanos += nanos;
+    }
+
+    void setRequestBytes(long requestBytes) {
+        this.requestBytes = requestBytes;
+    }
+
+    /* called when the response headers have been received */
+    void responseReceived(int status) {
+        this.status = status;
+        this.headersReceivedNanos = System.nanoTime();
+    }
+
+    /*
+     * ends the request, and notifies the listener.  responseBytes is the number
+     * of bytes of the response body that were read.  Only the first call has 
+     * an effect.
+     */
+    void complete(long responseBytes, boolean failed) {
+        if (completed)
+            return;
+        completed = true;
+
+        long now = System.nanoTime();
+        this.responseBytes = responseBytes;
+        this.failed = failed;
+        this.totalNanos = now - startNanos;
+        if (headersReceivedNanos > 0)
+            this.responseTransferNanos = now - headersReceivedNanos;
+
+        try {
+            listener.requestCompleted(this);
+        } catch (RuntimeException e) {
+            log.warn("RequestMetricsListener threw an exception: " + e.getMessage(), e);
+        }
+    }
+
+
+    public String getMethod() {
+        return method;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    /**
+     * @return the scheme, host and port of the url, identifying the node called
+     */
+    public String getNode() {
+        int hostStart = url.indexOf("://");
+        hostStart = hostStart < 0 ? 0 : hostStart + 3;
+        int pathStart = url.indexOf('/', hostStart);
+        return pathStart < 0 ? url : url.substring(0, pathStart);
+    }
+
+    /**
+     * Returns a label for the DataONE API operation called, made from the 
+     * http method and the REST resource following the API version in the 
+     * url, for example "GET object" or "POST replicate".  The resource is
+     * empty for calls to the node's base url (e.g. MN.getCapabilities).
+     * @return
+     */
+    public String getOperation() {
+        String resource = parseResource(url);
+        return resource.length() == 0 ? method : method + " " + resource;
+    }
+
+    /**
+     * Returns the DataONE REST resource of the url: the path segment following
+     * the API version (for example "object" or "meta"), or the empty string
+     * if there is none.
+     * @param url
+     * @return
+     */
+    public static String parseResource(String url) {
+        int versionIndex = url.indexOf("/v1/");
+        if (versionIndex < 0)
+            versionIndex = url.indexOf("/v2/");
+        if (versionIndex < 0)
+            return "";
+
+        int start = versionIndex + 4;
+        int end = start;
+        while (end < url.length() && "/?#".indexOf(url.charAt(end)) < 0)
+            end++;
+        return url.substring(start, end);
+    }
+
+    /**
+     * @return the http status of the response, or -1 if none was received
+     */
+    public int getStatus() {
+        return status;
+    }
+
+    /**
+     * @return true if no response was received, or it had an error status (>= 400)
+     */
+    public boolean isError() {
+        return failed || status < 0 || status >= 400;
+    }
+
+    public long getRequestBytes() {
+        return requestBytes;
+    }
+
+    public long getResponseBytes() {
+        return responseBytes;
+    }
+
+    public long getPoolWaitNanos() {
+        return networkStartNanos == 0 ? 0 : networkStartNanos - startNanos;
+    }
+
+    public long getConnectNanos() {
+        return connectNanos;
+    }
+
+    public long getTlsNanos() {
+        return tlsNanos;
+    }
+
+    public long getRequestSendNanos() {
+        return requestSendNanos;
+    }
+
+    public long getServerWaitNanos() {
+        return serverWaitNanos;
+    }
+
+    public long getResponseTransferNanos() {
+        return responseTransferNanos;
+    }
+
+    public long getTotalNanos() {
+        return totalNanos;
+    }
+}
@@ -25,10 +25,11 @@ package org.dataone.client.rest;
 
 import java.io.IOException;
 import java.util.HashMap;
-import java.util.Map;
+import java.util.List;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.ClientProtocolException;
 import org.apache.http.client.HttpClient;
@@ -40,7 +41,9 @@ import org.apache.http.client.methods.HttpHead;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpPut;
 import org.apache.http.client.methods.HttpRequestBase;
-import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.dataone.client.utils.HttpUtils;
+import org.dataone.configuration.Settings;
 import org.dataone.mimemultipart.SimpleMultipartEntity;
 import org.dataone.service.util.Constants;
 
@@ -61,11 +64,23 @@ public class RestClient {
 
     protected static Log log = LogFactory.getLog(RestClient.class);
 
+    public static final String REQUEST_JOURNAL_SIZE_PARAM = "D1Client.http.requestJournal.size";
 
     protected HttpClient httpClient;
     protected HashMap<String, String> headers = new HashMap<String, String>();
 
-    private Map<Long,String> perThreadLatestRequestUrlMap = new HashMap<Long,String>();
+    private final ThreadLocal<String> latestRequestUrl = new ThreadLocal<String>();
+
+    private final RequestJournal requestJournal = new RequestJournal(
+            Settings.getConfiguration().getInt(REQUEST_JOURNAL_SIZE_PARAM, 64));
+
+    private volatile RequestMetricsListener requestMetricsListener;
+
+    private volatile String authToken;
+
+    private volatile NodeAdmissionControl admissionControl = NodeAdmissionControl.getDefault();
+
+    private volatile NodeHealthTracker circuitBreaker = NodeHealthTracker.getFailFastDefault();
 
     /**
      * Default constructor to create a new instance.
@@ -85,26 +100,121 @@ public class RestClient {
      * @return
      */
     public String getLatestRequestUrl() {
-        long threadId = Thread.currentThread().getId();
-        return this.perThreadLatestRequestUrlMap.get(threadId);
+        return this.latestRequestUrl.get();
     }
 
-    private void setLatestRequestUrl(String value) {
-        long threadId = Thread.currentThread().getId();
-        this.perThreadLatestRequestUrlMap.put(threadId, value);
-    }
-    
     /**
      * To support cross thread retrieval of request info, a parameterized
-     * form of this method.
+     * form of this method.  The information is looked up in the request journal,
+     * so will return null if the thread's latest request has already been 
+     * pushed out of it by newer requests.
      * @param t
      * @return
      */
     public String getLatestRequestUrl(Thread t) {
-        long threadId = t.getId();
-        return this.perThreadLatestRequestUrlMap.get(threadId);
+        if (t == Thread.currentThread()) 
+            return getLatestRequestUrl();
+        
+        RequestJournal.Entry entry = this.requestJournal.getLatestEntry(t);
+        return entry == null ? null : entry.getDescription();
+    }
+
+    /**
+     * Returns the journal of the most recent requests made through this
+     * instance, from all threads.  The number of requests retained is set by
+     * the property 'D1Client.http.requestJournal.size'.
+     * @return
+     */
+    public RequestJournal getRequestJournal() {
+        return this.requestJournal;
+    }
+
+    /**
+     * Returns a snapshot of the most recent requests made through this
+     * instance, oldest first.
+     * @return
+     */
+    public List<RequestJournal.Entry> getRecentRequests() {
+        return this.requestJournal.getEntries();
+    }
+
+    /*
+     * records the finished (or failed) request for getLatestRequestUrl() and 
+     * the request journal
+     */
+    private void recordRequest(String httpMethod, String url, String latestCall,
+            long startTime, HttpResponse response, long requestBytes) 
+    {
+        this.latestRequestUrl.set(latestCall);
+
+        int status = -1;
+        long responseBytes = -1;
+        if (response != null) {
+            if (response.getStatusLine() != null)
+                status = response.getStatusLine().getStatusCode();
+            HttpEntity entity = response.getEntity();
+            responseBytes = entity == null ? 0 : entity.getContentLength();
+        }
+        this.requestJournal.record(new RequestJournal.Entry(httpMethod, url, latestCall,
+                Thread.currentThread(), startTime, System.currentTimeMillis() - startTime,
+                status, requestBytes, responseBytes));
+    }
+
+
+    /**
+     * Sets the listener notified of the timings of each request made through
+     * this instance, or null to stop measuring requests.
+     * @param listener
+     */
+    public void setRequestMetricsListener(RequestMetricsListener listener) {
+        this.requestMetricsListener = listener;
     }
 
+    public RequestMetricsListener getRequestMetricsListener() {
+        return this.requestMetricsListener;
+    }
+
+    /**
+     * Sets the bearer token passed with each request's HttpContext, for use with
+     * token-agnostic HttpClients shared between token holders
+     * (see HttpUtils.getTokenAgnosticHttpClientBuilder()).
+     * @param authToken
+     */
+    public void setAuthToken(String authToken) {
+        this.authToken = authToken;
+    }
+
+    public String getAuthToken() {
+        return this.authToken;
+    }
+
+    /**
+     * Sets the admission control that requests must pass before being sent, 
+     * or null for none.  The default is the process-wide NodeAdmissionControl
+     * if 'D1Client.admission.enabled' is true.
+     * @param admissionControl
+     */
+    public void setAdmissionControl(NodeAdmissionControl admissionControl) {
+        this.admissionControl = admissionControl;
+    }
+
+    public NodeAdmissionControl getAdmissionControl() {
+        return this.admissionControl;
+    }
+
+    /**
+     * Sets the NodeHealthTracker whose open circuits make requests fail fast 
+     * (with a NodeUnavailable exception), or null to send all requests.  The 
+     * default is the process-wide tracker if 'D1Client.health.failFast' is true.
+     * @param circuitBreaker
+     */
+    public void setCircuitBreaker(NodeHealthTracker circuitBreaker) {
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    public NodeHealthTracker getCircuitBreaker() {
+        return this.circuitBreaker;
+    }
 
     /**
      * Gets the DefaultHttpClient instance used to make the connection
@@ -244,6 +354,7 @@ public class RestClient {
             throws ClientProtocolException, IOException {
 
         String latestCall = httpMethod + " " + url;
+        long startTime = System.currentTimeMillis();
 
         HttpResponse response = null;
         try {
@@ -261,10 +372,10 @@ public class RestClient {
                 throw new ClientProtocolException("method requested not defined: " + httpMethod);
 
             req.setConfig(requestConfig);
-            response = doRequest(req);
+            response = doRequest(req, httpMethod, url);
         }
         finally {
-            setLatestRequestUrl(latestCall);
+            recordRequest(httpMethod, url, latestCall, startTime, response, 0);
             log.info("RestClient.doRequestNoBody, thread(" + Thread.currentThread().getId() + ") call Info: " + latestCall);
         }
         return response;
@@ -277,6 +388,7 @@ public class RestClient {
     private HttpResponse doRequestMMBody(String url,String httpMethod, SimpleMultipartEntity mpe, RequestConfig requestConfig)
             throws ClientProtocolException, IOException {
         String latestCall = httpMethod + " " + url;
+        long startTime = System.currentTimeMillis();
 
         HttpResponse response = null;
         try {
@@ -303,10 +415,11 @@ public class RestClient {
             if (requestConfig != null)
                 req.setConfig(requestConfig);
 
-            response = doRequest(req);
+            response = doRequest(req, httpMethod, url);
         }
         finally {
-            setLatestRequestUrl(latestCall);
+            recordRequest(httpMethod, url, latestCall, startTime, response, 
+                    mpe == null ? 0 : mpe.getContentLength());
             log.info("RestClient.doRequestMMPBody, thread(" + Thread.currentThread().getId() + ") call Info: " + latestCall);
 //            log.info("rest call info. threadId(" + Thread.currentThread().getId() + ") " + latestCall);
             
@@ -319,14 +432,84 @@ public class RestClient {
     }
 
     /*
-     * applies the headers to the request and executes the request
+     * applies the headers to the request and executes the request once it is
+     * admitted by the circuit breaker and NodeAdmissionControl (if any), 
+     * holding the admission until the response body is consumed
      */
-    private HttpResponse doRequest(HttpUriRequest req)
+    private HttpResponse doRequest(HttpRequestBase req, String httpMethod, String url)
             throws ClientProtocolException, IOException {
         for (String n: headers.keySet())
         {
             req.setHeader(n,(String)headers.get(n));
         }
-        return httpClient.execute(req);
+
+        NodeHealthTracker breaker = this.circuitBreaker;
+        if (breaker != null)
+            breaker.checkAvailable(url);
+
+        NodeAdmissionControl admission = this.admissionControl;
+        if (admission == null)
+            return doMeteredRequest(req, httpMethod, url);
+
+        NodeAdmissionControl.Permit permit = admission.acquire(httpMethod, url, req.getConfig());
+        HttpResponse response = null;
+        try {
+            response = doMeteredRequest(req, httpMethod, url);
+        } catch (IOException | RuntimeException e) {
+            permit.release();
+            throw e;
+        }
+        response.setEntity(NodeAdmissionControl.releaseOnCompletion(response.getEntity(), permit));
+        return response;
+    }
+
+    /*
+     * executes the request, measuring it if there is a RequestMetricsListener
+     */
+    private HttpResponse doMeteredRequest(HttpRequestBase req, String httpMethod, String url)
+            throws ClientProtocolException, IOException {
+
+        RequestMetricsListener listener = this.requestMetricsListener;
+        if (listener == null)
+            return execute(req);
+
+        RequestTimings timings = new RequestTimings(listener, httpMethod, url);
+        if (req instanceof HttpEntityEnclosingRequestBase) {
+            HttpEntityEnclosingRequestBase eReq = (HttpEntityEnclosingRequestBase) req;
+            if (eReq.getEntity() != null)
+                eReq.setEntity(new MeteredEntity.Request(eReq.getEntity(), timings));
+        }
+
+        HttpResponse response = null;
+        timings.bind();
+        try {
+            response = execute(req);
+        } catch (IOException | RuntimeException e) {
+            timings.complete(0, true);
+            throw e;
+        } finally {
+            timings.unbind();
+        }
+
+        timings.responseReceived(response.getStatusLine().getStatusCode());
+        HttpEntity entity = response.getEntity();
+        if (entity == null)
+            timings.complete(0, false);
+        else
+            response.setEntity(new MeteredEntity.Response(entity, timings));
+        return response;
+    }
+
+    /*
+     * executes the request, passing the auth token (if set) in the request's context
+     */
+    private HttpResponse execute(HttpRequestBase req) throws ClientProtocolException, IOException {
+        String token = this.authToken;
+        if (token == null)
+            return httpClient.execute(req);
+
+        HttpClientContext context = HttpClientContext.create();
+        context.setAttribute(HttpUtils.AUTH_TOKEN_CONTEXT_ATTRIBUTE, token);
+        return httpClient.execute(req, context);
     }
 }
@@ -0,0 +1,615 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.dataone.client.rest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.Header;
+import org.dataone.client.auth.X509Session;
+import org.dataone.client.exception.ClientSideException;
+import org.dataone.client.rest.RequestPolicy.Operation;
+import org.dataone.configuration.Settings;
+import org.dataone.mimemultipart.SimpleMultipartEntity;
+import org.dataone.service.exceptions.BaseException;
+import org.dataone.service.exceptions.ServiceFailure;
+
+/**
+ * A MultipartRestClient decorator that retries failed idempotent reads, and 
+ * optionally hedges them, to cut the tail latency caused by a slow or 
+ * flapping node.
+ * <p>
+ * Only GET and HEAD requests for the object, meta, checksum, resolve and node
+ * resources (and the node's base url) are retried or hedged.  Other requests 
+ * are passed straight to the wrapped client.  A call is retried when it fails 
+ * with a ClientSideException (connection failures and timeouts) or a 
+ * ServiceFailure, after a jittered exponential backoff.  The number of retries
+ * is the operation's RequestPolicy retries, if set, otherwise 
+ * 'D1Client.http.retry.maxRetries'.
+ * <p>
+ * When hedging is enabled, a GET that hasn't returned within the 95th 
+ * percentile of recent latencies for its resource on its node (as grouped by
+ * NodeAdmissionControl.resolveNode()) is sent a second time, and
+ * whichever response arrives first is used (the other is closed).  If alternate
+ * base urls are set, the second request is sent to a different one of them.
+ * The NodeListNodeLocators register their CNs' base urls as default alternates
+ * for all instances, so a hedged CN read goes to another CN.
+ * <p>
+ * Hedged requests run on a shared pool of at most 
+ * 'D1Client.http.hedge.maxThreads' threads.  When it is busy, requests are 
+ * made on the calling thread without a hedge.  getLatestRequestUrl() reports
+ * the url of the leg whose response was used.
+ * 
+ * @author rnahf
+ *
+ */
+public class RetryingMultipartRestClient implements MultipartRestClient {
+
+    protected static Log log = LogFactory.getLog(RetryingMultipartRestClient.class);
+
+    public static final String MAX_RETRIES_PARAM = "D1Client.http.retry.maxRetries";
+    public static final String BASE_DELAY_PARAM = "D1Client.http.retry.baseDelayMillis";
+    public static final String MAX_DELAY_PARAM = "D1Client.http.retry.maxDelayMillis";
+    public static final String HEDGE_ENABLED_PARAM = "D1Client.http.hedge.enabled";
+    public static final String HEDGE_MIN_DELAY_PARAM = "D1Client.http.hedge.minDelayMillis";
+    public static final String HEDGE_MAX_THREADS_PARAM = "D1Client.http.hedge.maxThreads";
+
+    /** the resources whose GETs and HEADs are safe to retry */
+    protected static final Set<String> IDEMPOTENT_RESOURCES = Collections.unmodifiableSet(
+            new HashSet<String>(Arrays.asList("", "object", "meta", "checksum", "resolve", "node")));
+
+    /* the number of latency samples needed before hedging a resource of a node */
+    private static final int MIN_HEDGE_SAMPLES = 20;
+
+    private final MultipartRestClient delegate;
+    private final int maxRetries;
+    private final long baseDelayMillis;
+    private final long maxDelayMillis;
+    private final boolean hedging;
+    private final long minHedgeDelayMillis;
+
+    private volatile List<String> alternateBaseUrls = Collections.emptyList();
+    private final AtomicInteger alternateIndex = new AtomicInteger();
+    /* keyed by node and resource, as a fast node's latencies say nothing about a slow one's */
+    private final ConcurrentMap<String, LatencyTracker> latencies = 
+            new ConcurrentHashMap<String, LatencyTracker>();
+
+    /* the url of the calling thread's latest hedged request, made on a pool thread */
+    private final ThreadLocal<String> latestHedgedRequestUrl = new ThreadLocal<String>();
+
+    /* groups of interchangeable base urls shared by all instances, by the registering source */
+    private static final ConcurrentMap<String, List<String>> defaultAlternateBaseUrls = 
+            new ConcurrentHashMap<String, List<String>>();
+
+
+    private static class HedgeExecutorHolder {
+        public static final ThreadPoolExecutor INSTANCE = new ThreadPoolExecutor(0, 
+                Math.max(1, Settings.getConfiguration().getInt(HEDGE_MAX_THREADS_PARAM, 32)),
+                60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "d1-hedged-read-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+
+    /**
+     * Wraps the MultipartRestClient, using the retry and hedging settings from
+     * the configuration.
+     * @param delegate
+     */
+    public RetryingMultipartRestClient(MultipartRestClient delegate) {
+        this(delegate,
+                Settings.getConfiguration().getInt(MAX_RETRIES_PARAM, 2),
+                Settings.getConfiguration().getLong(BASE_DELAY_PARAM, 100),
+                Settings.getConfiguration().getLong(MAX_DELAY_PARAM, 5000),
+                Settings.getConfiguration().getBoolean(HEDGE_ENABLED_PARAM, false),
+                Settings.getConfiguration().getLong(HEDGE_MIN_DELAY_PARAM, 50));
+    }
+
+    /**
+     * @param delegate - the client that makes the requests
+     * @param maxRetries - the default number of retries after the first attempt
+     * @param baseDelayMillis - the backoff before the first retry, doubled for each retry
+     * @param maxDelayMillis - the longest backoff
+     * @param hedging - whether to send hedged GETs
+     * @param minHedgeDelayMillis - the shortest time to wait before hedging
+     */
+    public RetryingMultipartRestClient(MultipartRestClient delegate, int maxRetries, 
+            long baseDelayMillis, long maxDelayMillis, boolean hedging, long minHedgeDelayMillis) 
+    {
+        this.delegate = delegate;
+        this.maxRetries = Math.max(0, maxRetries);
+        this.baseDelayMillis = Math.max(0, baseDelayMillis);
+        this.maxDelayMillis = Math.max(this.baseDelayMillis, maxDelayMillis);
+        this.hedging = hedging;
+        this.minHedgeDelayMillis = Math.max(0, minHedgeDelayMillis);
+    }
+
+
+    /**
+     * Sets the interchangeable base urls (e.g. those of the CNs) that hedged
+     * requests may be redirected to.  A hedged request for a url starting with
+     * one of these is sent to a different one.
+     * @param baseUrls
+     */
+    public void setAlternateBaseUrls(Collection<String> baseUrls) {
+        this.alternateBaseUrls = baseUrls == null ? Collections.<String>emptyList()
+                : Collections.unmodifiableList(new ArrayList<String>(baseUrls));
+    }
+
+    public List<String> getAlternateBaseUrls() {
+        return this.alternateBaseUrls;
+    }
+
+    /**
+     * Sets a group of interchangeable base urls used by all instances, in 
+     * addition to their own alternate base urls.  Each source (for example a 
+     * NodeLocator's CN list) replaces its own group when it calls this again.
+     * @param source - identifies the group
+     * @param baseUrls - the base urls, or null to remove the group
+     */
+    public static void setDefaultAlternateBaseUrls(String source, Collection<String> baseUrls) {
+        if (baseUrls == null || baseUrls.isEmpty())
+            defaultAlternateBaseUrls.remove(source);
+        else
+            defaultAlternateBaseUrls.put(source, 
+                    Collections.unmodifiableList(new ArrayList<String>(baseUrls)));
+    }
+
+    /**
+     * @return the wrapped client
+     */
+    public MultipartRestClient getDelegate() {
+        return this.delegate;
+    }
+
+
+    @Override
+    public InputStream doGetRequest(String url, final Integer timeoutMillisecs)
+            throws BaseException, ClientSideException {
+        return invoke(url, true, new Call<InputStream>() {
+            @Override
+            public InputStream execute(String u) throws BaseException, ClientSideException {
+                return delegate.doGetRequest(u, timeoutMillisecs);
+            }
+        });
+    }
+
+    @Override
+    public InputStream doGetRequest(String url, final Integer timeoutMillisecs, 
+            final boolean followRedirect) throws BaseException, ClientSideException {
+        return invoke(url, true, new Call<InputStream>() {
+            @Override
+            public InputStream execute(String u) throws BaseException, ClientSideException {
+                return delegate.doGetRequest(u, timeoutMillisecs, followRedirect);
+            }
+        });
+    }
+
+    @Override
+    public Header[] doGetRequestForHeaders(String url, final Integer timeoutMillisecs)
+            throws BaseException, ClientSideException {
+        return invoke(url, false, new Call<Header[]>() {
+            @Override
+            public Header[] execute(String u) throws BaseException, ClientSideException {
+                return delegate.doGetRequestForHeaders(u, timeoutMillisecs);
+            }
+        });
+    }
+
+    @Override
+    public Header[] doHeadRequest(String url, final Integer timeoutMillisecs)
+            throws BaseException, ClientSideException {
+        return invoke(url, false, new Call<Header[]>() {
+            @Override
+            public Header[] execute(String u) throws BaseException, ClientSideException {
+                return delegate.doHeadRequest(u, timeoutMillisecs);
+            }
+        });
+    }
+
+    @Override
+    public InputStream doDeleteRequest(String url, Integer timeoutMillisecs)
+            throws BaseException, ClientSideException {
+        latestHedgedRequestUrl.remove();
+        return delegate.doDeleteRequest(url, timeoutMillisecs);
+    }
+
+    @Override
+    public InputStream doPutRequest(String url, SimpleMultipartEntity entity, Integer timeoutMillisecs)
+            throws BaseException, ClientSideException {
+        latestHedgedRequestUrl.remove();
+        return delegate.doPutRequest(url, entity, timeoutMillisecs);
+    }
+
+    @Override
+    public InputStream doPostRequest(String url, SimpleMultipartEntity entity, Integer timeoutMillisecs)
+            throws BaseException, ClientSideException {
+        latestHedgedRequestUrl.remove();
+        return delegate.doPostRequest(url, entity, timeoutMillisecs);
+    }
+
+    /**
+     * Returns the url of the calling thread's latest request.  For a hedged
+     * request, that is the url of the leg whose response was used (or of the 
+     * last leg to fail), which was made on a pool thread.
+     */
+    @Override
+    public String getLatestRequestUrl() {
+        String hedged = latestHedgedRequestUrl.get();
+        return hedged != null ? hedged : delegate.getLatestRequestUrl();
+    }
+
+    @Override
+    public X509Session getSession() {
+        return delegate.getSession();
+    }
+
+
+    /* a request to the delegate, made against the given url */
+    private interface Call<T> {
+        public T execute(String url) throws BaseException, ClientSideException;
+    }
+
+
+    /*
+     * makes the call, retrying it with backoff if it is an idempotent read.
+     */
+    private <T> T invoke(String url, boolean hedgeable, Call<T> call) 
+    throws BaseException, ClientSideException {
+
+        // requests made on this thread are reported by the delegate
+        latestHedgedRequestUrl.remove();
+        String resource = RequestTimings.parseResource(url);
+        if (!IDEMPOTENT_RESOURCES.contains(resource))
+            return call.execute(url);
+
+        int retries = retriesFor(resource);
+        for (int attempt = 0; ; attempt++) {
+            try {
+                if (hedgeable && hedging)
+                    return executeHedged(url, resource, call);
+                return executeTimed(url, resource, call);
+
+            } catch (BaseException e) {
+                if (attempt >= retries || !(e instanceof ServiceFailure))
+                    throw e;
+                log.warn(String.format("Retrying %s after failure (attempt %d of %d): %s",
+                        url, attempt + 1, retries, e.getDescription()));
+            } catch (ClientSideException e) {
+                if (attempt >= retries)
+                    throw e;
+                log.warn(String.format("Retrying %s after failure (attempt %d of %d): %s",
+                        url, attempt + 1, retries, e.getMessage()));
+            }
+            sleep(backoffMillis(attempt));
+        }
+    }
+
+    private int retriesFor(String resource) {
+        Operation op = "object".equals(resource) ? Operation.GET 
+                : "meta".equals(resource) ? Operation.GET_SYSTEM_METADATA 
+                : Operation.DEFAULT;
+        int policyRetries = RequestPolicyRegistry.getInstance().getPolicy(op).getMaxRetries();
+        return policyRetries > 0 ? policyRetries : this.maxRetries;
+    }
+
+    /**
+     * Returns the backoff before the given retry (0-based): half of the 
+     * exponentially-growing delay, plus a random amount up to the other half.
+     * @param attempt
+     * @return
+     */
+    protected long backoffMillis(int attempt) {
+        long ceiling = baseDelayMillis << Math.min(attempt, 30);
+        if (ceiling <= 0 || ceiling > maxDelayMillis)
+            ceiling = maxDelayMillis;
+        long half = ceiling / 2;
+        return half + (ceiling - half > 0 ? ThreadLocalRandom.current().nextLong(ceiling - half + 1) : 0);
+    }
+
+    private static void sleep(long millis) throws ClientSideException {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ClientSideException("Interrupted while waiting to retry", e);
+        }
+    }
+
+
+    /* executes the call, recording its latency if successful */
+    private <T> T executeTimed(String url, String resource, Call<T> call) 
+    throws BaseException, ClientSideException {
+        long start = System.nanoTime();
+        T result = call.execute(url);
+        latencyTracker(url, resource).record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        return result;
+    }
+
+
+    /* the result of one leg of a hedged call, and the url the delegate reported for it */
+    private static class Attempt<T> {
+        final T result;
+        final boolean won;
+        final String requestUrl;
+
+        Attempt(T result, boolean won, String requestUrl) {
+            this.result = result;
+            this.won = won;
+            this.requestUrl = requestUrl;
+        }
+    }
+
+    /*
+     * sends the request, and if it hasn't returned by the hedge delay, sends
+     * it again (to an alternate url if there is one), returning the first 
+     * successful response.  The first leg to succeed claims the result; the
+     * other closes its response when it finishes.
+     */
+    private <T> T executeHedged(String url, final String resource, final Call<T> call) 
+    throws BaseException, ClientSideException {
+
+        long hedgeDelay = hedgeDelayMillis(url, resource);
+        if (hedgeDelay < 0)
+            return executeTimed(url, resource, call);
+
+        final AtomicBoolean claimed = new AtomicBoolean();
+        final AtomicReference<String> failedRequestUrl = new AtomicReference<String>();
+        CompletionService<Attempt<T>> completion = 
+                new ExecutorCompletionService<Attempt<T>>(HedgeExecutorHolder.INSTANCE);
+        List<Future<Attempt<T>>> legs = new ArrayList<Future<Attempt<T>>>(2);
+
+        try {
+            legs.add(completion.submit(hedgeLeg(url, resource, call, claimed, failedRequestUrl)));
+        } catch (RejectedExecutionException e) {
+            // the hedge pool is busy
+            return executeTimed(url, resource, call);
+        }
+        int outstanding = 1;
+        boolean hedged = false;
+        Throwable firstFailure = null;
+        try {
+            while (outstanding > 0) {
+                Future<Attempt<T>> done = hedged ? completion.take() 
+                        : completion.poll(hedgeDelay, TimeUnit.MILLISECONDS);
+                if (done == null) {
+                    String hedgeUrl = alternateUrl(url);
+                    if (log.isDebugEnabled())
+                        log.debug("Hedging slow request after " + hedgeDelay + "ms: " + hedgeUrl);
+                    hedged = true;
+                    try {
+                        legs.add(completion.submit(hedgeLeg(hedgeUrl, resource, call, claimed, 
+                                failedRequestUrl)));
+                        outstanding++;
+                    } catch (RejectedExecutionException e) {
+                        log.debug("The hedge pool is busy, waiting for the first request");
+                    }
+                    continue;
+                }
+                outstanding--;
+                try {
+                    Attempt<T> attempt = done.get();
+                    if (attempt.won) {
+                        latestHedgedRequestUrl.set(attempt.requestUrl);
+                        return attempt.result;
+                    }
+                } catch (ExecutionException e) {
+                    if (firstFailure == null)
+                        firstFailure = e.getCause();
+                    if (!hedged) 
+                        break;  // failed before the hedge delay; leave it to the retry logic
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            firstFailure = new ClientSideException("Interrupted while waiting for a hedged request", e);
+        } finally {
+            // any leg that finishes from now on closes its own response
+            claimed.set(true);
+            for (Future<Attempt<T>> leg : legs) {
+                leg.cancel(true);
+            }
+        }
+
+        latestHedgedRequestUrl.set(failedRequestUrl.get());
+
+        if (firstFailure instanceof BaseException)
+            throw (BaseException) firstFailure;
+        if (firstFailure instanceof ClientSideException)
+            throw (ClientSideException) firstFailure;
+        if (firstFailure instanceof RuntimeException)
+            throw (RuntimeException) firstFailure;
+        if (firstFailure instanceof Error)
+            throw (Error) firstFailure;
+        throw new ClientSideException("Hedged request failed", firstFailure);
+    }
+
+    /*
+     * a leg of a hedged call.  The delegate records the request url on the 
+     * pool thread, so the leg carries it back to the calling thread.
+     */
+    private <T> Callable<Attempt<T>> hedgeLeg(final String url, final String resource, 
+            final Call<T> call, final AtomicBoolean claimed, final AtomicReference<String> failedRequestUrl) 
+    {
+        return new Callable<Attempt<T>>() {
+            @Override
+            public Attempt<T> call() throws Exception {
+                T result;
+                try {
+                    result = executeTimed(url, resource, call);
+                } catch (Exception e) {
+                    failedRequestUrl.set(requestUrlOf(url));
+                    throw e;
+                }
+                String requestUrl = requestUrlOf(url);
+                if (claimed.compareAndSet(false, true))
+                    return new Attempt<T>(result, true, requestUrl);
+                closeQuietly(result);
+                return new Attempt<T>(null, false, requestUrl);
+            }
+        };
+    }
+
+    /* the url the delegate recorded for this thread's latest request, or the requested one */
+    private String requestUrlOf(String url) {
+        String recorded = delegate.getLatestRequestUrl();
+        return recorded != null ? recorded : url;
+    }
+
+    private static void closeQuietly(Object result) {
+        if (result instanceof InputStream) {
+            try {
+                ((InputStream) result).close();
+            } catch (IOException e) {
+                log.debug("Problem closing the response of a hedged request: " + e.getMessage());
+            }
+        }
+    }
+
+    /*
+     * returns the url with its base replaced by the next alternate base url,
+     * or the url itself if it doesn't start with one of them.
+     */
+    private String alternateUrl(String url) {
+        String alternate = alternateUrl(url, this.alternateBaseUrls);
+        if (alternate != null)
+            return alternate;
+        for (List<String> group : defaultAlternateBaseUrls.values()) {
+            alternate = alternateUrl(url, group);
+            if (alternate != null)
+                return alternate;
+        }
+        return url;
+    }
+
+    /* the url with its base replaced by another of the bases, or null if it has none of them */
+    private String alternateUrl(String url, List<String> bases) {
+        for (int i = 0; i < bases.size(); i++) {
+            String base = bases.get(i);
+            if (url.startsWith(base) && bases.size() > 1) {
+                int next = (i + 1 + Math.abs(alternateIndex.getAndIncrement() % (bases.size() - 1))) 
+                        % bases.size();
+                return bases.get(next) + url.substring(base.length());
+            }
+        }
+        return null;
+    }
+
+    /*
+     * the 95th percentile of recent latencies for the resource on the url's 
+     * node, but at least the minimum hedge delay, or -1 if there aren't enough
+     * samples yet.
+     */
+    long hedgeDelayMillis(String url, String resource) {
+        long p95 = latencyTracker(url, resource).getPercentile(95);
+        return p95 < 0 ? -1 : Math.max(minHedgeDelayMillis, p95);
+    }
+
+    /* the tracker for the resource on the url's node */
+    private LatencyTracker latencyTracker(String url, String resource) {
+        String key = NodeAdmissionControl.resolveNode(url) + " " + resource;
+        LatencyTracker tracker = latencies.get(key);
+        if (tracker == null) {
+            LatencyTracker newTracker = new LatencyTracker(128);
+            tracker = latencies.putIfAbsent(key, newTracker);
+            if (tracker == null)
+                tracker = newTracker;
+        }
+        return tracker;
+    }
+
+
+    /**
+     * A fixed-size window of recent latencies.  The percentile is recomputed
+     * every 16 samples rather than on every read.
+     */
+    static class LatencyTracker {
+
+        private final AtomicLongArray samples;
+        private final AtomicLong count = new AtomicLong();
+        private volatile long cachedPercentileCount = -1;
+        private volatile long cachedP95 = -1;
+
+        LatencyTracker(int size) {
+            this.samples = new AtomicLongArray(size);
+        }
+
+        void record(long millis) {
+            long n = count.getAndIncrement();
+            samples.set((int) (n % samples.length()), millis);
+        }
+
+        /* returns the percentile, or -1 if there are too few samples */
+        long getPercentile(int percentile) {
+            long n = count.get();
+            if (n < MIN_HEDGE_SAMPLES)
+                return -1;
+            if (percentile == 95 && n - cachedPercentileCount < 16)
+                return cachedP95;
+
+            int size = (int) Math.min(n, samples.length());
+            long[] sorted = new long[size];
+            for (int i = 0; i < size; i++) {
+                sorted[i] = samples.get(i);
+            }
+            Arrays.sort(sorted);
+            long value = sorted[Math.min(size - 1, (int) Math.ceil(size * percentile / 100.0) - 1)];
+            if (percentile == 95) {
+                cachedP95 = value;
+                cachedPercentileCount = n;
+            }
+            return value;
+        }
+    }
+}
@@ -0,0 +1,92 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.dataone.client.rest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.http.entity.mime.content.InputStreamBody;
+import org.dataone.mimemultipart.SimpleMultipartEntity;
+
+/**
+ * A SimpleMultipartEntity that streams InputStream parts directly to the 
+ * connection instead of spooling them to temporary files first.  Param parts 
+ * and serialized DataONE types are still built in memory as usual.
+ * <p>
+ * If the length of every streamed part is known, the entity reports its total
+ * length and is sent with a Content-Length header.  Otherwise the entity length
+ * is unknown, and HttpClient sends it using chunked transfer encoding.
+ * <p>
+ * Note that a streaming entity is not repeatable: the request cannot be retried 
+ * or redirected automatically once the InputStream has been consumed.
+ * 
+ * @author rnahf
+ *
+ */
+public class StreamingMultipartEntity extends SimpleMultipartEntity {
+
+    private List<String> streamedParts = new ArrayList<String>();
+
+    public StreamingMultipartEntity() {
+        super();
+    }
+
+    /**
+     * Adds the InputStream as a part that is read only when the entity is
+     * written to the connection.  The length of the part is unknown, so the 
+     * entity will be sent chunked.
+     */
+    @Override
+    public void addFilePart(String name, InputStream is) throws IOException {
+        addFilePart(name, is, -1);
+    }
+
+    /**
+     * Adds the InputStream as a part that is read only when the entity is
+     * written to the connection.
+     * 
+     * @param name - the part name
+     * @param is - the content of the part
+     * @param contentLength - the number of bytes in the stream, or a negative 
+     *          number if unknown
+     * @throws IOException
+     */
+    public void addFilePart(String name, InputStream is, final long contentLength) 
+    throws IOException {
+
+        if (is == null)
+            throw new IOException("InputStream for part '" + name + "' cannot be null");
+
+        this.addPart(name, new InputStreamBody(is, name) {
+            @Override
+            public long getContentLength() {
+                return contentLength >= 0 ? contentLength : -1;
+            }
+        });
+        this.streamedParts.add(name + (contentLength >= 0 ? "(" + contentLength + " bytes)" : "(chunked)"));
+    }
+
+    @Override
+    public String getDescription() {
+        return super.getDescription() + " streamed parts: " + this.streamedParts;
+    }
+}
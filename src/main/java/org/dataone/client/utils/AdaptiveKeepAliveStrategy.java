@@ -0,0 +1,147 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.dataone.client.utils;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.http.HeaderElement;
+import org.apache.http.HeaderElementIterator;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.message.BasicHeaderElementIterator;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * A ConnectionKeepAliveStrategy that learns each server's keep-alive timeout
+ * from the 'Keep-Alive' headers it has sent.  
+ * <p>
+ * Responses carrying a timeout are honored as before (up to the maximum). 
+ * For responses without one, the smallest timeout the server advertised in 
+ * its recent responses is used, less a safety margin so the client gives up 
+ * the connection before the server closes it.  Servers never seen advertising
+ * a timeout get the default.
+ * 
+ * @author rnahf
+ *
+ */
+public class AdaptiveKeepAliveStrategy implements ConnectionKeepAliveStrategy {
+
+    private static final int HISTORY_SIZE = 8;
+    private static final long SAFETY_MARGIN_MILLIS = 1000;
+
+    private final long defaultKeepAliveMillis;
+    private final long maxKeepAliveMillis;
+
+    private final ConcurrentMap<String, History> histories = new ConcurrentHashMap<String, History>();
+
+
+    /**
+     * @param defaultKeepAliveMillis - used for servers that never advertised a timeout
+     * @param maxKeepAliveMillis - the longest keep-alive used, whatever the server says
+     */
+    public AdaptiveKeepAliveStrategy(long defaultKeepAliveMillis, long maxKeepAliveMillis) {
+        this.defaultKeepAliveMillis = defaultKeepAliveMillis;
+        this.maxKeepAliveMillis = Math.max(defaultKeepAliveMillis, maxKeepAliveMillis);
+    }
+
+    @Override
+    public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+        String host = getHost(context);
+
+        HeaderElementIterator it = new BasicHeaderElementIterator(
+                response.headerIterator(HTTP.CONN_KEEP_ALIVE));
+        while (it.hasNext()) {
+            HeaderElement he = it.nextElement();
+            String value = he.getValue();
+            if (value != null && he.getName().equalsIgnoreCase("timeout")) {
+                try {
+                    long millis = Long.parseLong(value.trim()) * 1000;
+                    if (host != null)
+                        getHistory(host).add(millis);
+                    return Math.min(millis, maxKeepAliveMillis);
+                } catch (NumberFormatException ignore) {
+                }
+            }
+        }
+        // no keep-alive returned from the response
+        Long learned = host == null ? null : getLearnedKeepAliveMillis(host);
+        return learned != null ? learned : defaultKeepAliveMillis;
+    }
+
+    /**
+     * Returns the keep-alive that will be used for responses from the host that
+     * don't advertise one, or null if the host has never advertised one.
+     * @param host - the host name, or host:port for non-default ports
+     * @return
+     */
+    public Long getLearnedKeepAliveMillis(String host) {
+        History history = histories.get(host);
+        if (history == null)
+            return null;
+        long min = history.min();
+        if (min < 0)
+            return null;
+        return Math.max(0, Math.min(maxKeepAliveMillis, min - SAFETY_MARGIN_MILLIS));
+    }
+
+    private static String getHost(HttpContext context) {
+        if (context == null)
+            return null;
+        HttpHost target = HttpClientContext.adapt(context).getTargetHost();
+        return target == null ? null : target.toHostString();
+    }
+
+    private History getHistory(String host) {
+        History history = histories.get(host);
+        if (history == null) {
+            History created = new History();
+            history = histories.putIfAbsent(host, created);
+            if (history == null)
+                history = created;
+        }
+        return history;
+    }
+
+    /* the most recent timeouts advertised by a server */
+    private static class History {
+        private final long[] values = new long[HISTORY_SIZE];
+        private int count;
+
+        synchronized void add(long millis) {
+            values[count++ % HISTORY_SIZE] = millis;
+            if (count == 2 * HISTORY_SIZE)
+                count = HISTORY_SIZE;
+        }
+
+        synchronized long min() {
+            int n = Math.min(count, HISTORY_SIZE);
+            if (n == 0)
+                return -1;
+            long min = Long.MAX_VALUE;
+            for (int i = 0; i < n; i++)
+                min = Math.min(min, values[i]);
+            return min;
+        }
+    }
+}
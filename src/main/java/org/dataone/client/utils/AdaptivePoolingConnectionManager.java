@@ -0,0 +1,424 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.dataone.client.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.HttpClientConnection;
+import org.apache.http.config.Registry;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ConnectionRequest;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.pool.PoolStats;
+import org.apache.log4j.Logger;
+
+/**
+ * A pooling connection manager that sizes each route's pool from what
+ * it observes, instead of using one fixed per-route limit for every server.
+ * <p>
+ * For each route it measures how long callers wait to lease a connection, how
+ * long leased connections are held, and the server's latency: the time from
+ * sending a request to receiving the response headers, reported by an 
+ * {@link InstrumentedHttpRequestExecutor} built with this manager.  Hold time 
+ * is only reported, not used for sizing, since it also counts the transfer of
+ * the body and the caller reading it at its own pace.  At most once per 
+ * adjustment interval:
+ * <ul>
+ * <li>if callers waited longer than the wait threshold on average and the 
+ *     server's latency has not degraded, the route's limit grows by one</li>
+ * <li>if the server's latency has degraded by more than the degradation factor
+ *     over its baseline, the limit shrinks by one, since more connections are
+ *     only adding load to a struggling server</li>
+ * <li>if nobody waited and fewer than half of the connections were in use, 
+ *     the limit shrinks by one</li>
+ * </ul>
+ * Without an instrumented executor there is no latency to compare, so the 
+ * limits only respond to lease waits and idle connections.  Limits stay 
+ * within [minPerRoute, maxPerRoute], and the overall maximum still applies.
+ * Current sizing and statistics are available from 
+ * {@link #getRouteStatistics()}.
+ * 
+ * @author rnahf
+ *
+ */
+public class AdaptivePoolingConnectionManager extends RouteTrackingConnectionManager 
+        implements InstrumentedHttpRequestExecutor.ResponseTimeListener {
+
+    final static Logger logger = Logger.getLogger(AdaptivePoolingConnectionManager.class);
+
+    private static final double LATENCY_DEGRADATION_FACTOR = 1.5;
+    private static final double BASELINE_WEIGHT = 0.2;
+
+    private final int minPerRoute;
+    private final int maxPerRoute;
+    private final long waitThresholdNanos;
+    private final long adjustIntervalNanos;
+
+    private final ConcurrentMap<HttpRoute, RouteState> routeStates = new ConcurrentHashMap<HttpRoute, RouteState>();
+    private final ConcurrentMap<HttpClientConnection, Lease> leases = new ConcurrentHashMap<HttpClientConnection, Lease>();
+
+
+    /**
+     * @param registry - the socket factories
+     * @param minPerRoute - the initial and smallest per-route limit
+     * @param maxPerRoute - the largest per-route limit
+     * @param waitThresholdMillis - the mean lease wait above which a route grows
+     * @param adjustIntervalMillis - the minimum time between adjustments of a route
+     */
+    public AdaptivePoolingConnectionManager(Registry<ConnectionSocketFactory> registry, 
+            int minPerRoute, int maxPerRoute, long waitThresholdMillis, long adjustIntervalMillis) 
+    {
+        super(registry);
+        this.minPerRoute = Math.max(1, minPerRoute);
+        this.maxPerRoute = Math.max(this.minPerRoute, maxPerRoute);
+        this.waitThresholdNanos = TimeUnit.MILLISECONDS.toNanos(waitThresholdMillis);
+        this.adjustIntervalNanos = TimeUnit.MILLISECONDS.toNanos(adjustIntervalMillis);
+        setDefaultMaxPerRoute(this.minPerRoute);
+    }
+
+
+    @Override
+    public ConnectionRequest requestConnection(final HttpRoute route, Object state) {
+        final ConnectionRequest request = super.requestConnection(route, state);
+        final RouteState routeState = getRouteState(route);
+        final long requested = nanoTime();
+
+        return new ConnectionRequest() {
+
+            @Override
+            public boolean cancel() {
+                return request.cancel();
+            }
+
+            @Override
+            public HttpClientConnection get(long timeout, TimeUnit tunit) 
+                    throws InterruptedException, ExecutionException, ConnectionPoolTimeoutException 
+            {
+                HttpClientConnection conn = null;
+                try {
+                    conn = request.get(timeout, tunit);
+                } finally {
+                    long now = nanoTime();
+                    routeState.leased(now - requested, conn == null);
+                    maybeAdjust(route, routeState, now);
+                }
+                leases.put(conn, new Lease(routeState, nanoTime()));
+                return conn;
+            }
+        };
+    }
+
+    @Override
+    public void releaseConnection(HttpClientConnection managedConn, Object state, 
+            long keepalive, TimeUnit tunit) 
+    {
+        Lease lease = leases.remove(managedConn);
+        if (lease != null) 
+            lease.routeState.released(nanoTime() - lease.leasedAt);
+        super.releaseConnection(managedConn, state, keepalive, tunit);
+    }
+
+    /**
+     * Records the server's latency for a request on the route: the time from 
+     * sending the request to receiving the response headers.
+     */
+    @Override
+    public void responseReceived(HttpRoute route, long nanos) {
+        getRouteState(route).responded(nanos);
+    }
+
+    @Override
+    public void shutdown() {
+        super.shutdown();
+        leases.clear();
+    }
+
+    /**
+     * The clock used to time leases and adjustments.  Overridden in tests.
+     */
+    protected long nanoTime() {
+        return System.nanoTime();
+    }
+
+    private RouteState getRouteState(HttpRoute route) {
+        RouteState state = routeStates.get(route);
+        if (state == null) {
+            RouteState created = new RouteState(nanoTime());
+            state = routeStates.putIfAbsent(route, created);
+            if (state == null)
+                state = created;
+        }
+        return state;
+    }
+
+    private void maybeAdjust(HttpRoute route, RouteState state, long now) {
+        if (now - state.lastAdjusted < adjustIntervalNanos)
+            return;
+        synchronized (state) {
+            if (now - state.lastAdjusted < adjustIntervalNanos)
+                return;
+            adjust(route, state, now);
+        }
+    }
+
+    /* evaluates the last window of a route's statistics; called holding the state's lock */
+    void adjust(HttpRoute route, RouteState state, long now) {
+        long leaseCount = state.windowLeases.getAndSet(0);
+        long waitNanos = state.windowWaitNanos.getAndSet(0);
+        long releaseCount = state.windowReleases.getAndSet(0);
+        long holdNanos = state.windowHoldNanos.getAndSet(0);
+        long responseCount = state.windowResponses.getAndSet(0);
+        long responseNanos = state.windowResponseNanos.getAndSet(0);
+        state.lastAdjusted = now;
+        if (leaseCount == 0)
+            return;
+
+        double meanWait = (double) waitNanos / leaseCount;
+        double meanHold = releaseCount == 0 ? 0 : (double) holdNanos / releaseCount;
+        double meanResponse = responseCount == 0 ? 0 : (double) responseNanos / responseCount;
+        boolean degraded = responseCount > 0 && state.baselineResponseNanos > 0 
+                && meanResponse > state.baselineResponseNanos * LATENCY_DEGRADATION_FACTOR;
+
+        int current = getMaxPerRoute(route);
+        PoolStats stats = getStats(route);
+        int target = current;
+        if (degraded) {
+            target = current - 1;
+        } else if (meanWait > waitThresholdNanos) {
+            target = current + 1;
+        } else if (meanWait < waitThresholdNanos / 10 && stats.getPending() == 0
+                && stats.getLeased() * 2 < current) {
+            target = current - 1;
+        }
+        target = Math.max(minPerRoute, Math.min(maxPerRoute, target));
+
+        if (responseCount > 0 && !degraded) {
+            state.baselineResponseNanos = state.baselineResponseNanos == 0 ? meanResponse 
+                    : (1 - BASELINE_WEIGHT) * state.baselineResponseNanos + BASELINE_WEIGHT * meanResponse;
+        }
+        state.lastMeanWaitNanos = meanWait;
+        state.lastMeanHoldNanos = meanHold;
+        state.lastMeanResponseNanos = meanResponse;
+
+        if (target != current) {
+            setMaxPerRoute(route, target);
+            if (target > current) 
+                state.grows.incrementAndGet();
+            else 
+                state.shrinks.incrementAndGet();
+            if (logger.isDebugEnabled())
+                logger.debug(String.format("resized pool for %s from %d to %d (mean wait %.1f ms, mean response %.1f ms%s)",
+                        route, current, target, meanWait / 1e6, meanResponse / 1e6, degraded ? ", degraded" : ""));
+        }
+    }
+
+    /**
+     * @return a snapshot of the sizing and statistics of each route used so far
+     */
+    public List<RouteStatistics> getRouteStatistics() {
+        List<RouteStatistics> list = new ArrayList<RouteStatistics>();
+        for (java.util.Map.Entry<HttpRoute, RouteState> en : routeStates.entrySet()) {
+            RouteState s = en.getValue();
+            list.add(new RouteStatistics(en.getKey(), getStats(en.getKey()), s.totalLeases.get(),
+                    s.totalTimeouts.get(), s.totalWaitNanos.get(), s.maxWaitNanos.get(),
+                    s.lastMeanWaitNanos, s.lastMeanHoldNanos, s.lastMeanResponseNanos, 
+                    s.baselineResponseNanos, s.grows.get(), s.shrinks.get()));
+        }
+        return list;
+    }
+
+    public int getMinPerRoute() {
+        return minPerRoute;
+    }
+
+    public int getMaxPerRouteLimit() {
+        return maxPerRoute;
+    }
+
+
+    private static class Lease {
+        final RouteState routeState;
+        final long leasedAt;
+
+        Lease(RouteState routeState, long leasedAt) {
+            this.routeState = routeState;
+            this.leasedAt = leasedAt;
+        }
+    }
+
+    /* the running statistics of a route */
+    static class RouteState {
+        final AtomicLong windowLeases = new AtomicLong();
+        final AtomicLong windowWaitNanos = new AtomicLong();
+        final AtomicLong windowReleases = new AtomicLong();
+        final AtomicLong windowHoldNanos = new AtomicLong();
+        final AtomicLong windowResponses = new AtomicLong();
+        final AtomicLong windowResponseNanos = new AtomicLong();
+
+        final AtomicLong totalLeases = new AtomicLong();
+        final AtomicLong totalTimeouts = new AtomicLong();
+        final AtomicLong totalWaitNanos = new AtomicLong();
+        final AtomicLong maxWaitNanos = new AtomicLong();
+        final AtomicLong grows = new AtomicLong();
+        final AtomicLong shrinks = new AtomicLong();
+
+        volatile long lastAdjusted;
+        volatile double baselineResponseNanos;
+        volatile double lastMeanWaitNanos;
+        volatile double lastMeanHoldNanos;
+        volatile double lastMeanResponseNanos;
+
+        RouteState(long created) {
+            this.lastAdjusted = created;
+        }
+
+        void leased(long waitNanos, boolean failed) {
+            windowLeases.incrementAndGet();
+            windowWaitNanos.addAndGet(waitNanos);
+            totalLeases.incrementAndGet();
+            totalWaitNanos.addAndGet(waitNanos);
+            if (failed)
+                totalTimeouts.incrementAndGet();
+            long max = maxWaitNanos.get();
+            while (waitNanos > max && !maxWaitNanos.compareAndSet(max, waitNanos))
+                max = maxWaitNanos.get();
+        }
+
+        void released(long holdNanos) {
+            windowReleases.incrementAndGet();
+            windowHoldNanos.addAndGet(holdNanos);
+        }
+
+        void responded(long responseNanos) {
+            windowResponses.incrementAndGet();
+            windowResponseNanos.addAndGet(responseNanos);
+        }
+    }
+
+    /**
+     * An immutable snapshot of a route's pool sizing and lease statistics.
+     */
+    public static class RouteStatistics {
+        private final HttpRoute route;
+        private final PoolStats poolStats;
+        private final long leaseCount;
+        private final long failedLeaseCount;
+        private final long totalWaitNanos;
+        private final long maxWaitNanos;
+        private final double recentMeanWaitNanos;
+        private final double recentMeanHoldNanos;
+        private final double recentMeanResponseNanos;
+        private final double baselineResponseNanos;
+        private final long growCount;
+        private final long shrinkCount;
+
+        RouteStatistics(HttpRoute route, PoolStats poolStats, long leaseCount, long failedLeaseCount,
+                long totalWaitNanos, long maxWaitNanos, double recentMeanWaitNanos, 
+                double recentMeanHoldNanos, double recentMeanResponseNanos, double baselineResponseNanos, 
+                long growCount, long shrinkCount) 
+        {
+            this.route = route;
+            this.poolStats = poolStats;
+            this.leaseCount = leaseCount;
+            this.failedLeaseCount = failedLeaseCount;
+            this.totalWaitNanos = totalWaitNanos;
+            this.maxWaitNanos = maxWaitNanos;
+            this.recentMeanWaitNanos = recentMeanWaitNanos;
+            this.recentMeanHoldNanos = recentMeanHoldNanos;
+            this.recentMeanResponseNanos = recentMeanResponseNanos;
+            this.baselineResponseNanos = baselineResponseNanos;
+            this.growCount = growCount;
+            this.shrinkCount = shrinkCount;
+        }
+
+        public HttpRoute getRoute() {
+            return route;
+        }
+
+        /** @return the route's current limit, and its leased, pending and available connections */
+        public PoolStats getPoolStats() {
+            return poolStats;
+        }
+
+        public long getLeaseCount() {
+            return leaseCount;
+        }
+
+        /** @return the number of lease requests that timed out or were interrupted */
+        public long getFailedLeaseCount() {
+            return failedLeaseCount;
+        }
+
+        public double getMeanWaitMillis() {
+            return leaseCount == 0 ? 0 : totalWaitNanos / 1e6 / leaseCount;
+        }
+
+        public double getMaxWaitMillis() {
+            return maxWaitNanos / 1e6;
+        }
+
+        /** @return the mean lease wait of the last adjustment window */
+        public double getRecentMeanWaitMillis() {
+            return recentMeanWaitNanos / 1e6;
+        }
+
+        /** @return the mean time connections were held in the last adjustment window */
+        public double getRecentMeanHoldMillis() {
+            return recentMeanHoldNanos / 1e6;
+        }
+
+        /** @return the server's mean latency (time to response headers) in the last adjustment window */
+        public double getRecentMeanResponseMillis() {
+            return recentMeanResponseNanos / 1e6;
+        }
+
+        /** @return the server's usual latency, that later windows are compared with */
+        public double getBaselineResponseMillis() {
+            return baselineResponseNanos / 1e6;
+        }
+
+        public long getGrowCount() {
+            return growCount;
+        }
+
+        public long getShrinkCount() {
+            return shrinkCount;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: max=%d leased=%d pending=%d available=%d leases=%d failed=%d "
+                    + "meanWait(ms)=%.1f maxWait(ms)=%.1f recentHold(ms)=%.1f recentResponse(ms)=%.1f "
+                    + "baselineResponse(ms)=%.1f grows=%d shrinks=%d",
+                    route, poolStats.getMax(), poolStats.getLeased(), poolStats.getPending(), 
+                    poolStats.getAvailable(), leaseCount, failedLeaseCount, getMeanWaitMillis(),
+                    getMaxWaitMillis(), getRecentMeanHoldMillis(), getRecentMeanResponseMillis(), 
+                    getBaselineResponseMillis(),
+                    growCount, shrinkCount);
+        }
+    }
+}
@@ -0,0 +1,379 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.dataone.client.utils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.log4j.Logger;
+import org.dataone.configuration.Settings;
+import org.dataone.service.exceptions.BaseException;
+import org.dataone.service.types.v1.Identifier;
+import org.dataone.service.types.v1.NodeReference;
+import org.dataone.service.types.v1.ObjectFormatIdentifier;
+import org.dataone.service.types.v1.ObjectInfo;
+import org.dataone.service.types.v1.ObjectList;
+import org.dataone.service.types.v1.Session;
+
+/**
+ * An incremental feed of the objects whose system metadata changed since the
+ * last poll, built on a node's listObjects method, with a checkpoint kept in
+ * a local file so a restarted process resumes where the last one stopped 
+ * instead of rescanning the whole window.
+ * <p>
+ * The checkpoint is the high-water dateSysMetadataModified delivered so far,
+ * and the pids already delivered with exactly that date.  Each request asks 
+ * for the objects modified from the high-water date (inclusive), and drops 
+ * the ones at that date that were already delivered (the boundary duplicates)
+ * and any dated before it.  So pages are always requested near start 0 
+ * (keyset paging), except when more objects share one date than fit in a 
+ * page, when the start offset moves through that group.  This relies on 
+ * listObjects returning objects in dateSysMetadataModified order, as the 
+ * DataONE nodes do.
+ * <p>
+ * Each page becomes a batch passed to the BatchHandler on the polling thread,
+ * and the next page is not requested until the handler returns, so a slow 
+ * consumer slows the feed rather than filling memory.  The checkpoint is
+ * written (atomically, by renaming a temporary file) after each batch is 
+ * handled.  Delivery is at-least-once: if the process stops after a batch is 
+ * handled but before the checkpoint is written, that batch is delivered again.
+ * <p>
+ * The batch (page) size defaults to the D1Client.changeFeed.batchSize 
+ * property (1000).
+ * 
+ * @author rnahf
+ *
+ */
+public abstract class ChangeFeed {
+
+    final static Logger logger = Logger.getLogger(ChangeFeed.class);
+    
+    public static final String BATCH_SIZE_PARAM = "D1Client.changeFeed.batchSize";
+    
+    private static final String HIGH_WATER_PROPERTY = "highWater";
+    private static final String SEEN_COUNT_PROPERTY = "seen.count";
+    private static final String SEEN_PROPERTY_PREFIX = "seen.";
+    
+    /**
+     * Receives the batches of changed objects, on the polling thread.  A 
+     * RuntimeException thrown from handle() stops the poll, without the 
+     * batch being checkpointed, and is rethrown from poll().
+     */
+    public static interface BatchHandler {
+        void handle(List<ObjectInfo> batch);
+    }
+    
+    /**
+     * The position of the feed: the latest dateSysMetadataModified delivered,
+     * and the pids delivered with that date.
+     */
+    public static class Checkpoint {
+        
+        private final Date highWater;
+        private final Set<String> seenAtHighWater;
+        
+        public Checkpoint(Date highWater, Set<String> seenAtHighWater) {
+            this.highWater = highWater;
+            this.seenAtHighWater = Collections.unmodifiableSet(new HashSet<String>(seenAtHighWater));
+        }
+        
+        /**
+         * @return the high-water date, or null if nothing has been delivered 
+         * (and there was no initial fromDate)
+         */
+        public Date getHighWater() {
+            return this.highWater;
+        }
+        
+        public Set<String> getSeenAtHighWater() {
+            return this.seenAtHighWater;
+        }
+        
+        /**
+         * Reads a checkpoint from the file, or returns null if the file doesn't exist.
+         * @param file
+         * @return
+         * @throws IOException
+         */
+        public static Checkpoint load(File file) throws IOException {
+            if (!file.exists())
+                return null;
+            Properties props = new Properties();
+            InputStream is = new FileInputStream(file);
+            try {
+                props.load(is);
+            } finally {
+                IOUtils.closeQuietly(is);
+            }
+            String hw = props.getProperty(HIGH_WATER_PROPERTY);
+            Set<String> seen = new HashSet<String>();
+            int count = Integer.parseInt(props.getProperty(SEEN_COUNT_PROPERTY, "0"));
+            for (int i = 0; i < count; i++) {
+                String pid = props.getProperty(SEEN_PROPERTY_PREFIX + i);
+                if (pid != null)
+                    seen.add(pid);
+            }
+            try {
+                return new Checkpoint(hw == null || hw.isEmpty() ? null : new Date(Long.parseLong(hw)), seen);
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid high-water date in the checkpoint file " + file + ": " + hw, e);
+            }
+        }
+        
+        /**
+         * Writes the checkpoint to the file, replacing it atomically where 
+         * the file system allows.
+         * @param file
+         * @throws IOException
+         */
+        public void save(File file) throws IOException {
+            Properties props = new Properties();
+            props.setProperty(HIGH_WATER_PROPERTY, this.highWater == null ? "" : String.valueOf(this.highWater.getTime()));
+            props.setProperty(SEEN_COUNT_PROPERTY, String.valueOf(this.seenAtHighWater.size()));
+            int i = 0;
+            for (String pid : this.seenAtHighWater) 
+                props.setProperty(SEEN_PROPERTY_PREFIX + i++, pid);
+            
+            File dir = file.getAbsoluteFile().getParentFile();
+            if (dir != null && !dir.exists())
+                dir.mkdirs();
+            File tmp = new File(dir, file.getName() + ".tmp");
+            FileOutputStream os = new FileOutputStream(tmp);
+            try {
+                props.store(os, "ChangeFeed checkpoint");
+                os.flush();
+                os.getFD().sync();
+            } finally {
+                IOUtils.closeQuietly(os);
+            }
+            try {
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, 
+                        StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        
+        @Override
+        public String toString() {
+            return String.format("Checkpoint[highWater=%s, seen=%d]", 
+                    this.highWater == null ? null : this.highWater.getTime(), this.seenAtHighWater.size());
+        }
+    }
+    
+    
+    private final File checkpointFile;
+    private final int batchSize;
+    private volatile Checkpoint checkpoint;
+    
+    /**
+     * Constructs a feed with the batch size from the configuration.
+     * @see #ChangeFeed(File, Date, int)
+     */
+    protected ChangeFeed(File checkpointFile, Date initialFromDate) throws IOException 
+    {
+        this(checkpointFile, initialFromDate, Settings.getConfiguration().getInt(BATCH_SIZE_PARAM, 1000));
+    }
+    
+    /**
+     * @param checkpointFile - where the checkpoint is kept.  If it exists, the
+     *          feed resumes from it.
+     * @param initialFromDate - where the feed starts if there is no checkpoint
+     *          file yet (null for the beginning)
+     * @param batchSize - the count requested per listObjects call
+     * @throws IOException - if the checkpoint file can't be read
+     */
+    protected ChangeFeed(File checkpointFile, Date initialFromDate, int batchSize) throws IOException 
+    {
+        this.checkpointFile = checkpointFile;
+        this.batchSize = Math.max(1, batchSize);
+        Checkpoint saved = Checkpoint.load(checkpointFile);
+        this.checkpoint = saved != null ? saved : new Checkpoint(initialFromDate, Collections.<String>emptySet());
+    }
+    
+    /**
+     * Calls the node's listObjects method for the objects modified from fromDate.
+     * @param fromDate
+     * @param start
+     * @param count
+     * @return
+     * @throws BaseException
+     */
+    protected abstract ObjectList listObjects(Date fromDate, Integer start, Integer count) throws BaseException;
+    
+    
+    /**
+     * Returns the current position of the feed.
+     * @return
+     */
+    public Checkpoint getCheckpoint() 
+    {
+        return this.checkpoint;
+    }
+    
+    /**
+     * Delivers the objects changed since the checkpoint to the handler, in 
+     * batches, advancing the checkpoint after each batch, until the node 
+     * reports no more changes.
+     * 
+     * @param handler
+     * @return the number of objects delivered
+     * @throws BaseException - if a listObjects call fails (the checkpoint 
+     *          stays at the last handled batch)
+     * @throws IOException - if the checkpoint can't be written
+     */
+    public synchronized long poll(BatchHandler handler) throws BaseException, IOException 
+    {
+        long delivered = 0;
+        int start = 0;
+        while (true) {
+            Checkpoint cp = this.checkpoint;
+            ObjectList page = listObjects(cp.getHighWater(), start, this.batchSize);
+            List<ObjectInfo> infos = page == null ? null : page.getObjectInfoList();
+            if (infos == null || infos.isEmpty())
+                break;
+            
+            Date highWater = cp.getHighWater();
+            Set<String> seen = new HashSet<String>(cp.getSeenAtHighWater());
+            List<ObjectInfo> batch = new ArrayList<ObjectInfo>(infos.size());
+            for (ObjectInfo oi : infos) {
+                Date modified = oi.getDateSysMetadataModified();
+                String pid = oi.getIdentifier().getValue();
+                if (cp.getHighWater() != null) {
+                    // from before the checkpoint, or delivered at its boundary
+                    if (modified.before(cp.getHighWater()))
+                        continue;
+                    if (modified.equals(cp.getHighWater()) && cp.getSeenAtHighWater().contains(pid))
+                        continue;
+                }
+                batch.add(oi);
+                if (highWater == null || modified.after(highWater)) {
+                    highWater = modified;
+                    seen.clear();
+                    seen.add(pid);
+                } else if (modified.equals(highWater)) {
+                    seen.add(pid);
+                } else {
+                    logger.warn("listObjects returned " + pid + " out of dateSysMetadataModified order");
+                }
+            }
+            
+            if (!batch.isEmpty()) {
+                handler.handle(batch);
+                delivered += batch.size();
+                Checkpoint next = new Checkpoint(highWater, seen);
+                next.save(this.checkpointFile);
+                this.checkpoint = next;
+            }
+            
+            int fetched = start + infos.size();
+            if (page.getTotal() <= fetched)
+                break;
+            // a new high water restarts the (keyset) paging from it, otherwise
+            // the page was all one date's duplicates, so page past them
+            start = (cp.getHighWater() == null ? highWater == null : cp.getHighWater().equals(highWater)) 
+                    ? fetched : 0;
+        }
+        return delivered;
+    }
+    
+    
+    /**
+     * Returns a feed of the v2 CNode's changed objects, optionally filtered 
+     * by format, authoritative node, or identifier.
+     * @throws IOException - if the checkpoint file can't be read
+     */
+    public static ChangeFeed forNode(final org.dataone.client.v2.CNode cn, final Session session, 
+            File checkpointFile, Date initialFromDate, final ObjectFormatIdentifier formatid, 
+            final NodeReference nodeId, final Identifier identifier) throws IOException 
+    {
+        return new ChangeFeed(checkpointFile, initialFromDate) {
+            @Override
+            protected ObjectList listObjects(Date fromDate, Integer start, Integer count) throws BaseException {
+                return cn.listObjects(session, fromDate, null, formatid, nodeId, identifier, start, count);
+            }
+        };
+    }
+    
+    /**
+     * Returns a feed of the v2 MNode's changed objects, optionally filtered 
+     * by format, identifier, or replica status.
+     * @throws IOException - if the checkpoint file can't be read
+     */
+    public static ChangeFeed forNode(final org.dataone.client.v2.MNode mn, final Session session, 
+            File checkpointFile, Date initialFromDate, final ObjectFormatIdentifier formatid, 
+            final Identifier identifier, final Boolean replicaStatus) throws IOException 
+    {
+        return new ChangeFeed(checkpointFile, initialFromDate) {
+            @Override
+            protected ObjectList listObjects(Date fromDate, Integer start, Integer count) throws BaseException {
+                return mn.listObjects(session, fromDate, null, formatid, identifier, replicaStatus, start, count);
+            }
+        };
+    }
+    
+    /**
+     * Returns a feed of the v1 CNode's changed objects, optionally filtered 
+     * by format or replica status.
+     * @throws IOException - if the checkpoint file can't be read
+     */
+    public static ChangeFeed forNode(final org.dataone.client.v1.CNode cn, final Session session, 
+            File checkpointFile, Date initialFromDate, final ObjectFormatIdentifier formatid, 
+            final Boolean replicaStatus) throws IOException 
+    {
+        return new ChangeFeed(checkpointFile, initialFromDate) {
+            @Override
+            protected ObjectList listObjects(Date fromDate, Integer start, Integer count) throws BaseException {
+                return cn.listObjects(session, fromDate, null, formatid, replicaStatus, start, count);
+            }
+        };
+    }
+    
+    /**
+     * Returns a feed of the v1 MNode's changed objects, optionally filtered 
+     * by format or replica status.
+     * @throws IOException - if the checkpoint file can't be read
+     */
+    public static ChangeFeed forNode(final org.dataone.client.v1.MNode mn, final Session session, 
+            File checkpointFile, Date initialFromDate, final ObjectFormatIdentifier formatid, 
+            final Boolean replicaStatus) throws IOException 
+    {
+        return new ChangeFeed(checkpointFile, initialFromDate) {
+            @Override
+            protected ObjectList listObjects(Date fromDate, Integer start, Integer count) throws BaseException {
+                return mn.listObjects(session, fromDate, null, formatid, replicaStatus, start, count);
+            }
+        };
+    }
+}
@@ -0,0 +1,134 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.dataone.client.utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+
+/**
+ * An immutable snapshot of a pooling connection manager's statistics: the
+ * leased, available and pending connections and the maximum, for the whole
+ * pool and for each route.  (Per-route statistics are only available from 
+ * a RouteTrackingConnectionManager.)
+ * <p>
+ * A route is considered starved when callers are waiting for a connection 
+ * while the route is at its maximum, which is when lease waits, and then
+ * timeouts, start.
+ * 
+ * @author rnahf
+ *
+ */
+public class ConnectionPoolStats {
+
+    private final String poolName;
+    private final long timestamp;
+    private final PoolStats totalStats;
+    private final Map<HttpRoute, PoolStats> routeStats;
+
+    public ConnectionPoolStats(String poolName, long timestamp, PoolStats totalStats, 
+            Map<HttpRoute, PoolStats> routeStats) 
+    {
+        this.poolName = poolName;
+        this.timestamp = timestamp;
+        this.totalStats = totalStats;
+        this.routeStats = Collections.unmodifiableMap(new LinkedHashMap<HttpRoute, PoolStats>(routeStats));
+    }
+
+    /**
+     * Takes a snapshot of the connection manager's current statistics.
+     * @param poolName - a name identifying the pool in reports
+     * @param connMan
+     * @return
+     */
+    public static ConnectionPoolStats snapshot(String poolName, PoolingHttpClientConnectionManager connMan) {
+        Map<HttpRoute, PoolStats> routeStats = new LinkedHashMap<HttpRoute, PoolStats>();
+        if (connMan instanceof RouteTrackingConnectionManager) {
+            for (HttpRoute route : ((RouteTrackingConnectionManager) connMan).getRoutes()) {
+                routeStats.put(route, connMan.getStats(route));
+            }
+        }
+        return new ConnectionPoolStats(poolName, System.currentTimeMillis(), 
+                connMan.getTotalStats(), routeStats);
+    }
+
+    public String getPoolName() {
+        return poolName;
+    }
+
+    /**
+     * @return when the snapshot was taken, in epoch milliseconds
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public PoolStats getTotalStats() {
+        return totalStats;
+    }
+
+    /**
+     * @return the statistics for each route, in no particular order
+     */
+    public Map<HttpRoute, PoolStats> getRouteStats() {
+        return routeStats;
+    }
+
+    /**
+     * @return the routes with callers waiting while all of their connections are leased
+     */
+    public List<HttpRoute> getStarvedRoutes() {
+        List<HttpRoute> starved = new ArrayList<HttpRoute>();
+        for (Entry<HttpRoute, PoolStats> en : routeStats.entrySet()) {
+            if (isStarved(en.getValue()))
+                starved.add(en.getKey());
+        }
+        return starved;
+    }
+
+    /**
+     * @return true if any route, or the pool as a whole, is starved
+     */
+    public boolean isStarved() {
+        return isStarved(totalStats) || !getStarvedRoutes().isEmpty();
+    }
+
+    static boolean isStarved(PoolStats stats) {
+        return stats.getPending() > 0 && stats.getAvailable() == 0 
+                && stats.getLeased() >= stats.getMax();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(poolName).append(" total ").append(totalStats);
+        for (Entry<HttpRoute, PoolStats> en : routeStats.entrySet()) {
+            sb.append("; ").append(en.getKey()).append(' ').append(en.getValue());
+        }
+        return sb.toString();
+    }
+}
@@ -1,14 +1,28 @@
 package org.dataone.client.utils;
 
 import java.io.Closeable;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
 import java.util.Map.Entry;
-import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.io.IOUtils;
 import org.apache.http.client.HttpClient;
 import org.apache.http.conn.HttpClientConnectionManager;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.apache.log4j.Logger;
+import org.dataone.configuration.Settings;
 
 /**
  * A Service class that monitors HttpClient ConnectionManagers for stale (idle
@@ -19,33 +33,58 @@ import org.apache.log4j.Logger;
  * are to (a) monitor their ConnectionManagers in a separate thread, and to (b)
  * actively shutdown the ConnectionManager or close the HttpClient.
  * <p/>
- * The D1Client facades hide HttpClients from users, so this class is also used
- * to actively shutdown all of the instantiated and registered ConnectionManagers
- * at the interruption of it's run() method.  
+ * Monitoring runs on a single scheduled daemon thread every 
+ * 'D1Client.http.monitor.intervalSeconds'.  Each ConnectionManager is closed for
+ * idle connections after its own idle timeout (by default 
+ * 'D1Client.http.monitor.idleTimeoutSeconds').  ConnectionManagers and HttpClients
+ * are held weakly, so registering them does not keep them from being collected.
  * <p/>
- * Assuming that this thread runs for the duration of the application run, this
- * ensures that sockets created and not stale get released when the program exits.
+ * For pooling ConnectionManagers, each run also records a ConnectionPoolStats 
+ * snapshot, keeping the last 'D1Client.http.monitor.historySize' of them for 
+ * trending, and warns about starved pools (callers waiting while every 
+ * connection is leased).
+ * <p/>
+ * The D1Client facades hide HttpClients from users, so this class can also 
+ * actively shutdown all of the instantiated and registered ConnectionManagers
+ * and HttpClients, so that sockets get released.  The library doesn't do this
+ * on its own: applications that want it call {@link #shutdown()} when they are 
+ * done with the client, for example from their own shutdown hook or when a 
+ * web application is undeployed.  The monitor thread is a daemon, so it 
+ * doesn't keep the JVM from exiting either way.
  * 
  * @author rnahf
  *
  */
-public class HttpConnectionMonitorService extends Thread {
+public class HttpConnectionMonitorService {
+
+    final static Logger logger = Logger.getLogger(HttpConnectionMonitorService.class);
+
+    public final static long MONITOR_INTERVAL_SECONDS = Settings.getConfiguration()
+            .getLong("D1Client.http.monitor.intervalSeconds", 5);
+
+    public final static long DEFAULT_IDLE_TIMEOUT_SECONDS = Settings.getConfiguration()
+            .getLong("D1Client.http.monitor.idleTimeoutSeconds", 30);
 
-    WeakHashMap<HttpClientConnectionManager, String> connManStateMap = new WeakHashMap<>();
-    WeakHashMap<HttpClient, String> clientStateMap = new WeakHashMap<>();
-   
+    public final static int HISTORY_SIZE = Settings.getConfiguration()
+            .getInt("D1Client.http.monitor.historySize", 60);
+
+    private final ConcurrentMap<IdentityWeakReference, Registration> connManRegistry = 
+            new ConcurrentHashMap<IdentityWeakReference, Registration>();
+    private final ConcurrentMap<IdentityWeakReference, Boolean> clientRegistry = 
+            new ConcurrentHashMap<IdentityWeakReference, Boolean>();
+    private final ReferenceQueue<Object> collected = new ReferenceQueue<Object>();
+    private final AtomicInteger poolCounter = new AtomicInteger();
+
+    private final ScheduledExecutorService executor;
     private volatile boolean shutdown;
 
-    final static Logger logger = Logger.getLogger(HttpConnectionMonitorService.class);
     
     private static class SingletonHolder {
         public static final HttpConnectionMonitorService INSTANCE = new HttpConnectionMonitorService();
-        public static final Thread theMonitorThread = new Thread(INSTANCE);
         static {
-            theMonitorThread.start();
+            INSTANCE.start();
             logger.warn("Starting monitor thread");
         }
-        
     }
     
     public static HttpConnectionMonitorService getInstance() {
@@ -53,17 +92,55 @@ public class HttpConnectionMonitorService extends Thread {
     }
 
 
-    private HttpConnectionMonitorService() { }
+    HttpConnectionMonitorService() { 
+        this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "d1-http-connection-monitor");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
 
+    private void start() {
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    evictStaleConnections();
+                } catch (RuntimeException e) {
+                    // don't let one failure cancel future runs
+                    logger.error("Error monitoring connections", e);
+                }
+            }
+        }, MONITOR_INTERVAL_SECONDS, MONITOR_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
 
     
     /** 
-     * Add a connectionManager to monitor
+     * Add a connectionManager to monitor, using the default idle timeout
      * @param cMan
      */
     public void addMonitor(HttpClientConnectionManager cMan) {
-        logger.warn("registering ConnectionManager...");
-        connManStateMap.put(cMan, "REGISTERED");
+        addMonitor(cMan, DEFAULT_IDLE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+    
+    /** 
+     * Add a connectionManager to monitor, closing connections that have been
+     * idle longer than the given time.  Registering the same connectionManager
+     * again replaces its idle timeout.
+     * @param cMan
+     * @param idleTimeout
+     * @param unit
+     */
+    public void addMonitor(HttpClientConnectionManager cMan, long idleTimeout, TimeUnit unit) {
+        logger.debug("registering ConnectionManager...");
+        purgeCollected();
+        IdentityWeakReference key = new IdentityWeakReference(cMan, collected);
+        Registration previous = connManRegistry.get(key);
+        String name = previous != null ? previous.name : "pool-" + poolCounter.incrementAndGet();
+        connManRegistry.put(key, new Registration(name, unit.toMillis(idleTimeout), previous));
     }
     
     /**
@@ -73,7 +150,8 @@ public class HttpConnectionMonitorService extends Thread {
      * @param client
      */
     public void addHttpClientMonitor(HttpClient client) {
-        clientStateMap.put(client, "REGISTERED");
+        purgeCollected();
+        clientRegistry.put(new IdentityWeakReference(client, collected), Boolean.TRUE);
     }
     
     /**
@@ -84,69 +162,176 @@ public class HttpConnectionMonitorService extends Thread {
      * @param cMan
      */
     public void removeMonitor(HttpClientConnectionManager cMan) {
-        connManStateMap.put(cMan,"REMOVED");
+        connManRegistry.remove(new IdentityWeakReference(cMan, null));
     }
 
-    WeakHashMap<HttpClientConnectionManager,String> getMonitors() {
-        return this.connManStateMap;
+    /**
+     * @return the ConnectionManagers currently monitored
+     */
+    List<HttpClientConnectionManager> getMonitors() {
+        List<HttpClientConnectionManager> list = new ArrayList<HttpClientConnectionManager>();
+        for (IdentityWeakReference ref : connManRegistry.keySet()) {
+            Object cMan = ref.get();
+            if (cMan != null)
+                list.add((HttpClientConnectionManager) cMan);
+        }
+        return list;
     }
-    
-    @Override
-    public void run() {
-        logger.warn("Starting monitoring...");
-        try {
-            while (!shutdown) {
-                
-                synchronized (this) {
-                    wait(5000);
-                    for (Entry<HttpClientConnectionManager,String> n : connManStateMap.entrySet()) {
-                        logger.debug("...calling closeExpire/IdleConnections...");
-                        try {
-                            // Close expired connections
-                            n.getKey().closeExpiredConnections();
-                            // Optionally, close connections
-                            // that have been idle longer than 30 sec
-                            n.getKey().closeIdleConnections(30, TimeUnit.SECONDS);
-
-                        } catch (NullPointerException e) {
-                            // if the connectionManager is GC'ed while using it
-                            // there is no problem because finalize was called and there
-                            // would be no connections to worry about anymore.
-                            logger.info("ConnectionManager went out of scope.");
-//                            notifyAll();
-                        }
-                    }
-                }
+
+    /**
+     * Takes a snapshot of the statistics of each monitored pooling ConnectionManager.
+     * @return
+     */
+    public List<ConnectionPoolStats> getPoolStats() {
+        List<ConnectionPoolStats> list = new ArrayList<ConnectionPoolStats>();
+        for (Entry<IdentityWeakReference, Registration> en : connManRegistry.entrySet()) {
+            Object cMan = en.getKey().get();
+            if (cMan instanceof PoolingHttpClientConnectionManager) {
+                list.add(ConnectionPoolStats.snapshot(en.getValue().name, 
+                        (PoolingHttpClientConnectionManager) cMan));
             }
-        } catch (InterruptedException ex) {
-            //this runnable is exiting...
-            shutdownConnectionManagers();
-            // fwiw, reset the interrupt on this thread in case others care
-            Thread.currentThread().interrupt();
+        }
+        return list;
+    }
+
+    /**
+     * Returns the snapshots recorded for the ConnectionManager by the monitor,
+     * oldest first, one per monitoring run.
+     * @param cMan
+     * @return - the recorded snapshots, or an empty list if the ConnectionManager
+     * is not monitored
+     */
+    public List<ConnectionPoolStats> getPoolStatsHistory(HttpClientConnectionManager cMan) {
+        Registration reg = connManRegistry.get(new IdentityWeakReference(cMan, null));
+        if (reg == null)
+            return new ArrayList<ConnectionPoolStats>();
+        synchronized (reg.history) {
+            return new ArrayList<ConnectionPoolStats>(reg.history);
+        }
+    }
+
+    /**
+     * Closes expired and idle connections of the monitored ConnectionManagers,
+     * and records the pool statistics.  Run periodically by the monitor thread.
+     */
+    void evictStaleConnections() {
+        purgeCollected();
+        for (Entry<IdentityWeakReference, Registration> en : connManRegistry.entrySet()) {
+            Object o = en.getKey().get();
+            if (o == null)
+                continue;
+            HttpClientConnectionManager cMan = (HttpClientConnectionManager) o;
+            Registration reg = en.getValue();
+            
+            cMan.closeExpiredConnections();
+            cMan.closeIdleConnections(reg.idleTimeoutMillis, TimeUnit.MILLISECONDS);
             
-        } finally {
-            logger.warn("Exiting HttpConnectionsMonitorService...");
+            if (cMan instanceof PoolingHttpClientConnectionManager) {
+                ConnectionPoolStats stats = ConnectionPoolStats.snapshot(reg.name, 
+                        (PoolingHttpClientConnectionManager) cMan);
+                reg.record(stats);
+                if (stats.isStarved()) 
+                    logger.warn("Connection pool starved: " + stats);
+                else if (logger.isDebugEnabled())
+                    logger.debug(stats);
+            }
+        }
+    }
+
+    /* drops the registrations of collected ConnectionManagers and HttpClients */
+    private void purgeCollected() {
+        Reference<?> ref;
+        while ((ref = collected.poll()) != null) {
+            if (connManRegistry.remove(ref) != null) 
+                logger.info("ConnectionManager went out of scope.");
+            clientRegistry.remove(ref);
         }
     }
 
-    protected void shutdownConnectionManagers() {
+    /**
+     * Stops the monitoring, and shuts down all of the registered 
+     * ConnectionManagers and closes the registered HttpClients, releasing 
+     * their sockets.  Clients built on them can't be used afterwards, and 
+     * ConnectionManagers registered later are not monitored, so this is meant
+     * to be called once, when the application is done with the client.  Later
+     * calls do nothing.
+     */
+    public void shutdown() {
+        shutdownConnectionManagers();
+    }
+
+    /**
+     * @return true if shutdown() has been called
+     */
+    public boolean isShutdown() {
+        return shutdown;
+    }
+
+    protected synchronized void shutdownConnectionManagers() {
+        if (shutdown)
+            return;
         shutdown = true;
-        synchronized (this) {
-            logger.warn(String.format("Found %d registered ConnectionManagers to shutdown.",
-                    connManStateMap.size()));
-            logger.warn("Shutting down all registered ConnectionManagers!!");
-            for (Entry<HttpClientConnectionManager,String> n : connManStateMap.entrySet()) {
-                n.getKey().shutdown();
+        executor.shutdownNow();
+        
+        logger.warn(String.format("Found %d registered ConnectionManagers to shutdown.",
+                connManRegistry.size()));
+        logger.warn("Shutting down all registered ConnectionManagers!!");
+        for (HttpClientConnectionManager cMan : getMonitors()) {
+            cMan.shutdown();
+        }
+        logger.warn("Shutting down all registered HttpClients!!");
+        for (IdentityWeakReference ref : clientRegistry.keySet()) {
+            Object client = ref.get();
+            if (client instanceof Closeable) {
+                IOUtils.closeQuietly((Closeable) client);
             }
-            logger.warn("Shutting down all registered HttpClients!!");
-            for (Entry<HttpClient,String> n : clientStateMap.entrySet()) {
-                if (n.getKey() instanceof Closeable) {
-                    IOUtils.closeQuietly(((Closeable)n.getKey()));
-                }
-            }            
-            notifyAll();
         }
     }
 
+    
+    /* a monitored ConnectionManager's settings and statistics history */
+    private static class Registration {
+        final String name;
+        final long idleTimeoutMillis;
+        final Deque<ConnectionPoolStats> history;
 
+        Registration(String name, long idleTimeoutMillis, Registration previous) {
+            this.name = name;
+            this.idleTimeoutMillis = idleTimeoutMillis;
+            this.history = previous != null ? previous.history : new ArrayDeque<ConnectionPoolStats>();
+        }
+
+        void record(ConnectionPoolStats stats) {
+            synchronized (history) {
+                history.addLast(stats);
+                while (history.size() > HISTORY_SIZE)
+                    history.removeFirst();
+            }
+        }
+    }
+
+    /* a weak reference compared by the identity of its referent, for use as a map key */
+    private static class IdentityWeakReference extends WeakReference<Object> {
+        private final int hash;
+
+        IdentityWeakReference(Object referent, ReferenceQueue<Object> queue) {
+            super(referent, queue);
+            this.hash = System.identityHashCode(referent);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o)
+                return true;
+            if (!(o instanceof IdentityWeakReference))
+                return false;
+            Object referent = get();
+            return referent != null && referent == ((IdentityWeakReference) o).get();
+        }
+    }
 }
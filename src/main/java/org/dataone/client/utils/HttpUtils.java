@@ -49,6 +49,7 @@ import org.apache.http.conn.socket.LayeredConnectionSocketFactory;
 import org.apache.http.conn.socket.PlainConnectionSocketFactory;
 import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
 import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.impl.DefaultConnectionReuseStrategy;
 import org.apache.http.impl.client.AbstractHttpClient;
 import org.apache.http.impl.client.HttpClientBuilder;
 import org.apache.http.impl.client.HttpClients;
@@ -56,9 +57,18 @@ import org.apache.http.impl.client.cache.CacheConfig;
 import org.apache.http.impl.client.cache.CachingHttpClientBuilder;
 import org.apache.http.impl.client.cache.CachingHttpClients;
 import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.nio.client.HttpAsyncClientBuilder;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
 import org.apache.http.message.BasicHeaderElementIterator;
+import org.apache.http.nio.conn.NoopIOSessionStrategy;
+import org.apache.http.nio.conn.SchemeIOSessionStrategy;
+import org.apache.http.nio.conn.ssl.SSLIOSessionStrategy;
 import org.apache.http.protocol.HTTP;
 import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestExecutor;
 import org.apache.log4j.Logger;
 import org.dataone.client.auth.CertificateManager;
 import org.dataone.client.auth.X509Session;
@@ -109,6 +119,29 @@ public class HttpUtils {
     public final static long DEFAULT_KEEP_ALIVE_SECONDS = Settings.getConfiguration()
             .getLong("D1Client.http.keepAliveDuration.sec", 5);
     
+    /**
+     * The longest keep-alive used, regardless of what the server advertises
+     */
+    public final static long MAX_KEEP_ALIVE_SECONDS = Settings.getConfiguration()
+            .getLong("D1Client.http.keepAliveDuration.maxSec", 60);
+    
+    /**
+     * When true, per-route connection limits grow and shrink between 
+     * MAX_CONNECTIONS_PER_ROUTE and ADAPTIVE_MAX_CONNECTIONS_PER_ROUTE
+     * @see AdaptivePoolingConnectionManager
+     */
+    public final static boolean ADAPTIVE_POOL = Settings.getConfiguration()
+            .getBoolean("D1Client.http.adaptivePool.enabled", false);
+    
+    public final static int ADAPTIVE_MAX_CONNECTIONS_PER_ROUTE = Settings.getConfiguration()
+            .getInt("D1Client.http.adaptivePool.maxConnectionsPerServer", 20);
+    
+    public final static long ADAPTIVE_WAIT_THRESHOLD_MILLIS = Settings.getConfiguration()
+            .getLong("D1Client.http.adaptivePool.waitThresholdMillis", 20);
+    
+    public final static long ADAPTIVE_ADJUST_INTERVAL_MILLIS = Settings.getConfiguration()
+            .getLong("D1Client.http.adaptivePool.adjustIntervalMillis", 1000);
+    
     
     public final static boolean USE_CACHING_CLIENT = Settings.getConfiguration()
             .getBoolean("D1Client.http.useCachingClient", true);
@@ -119,6 +152,34 @@ public class HttpUtils {
     public final static int CACHE_MAX_OBJECT_SIZE = Settings.getConfiguration()
             .getInt("D1Client.http.cacheMaxObjectSize", 102400);
     
+    /**
+     * When true, AuthTokenSessions share one token-agnostic pooled HttpClient
+     * instead of each building their own
+     */
+    public final static boolean SHARE_AUTH_TOKEN_CLIENT = Settings.getConfiguration()
+            .getBoolean("D1Client.http.authToken.sharedClient", true);
+    
+    /**
+     * The HttpContext attribute holding the bearer token to send with a request
+     * made by a token-agnostic HttpClient
+     * @see #getTokenAgnosticHttpClientBuilder(Boolean)
+     */
+    public final static String AUTH_TOKEN_CONTEXT_ATTRIBUTE = "org.dataone.client.authToken";
+    
+    /**
+     * When true, the DefaultHttpMultipartRestClient rotates only the SSL key
+     * material of its HttpClient when the default certificate changes, instead
+     * of replacing the HttpClient
+     */
+    public final static boolean ROTATE_KEY_MATERIAL = Settings.getConfiguration()
+            .getBoolean("D1Client.http.rotateKeyMaterial", true);
+    
+    /**
+     * The number of I/O dispatch threads used by the non-blocking HttpAsyncClients
+     */
+    public final static int ASYNC_IO_THREAD_COUNT = Settings.getConfiguration()
+            .getInt("D1Client.http.async.ioThreadCount", Runtime.getRuntime().availableProcessors());
+    
     
 	/**
 	 * Provided to assist with backwards compatibility with v4.1.x era DefaultHttpClient
@@ -224,8 +285,35 @@ public class HttpUtils {
 	KeyManagementException, NoSuchAlgorithmException, KeyStoreException, CertificateException, 
 	InstantiationException, IllegalAccessException, IOException, MarshallingException {
 
-	    PoolingHttpClientConnectionManager connMan = new PoolingHttpClientConnectionManager(
+	    PoolingHttpClientConnectionManager connMan = buildConnectionManager(
 	            buildConnectionRegistry(x509session));
+	    return getPooledHttpClientBuilder(connMan, monitorStaleConnections);
+	}
+	
+	/**
+	 * Returns an HttpClientBuilder with the DataONE-standard ConnectionManager configuration
+	 * whose SSL key material can be rotated without rebuilding the HttpClient.
+	 * (see RotatingSSLConnectionSocketFactory.rotate(LayeredConnectionSocketFactory))
+	 * @param sslSocketFactory - the rotating socket factory used for https connections
+	 * @param monitorStaleConnections - if not null chooses whether or not to monitorStaleConnections, otherwise uses
+	 * the default setting determined from D1Client.http.monitorStaleConnections
+	 * @return - a configured HttpClientBuilder
+	 */
+	public static HttpClientBuilder getHttpClientBuilder(RotatingSSLConnectionSocketFactory sslSocketFactory, 
+	        Boolean monitorStaleConnections) {
+	    
+	    PoolingHttpClientConnectionManager connMan = buildConnectionManager(
+	            buildConnectionRegistry(sslSocketFactory));
+	    sslSocketFactory.addConnectionManager(connMan);
+	    
+	    return getPooledHttpClientBuilder(connMan, monitorStaleConnections)
+	            .addInterceptorFirst(sslSocketFactory.getConnectionStateInterceptor())
+	            .setConnectionReuseStrategy(sslSocketFactory.getConnectionReuseStrategy(
+	                    DefaultConnectionReuseStrategy.INSTANCE));
+	}
+	
+	private static HttpClientBuilder getPooledHttpClientBuilder(PoolingHttpClientConnectionManager connMan, 
+	        Boolean monitorStaleConnections) {
 
 	    // set timeout for hangs during connection initialization (handshakes)
 	    // (these aren't handled by the RequestConfig, because happens before the request)
@@ -235,7 +323,6 @@ public class HttpUtils {
 	            .build();
 
 	    connMan.setDefaultSocketConfig(sc);
-	    connMan.setDefaultMaxPerRoute(MAX_CONNECTIONS_PER_ROUTE);
 	    connMan.setMaxTotal(MAX_CONNECTIONS);
 	    
 	    if (monitorStaleConnections != null) { 
@@ -247,7 +334,8 @@ public class HttpUtils {
 	    }
 	    
 	    return HttpUtils.selectHttpClientBuilder()
-	            .setKeepAliveStrategy(buildD1KeepAliveStrategy(DEFAULT_KEEP_ALIVE_SECONDS))
+	            .setKeepAliveStrategy(buildKeepAliveStrategy())
+	            .setRequestExecutor(buildRequestExecutor(connMan))
 	            .setConnectionManager(connMan);
 	}
 	
@@ -280,7 +368,64 @@ public class HttpUtils {
      * @return
      */
 	public static HttpClientBuilder getHttpClientBuilder(final String authToken, Boolean monitorStaleConnections) {
-	    PoolingHttpClientConnectionManager connMan = new PoolingHttpClientConnectionManager(buildConnectionRegistry());
+
+        return getAnonymousHttpClientBuilder(monitorStaleConnections)
+                .addInterceptorLast(new HttpRequestInterceptor() {
+
+                    @Override
+                    public void process(final HttpRequest request, final HttpContext context) 
+                            throws HttpException, IOException 
+                            {
+                        request.addHeader(HttpHeaders.AUTHORIZATION, "Bearer " + authToken);
+                            }
+                });
+	}
+	
+	/**
+	 * Returns an HttpClientBuilder with the DataONE-standard ConnectionManager configuration specified,
+	 * that sends each request with the bearer token found in the request's HttpContext under 
+	 * AUTH_TOKEN_CONTEXT_ATTRIBUTE (if any).  A client built from it can be shared by any number of 
+	 * token holders.
+	 * @param monitorStaleConnections - if not null, choose whether to monitor stale connections, otherwise
+	 *        use the configured default in D1Client.http.monitorStaleConnections
+	 * @return
+	 */
+	public static HttpClientBuilder getTokenAgnosticHttpClientBuilder(Boolean monitorStaleConnections) {
+
+	    return getAnonymousHttpClientBuilder(monitorStaleConnections)
+	            .addInterceptorLast(new HttpRequestInterceptor() {
+
+	                @Override
+	                public void process(final HttpRequest request, final HttpContext context) 
+	                        throws HttpException, IOException 
+	                        {
+	                    Object authToken = context == null ? null : context.getAttribute(AUTH_TOKEN_CONTEXT_ATTRIBUTE);
+	                    if (authToken != null)
+	                        request.addHeader(HttpHeaders.AUTHORIZATION, "Bearer " + authToken);
+	                        }
+	            });
+	}
+	
+	private static class SharedAuthTokenClientHolder {
+	    public static final HttpClient INSTANCE = getTokenAgnosticHttpClientBuilder(null).build();
+	}
+	
+	/**
+	 * Returns the process-wide HttpClient used for AuthTokenSessions when 
+	 * D1Client.http.authToken.sharedClient is true.  The token is passed with 
+	 * each request's HttpContext (see AUTH_TOKEN_CONTEXT_ATTRIBUTE), so all of 
+	 * the token sessions share one connection pool.
+	 * @return
+	 */
+	public static HttpClient getSharedAuthTokenHttpClient() {
+	    return SharedAuthTokenClientHolder.INSTANCE;
+	}
+	
+	/*
+	 * the connection pool configuration for clients without a client certificate
+	 */
+	private static HttpClientBuilder getAnonymousHttpClientBuilder(Boolean monitorStaleConnections) {
+	    PoolingHttpClientConnectionManager connMan = buildConnectionManager(buildConnectionRegistry());
 	    
 	    // set timeout for hangs during connection initialization (handshakes)
         // (these aren't handled by the RequestConfig, because happens before the request)
@@ -290,7 +435,6 @@ public class HttpUtils {
                 .setSoTimeout(HttpMultipartRestClient.DEFAULT_TIMEOUT_VALUE)
                 .build();
         connMan.setDefaultSocketConfig(sc); 
-        connMan.setDefaultMaxPerRoute(MAX_CONNECTIONS_PER_ROUTE);
         connMan.setMaxTotal(MAX_CONNECTIONS);
         
         if (monitorStaleConnections != null) { 
@@ -303,18 +447,50 @@ public class HttpUtils {
 
         return HttpUtils.selectHttpClientBuilder()
                 .setConnectionManager(connMan)
-                .setKeepAliveStrategy(buildD1KeepAliveStrategy(DEFAULT_KEEP_ALIVE_SECONDS))
-                .addInterceptorLast(new HttpRequestInterceptor() {
-
-                    @Override
-                    public void process(final HttpRequest request, final HttpContext context) 
-                            throws HttpException, IOException 
-                            {
-                        request.addHeader(HttpHeaders.AUTHORIZATION, "Bearer " + authToken);
-                            }
-                });
+                .setKeepAliveStrategy(buildKeepAliveStrategy())
+                .setRequestExecutor(buildRequestExecutor(connMan));
+	}
+	
+	
+	/**
+	 * Builds the connection manager for the blocking HttpClients: an 
+	 * AdaptivePoolingConnectionManager if D1Client.http.adaptivePool.enabled
+	 * is true, otherwise a (RouteTracking) pooling connection manager with a 
+	 * fixed per-route limit.
+	 * @param registry
+	 * @return
+	 */
+	public static PoolingHttpClientConnectionManager buildConnectionManager(Registry<ConnectionSocketFactory> registry) {
+	    if (ADAPTIVE_POOL) {
+	        return new AdaptivePoolingConnectionManager(registry, MAX_CONNECTIONS_PER_ROUTE, 
+	                ADAPTIVE_MAX_CONNECTIONS_PER_ROUTE, ADAPTIVE_WAIT_THRESHOLD_MILLIS, 
+	                ADAPTIVE_ADJUST_INTERVAL_MILLIS);
+	    }
+	    PoolingHttpClientConnectionManager connMan = new RouteTrackingConnectionManager(registry);
+	    connMan.setDefaultMaxPerRoute(MAX_CONNECTIONS_PER_ROUTE);
+	    return connMan;
+	}
+	
+	/*
+	 * the request executor of the blocking HttpClients, reporting the server's
+	 * latency to the connection manager if it sizes its pools from it
+	 */
+	private static HttpRequestExecutor buildRequestExecutor(PoolingHttpClientConnectionManager connMan) {
+	    if (connMan instanceof AdaptivePoolingConnectionManager)
+	        return new InstrumentedHttpRequestExecutor((AdaptivePoolingConnectionManager) connMan);
+	    return new InstrumentedHttpRequestExecutor();
 	}
 	
+	/**
+	 * Builds the keep-alive strategy used by the D1 HttpClients, which learns 
+	 * each server's keep-alive timeout from its responses.
+	 * @see AdaptiveKeepAliveStrategy
+	 * @return
+	 */
+	public static ConnectionKeepAliveStrategy buildKeepAliveStrategy() {
+	    return new AdaptiveKeepAliveStrategy(DEFAULT_KEEP_ALIVE_SECONDS * 1000, 
+	            MAX_KEEP_ALIVE_SECONDS * 1000);
+	}
 	
 	private static HttpClientBuilder selectHttpClientBuilder() {
 	    if (USE_CACHING_CLIENT) {
@@ -348,32 +524,106 @@ public class HttpUtils {
 	        throws UnrecoverableKeyException, KeyManagementException, NoSuchAlgorithmException, 
 	        KeyStoreException, CertificateException, IOException {
     
-        RegistryBuilder<ConnectionSocketFactory> rb = RegistryBuilder.<ConnectionSocketFactory>create();
-        rb.register("http", PlainConnectionSocketFactory.getSocketFactory());
-
         LayeredConnectionSocketFactory sslSocketFactory = null;
         sslSocketFactory = CertificateManager.getInstance().getSSLConnectionSocketFactory(x509Session);
 
-        rb.register("https", sslSocketFactory);
-
-        Registry<ConnectionSocketFactory> sfRegistry = rb.build();
-        return sfRegistry;
+        return buildConnectionRegistry(sslSocketFactory);
     }
 	
+	/**
+	 * Builds the registry of (instrumented) socket factories for plain http and 
+	 * for https using the given socket factory.
+	 * @param sslSocketFactory
+	 * @return
+	 */
+	public static Registry<ConnectionSocketFactory> buildConnectionRegistry(LayeredConnectionSocketFactory sslSocketFactory) 
+	{
+	    RegistryBuilder<ConnectionSocketFactory> rb = RegistryBuilder.<ConnectionSocketFactory>create();
+	    rb.register("http", new InstrumentedConnectionSocketFactory(
+	            PlainConnectionSocketFactory.getSocketFactory()));
+	    rb.register("https", new InstrumentedConnectionSocketFactory(sslSocketFactory));
+	    return rb.build();
+	}
+	
 	public static Registry<ConnectionSocketFactory> buildConnectionRegistry() 
 	{
 	    RegistryBuilder<ConnectionSocketFactory> rb = RegistryBuilder.<ConnectionSocketFactory>create();
-	    rb.register("http", PlainConnectionSocketFactory.getSocketFactory());
+	    rb.register("http", new InstrumentedConnectionSocketFactory(
+	            PlainConnectionSocketFactory.getSocketFactory()));
 
 	    LayeredConnectionSocketFactory sslSocketFactory = null;
 	    sslSocketFactory = SSLConnectionSocketFactory.getSocketFactory();
 
-	    rb.register("https", sslSocketFactory);
+	    rb.register("https", new InstrumentedConnectionSocketFactory(sslSocketFactory));
 
 	    Registry<ConnectionSocketFactory> sfRegistry = rb.build();
 	    return sfRegistry;
 	}
 	
+	/**
+	 * Builds the registry of IOSessionStrategies for non-blocking (HttpAsyncClient)
+	 * connection managers.  The SSL configuration is the same as the one built by 
+	 * buildConnectionRegistry(X509Session), but is passed through as an SSLContext,
+	 * since the NIO layer doesn't use SocketFactories.
+	 * 
+	 * @param x509Session - the client certificate for the connections (null for anonymous)
+	 * @return
+	 * @throws UnrecoverableKeyException
+	 * @throws KeyManagementException
+	 * @throws NoSuchAlgorithmException
+	 * @throws KeyStoreException
+	 * @throws CertificateException
+	 * @throws IOException
+	 */
+	public static Registry<SchemeIOSessionStrategy> buildAsyncConnectionRegistry(X509Session x509Session)
+	        throws UnrecoverableKeyException, KeyManagementException, NoSuchAlgorithmException, 
+	        KeyStoreException, CertificateException, IOException {
+
+	    CertificateManager cm = CertificateManager.getInstance();
+	    
+	    return RegistryBuilder.<SchemeIOSessionStrategy>create()
+	            .register("http", NoopIOSessionStrategy.INSTANCE)
+	            .register("https", new SSLIOSessionStrategy(
+	                    cm.getSSLContext(x509Session), cm.getHostnameVerifier()))
+	            .build();
+	}
+	
+	/**
+	 * Returns an HttpAsyncClientBuilder with the DataONE-standard connection pool
+	 * limits and keep-alive strategy.  The connection pool is driven by a small,
+	 * fixed number of I/O dispatch threads (see 'D1Client.http.async.ioThreadCount')
+	 * instead of a thread per request.
+	 *  
+	 * @param x509Session - the client certificate for the connections (null for anonymous)
+	 * @return
+	 * @throws UnrecoverableKeyException
+	 * @throws KeyManagementException
+	 * @throws NoSuchAlgorithmException
+	 * @throws KeyStoreException
+	 * @throws CertificateException
+	 * @throws IOException
+	 */
+	public static HttpAsyncClientBuilder getHttpAsyncClientBuilder(X509Session x509Session) 
+	        throws UnrecoverableKeyException, KeyManagementException, NoSuchAlgorithmException, 
+	        KeyStoreException, CertificateException, IOException {
+	    
+	    IOReactorConfig ioConfig = IOReactorConfig.custom()
+	            .setIoThreadCount(ASYNC_IO_THREAD_COUNT)
+	            .setConnectTimeout(HttpMultipartRestClient.DEFAULT_TIMEOUT_VALUE)
+	            .setSoTimeout(HttpMultipartRestClient.DEFAULT_TIMEOUT_VALUE)
+	            .build();
+	    
+	    PoolingNHttpClientConnectionManager connMan = new PoolingNHttpClientConnectionManager(
+	            new DefaultConnectingIOReactor(ioConfig), 
+	            buildAsyncConnectionRegistry(x509Session));
+	    connMan.setDefaultMaxPerRoute(MAX_CONNECTIONS_PER_ROUTE);
+	    connMan.setMaxTotal(MAX_CONNECTIONS);
+	    
+	    return HttpAsyncClients.custom()
+	            .setKeepAliveStrategy(buildKeepAliveStrategy())
+	            .setConnectionManager(connMan);
+	}
+	
 	/**
 	 * Sets the CONNECTION_TIMEOUT and SO_TIMEOUT values for the request.
 	 * (max delay in initial response, max delay between tcp packets, respectively).  
@@ -0,0 +1,108 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.dataone.client.utils;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+import javax.net.ssl.SSLSocket;
+
+import org.apache.http.HttpHost;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.LayeredConnectionSocketFactory;
+import org.apache.http.protocol.HttpContext;
+import org.dataone.client.rest.RequestTimings;
+
+/**
+ * A ConnectionSocketFactory wrapper that records the time spent establishing
+ * connections in the current {@link RequestTimings}, separating the TCP 
+ * connect from the TLS handshake for layered (SSL) factories.  When no 
+ * request is being measured it simply delegates.
+ * 
+ * @author rnahf
+ *
+ */
+public class InstrumentedConnectionSocketFactory implements LayeredConnectionSocketFactory {
+
+    private final ConnectionSocketFactory delegate;
+
+    public InstrumentedConnectionSocketFactory(ConnectionSocketFactory delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public Socket createSocket(HttpContext context) throws IOException {
+        return delegate.createSocket(context);
+    }
+
+    @Override
+    public Socket connectSocket(int connectTimeout, Socket socket, HttpHost host,
+            InetSocketAddress remoteAddress, InetSocketAddress localAddress,
+            HttpContext context) throws IOException 
+    {
+        RequestTimings timings = RequestTimings.current();
+        if (timings == null)
+            return delegate.connectSocket(connectTimeout, socket, host, remoteAddress, localAddress, context);
+
+        long start = System.nanoTime();
+        timings.markConnectionLeased(start);
+
+        Socket sock = socket != null ? socket : delegate.createSocket(context);
+        if (!(delegate instanceof LayeredConnectionSocketFactory) || sock instanceof SSLSocket) {
+            // can't separate the handshake, so it all counts as connect time
+            try {
+                return delegate.connectSocket(connectTimeout, sock, host, remoteAddress, localAddress, context);
+            } finally {
+                timings.addConnectTime(System.nanoTime() - start);
+            }
+        }
+
+        // the same steps as SSLConnectionSocketFactory.connectSocket(), timed separately
+        if (localAddress != null) 
+            sock.bind(localAddress);
+        try {
+            sock.connect(remoteAddress, connectTimeout > 0 ? connectTimeout : 0);
+        } catch (IOException e) {
+            try {
+                sock.close();
+            } catch (IOException ignore) {
+            }
+            throw e;
+        }
+        long connected = System.nanoTime();
+        timings.addConnectTime(connected - start);
+        try {
+            return createLayeredSocket(sock, host.getHostName(), remoteAddress.getPort(), context);
+        } finally {
+            timings.addTlsTime(System.nanoTime() - connected);
+        }
+    }
+
+    @Override
+    public Socket createLayeredSocket(Socket socket, String target, int port,
+            HttpContext context) throws IOException 
+    {
+        if (!(delegate instanceof LayeredConnectionSocketFactory))
+            throw new IOException("The wrapped socket factory does not support layering: " 
+                    + delegate.getClass().getName());
+        return ((LayeredConnectionSocketFactory) delegate).createLayeredSocket(socket, target, port, context);
+    }
+}
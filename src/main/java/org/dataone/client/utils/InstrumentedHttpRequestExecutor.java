@@ -0,0 +1,111 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.dataone.client.utils;
+
+import java.io.IOException;
+
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.routing.RouteInfo;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestExecutor;
+import org.dataone.client.rest.RequestTimings;
+
+/**
+ * An HttpRequestExecutor that records the time spent sending the request and 
+ * waiting for the response headers in the current {@link RequestTimings}.
+ * If built with a ResponseTimeListener, it also reports each wait for the 
+ * response headers (the server's latency) with the request's route, as the
+ * AdaptivePoolingConnectionManager uses to size its pools.
+ * 
+ * @author rnahf
+ *
+ */
+public class InstrumentedHttpRequestExecutor extends HttpRequestExecutor {
+
+    /**
+     * Receives the time each response took to arrive, from the end of 
+     * sending the request to the end of reading the response headers.
+     */
+    public static interface ResponseTimeListener {
+        void responseReceived(HttpRoute route, long nanos);
+    }
+
+    private final ResponseTimeListener listener;
+
+    public InstrumentedHttpRequestExecutor() {
+        this(null);
+    }
+
+    /**
+     * @param listener - receives the response times, or null
+     */
+    public InstrumentedHttpRequestExecutor(ResponseTimeListener listener) {
+        super();
+        this.listener = listener;
+    }
+
+    @Override
+    protected HttpResponse doSendRequest(HttpRequest request, HttpClientConnection conn, 
+            HttpContext context) throws IOException, HttpException 
+    {
+        RequestTimings timings = RequestTimings.current();
+        if (timings == null)
+            return super.doSendRequest(request, conn, context);
+
+        long start = System.nanoTime();
+        timings.markConnectionLeased(start);
+        try {
+            return super.doSendRequest(request, conn, context);
+        } finally {
+            timings.addRequestSendTime(System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    protected HttpResponse doReceiveResponse(HttpRequest request, HttpClientConnection conn, 
+            HttpContext context) throws HttpException, IOException 
+    {
+        RequestTimings timings = RequestTimings.current();
+        if (timings == null && this.listener == null)
+            return super.doReceiveResponse(request, conn, context);
+
+        long start = System.nanoTime();
+        boolean received = false;
+        try {
+            HttpResponse response = super.doReceiveResponse(request, conn, context);
+            received = true;
+            return response;
+        } finally {
+            long elapsed = System.nanoTime() - start;
+            if (timings != null)
+                timings.addServerWaitTime(elapsed);
+            if (received && this.listener != null) {
+                RouteInfo route = HttpClientContext.adapt(context).getHttpRoute();
+                if (route instanceof HttpRoute)
+                    this.listener.responseReceived((HttpRoute) route, elapsed);
+            }
+        }
+    }
+}
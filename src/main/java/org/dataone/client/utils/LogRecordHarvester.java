@@ -0,0 +1,400 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.dataone.client.utils;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+import org.dataone.client.utils.PrefetchingPageIterator.Page;
+import org.dataone.configuration.Settings;
+import org.dataone.service.exceptions.BaseException;
+import org.dataone.service.exceptions.InvalidRequest;
+import org.dataone.service.exceptions.ServiceFailure;
+import org.dataone.service.types.v1.Event;
+import org.dataone.service.types.v1.Session;
+
+/**
+ * Harvests the log records of a node for a time range with concurrent 
+ * getLogRecords calls, instead of paging through the whole range with ever 
+ * deeper (and slower) start offsets.
+ * <p>
+ * The range [fromDate, toDate) is split into time slices, which are fetched
+ * by up to 'parallelism' threads.  A slice whose first page reports more than
+ * maxSliceRecords records is split again, into slices expected to hold about
+ * maxSliceRecords each, until slices are no shorter than minSliceMillis, so 
+ * the slicing adapts to how the records are distributed in time.  The records
+ * of a slice are then paged through from start 0, so start offsets stay 
+ * shallow.
+ * <p>
+ * Records are delivered to a LogEntryHandler on the harvesting thread, either
+ * in time-slice order (with at most 'lookahead' slices fetched ahead of the 
+ * one being delivered) or in the order the slices complete, for throughput.
+ * Each request is made through the node's getLogRecords method, so it has 
+ * the timeout of the getLogRecords request policy 
+ * (D1Client.D1Node.getLogRecords.timeout), and a harvest can't stall on a 
+ * slice for longer than the timeouts of its pages.
+ * <p>
+ * Defaults are set with the following properties:
+ * D1Client.logHarvest.parallelism (4)
+ * D1Client.logHarvest.pageSize (1000)
+ * D1Client.logHarvest.maxSliceRecords (10000)
+ * D1Client.logHarvest.minSliceMillis (1000)
+ * 
+ * @author rnahf
+ *
+ * @param <E> the type of the log entries (the v1 or v2 LogEntry)
+ */
+public abstract class LogRecordHarvester<E> {
+
+    final static Logger logger = Logger.getLogger(LogRecordHarvester.class);
+    
+    public static final String PARALLELISM_PARAM = "D1Client.logHarvest.parallelism";
+    public static final String PAGE_SIZE_PARAM = "D1Client.logHarvest.pageSize";
+    public static final String MAX_SLICE_RECORDS_PARAM = "D1Client.logHarvest.maxSliceRecords";
+    public static final String MIN_SLICE_MILLIS_PARAM = "D1Client.logHarvest.minSliceMillis";
+    
+    /* the most slices one slice is split into at once */
+    private static final int MAX_SPLIT = 64;
+    
+    /**
+     * Receives the harvested log entries, one slice (or page) at a time, on 
+     * the thread that called harvest().  A RuntimeException thrown from 
+     * handle() stops the harvest and is rethrown from harvest().
+     * @param <E>
+     */
+    public static interface LogEntryHandler<E> {
+        void handle(List<E> entries);
+    }
+    
+    /* a time slice, and (once fetched) its entries, or the slices it was split into */
+    private static class Slice<E> {
+        final long from;
+        final long to;
+        List<E> entries;
+        List<Slice<E>> split;
+        
+        Slice(long from, long to) {
+            this.from = from;
+            this.to = to;
+        }
+    }
+    
+    private static final Comparator<Slice<?>> BY_FROM = new Comparator<Slice<?>>() {
+        @Override
+        public int compare(Slice<?> s1, Slice<?> s2) {
+            return Long.compare(s1.from, s2.from);
+        }
+    };
+    
+    private final int parallelism;
+    private final int pageSize;
+    private final int maxSliceRecords;
+    private final long minSliceMillis;
+    private final int lookahead;
+    
+    
+    /**
+     * Constructs a harvester with the settings from the configuration.
+     */
+    protected LogRecordHarvester() 
+    {
+        this(Settings.getConfiguration().getInt(PARALLELISM_PARAM, 4),
+                Settings.getConfiguration().getInt(PAGE_SIZE_PARAM, 1000),
+                Settings.getConfiguration().getInt(MAX_SLICE_RECORDS_PARAM, 10000),
+                Settings.getConfiguration().getLong(MIN_SLICE_MILLIS_PARAM, 1000));
+    }
+    
+    /**
+     * @param parallelism - the number of concurrent getLogRecords calls
+     * @param pageSize - the count requested per call
+     * @param maxSliceRecords - slices reporting more records than this are split
+     * @param minSliceMillis - slices this short are never split
+     */
+    protected LogRecordHarvester(int parallelism, int pageSize, int maxSliceRecords, long minSliceMillis) 
+    {
+        this.parallelism = Math.max(1, parallelism);
+        this.pageSize = Math.max(1, pageSize);
+        this.maxSliceRecords = Math.max(this.pageSize, maxSliceRecords);
+        this.minSliceMillis = Math.max(1, minSliceMillis);
+        this.lookahead = 2 * this.parallelism;
+    }
+    
+    /**
+     * Calls the node's getLogRecords method for one page of a time slice.
+     * Called concurrently from the harvesting threads.
+     * @param fromDate
+     * @param toDate
+     * @param start
+     * @param count
+     * @return the page's entries and the slice's total
+     * @throws BaseException
+     */
+    protected abstract Page<E> getLogRecords(Date fromDate, Date toDate, int start, int count) 
+    throws BaseException;
+    
+    
+    /**
+     * Harvests the log records logged in [fromDate, toDate), delivering them to
+     * the handler.
+     * 
+     * @param fromDate
+     * @param toDate
+     * @param ordered - if true, records are delivered in time-slice order (records
+     *          within a slice are in the order the node returns them), otherwise 
+     *          in the order the slices complete
+     * @param handler
+     * @return the number of log entries delivered
+     * @throws BaseException - the exception of the first failed getLogRecords call
+     * @throws InterruptedException
+     */
+    public long harvest(Date fromDate, Date toDate, boolean ordered, LogEntryHandler<E> handler) 
+    throws BaseException, InterruptedException
+    {
+        if (fromDate == null || toDate == null || !toDate.after(fromDate))
+            throw new InvalidRequest("0000", "A harvest needs a fromDate before its toDate: " 
+                    + fromDate + " " + toDate);
+        
+        ExecutorService executor = Executors.newFixedThreadPool(this.parallelism, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "d1-log-harvest-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        try {
+            return harvest(executor, fromDate.getTime(), toDate.getTime(), ordered, handler);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+    
+    private long harvest(ExecutorService executor, long from, long to, boolean ordered, 
+            LogEntryHandler<E> handler) 
+    throws BaseException, InterruptedException
+    {
+        CompletionService<Slice<E>> completion = new ExecutorCompletionService<Slice<E>>(executor);
+        PriorityQueue<Slice<E>> pending = new PriorityQueue<Slice<E>>(16, BY_FROM);
+        // (ordered) the submitted slices not yet delivered, by start time
+        TreeMap<Long, Slice<E>> undelivered = new TreeMap<Long, Slice<E>>();
+        
+        pending.addAll(split(new Slice<E>(from, to), this.parallelism));
+        int running = 0;
+        long delivered = 0;
+        
+        while (running > 0 || !pending.isEmpty()) {
+            // keep the threads busy, without running too far ahead of delivery
+            // (but the earliest slice can always go, or delivery could stall)
+            while (running < this.parallelism && !pending.isEmpty()
+                    && (!ordered || undelivered.size() < this.lookahead 
+                            || pending.peek().from < undelivered.firstKey())) {
+                final Slice<E> slice = pending.poll();
+                completion.submit(new Callable<Slice<E>>() {
+                    @Override
+                    public Slice<E> call() throws Exception {
+                        return fetchSlice(slice);
+                    }
+                });
+                if (ordered)
+                    undelivered.put(slice.from, slice);
+                running++;
+            }
+            
+            Slice<E> done;
+            try {
+                done = completion.take().get();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof BaseException)
+                    throw (BaseException) cause;
+                if (cause instanceof RuntimeException)
+                    throw (RuntimeException) cause;
+                ServiceFailure sf = new ServiceFailure("0000", "Log harvest failed: " + cause);
+                sf.initCause(cause);
+                throw sf;
+            }
+            running--;
+            
+            if (done.split != null) {
+                if (ordered)
+                    undelivered.remove(done.from);
+                pending.addAll(done.split);
+            } else if (!ordered) {
+                delivered += deliver(done, handler);
+            }
+            
+            if (ordered) {
+                // deliver the earliest slices, up to the first one still outstanding
+                while (!undelivered.isEmpty()) {
+                    Slice<E> first = undelivered.firstEntry().getValue();
+                    if (first.entries == null)
+                        break;
+                    Slice<E> earliestPending = pending.peek();
+                    if (earliestPending != null && earliestPending.from < first.from)
+                        break;
+                    undelivered.pollFirstEntry();
+                    delivered += deliver(first, handler);
+                }
+            }
+        }
+        return delivered;
+    }
+    
+    private long deliver(Slice<E> slice, LogEntryHandler<E> handler) 
+    {
+        List<E> entries = slice.entries;
+        slice.entries = null;  // delivered, let it be collected
+        if (entries.isEmpty())
+            return 0;
+        handler.handle(entries);
+        return entries.size();
+    }
+    
+    /*
+     * fetches the slice's records, unless its first page shows it has too many,
+     * in which case it records how to split it
+     */
+    private Slice<E> fetchSlice(Slice<E> slice) throws BaseException 
+    {
+        Date fromDate = new Date(slice.from);
+        Date toDate = new Date(slice.to);
+        
+        Page<E> page = getLogRecords(fromDate, toDate, 0, this.pageSize);
+        int total = page.getTotal();
+        if (total > this.maxSliceRecords && slice.to - slice.from >= 2 * this.minSliceMillis) {
+            int parts = (int) Math.min(MAX_SPLIT, (total + this.maxSliceRecords - 1L) / this.maxSliceRecords);
+            slice.split = split(slice, Math.max(2, parts));
+            if (logger.isDebugEnabled())
+                logger.debug(String.format("splitting slice [%tFT%<tT, %tFT%<tT) of %d records into %d", 
+                        fromDate, toDate, total, slice.split.size()));
+            return slice;
+        }
+        
+        List<E> entries = new ArrayList<E>(page.getItems());
+        while (!page.getItems().isEmpty() && (total < 0 || entries.size() < total)) {
+            page = getLogRecords(fromDate, toDate, entries.size(), this.pageSize);
+            entries.addAll(page.getItems());
+        }
+        slice.entries = entries;
+        return slice;
+    }
+    
+    /* splits the slice into (at most) n slices of equal duration, no shorter than minSliceMillis */
+    private List<Slice<E>> split(Slice<E> slice, int n) 
+    {
+        long duration = slice.to - slice.from;
+        int parts = (int) Math.max(1, Math.min(n, duration / this.minSliceMillis));
+        List<Slice<E>> slices = new ArrayList<Slice<E>>(parts);
+        long from = slice.from;
+        for (int i = 1; i <= parts; i++) {
+            long to = i == parts ? slice.to : slice.from + duration * i / parts;
+            slices.add(new Slice<E>(from, to));
+            from = to;
+        }
+        return slices;
+    }
+    
+    
+    /**
+     * Returns a harvester of the v2 MNode's log records, filtered by event and 
+     * idFilter (either can be null).
+     */
+    public static LogRecordHarvester<org.dataone.service.types.v2.LogEntry> forNode(
+            final org.dataone.client.v2.MNode mn, final Session session, final String event, final String idFilter) 
+    {
+        return new LogRecordHarvester<org.dataone.service.types.v2.LogEntry>() {
+            @Override
+            protected Page<org.dataone.service.types.v2.LogEntry> getLogRecords(Date fromDate, Date toDate, 
+                    int start, int count) throws BaseException {
+                org.dataone.service.types.v2.Log log = 
+                        mn.getLogRecords(session, fromDate, toDate, event, idFilter, start, count);
+                return new Page<org.dataone.service.types.v2.LogEntry>(log.getLogEntryList(), log.getTotal());
+            }
+        };
+    }
+    
+    /**
+     * Returns a harvester of the v2 CNode's log records, filtered by event and 
+     * idFilter (either can be null).
+     */
+    public static LogRecordHarvester<org.dataone.service.types.v2.LogEntry> forNode(
+            final org.dataone.client.v2.CNode cn, final Session session, final String event, final String idFilter) 
+    {
+        return new LogRecordHarvester<org.dataone.service.types.v2.LogEntry>() {
+            @Override
+            protected Page<org.dataone.service.types.v2.LogEntry> getLogRecords(Date fromDate, Date toDate, 
+                    int start, int count) throws BaseException {
+                org.dataone.service.types.v2.Log log = 
+                        cn.getLogRecords(session, fromDate, toDate, event, idFilter, start, count);
+                return new Page<org.dataone.service.types.v2.LogEntry>(log.getLogEntryList(), log.getTotal());
+            }
+        };
+    }
+    
+    /**
+     * Returns a harvester of the v1 MNode's log records, filtered by event and 
+     * idFilter (either can be null).
+     */
+    public static LogRecordHarvester<org.dataone.service.types.v1.LogEntry> forNode(
+            final org.dataone.client.v1.MNode mn, final Session session, final Event event, final String idFilter) 
+    {
+        return new LogRecordHarvester<org.dataone.service.types.v1.LogEntry>() {
+            @Override
+            protected Page<org.dataone.service.types.v1.LogEntry> getLogRecords(Date fromDate, Date toDate, 
+                    int start, int count) throws BaseException {
+                org.dataone.service.types.v1.Log log = 
+                        mn.getLogRecords(session, fromDate, toDate, event, idFilter, start, count);
+                return new Page<org.dataone.service.types.v1.LogEntry>(log.getLogEntryList(), log.getTotal());
+            }
+        };
+    }
+    
+    /**
+     * Returns a harvester of the v1 CNode's log records, filtered by event and 
+     * idFilter (either can be null).
+     */
+    public static LogRecordHarvester<org.dataone.service.types.v1.LogEntry> forNode(
+            final org.dataone.client.v1.CNode cn, final Session session, final Event event, final String idFilter) 
+    {
+        return new LogRecordHarvester<org.dataone.service.types.v1.LogEntry>() {
+            @Override
+            protected Page<org.dataone.service.types.v1.LogEntry> getLogRecords(Date fromDate, Date toDate, 
+                    int start, int count) throws BaseException {
+                org.dataone.service.types.v1.Log log = 
+                        cn.getLogRecords(session, fromDate, toDate, event, idFilter, start, count);
+                return new Page<org.dataone.service.types.v1.LogEntry>(log.getLogEntryList(), log.getTotal());
+            }
+        };
+    }
+}
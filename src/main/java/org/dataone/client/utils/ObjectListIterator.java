@@ -0,0 +1,154 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.dataone.client.utils;
+
+import java.util.Date;
+
+import org.dataone.service.exceptions.BaseException;
+import org.dataone.service.types.v1.Identifier;
+import org.dataone.service.types.v1.NodeReference;
+import org.dataone.service.types.v1.ObjectFormatIdentifier;
+import org.dataone.service.types.v1.ObjectInfo;
+import org.dataone.service.types.v1.ObjectList;
+import org.dataone.service.types.v1.Session;
+
+/**
+ * A prefetching Iterator over the ObjectInfos returned by a node's listObjects
+ * method, so that harvesting a node's object list is a single loop instead of
+ * a start / count loop that waits for each page in turn.  See 
+ * PrefetchingPageIterator for the paging and prefetching behavior.
+ * <p>
+ * The static forNode() methods build iterators for the v1 and v2 CNodes and 
+ * MNodes, with the same filters as their listObjects methods, for example:
+ * <pre>
+ * ObjectListIterator it = ObjectListIterator.forNode(mn, session, fromDate, null, null, null, null);
+ * try {
+ *     while (it.hasNext()) {
+ *         ObjectInfo oi = it.next();
+ *         ...
+ *     }
+ * } finally {
+ *     it.close();
+ * }
+ * </pre>
+ * 
+ * @author rnahf
+ *
+ */
+public abstract class ObjectListIterator extends PrefetchingPageIterator<ObjectInfo> {
+
+    /**
+     * Constructs an iterator starting at the given list index, with the page
+     * size and prefetch settings from the configuration.
+     * @param start
+     */
+    protected ObjectListIterator(int start) 
+    {
+        super(start);
+    }
+    
+    /**
+     * @see PrefetchingPageIterator#PrefetchingPageIterator(int, int, int, int, long)
+     */
+    protected ObjectListIterator(int start, int prefetchPages, int initialPageSize, 
+            int maxPageSize, long targetPageMillis) 
+    {
+        super(start, prefetchPages, initialPageSize, maxPageSize, targetPageMillis);
+    }
+    
+    /**
+     * Calls the node's listObjects method for one page.
+     * @param start
+     * @param count
+     * @return
+     * @throws BaseException
+     */
+    protected abstract ObjectList listObjects(Integer start, Integer count) throws BaseException;
+    
+    @Override
+    protected Page<ObjectInfo> fetchPage(int start, int count) throws BaseException 
+    {
+        ObjectList ol = listObjects(start, count);
+        if (ol == null)
+            return new Page<ObjectInfo>(null, -1);
+        return new Page<ObjectInfo>(ol.getObjectInfoList(), ol.getTotal());
+    }
+    
+    
+    /**
+     * Returns an iterator over the v2 MNode's listObjects results.
+     */
+    public static ObjectListIterator forNode(final org.dataone.client.v2.MNode mn, final Session session, 
+            final Date fromDate, final Date toDate, final ObjectFormatIdentifier formatid, 
+            final Identifier identifier, final Boolean replicaStatus) 
+    {
+        return new ObjectListIterator(0) {
+            @Override
+            protected ObjectList listObjects(Integer start, Integer count) throws BaseException {
+                return mn.listObjects(session, fromDate, toDate, formatid, identifier, replicaStatus, start, count);
+            }
+        };
+    }
+    
+    /**
+     * Returns an iterator over the v2 CNode's listObjects results.
+     */
+    public static ObjectListIterator forNode(final org.dataone.client.v2.CNode cn, final Session session, 
+            final Date fromDate, final Date toDate, final ObjectFormatIdentifier formatid, 
+            final NodeReference nodeId, final Identifier identifier) 
+    {
+        return new ObjectListIterator(0) {
+            @Override
+            protected ObjectList listObjects(Integer start, Integer count) throws BaseException {
+                return cn.listObjects(session, fromDate, toDate, formatid, nodeId, identifier, start, count);
+            }
+        };
+    }
+    
+    /**
+     * Returns an iterator over the v1 MNode's listObjects results.
+     */
+    public static ObjectListIterator forNode(final org.dataone.client.v1.MNode mn, final Session session, 
+            final Date fromDate, final Date toDate, final ObjectFormatIdentifier formatid, 
+            final Boolean replicaStatus) 
+    {
+        return new ObjectListIterator(0) {
+            @Override
+            protected ObjectList listObjects(Integer start, Integer count) throws BaseException {
+                return mn.listObjects(session, fromDate, toDate, formatid, replicaStatus, start, count);
+            }
+        };
+    }
+    
+    /**
+     * Returns an iterator over the v1 CNode's listObjects results.
+     */
+    public static ObjectListIterator forNode(final org.dataone.client.v1.CNode cn, final Session session, 
+            final Date fromDate, final Date toDate, final ObjectFormatIdentifier formatid, 
+            final Boolean replicaStatus) 
+    {
+        return new ObjectListIterator(0) {
+            @Override
+            protected ObjectList listObjects(Integer start, Integer count) throws BaseException {
+                return cn.listObjects(session, fromDate, toDate, formatid, replicaStatus, start, count);
+            }
+        };
+    }
+}
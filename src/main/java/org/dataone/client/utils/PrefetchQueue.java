@@ -0,0 +1,173 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.dataone.client.utils;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The hand-off between the background thread of a prefetching iterator 
+ * (PrefetchingPageIterator, SolrQueryCursor) and its caller: a bounded queue
+ * of items, ended either by the end of the input or by the producer's error,
+ * which the caller gets after the items produced before it.
+ * <p>
+ * Producers run on a shared pool of daemon threads, so an abandoned iterator
+ * can't hold up the JVM.  close() cancels the producer, drops the queued 
+ * items and wakes a caller waiting in take().
+ * 
+ * @author rnahf
+ *
+ * @param <T> the type of the items handed over
+ */
+class PrefetchQueue<T> {
+
+    /**
+     * The background work of an iterator: put()s items on the queue until 
+     * the end of its input.  Returning ends the queue, and anything thrown 
+     * (an Error included) ends it with that error.
+     */
+    interface Producer {
+        void produce() throws Exception;
+    }
+    
+    /* what the producer hands to the caller: an item, an error, or the end */
+    private static class Slot<T> {
+        final T item;
+        final Throwable error;
+        
+        Slot(T item, Throwable error) {
+            this.item = item;
+            this.error = error;
+        }
+    }
+    
+    /* producing threads are daemons, so an abandoned iterator can't hold up the JVM */
+    private static class ExecutorHolder {
+        static final ExecutorService INSTANCE = Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "d1-prefetch-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+    
+    private final BlockingQueue<Slot<T>> slots;
+    
+    private volatile boolean closed = false;
+    private volatile Future<?> producer;
+    
+    /**
+     * @param capacity - how many items may be held ahead of the caller (at least 1)
+     */
+    PrefetchQueue(int capacity) 
+    {
+        this.slots = new ArrayBlockingQueue<Slot<T>>(Math.max(1, capacity));
+    }
+    
+    /**
+     * Starts the producer in the background, if it hasn't been started yet.
+     * @param p
+     */
+    synchronized void start(final Producer p) 
+    {
+        if (this.producer != null || this.closed)
+            return;
+        this.producer = ExecutorHolder.INSTANCE.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    p.produce();
+                    PrefetchQueue.this.slots.put(new Slot<T>(null, null));
+                } catch (InterruptedException e) {
+                    // closed
+                    Thread.currentThread().interrupt();
+                } catch (Throwable e) {
+                    // an Error too, or the caller would wait in take() forever
+                    if (!PrefetchQueue.this.closed) {
+                        // the caller gets the items produced before the error first
+                        try {
+                            PrefetchQueue.this.slots.put(new Slot<T>(null, e));
+                        } catch (InterruptedException ie) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                }
+            }
+        });
+    }
+    
+    /**
+     * Hands an item to the caller, waiting while the queue is full.  Called 
+     * by the producer.
+     * @param item - not null
+     * @throws InterruptedException - if the queue is closed
+     */
+    void put(T item) throws InterruptedException 
+    {
+        if (this.closed)
+            throw new InterruptedException("the prefetch queue is closed");
+        this.slots.put(new Slot<T>(item, null));
+    }
+    
+    /**
+     * Returns the next item, waiting for it, or null at the end of the input
+     * or once the queue is closed.  After the end or an error, take() must 
+     * not be called again.
+     * @return
+     * @throws InterruptedException
+     * @throws ExecutionException - with the producer's error as its cause
+     */
+    T take() throws InterruptedException, ExecutionException 
+    {
+        Slot<T> slot = this.slots.take();
+        if (slot.error != null)
+            throw new ExecutionException(slot.error);
+        return slot.item;
+    }
+    
+    boolean isClosed() 
+    {
+        return this.closed;
+    }
+    
+    /**
+     * Cancels the producer, drops the items not taken yet, and wakes a caller
+     * waiting in take().  May be called from any thread.
+     */
+    synchronized void close() 
+    {
+        this.closed = true;
+        Future<?> f = this.producer;
+        if (f != null)
+            f.cancel(true);
+        this.slots.clear();
+        // wakes a caller waiting for an item
+        this.slots.offer(new Slot<T>(null, null));
+    }
+}
@@ -0,0 +1,293 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.dataone.client.utils;
+
+import java.io.Closeable;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.dataone.client.exception.PageFetchException;
+import org.dataone.configuration.Settings;
+import org.dataone.service.exceptions.BaseException;
+
+/**
+ * An Iterator over the items of a paged (start / count) DataONE list method,
+ * that fetches the next pages in the background while the caller consumes the
+ * current one, so the network isn't idle while a page is being unmarshalled or
+ * processed.  Up to prefetchPages pages are held ahead of the caller.
+ * <p>
+ * The page size adapts to the service's response time: each page is sized so 
+ * it should take about targetPageMillis to fetch, changing by at most a factor
+ * of two per page, within the configured bounds.  If the service returns fewer
+ * items than requested before the end of the list, its page size is taken as 
+ * the service's maximum.
+ * <p>
+ * The first page is requested on the first call to hasNext() or next().  A 
+ * failure to fetch a page is thrown from hasNext() or next() as a 
+ * PageFetchException, with the service's exception as its cause.  Callers that
+ * stop before the end of the list should close() the iterator, to stop the 
+ * background fetching.
+ * <p>
+ * Defaults are set with the following properties:
+ * D1Client.paging.prefetchPages (2)
+ * D1Client.paging.initialPageSize (1000)
+ * D1Client.paging.maxPageSize (10000)
+ * D1Client.paging.targetPageMillis (2000)
+ * 
+ * @author rnahf
+ *
+ * @param <T> the type of the list items
+ */
+public abstract class PrefetchingPageIterator<T> implements Iterator<T>, Closeable {
+
+    final static Logger logger = Logger.getLogger(PrefetchingPageIterator.class);
+    
+    public static final String PREFETCH_PAGES_PARAM = "D1Client.paging.prefetchPages";
+    public static final String INITIAL_PAGE_SIZE_PARAM = "D1Client.paging.initialPageSize";
+    public static final String MAX_PAGE_SIZE_PARAM = "D1Client.paging.maxPageSize";
+    public static final String TARGET_PAGE_MILLIS_PARAM = "D1Client.paging.targetPageMillis";
+    
+    /* the page size never adapts below this */
+    private static final int MIN_PAGE_SIZE = 10;
+    
+    /**
+     * A page of items, and the total number of items in the list (or -1 if 
+     * not known).
+     * @param <T>
+     */
+    public static class Page<T> {
+        
+        private final List<T> items;
+        private final int total;
+        
+        public Page(List<T> items, int total) {
+            this.items = items == null ? Collections.<T>emptyList() : items;
+            this.total = total;
+        }
+        
+        public List<T> getItems() {
+            return this.items;
+        }
+        
+        public int getTotal() {
+            return this.total;
+        }
+    }
+    
+    private final int start;
+    private final int initialPageSize;
+    private final int maxPageSize;
+    private final long targetPageNanos;
+    private final PrefetchQueue<List<T>> pages;
+    
+    private volatile int total = -1;
+    private volatile int pagesFetched = 0;
+    private volatile int pageSize;
+    private Iterator<T> current = Collections.<T>emptyList().iterator();
+    private boolean exhausted = false;
+    
+    /**
+     * Constructs an iterator starting at the given list index, with the page 
+     * size and prefetch settings from the configuration.
+     * @param start
+     */
+    protected PrefetchingPageIterator(int start) 
+    {
+        this(start,
+                Settings.getConfiguration().getInt(PREFETCH_PAGES_PARAM, 2),
+                Settings.getConfiguration().getInt(INITIAL_PAGE_SIZE_PARAM, 1000),
+                Settings.getConfiguration().getInt(MAX_PAGE_SIZE_PARAM, 10000),
+                Settings.getConfiguration().getLong(TARGET_PAGE_MILLIS_PARAM, 2000));
+    }
+    
+    /**
+     * @param start - the list index to start from
+     * @param prefetchPages - how many pages may be held ahead of the caller
+     * @param initialPageSize - the count of the first page requested
+     * @param maxPageSize - the largest count requested
+     * @param targetPageMillis - the time each page should take to fetch.  If 0 
+     *      or less, the page size doesn't adapt.
+     */
+    protected PrefetchingPageIterator(int start, int prefetchPages, int initialPageSize, 
+            int maxPageSize, long targetPageMillis) 
+    {
+        this.start = Math.max(0, start);
+        this.maxPageSize = Math.max(1, maxPageSize);
+        this.initialPageSize = Math.max(1, Math.min(initialPageSize, this.maxPageSize));
+        this.targetPageNanos = TimeUnit.MILLISECONDS.toNanos(targetPageMillis);
+        this.pages = new PrefetchQueue<List<T>>(prefetchPages);
+        this.pageSize = this.initialPageSize;
+    }
+    
+    /**
+     * Fetches the page of count items starting at the start index.  Called 
+     * from a background thread.  An empty page ends the iteration.
+     * @param start
+     * @param count
+     * @return
+     * @throws BaseException
+     */
+    protected abstract Page<T> fetchPage(int start, int count) throws BaseException;
+    
+    
+    @Override
+    public synchronized boolean hasNext() 
+    {
+        if (this.pages.isClosed())
+            return false;
+        while (!this.current.hasNext()) {
+            if (this.exhausted || this.pages.isClosed())
+                return false;
+            startFetching();
+            List<T> items;
+            try {
+                items = this.pages.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new PageFetchException("Interrupted waiting for the next page", e);
+            } catch (ExecutionException e) {
+                this.exhausted = true;
+                throw new PageFetchException("Could not fetch a page: " + e.getCause().getMessage(), e.getCause());
+            }
+            if (items == null) {
+                this.exhausted = true;
+                return false;
+            }
+            this.current = items.iterator();
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized T next() 
+    {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        return this.current.next();
+    }
+
+    @Override
+    public void remove() 
+    {
+        throw new UnsupportedOperationException("The items of a paged list can't be removed");
+    }
+    
+    /**
+     * Stops the background fetching and ends the iteration.  May be called 
+     * from another thread than the one iterating.
+     */
+    @Override
+    public void close() 
+    {
+        this.pages.close();
+    }
+    
+    /**
+     * Returns the total number of items in the list, as last reported by the
+     * service, or -1 if no page has been fetched yet (or the service doesn't
+     * report it).
+     * @return
+     */
+    public int getTotal() 
+    {
+        return this.total;
+    }
+    
+    /**
+     * Returns the number of pages fetched so far.
+     * @return
+     */
+    public int getPagesFetched() 
+    {
+        return this.pagesFetched;
+    }
+    
+    /**
+     * Returns the count that will be requested for the next page.
+     * @return
+     */
+    public int getPageSize() 
+    {
+        return this.pageSize;
+    }
+    
+    
+    private void startFetching() 
+    {
+        this.pages.start(new PrefetchQueue.Producer() {
+            @Override
+            public void produce() throws Exception {
+                fetchPages();
+            }
+        });
+    }
+    
+    /* the background loop: fetches pages in order until the end of the list */
+    private void fetchPages() throws BaseException, InterruptedException 
+    {
+        int next = this.start;
+        int count = this.initialPageSize;
+        int serviceMax = this.maxPageSize;
+        while (!this.pages.isClosed()) {
+            long began = System.nanoTime();
+            Page<T> page = fetchPage(next, count);
+            long elapsed = System.nanoTime() - began;
+            
+            int n = page.getItems().size();
+            this.total = page.getTotal();
+            this.pagesFetched++;
+            if (n > 0)
+                this.pages.put(page.getItems());
+            next += n;
+            if (n == 0 || (page.getTotal() >= 0 && next >= page.getTotal()))
+                break;
+            
+            if (n < count) 
+                // a short page before the end: the service's maximum page size
+                serviceMax = Math.max(1, n);
+            count = adaptPageSize(count, n, elapsed, serviceMax);
+            this.pageSize = count;
+            if (logger.isDebugEnabled())
+                logger.debug(String.format("fetched %d items at %d in %d ms, next page size %d",
+                        n, next - n, TimeUnit.NANOSECONDS.toMillis(elapsed), count));
+        }
+    }
+    
+    /*
+     * sizes the next page to take about the target time, given the time per
+     * item of the last page, changing by at most a factor of two
+     */
+    private int adaptPageSize(int count, int fetched, long elapsedNanos, int serviceMax) 
+    {
+        int size = count;
+        if (this.targetPageNanos > 0 && fetched > 0 && elapsedNanos > 0) {
+            double nanosPerItem = (double) elapsedNanos / fetched;
+            long target = (long) (this.targetPageNanos / nanosPerItem);
+            size = (int) Math.max(count / 2, Math.min(target, 2L * count));
+        }
+        size = Math.min(size, Math.min(this.maxPageSize, serviceMax));
+        return Math.max(size, Math.min(MIN_PAGE_SIZE, serviceMax));
+    }
+}
@@ -0,0 +1,194 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.dataone.client.utils;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.ConnectionReuseStrategy;
+import org.apache.http.HttpException;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.conn.HttpClientConnectionManager;
+import org.apache.http.conn.socket.LayeredConnectionSocketFactory;
+import org.apache.http.protocol.HttpContext;
+import org.apache.log4j.Logger;
+
+/**
+ * A LayeredConnectionSocketFactory whose SSL key material can be replaced 
+ * while the HttpClient using it is in service, so that a client certificate 
+ * can be rotated without rebuilding the HttpClient and its connection pool.
+ * <p>
+ * New connections are always made with the current delegate socket factory.
+ * Each key material is a numbered generation, which is used as the 
+ * connection state (user token) of the pooled connections, so that requests
+ * only lease connections made with the current generation.  Connections of
+ * a previous generation are drained gracefully: the idle ones are closed when
+ * the key material is rotated, and the ones in use finish their request and
+ * are then closed instead of being returned to the pool.
+ * <p>
+ * For this to work the HttpClient needs the interceptor from 
+ * getConnectionStateInterceptor() and the strategy from 
+ * getConnectionReuseStrategy() (see HttpUtils.getHttpClientBuilder(RotatingSSLConnectionSocketFactory, Boolean)).
+ * 
+ * @author rnahf
+ *
+ */
+public class RotatingSSLConnectionSocketFactory implements LayeredConnectionSocketFactory {
+
+    static final Logger logger = Logger.getLogger(RotatingSSLConnectionSocketFactory.class.getName());
+
+    private volatile Generation current;
+
+    private final List<HttpClientConnectionManager> connectionManagers = 
+            new CopyOnWriteArrayList<HttpClientConnectionManager>();
+
+    /**
+     * @param socketFactory - the socket factory holding the initial key material
+     */
+    public RotatingSSLConnectionSocketFactory(LayeredConnectionSocketFactory socketFactory) {
+        if (socketFactory == null)
+            throw new IllegalArgumentException("The socketFactory cannot be null");
+        this.current = new Generation(0, socketFactory);
+    }
+
+    /**
+     * Replaces the key material used for new connections, and closes the idle
+     * pooled connections made with the previous one.  Connections in use are
+     * closed when their request completes.
+     * 
+     * @param socketFactory - the socket factory holding the new key material
+     */
+    public void rotate(LayeredConnectionSocketFactory socketFactory) {
+        if (socketFactory == null)
+            throw new IllegalArgumentException("The socketFactory cannot be null");
+        
+        synchronized (this) {
+            this.current = new Generation(this.current.serial + 1, socketFactory);
+        }
+        logger.info("Rotated SSL key material to generation " + this.current.serial);
+        
+        for (HttpClientConnectionManager connMan : connectionManagers) {
+            connMan.closeIdleConnections(0, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Registers a connection manager whose idle connections are closed when
+     * the key material is rotated.
+     * @param connMan
+     */
+    public void addConnectionManager(HttpClientConnectionManager connMan) {
+        connectionManagers.add(connMan);
+    }
+
+    /**
+     * @return the number of times the key material has been rotated
+     */
+    public long getGeneration() {
+        return current.serial;
+    }
+
+    /**
+     * @return the socket factory currently used for new connections
+     */
+    public LayeredConnectionSocketFactory getCurrentSocketFactory() {
+        return current.socketFactory;
+    }
+
+    /**
+     * Returns an interceptor that sets the current generation as the user token
+     * of each request, so that only connections made with the current key 
+     * material are leased for it.
+     * @return
+     */
+    public HttpRequestInterceptor getConnectionStateInterceptor() {
+        return new HttpRequestInterceptor() {
+            @Override
+            public void process(HttpRequest request, HttpContext context)
+                    throws HttpException, IOException {
+                context.setAttribute(HttpClientContext.USER_TOKEN, current);
+            }
+        };
+    }
+
+    /**
+     * Returns a ConnectionReuseStrategy that does not keep alive connections
+     * of a previous generation, and otherwise defers to the given strategy.
+     * @param strategy - the strategy for connections of the current generation
+     * @return
+     */
+    public ConnectionReuseStrategy getConnectionReuseStrategy(final ConnectionReuseStrategy strategy) {
+        return new ConnectionReuseStrategy() {
+            @Override
+            public boolean keepAlive(HttpResponse response, HttpContext context) {
+                Object token = context.getAttribute(HttpClientContext.USER_TOKEN);
+                if (token instanceof Generation && token != current) {
+                    return false;
+                }
+                return strategy.keepAlive(response, context);
+            }
+        };
+    }
+
+    @Override
+    public Socket createSocket(HttpContext context) throws IOException {
+        return current.socketFactory.createSocket(context);
+    }
+
+    @Override
+    public Socket connectSocket(int connectTimeout, Socket sock, HttpHost host,
+            InetSocketAddress remoteAddress, InetSocketAddress localAddress,
+            HttpContext context) throws IOException {
+        return current.socketFactory.connectSocket(connectTimeout, sock, host, 
+                remoteAddress, localAddress, context);
+    }
+
+    @Override
+    public Socket createLayeredSocket(Socket socket, String target, int port,
+            HttpContext context) throws IOException {
+        return current.socketFactory.createLayeredSocket(socket, target, port, context);
+    }
+
+
+    /* one key material, used as the state of the connections made with it */
+    private static final class Generation {
+        final long serial;
+        final LayeredConnectionSocketFactory socketFactory;
+
+        Generation(long serial, LayeredConnectionSocketFactory socketFactory) {
+            this.serial = serial;
+            this.socketFactory = socketFactory;
+        }
+
+        @Override
+        public String toString() {
+            return "key material generation " + serial;
+        }
+    }
+}
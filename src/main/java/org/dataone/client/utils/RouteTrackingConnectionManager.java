@@ -0,0 +1,62 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.dataone.client.utils;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.http.config.Registry;
+import org.apache.http.conn.ConnectionRequest;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+
+/**
+ * A PoolingHttpClientConnectionManager that remembers the routes it has been
+ * asked for, so that per-route pool statistics can be reported.  (The 
+ * HttpClient 4.3 pool does not enumerate its routes.)
+ * 
+ * @author rnahf
+ *
+ */
+public class RouteTrackingConnectionManager extends PoolingHttpClientConnectionManager {
+
+    private final Set<HttpRoute> routes = 
+            Collections.newSetFromMap(new ConcurrentHashMap<HttpRoute, Boolean>());
+
+    public RouteTrackingConnectionManager(Registry<ConnectionSocketFactory> registry) {
+        super(registry);
+    }
+
+    @Override
+    public ConnectionRequest requestConnection(HttpRoute route, Object state) {
+        routes.add(route);
+        return super.requestConnection(route, state);
+    }
+
+    /**
+     * @return an unmodifiable view of the routes requested so far
+     */
+    public Set<HttpRoute> getRoutes() {
+        return Collections.unmodifiableSet(routes);
+    }
+}
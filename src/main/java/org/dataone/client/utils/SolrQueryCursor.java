@@ -0,0 +1,531 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.dataone.client.utils;
+
+import java.io.Closeable;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.log4j.Logger;
+import org.dataone.client.exception.PageFetchException;
+import org.dataone.client.rest.MultipartD1Node;
+import org.dataone.configuration.Settings;
+import org.dataone.service.exceptions.BaseException;
+import org.dataone.service.exceptions.InvalidRequest;
+import org.dataone.service.types.v1.Session;
+
+/**
+ * An Iterator over all the documents matching a solr query, reading the 
+ * result pages of a node's query service one after another, so that exporting
+ * a large result set is a single loop instead of a start / rows loop.
+ * <p>
+ * Pages are requested with solr's cursorMark, which costs the same for every
+ * page, instead of start offsets, which get slower the deeper the page.  
+ * Cursors need a sort ending on the index's unique key ("id"), so that is 
+ * added to the query's sort.  If the service refuses the cursorMark, or 
+ * ignores it (solr before 4.7), or the query has its own start offset, 
+ * the pages are requested with start / rows instead.
+ * <p>
+ * Each response is parsed as it is read, with a StAX reader, into lightweight
+ * Documents (field names to string values).  A page is read whole and its 
+ * response closed before the page is handed to the caller, so a slow caller
+ * never keeps a response (and its pooled connection) open; the reader then 
+ * goes on to the next page while the caller works through the buffer.  The
+ * buffer holds bufferedDocuments Documents, rounded up to whole pages and at
+ * least one page, so the reader can run at least a page ahead of the caller,
+ * and up to that buffer plus the page being read is held in memory.  The 
+ * query is sent with wt=xml.
+ * <p>
+ * The first page is requested on the first call to hasNext() or next().  A 
+ * failure is thrown from hasNext() or next() as a PageFetchException, with
+ * the service's exception as its cause.  Callers that stop before the end of
+ * the results should close() the cursor.  For example:
+ * <pre>
+ * SolrQueryCursor cursor = SolrQueryCursor.forNode(cn, session, "solr", "?q=formatType:METADATA&amp;fl=id,dateUploaded");
+ * try {
+ *     while (cursor.hasNext()) {
+ *         SolrQueryCursor.Document doc = cursor.next();
+ *         String pid = doc.getFirstValue("id");
+ *         ...
+ *     }
+ * } finally {
+ *     cursor.close();
+ * }
+ * </pre>
+ * Defaults are set with the following properties:
+ * D1Client.solrCursor.rows (1000)
+ * D1Client.solrCursor.bufferedDocuments (1000)
+ * 
+ * @author rnahf
+ *
+ */
+public abstract class SolrQueryCursor implements Iterator<SolrQueryCursor.Document>, Closeable {
+
+    final static Logger logger = Logger.getLogger(SolrQueryCursor.class);
+    
+    public static final String ROWS_PARAM = "D1Client.solrCursor.rows";
+    public static final String BUFFERED_DOCUMENTS_PARAM = "D1Client.solrCursor.bufferedDocuments";
+    
+    /** the unique key of the DataONE solr index, the cursor's tie breaker */
+    public static final String UNIQUE_KEY = "id";
+    
+    private static final String CURSOR_START = "*";
+    
+    /**
+     * A solr result document: the stored fields returned for a hit, in the 
+     * order of the response.  Single-valued fields have a String value, 
+     * multi-valued fields a List of Strings.  Values are the text of the 
+     * response, so numbers and dates are left in solr's format.
+     */
+    public static final class Document {
+        
+        private final Map<String, Object> fields;
+        
+        Document(Map<String, Object> fields) {
+            this.fields = fields;
+        }
+        
+        /**
+         * Returns the names of the document's fields.
+         * @return
+         */
+        public Set<String> getFieldNames() {
+            return Collections.unmodifiableSet(this.fields.keySet());
+        }
+        
+        /**
+         * Returns the value of the field, or its first value if it is 
+         * multi-valued, or null if the document doesn't have the field.
+         * @param field
+         * @return
+         */
+        public String getFirstValue(String field) {
+            Object value = this.fields.get(field);
+            if (value instanceof List) {
+                List<?> values = (List<?>) value;
+                return values.isEmpty() ? null : (String) values.get(0);
+            }
+            return (String) value;
+        }
+        
+        /**
+         * Returns the values of the field (a single value as a list of one), 
+         * or an empty list if the document doesn't have the field.
+         * @param field
+         * @return
+         */
+        @SuppressWarnings("unchecked")
+        public List<String> getValues(String field) {
+            Object value = this.fields.get(field);
+            if (value == null) 
+                return Collections.<String>emptyList();
+            if (value instanceof List) 
+                return Collections.unmodifiableList((List<String>) value);
+            return Collections.singletonList((String) value);
+        }
+        
+        @Override
+        public String toString() {
+            return this.fields.toString();
+        }
+    }
+    
+    /* a page read: its documents, and the cursor mark for the next one */
+    private static class PageResult {
+        final List<Document> documents = new ArrayList<Document>();
+        String nextCursorMark = null;
+    }
+    
+    /* the query's own parameters, without the paging ones */
+    private final List<String> queryParams = new ArrayList<String>();
+    private final String sort;
+    private final int start;
+    private final int rows;
+    private final PrefetchQueue<List<Document>> buffer;
+    
+    private volatile boolean usingCursor;
+    private volatile long numFound = -1;
+    private volatile int pagesFetched = 0;
+    private Iterator<Document> current = Collections.<Document>emptyList().iterator();
+    private boolean exhausted = false;
+    
+    /**
+     * Constructs a cursor over the query's results, with the page size and 
+     * buffer size from the configuration.
+     * @param query
+     */
+    protected SolrQueryCursor(String query) 
+    {
+        this(query,
+                Settings.getConfiguration().getInt(ROWS_PARAM, 1000),
+                Settings.getConfiguration().getInt(BUFFERED_DOCUMENTS_PARAM, 1000));
+    }
+    
+    /**
+     * @param query - the url-encoded solr query parameters, as for 
+     *      MultipartD1Node.query(), with or without the leading '?'.  A rows 
+     *      parameter sets the page size, and a start parameter the first 
+     *      result (and turns off cursorMark paging).  wt and cursorMark 
+     *      parameters are replaced.
+     * @param rows - the number of documents requested per page
+     * @param bufferedDocuments - how many documents may be held ahead of the 
+     *      caller, rounded up to whole pages
+     * @throws IllegalArgumentException - if the query's start or rows isn't a number
+     */
+    protected SolrQueryCursor(String query, int rows, int bufferedDocuments) 
+    {
+        String sortParam = null;
+        int startParam = 0;
+        int rowsParam = rows;
+        String q = query == null ? "" : query;
+        if (q.startsWith("?"))
+            q = q.substring(1);
+        for (String param : q.split("&")) {
+            if (param.isEmpty())
+                continue;
+            int eq = param.indexOf('=');
+            String name = decode(eq < 0 ? param : param.substring(0, eq));
+            String value = eq < 0 ? "" : decode(param.substring(eq + 1));
+            if (name.equals("sort")) 
+                sortParam = value;
+            else if (name.equals("start")) 
+                startParam = Integer.parseInt(value.trim());
+            else if (name.equals("rows")) 
+                rowsParam = Integer.parseInt(value.trim());
+            else if (!name.equals("wt") && !name.equals("cursorMark"))
+                this.queryParams.add(param);
+        }
+        this.sort = withUniqueKeySort(sortParam);
+        this.start = Math.max(0, startParam);
+        this.rows = Math.max(1, rowsParam);
+        this.usingCursor = this.start == 0;
+        // whole pages, so the reader never waits for the caller with a response open
+        this.buffer = new PrefetchQueue<List<Document>>((bufferedDocuments + this.rows - 1) / this.rows);
+    }
+    
+    /**
+     * Sends the query to the service and returns the response stream.  Called
+     * from a background thread.
+     * @param encodedQuery - the url-encoded query, starting with '?'
+     * @return
+     * @throws BaseException
+     */
+    protected abstract InputStream query(String encodedQuery) throws BaseException;
+    
+    
+    /**
+     * Returns a cursor over the results of the query, sent to the node's 
+     * query service (MultipartD1Node.query()) with the given query engine,
+     * usually "solr".
+     * @param node - a v1 or v2 CNode or MNode
+     * @param session
+     * @param queryEngine
+     * @param query - the url-encoded solr query parameters
+     * @return
+     */
+    public static SolrQueryCursor forNode(final MultipartD1Node node, final Session session, 
+            final String queryEngine, String query) 
+    {
+        return new SolrQueryCursor(query) {
+            @Override
+            protected InputStream query(String encodedQuery) throws BaseException {
+                return node.query(session, queryEngine, encodedQuery);
+            }
+        };
+    }
+    
+    
+    @Override
+    public synchronized boolean hasNext() 
+    {
+        if (this.buffer.isClosed())
+            return false;
+        while (!this.current.hasNext()) {
+            if (this.exhausted || this.buffer.isClosed())
+                return false;
+            startReading();
+            List<Document> documents;
+            try {
+                documents = this.buffer.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new PageFetchException("Interrupted waiting for the next document", e);
+            } catch (ExecutionException e) {
+                this.exhausted = true;
+                throw new PageFetchException("Could not read a page of query results: " 
+                        + e.getCause().getMessage(), e.getCause());
+            }
+            if (documents == null) {
+                this.exhausted = true;
+                return false;
+            }
+            this.current = documents.iterator();
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized Document next() 
+    {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        return this.current.next();
+    }
+
+    @Override
+    public void remove() 
+    {
+        throw new UnsupportedOperationException("Query results can't be removed");
+    }
+    
+    /**
+     * Stops the background reading and ends the iteration.  May be called 
+     * from another thread than the one iterating.
+     */
+    @Override
+    public void close() 
+    {
+        this.buffer.close();
+    }
+    
+    /**
+     * Returns the number of documents matching the query, as last reported 
+     * by the service, or -1 if no page has been read yet.
+     * @return
+     */
+    public long getNumFound() 
+    {
+        return this.numFound;
+    }
+    
+    /**
+     * Returns the number of pages read so far.
+     * @return
+     */
+    public int getPagesFetched() 
+    {
+        return this.pagesFetched;
+    }
+    
+    /**
+     * Returns whether the pages are requested with cursorMark (true) or with
+     * start offsets (false).  This can change to false after the first page.
+     * @return
+     */
+    public boolean isUsingCursor() 
+    {
+        return this.usingCursor;
+    }
+    
+    
+    private void startReading() 
+    {
+        this.buffer.start(new PrefetchQueue.Producer() {
+            @Override
+            public void produce() throws Exception {
+                readPages();
+            }
+        });
+    }
+    
+    /* the background loop: reads pages in order until the end of the results */
+    private void readPages() throws BaseException, XMLStreamException, InterruptedException 
+    {
+        String cursorMark = this.usingCursor ? CURSOR_START : null;
+        int next = this.start;
+        while (!this.buffer.isClosed()) {
+            InputStream is;
+            try {
+                is = query(pageQuery(cursorMark, next));
+            } catch (InvalidRequest e) {
+                if (cursorMark == null || this.pagesFetched > 0)
+                    throw e;
+                logger.warn("The query service refused cursorMark paging, using start / rows: " 
+                        + e.getDescription());
+                cursorMark = null;
+                this.usingCursor = false;
+                continue;
+            }
+            PageResult page;
+            try {
+                page = readPage(is);
+            } finally {
+                IOUtils.closeQuietly(is);
+            }
+            int n = page.documents.size();
+            this.pagesFetched++;
+            next += n;
+            if (logger.isDebugEnabled())
+                logger.debug(String.format("read %d documents, %d of %d", n, next, this.numFound));
+            if (n == 0)
+                break;
+            // the response is closed, so waiting for room in the buffer holds no connection
+            this.buffer.put(page.documents);
+            if (cursorMark != null) {
+                if (page.nextCursorMark == null) {
+                    // an older solr ignored the cursorMark, so this was the page at start 0
+                    logger.warn("The query service doesn't support cursorMark paging, using start / rows");
+                    cursorMark = null;
+                    this.usingCursor = false;
+                } else if (page.nextCursorMark.equals(cursorMark)) {
+                    break;
+                } else {
+                    cursorMark = page.nextCursorMark;
+                }
+            }
+            if (this.numFound >= 0 && next >= this.numFound)
+                break;
+        }
+    }
+    
+    /* the query for one page: the query's parameters, then the sort and paging ones */
+    private String pageQuery(String cursorMark, int pageStart) 
+    {
+        StringBuilder sb = new StringBuilder("?");
+        for (String param : this.queryParams) 
+            sb.append(param).append('&');
+        sb.append("sort=").append(encode(this.sort));
+        sb.append("&rows=").append(this.rows);
+        sb.append("&wt=xml");
+        if (cursorMark != null)
+            sb.append("&cursorMark=").append(encode(cursorMark));
+        else
+            sb.append("&start=").append(pageStart);
+        return sb.toString();
+    }
+    
+    /* reads a solr xml response into a page of documents, recording numFound */
+    private PageResult readPage(InputStream is) throws XMLStreamException 
+    {
+        PageResult page = new PageResult();
+        XMLStreamReader r = StaxUtils.createXMLStreamReader(is);
+        try {
+            // move to the response element
+            r.nextTag();
+            while (r.nextTag() == XMLStreamConstants.START_ELEMENT) {
+                String element = r.getLocalName();
+                if (element.equals("result")) {
+                    String n = r.getAttributeValue(null, "numFound");
+                    if (n != null)
+                        this.numFound = Long.parseLong(n);
+                    readDocuments(r, page);
+                } else if (element.equals("str") 
+                        && "nextCursorMark".equals(r.getAttributeValue(null, "name"))) {
+                    page.nextCursorMark = r.getElementText();
+                } else {
+                    skipElement(r);
+                }
+            }
+        } finally {
+            r.close();
+        }
+        return page;
+    }
+    
+    /* reads the doc elements of the result element, through its end tag */
+    private void readDocuments(XMLStreamReader r, PageResult page) throws XMLStreamException 
+    {
+        while (r.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            if (!r.getLocalName().equals("doc")) {
+                skipElement(r);
+                continue;
+            }
+            Map<String, Object> fields = new LinkedHashMap<String, Object>();
+            while (r.nextTag() == XMLStreamConstants.START_ELEMENT) {
+                String name = r.getAttributeValue(null, "name");
+                String element = r.getLocalName();
+                if (element.equals("arr")) {
+                    List<String> values = new ArrayList<String>();
+                    while (r.nextTag() == XMLStreamConstants.START_ELEMENT)
+                        values.add(r.getElementText());
+                    fields.put(name, values);
+                } else if (element.equals("lst") || element.equals("doc")) {
+                    // nested structures aren't stored fields
+                    skipElement(r);
+                } else {
+                    fields.put(name, r.getElementText());
+                }
+            }
+            page.documents.add(new Document(fields));
+        }
+    }
+    
+    /* skips the current element, through its end tag */
+    private static void skipElement(XMLStreamReader r) throws XMLStreamException 
+    {
+        int depth = 1;
+        while (depth > 0) {
+            int event = r.next();
+            if (event == XMLStreamConstants.START_ELEMENT)
+                depth++;
+            else if (event == XMLStreamConstants.END_ELEMENT)
+                depth--;
+        }
+    }
+    
+    /* the query's sort, with the unique key added as the last sort field if it isn't there */
+    private static String withUniqueKeySort(String sort) 
+    {
+        if (sort == null || sort.trim().isEmpty())
+            return UNIQUE_KEY + " asc";
+        for (String clause : sort.split(",")) {
+            String[] terms = clause.trim().split("\\s+");
+            if (terms[0].equals(UNIQUE_KEY))
+                return sort;
+        }
+        return sort + "," + UNIQUE_KEY + " asc";
+    }
+    
+    private static String encode(String s) 
+    {
+        try {
+            return URLEncoder.encode(s, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            // UTF-8 is always supported
+            throw new IllegalStateException(e);
+        }
+    }
+    
+    private static String decode(String s) 
+    {
+        try {
+            return URLDecoder.decode(s, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            // UTF-8 is always supported
+            throw new IllegalStateException(e);
+        }
+    }
+}
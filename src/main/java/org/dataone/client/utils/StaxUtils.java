@@ -0,0 +1,61 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.dataone.client.utils;
+
+import java.io.InputStream;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * StAX readers for service responses, from one factory configured so that a
+ * response can't make the parser read a DTD or resolve external entities.
+ * Used by the streaming readers (StreamingListReader, SolrQueryCursor) 
+ * instead of their own XMLInputFactory.
+ * 
+ * @author rnahf
+ *
+ */
+final class StaxUtils {
+
+    private static final XMLInputFactory INPUT_FACTORY = XMLInputFactory.newInstance();
+    static {
+        // service responses never need DTDs, and must not resolve external entities
+        INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        INPUT_FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+        INPUT_FACTORY.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+    }
+    
+    private StaxUtils() {}
+    
+    /**
+     * Returns a reader over the xml of the stream, with DTDs and external 
+     * entities turned off and adjacent text coalesced.  Closing the reader 
+     * doesn't close the stream.
+     * @param is
+     * @return
+     * @throws XMLStreamException
+     */
+    static XMLStreamReader createXMLStreamReader(InputStream is) throws XMLStreamException 
+    {
+        return INPUT_FACTORY.createXMLStreamReader(is);
+    }
+}
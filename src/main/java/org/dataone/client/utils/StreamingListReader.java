@@ -0,0 +1,499 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.dataone.client.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.log4j.Logger;
+import org.dataone.service.exceptions.ServiceFailure;
+import org.dataone.service.types.v1.ObjectInfo;
+import org.dataone.service.types.v1.ObjectList;
+import org.jibx.runtime.BindingDirectory;
+import org.jibx.runtime.IUnmarshallingContext;
+import org.jibx.runtime.JiBXException;
+
+/**
+ * Reads the entries of a DataONE list document (an ObjectList, Log, NodeList 
+ * or ObjectFormatList) one at a time from a stream, instead of unmarshalling
+ * the whole list, so the first entry is available as soon as it is read, and 
+ * memory use doesn't grow with the size of the list.
+ * <p>
+ * A StAX reader walks the document.  Each entry element is copied into a 
+ * small document of the same list type, holding only that entry (with the 
+ * list element's namespaces and attributes), which is unmarshalled with the 
+ * list type's JiBX binding.  So the entries are exactly the objects the 
+ * bindings would build, while only one of them is in memory at a time.
+ * <p>
+ * Each reader creates one JiBX unmarshalling context and one copy buffer, and
+ * reuses them for all of its entries.  The overhead per entry, over 
+ * unmarshalling the whole list, is the copy itself (a StAX write of the 
+ * entry's events, typically a few hundred bytes) and JiBX's second parse of 
+ * those bytes; the objects built are the same.
+ * <p>
+ * The static factory methods return readers for the list types, for example:
+ * <pre>
+ * StreamingListReader&lt;ObjectList, ObjectInfo&gt; reader = StreamingListReader.objectList(is);
+ * try {
+ *     ObjectInfo oi;
+ *     while ((oi = reader.nextEntry()) != null) {
+ *         ...
+ *     }
+ * } finally {
+ *     reader.close();
+ * }
+ * </pre>
+ * 
+ * @author rnahf
+ *
+ * @param <L> the list type
+ * @param <E> the type of the list's entries
+ */
+public abstract class StreamingListReader<L, E> implements Closeable {
+
+    final static Logger logger = Logger.getLogger(StreamingListReader.class);
+    
+    private static final XMLOutputFactory OUTPUT_FACTORY = XMLOutputFactory.newInstance();
+    
+    /**
+     * Receives the entries read by readAll(), one at a time.
+     * @param <E>
+     */
+    public static interface EntryHandler<E> {
+        void handle(E entry);
+    }
+    
+    /**
+     * An EntryHandler that collects the entries in a list.
+     * @param <E>
+     */
+    public static class EntryCollector<E> implements EntryHandler<E> {
+        
+        private final List<E> entries = new ArrayList<E>();
+        
+        @Override
+        public void handle(E entry) {
+            this.entries.add(entry);
+        }
+        
+        public List<E> getEntries() {
+            return this.entries;
+        }
+    }
+    
+    private final Class<L> listClass;
+    private final String entryElement;
+    private final InputStream is;
+    private XMLStreamReader reader;
+    
+    /* the list element, copied into each single-entry document */
+    private String listPrefix;
+    private String listLocalName;
+    private String listNamespace;
+    private String[][] listNamespaces;
+    private String[][] listAttributes;
+    private boolean finished = false;
+    
+    /* reused for every entry */
+    private IUnmarshallingContext unmarshaller;
+    private final ByteArrayOutputStream copyBuffer = new ByteArrayOutputStream(1024);
+    
+    /**
+     * @param listClass - the list type
+     * @param entryElement - the local name of the entry elements (children of the list element)
+     * @param is - the stream of the list document, closed by close() or the end of the list
+     */
+    protected StreamingListReader(Class<L> listClass, String entryElement, InputStream is) 
+    {
+        this.listClass = listClass;
+        this.entryElement = entryElement;
+        this.is = is;
+    }
+    
+    /**
+     * Returns the single entry of a list unmarshalled from a one-entry document.
+     * @param list
+     * @return
+     */
+    protected abstract E getEntry(L list);
+    
+    
+    /**
+     * Returns the next entry of the list, or null at the end of the list.
+     * @return
+     * @throws ServiceFailure - if the document can't be read or unmarshalled
+     */
+    public E nextEntry() throws ServiceFailure 
+    {
+        if (this.finished)
+            return null;
+        try {
+            if (this.reader == null)
+                readListElement();
+            
+            while (this.reader.hasNext()) {
+                int event = this.reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    if (this.entryElement.equals(this.reader.getLocalName())) 
+                        return unmarshalEntry(copyEntry());
+                    skipElement();
+                } else if (event == XMLStreamConstants.END_ELEMENT) {
+                    // the end of the list element
+                    break;
+                }
+            }
+            close();
+            return null;
+            
+        } catch (XMLStreamException e) {
+            close();
+            throw new ServiceFailure("0", "Could not read the " + this.listClass.getSimpleName() 
+                    + ": " + e.getMessage());
+        }
+    }
+    
+    /**
+     * Returns the list with its attributes (for example the count, start and
+     * total of an ObjectList or Log), but none of its entries.  
+     * @return
+     * @throws ServiceFailure - if the list element can't be read
+     */
+    public L getListHeader() throws ServiceFailure 
+    {
+        try {
+            if (this.reader == null)
+                readListElement();
+            this.copyBuffer.reset();
+            XMLStreamWriter writer = OUTPUT_FACTORY.createXMLStreamWriter(this.copyBuffer, "UTF-8");
+            writer.writeStartDocument("UTF-8", "1.0");
+            writeListElement(writer);
+            writer.writeEndElement();
+            writer.writeEndDocument();
+            writer.close();
+            return unmarshal(this.copyBuffer.toByteArray());
+            
+        } catch (XMLStreamException e) {
+            close();
+            throw new ServiceFailure("0", "Could not read the " + this.listClass.getSimpleName() 
+                    + ": " + e.getMessage());
+        }
+    }
+    
+    /**
+     * Reads the rest of the list, passing each entry to the handler.
+     * @param handler
+     * @return the number of entries read
+     * @throws ServiceFailure
+     */
+    public int readAll(EntryHandler<E> handler) throws ServiceFailure 
+    {
+        int n = 0;
+        E entry;
+        while ((entry = nextEntry()) != null) {
+            handler.handle(entry);
+            n++;
+        }
+        return n;
+    }
+    
+    /**
+     * Closes the reader and the underlying stream.
+     */
+    @Override
+    public void close() 
+    {
+        this.finished = true;
+        if (this.reader != null) {
+            try {
+                this.reader.close();
+            } catch (XMLStreamException e) {
+                logger.debug("Could not close the XMLStreamReader: " + e.getMessage());
+            }
+        }
+        IOUtils.closeQuietly(this.is);
+    }
+    
+    
+    /* positions the reader on the list element, and keeps its name, namespaces and attributes */
+    private void readListElement() throws XMLStreamException, ServiceFailure 
+    {
+        this.reader = StaxUtils.createXMLStreamReader(this.is);
+        while (this.reader.hasNext() && this.reader.next() != XMLStreamConstants.START_ELEMENT) 
+            ;
+        if (!this.reader.isStartElement())
+            throw new ServiceFailure("0", "No " + this.listClass.getSimpleName() + " found in the response");
+        
+        this.listPrefix = this.reader.getPrefix();
+        this.listLocalName = this.reader.getLocalName();
+        this.listNamespace = this.reader.getNamespaceURI();
+        this.listNamespaces = new String[this.reader.getNamespaceCount()][];
+        for (int i = 0; i < this.listNamespaces.length; i++) {
+            this.listNamespaces[i] = new String[] {
+                    this.reader.getNamespacePrefix(i), this.reader.getNamespaceURI(i) };
+        }
+        this.listAttributes = new String[this.reader.getAttributeCount()][];
+        for (int i = 0; i < this.listAttributes.length; i++) {
+            this.listAttributes[i] = new String[] {
+                    this.reader.getAttributePrefix(i), this.reader.getAttributeNamespace(i),
+                    this.reader.getAttributeLocalName(i), this.reader.getAttributeValue(i) };
+        }
+    }
+    
+    /* copies the entry element the reader is on into a one-entry list document */
+    private byte[] copyEntry() throws XMLStreamException 
+    {
+        this.copyBuffer.reset();
+        XMLStreamWriter writer = OUTPUT_FACTORY.createXMLStreamWriter(this.copyBuffer, "UTF-8");
+        writer.writeStartDocument("UTF-8", "1.0");
+        writeListElement(writer);
+        
+        int depth = 0;
+        do {
+            switch (this.reader.getEventType()) {
+            case XMLStreamConstants.START_ELEMENT:
+                depth++;
+                writeStartElement(writer, this.reader.getPrefix(), this.reader.getLocalName(), 
+                        this.reader.getNamespaceURI());
+                for (int i = 0; i < this.reader.getNamespaceCount(); i++)
+                    writeNamespace(writer, this.reader.getNamespacePrefix(i), this.reader.getNamespaceURI(i));
+                for (int i = 0; i < this.reader.getAttributeCount(); i++)
+                    writeAttribute(writer, this.reader.getAttributePrefix(i), this.reader.getAttributeNamespace(i),
+                            this.reader.getAttributeLocalName(i), this.reader.getAttributeValue(i));
+                break;
+            case XMLStreamConstants.END_ELEMENT:
+                depth--;
+                writer.writeEndElement();
+                break;
+            case XMLStreamConstants.CHARACTERS:
+            case XMLStreamConstants.CDATA:
+            case XMLStreamConstants.SPACE:
+                writer.writeCharacters(this.reader.getTextCharacters(), this.reader.getTextStart(), 
+                        this.reader.getTextLength());
+                break;
+            default:
+                // comments and processing instructions aren't part of the entry
+                break;
+            }
+        } while (depth > 0 && this.reader.hasNext() && this.reader.next() > 0);
+        
+        writer.writeEndElement();
+        writer.writeEndDocument();
+        writer.close();
+        return this.copyBuffer.toByteArray();
+    }
+    
+    /* writes the start of the list element, with its namespaces and attributes */
+    private void writeListElement(XMLStreamWriter writer) throws XMLStreamException 
+    {
+        writeStartElement(writer, this.listPrefix, this.listLocalName, this.listNamespace);
+        for (String[] ns : this.listNamespaces) 
+            writeNamespace(writer, ns[0], ns[1]);
+        for (String[] att : this.listAttributes) 
+            writeAttribute(writer, att[0], att[1], att[2], att[3]);
+    }
+    
+    private E unmarshalEntry(byte[] document) throws ServiceFailure 
+    {
+        return getEntry(unmarshal(document));
+    }
+    
+    /* unmarshals a list document with this reader's unmarshalling context */
+    private L unmarshal(byte[] document) throws ServiceFailure 
+    {
+        try {
+            if (this.unmarshaller == null) 
+                this.unmarshaller = BindingDirectory.getFactory(this.listClass).createUnmarshallingContext();
+            else
+                this.unmarshaller.reset();
+            this.unmarshaller.setDocument(new ByteArrayInputStream(document), "UTF-8");
+            return this.listClass.cast(this.unmarshaller.unmarshalElement());
+        } catch (JiBXException | ClassCastException e) {
+            close();
+            throw new ServiceFailure("0", "Could not deserialize the " 
+                    + this.listClass.getCanonicalName() + ": " + e.getMessage());
+        }
+    }
+    
+    /* skips the element the reader is on, leaving the reader on its end element */
+    private void skipElement() throws XMLStreamException 
+    {
+        int depth = 1;
+        while (depth > 0 && this.reader.hasNext()) {
+            int event = this.reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT)
+                depth++;
+            else if (event == XMLStreamConstants.END_ELEMENT)
+                depth--;
+        }
+    }
+    
+    private static void writeStartElement(XMLStreamWriter writer, String prefix, String localName, 
+            String namespace) throws XMLStreamException 
+    {
+        if (namespace == null || namespace.isEmpty())
+            writer.writeStartElement(localName);
+        else
+            writer.writeStartElement(prefix == null ? "" : prefix, localName, namespace);
+    }
+    
+    private static void writeNamespace(XMLStreamWriter writer, String prefix, String namespace) 
+    throws XMLStreamException 
+    {
+        if (prefix == null || prefix.isEmpty())
+            writer.writeDefaultNamespace(namespace);
+        else
+            writer.writeNamespace(prefix, namespace);
+    }
+    
+    private static void writeAttribute(XMLStreamWriter writer, String prefix, String namespace, 
+            String localName, String value) throws XMLStreamException 
+    {
+        if (namespace == null || namespace.isEmpty())
+            writer.writeAttribute(localName, value);
+        else
+            writer.writeAttribute(prefix == null ? "" : prefix, namespace, localName, value);
+    }
+    
+    private static <T> T first(List<T> list) 
+    {
+        return list == null || list.isEmpty() ? null : list.get(0);
+    }
+    
+    
+    /**
+     * Returns a reader of the ObjectInfos of an ObjectList (v1 and v2 nodes
+     * both return v1 ObjectLists).
+     */
+    public static StreamingListReader<ObjectList, ObjectInfo> objectList(InputStream is) 
+    {
+        return new StreamingListReader<ObjectList, ObjectInfo>(ObjectList.class, "objectInfo", is) {
+            @Override
+            protected ObjectInfo getEntry(ObjectList list) {
+                return first(list.getObjectInfoList());
+            }
+        };
+    }
+    
+    /**
+     * Returns a reader of the LogEntries of a v1 Log.
+     */
+    public static StreamingListReader<org.dataone.service.types.v1.Log, org.dataone.service.types.v1.LogEntry> 
+    v1Log(InputStream is) 
+    {
+        return new StreamingListReader<org.dataone.service.types.v1.Log, org.dataone.service.types.v1.LogEntry>(
+                org.dataone.service.types.v1.Log.class, "logEntry", is) {
+            @Override
+            protected org.dataone.service.types.v1.LogEntry getEntry(org.dataone.service.types.v1.Log list) {
+                return first(list.getLogEntryList());
+            }
+        };
+    }
+    
+    /**
+     * Returns a reader of the LogEntries of a v2 Log.
+     */
+    public static StreamingListReader<org.dataone.service.types.v2.Log, org.dataone.service.types.v2.LogEntry> 
+    v2Log(InputStream is) 
+    {
+        return new StreamingListReader<org.dataone.service.types.v2.Log, org.dataone.service.types.v2.LogEntry>(
+                org.dataone.service.types.v2.Log.class, "logEntry", is) {
+            @Override
+            protected org.dataone.service.types.v2.LogEntry getEntry(org.dataone.service.types.v2.Log list) {
+                return first(list.getLogEntryList());
+            }
+        };
+    }
+    
+    /**
+     * Returns a reader of the Nodes of a v1 NodeList.
+     */
+    public static StreamingListReader<org.dataone.service.types.v1.NodeList, org.dataone.service.types.v1.Node> 
+    v1NodeList(InputStream is) 
+    {
+        return new StreamingListReader<org.dataone.service.types.v1.NodeList, org.dataone.service.types.v1.Node>(
+                org.dataone.service.types.v1.NodeList.class, "node", is) {
+            @Override
+            protected org.dataone.service.types.v1.Node getEntry(org.dataone.service.types.v1.NodeList list) {
+                return first(list.getNodeList());
+            }
+        };
+    }
+    
+    /**
+     * Returns a reader of the Nodes of a v2 NodeList.
+     */
+    public static StreamingListReader<org.dataone.service.types.v2.NodeList, org.dataone.service.types.v2.Node> 
+    v2NodeList(InputStream is) 
+    {
+        return new StreamingListReader<org.dataone.service.types.v2.NodeList, org.dataone.service.types.v2.Node>(
+                org.dataone.service.types.v2.NodeList.class, "node", is) {
+            @Override
+            protected org.dataone.service.types.v2.Node getEntry(org.dataone.service.types.v2.NodeList list) {
+                return first(list.getNodeList());
+            }
+        };
+    }
+    
+    /**
+     * Returns a reader of the ObjectFormats of a v1 ObjectFormatList.
+     */
+    public static StreamingListReader<org.dataone.service.types.v1.ObjectFormatList, 
+            org.dataone.service.types.v1.ObjectFormat> v1ObjectFormatList(InputStream is) 
+    {
+        return new StreamingListReader<org.dataone.service.types.v1.ObjectFormatList, 
+                org.dataone.service.types.v1.ObjectFormat>(
+                org.dataone.service.types.v1.ObjectFormatList.class, "objectFormat", is) {
+            @Override
+            protected org.dataone.service.types.v1.ObjectFormat getEntry(
+                    org.dataone.service.types.v1.ObjectFormatList list) {
+                return first(list.getObjectFormatList());
+            }
+        };
+    }
+    
+    /**
+     * Returns a reader of the ObjectFormats of a v2 ObjectFormatList.
+     */
+    public static StreamingListReader<org.dataone.service.types.v2.ObjectFormatList, 
+            org.dataone.service.types.v2.ObjectFormat> v2ObjectFormatList(InputStream is) 
+    {
+        return new StreamingListReader<org.dataone.service.types.v2.ObjectFormatList, 
+                org.dataone.service.types.v2.ObjectFormat>(
+                org.dataone.service.types.v2.ObjectFormatList.class, "objectFormat", is) {
+            @Override
+            protected org.dataone.service.types.v2.ObjectFormat getEntry(
+                    org.dataone.service.types.v2.ObjectFormatList list) {
+                return first(list.getObjectFormatList());
+            }
+        };
+    }
+}
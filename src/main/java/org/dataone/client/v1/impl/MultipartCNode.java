@@ -30,7 +30,10 @@ import org.apache.commons.logging.LogFactory;
 import org.dataone.client.exception.ClientSideException;
 import org.dataone.client.rest.MultipartD1Node;
 import org.dataone.client.rest.MultipartRestClient;
+import org.dataone.client.rest.RequestPolicy.Operation;
 import org.dataone.client.utils.ExceptionUtils;
+import org.dataone.client.utils.StreamingListReader;
+import org.dataone.client.utils.StreamingListReader.EntryHandler;
 import org.dataone.client.v1.CNode;
 import org.dataone.client.v2.formats.ObjectFormatCache;
 import org.dataone.configuration.Settings;
@@ -56,6 +59,7 @@ import org.dataone.service.types.v1.Event;
 import org.dataone.service.types.v1.Group;
 import org.dataone.service.types.v1.Identifier;
 import org.dataone.service.types.v1.Log;
+import org.dataone.service.types.v1.LogEntry;
 import org.dataone.service.types.v1.Node;
 import org.dataone.service.types.v1.NodeList;
 import org.dataone.service.types.v1.NodeReference;
@@ -63,6 +67,7 @@ import org.dataone.service.types.v1.NodeType;
 import org.dataone.service.types.v1.ObjectFormat;
 import org.dataone.service.types.v1.ObjectFormatIdentifier;
 import org.dataone.service.types.v1.ObjectFormatList;
+import org.dataone.service.types.v1.ObjectInfo;
 import org.dataone.service.types.v1.ObjectList;
 import org.dataone.service.types.v1.ObjectLocationList;
 import org.dataone.service.types.v1.Person;
@@ -423,27 +428,8 @@ public class MultipartCNode extends MultipartD1Node implements CNode
       ObjectFormatIdentifier formatid, Boolean replicaStatus, Integer start, Integer count) 
     		  throws InvalidRequest, InvalidToken, NotAuthorized, NotImplemented, ServiceFailure
     {
-    	
-    	if (toDate != null && fromDate != null && !toDate.after(fromDate))
-			throw new InvalidRequest("1000", "fromDate must be before toDate in listObjects() call. "
-					+ fromDate + " " + toDate);
+		D1Url url = listObjectsUrl(fromDate, toDate, formatid, replicaStatus, start, count);
 
-		D1Url url = new D1Url(this.getNodeBaseServiceUrl(), Constants.RESOURCE_OBJECTS);
-		
-		url.addDateParamPair("fromDate", fromDate);
-		url.addDateParamPair("toDate", toDate);
-		if (formatid != null) 
-			url.addNonEmptyParamPair("formatId", formatid.getValue());
-		if (replicaStatus != null) {
-			if (replicaStatus) {
-				url.addNonEmptyParamPair("replicaStatus", 1);
-			} else {
-				url.addNonEmptyParamPair("replicaStatus", 0);
-			}
-		}
-		url.addNonEmptyParamPair("start",start);
-		url.addNonEmptyParamPair("count",count);
-		
         // send the request
         ObjectList objectList = null;
         try {
@@ -464,6 +450,68 @@ public class MultipartCNode extends MultipartD1Node implements CNode
  
         return objectList;
     }
+
+    /**
+     * Streams the ObjectInfos of a listObjects page to the handler as they are
+     * read from the response, instead of unmarshalling the whole ObjectList.
+     * This keeps memory constant only if the handler processes each entry on
+     * its own (writing it out, for example); to get the entries as a list, 
+     * the whole-list call is faster.
+     * @return the ObjectList's count, start and total, without its entries
+     * @see #listObjects(Session, Date, Date, ObjectFormatIdentifier, Boolean, Integer, Integer)
+     */
+    public ObjectList listObjects(Session session, Date fromDate, Date toDate, 
+      ObjectFormatIdentifier formatid, Boolean replicaStatus, Integer start, Integer count,
+      EntryHandler<ObjectInfo> handler) 
+    		  throws InvalidRequest, InvalidToken, NotAuthorized, NotImplemented, ServiceFailure
+    {
+		D1Url url = listObjectsUrl(fromDate, toDate, formatid, replicaStatus, start, count);
+
+        // send the request
+        try {
+        	InputStream is = getRestClient(session).doGetRequest(url.getUrl(), null);
+        	return readListEntries(StreamingListReader.objectList(is), handler);
+        } catch (BaseException be) {
+            if (be instanceof InvalidRequest)         throw (InvalidRequest) be;
+            if (be instanceof InvalidToken)           throw (InvalidToken) be;
+            if (be instanceof NotAuthorized)          throw (NotAuthorized) be;
+            if (be instanceof NotImplemented)         throw (NotImplemented) be;
+            if (be instanceof ServiceFailure)         throw (ServiceFailure) be;
+                    
+            throw ExceptionUtils.recastDataONEExceptionToServiceFailure(be);
+        } 
+        catch (ClientSideException e)            {
+        	throw ExceptionUtils.recastClientSideExceptionToServiceFailure(e); 
+        } 
+    }
+
+    /* assembles the url of a listObjects call */
+    private D1Url listObjectsUrl(Date fromDate, Date toDate, 
+      ObjectFormatIdentifier formatid, Boolean replicaStatus, Integer start, Integer count)
+            throws InvalidRequest
+    {
+    	if (toDate != null && fromDate != null && !toDate.after(fromDate))
+			throw new InvalidRequest("1000", "fromDate must be before toDate in listObjects() call. "
+					+ fromDate + " " + toDate);
+
+		D1Url url = new D1Url(this.getNodeBaseServiceUrl(), Constants.RESOURCE_OBJECTS);
+		
+		url.addDateParamPair("fromDate", fromDate);
+		url.addDateParamPair("toDate", toDate);
+		if (formatid != null) 
+			url.addNonEmptyParamPair("formatId", formatid.getValue());
+		if (replicaStatus != null) {
+			if (replicaStatus) {
+				url.addNonEmptyParamPair("replicaStatus", 1);
+			} else {
+				url.addNonEmptyParamPair("replicaStatus", 0);
+			}
+		}
+		url.addNonEmptyParamPair("start",start);
+		url.addNonEmptyParamPair("count",count);
+
+		return url;
+    }
 	
 	@Override
     public ObjectList listObjects(Date fromDate, Date toDate, 
@@ -503,25 +551,13 @@ public class MultipartCNode extends MultipartD1Node implements CNode
 	throws InvalidToken, InvalidRequest, ServiceFailure,
 	NotAuthorized, NotImplemented, InsufficientResources
 	{
+		D1Url url = logRecordsUrl(fromDate, toDate, event, idFilter, start, count);
 
-		D1Url url = new D1Url(this.getNodeBaseServiceUrl(), Constants.RESOURCE_LOG);
-
-		url.addDateParamPair("fromDate", fromDate);
-		url.addDateParamPair("toDate", toDate);
-            
-    	if (event != null)
-            url.addNonEmptyParamPair("event", event.xmlValue());
-    	
-    	url.addNonEmptyParamPair("start", start);  
-    	url.addNonEmptyParamPair("count", count);
-    	url.addNonEmptyParamPair("idFilter", idFilter);
-    	
 		// send the request
 		Log log = null;
 
 		try {
-			InputStream is = getRestClient(session).doGetRequest(url.getUrl(),
-					Settings.getConfiguration().getInteger("D1Client.D1Node.getLogRecords.timeout", null));
+			InputStream is = doGetRequest(session, url.getUrl(), Operation.GET_LOG_RECORDS);
 			log = deserializeServiceType(Log.class, is);
 		} catch (BaseException be) {
 			if (be instanceof InvalidToken)           throw (InvalidToken) be;
@@ -539,6 +575,61 @@ public class MultipartCNode extends MultipartD1Node implements CNode
 
 		return log;
 	}
+
+    /**
+     * Streams the LogEntries of a getLogRecords page to the handler as they are
+     * read from the response, instead of unmarshalling the whole Log.
+     * This keeps memory constant only if the handler processes each entry on
+     * its own (writing it out, for example); to get the entries as a list, 
+     * the whole-list call is faster.
+     * @return the Log's count, start and total, without its entries
+     * @see #getLogRecords(Session, Date, Date, Event, String, Integer, Integer)
+     */
+	public Log getLogRecords(Session session, Date fromDate, Date toDate,
+			Event event, String idFilter, Integer start, Integer count,
+			EntryHandler<LogEntry> handler) 
+	throws InvalidToken, InvalidRequest, ServiceFailure,
+	NotAuthorized, NotImplemented, InsufficientResources
+	{
+		D1Url url = logRecordsUrl(fromDate, toDate, event, idFilter, start, count);
+
+		// send the request
+		try {
+			InputStream is = doGetRequest(session, url.getUrl(), Operation.GET_LOG_RECORDS);
+			return readListEntries(StreamingListReader.v1Log(is), handler);
+		} catch (BaseException be) {
+			if (be instanceof InvalidToken)           throw (InvalidToken) be;
+			if (be instanceof InvalidRequest)         throw (InvalidRequest) be;
+			if (be instanceof ServiceFailure)         throw (ServiceFailure) be;
+			if (be instanceof NotAuthorized)          throw (NotAuthorized) be;
+			if (be instanceof NotImplemented)         throw (NotImplemented) be;
+			if (be instanceof InsufficientResources)  throw (InsufficientResources) be;
+
+			throw ExceptionUtils.recastDataONEExceptionToServiceFailure(be);
+		} 
+		catch (ClientSideException e)            {
+			throw ExceptionUtils.recastClientSideExceptionToServiceFailure(e); 
+		} 
+	}
+
+    /* assembles the url of a getLogRecords call */
+    private D1Url logRecordsUrl(Date fromDate, Date toDate,
+			Event event, String idFilter, Integer start, Integer count)
+    {
+		D1Url url = new D1Url(this.getNodeBaseServiceUrl(), Constants.RESOURCE_LOG);
+
+		url.addDateParamPair("fromDate", fromDate);
+		url.addDateParamPair("toDate", toDate);
+            
+    	if (event != null)
+            url.addNonEmptyParamPair("event", event.xmlValue());
+    	
+    	url.addNonEmptyParamPair("start", start);  
+    	url.addNonEmptyParamPair("count", count);
+    	url.addNonEmptyParamPair("idFilter", idFilter);
+
+		return url;
+    }
 	
 	public Log getLogRecords(Date fromDate, Date toDate,
 			Event event, String idFilter, Integer start, Integer count) 
@@ -608,7 +699,7 @@ public class MultipartCNode extends MultipartD1Node implements CNode
 		Identifier identifier = null;
  		try {
  			InputStream is = getRestClient(session).doPostRequest(url.getUrl(),smpe,
- 					Settings.getConfiguration().getInteger("D1Client.CNode.reserveIdentifier.timeout", null));
+ 					getPolicy(Operation.CN_RESERVE_IDENTIFIER).getTimeout());
  			identifier = deserializeServiceType(Identifier.class, is);
  			
 		} catch (BaseException be) {
@@ -709,7 +800,7 @@ public class MultipartCNode extends MultipartD1Node implements CNode
 			throw new InvalidRequest("0000", "PID cannot be null");
 		}
 
-        SimpleMultipartEntity mpe = new SimpleMultipartEntity();
+        SimpleMultipartEntity mpe = newUploadEntity();
 
         // Coordinating Nodes must maintain systemmetadata of all object on dataone
         // however Coordinating nodes do not house Science Data only Science Metadata
@@ -725,7 +816,7 @@ public class MultipartCNode extends MultipartD1Node implements CNode
         		// object sent is an empty string
         		mpe.addFilePart("object", "");
         	} else {
-        		mpe.addFilePart("object", object);
+        		addObjectPart(mpe, object, sysmeta == null ? null : sysmeta.getSize());
         	}
         	mpe.addFilePart("sysmeta", sysmeta);
         } catch (IOException e) {
@@ -738,7 +829,7 @@ public class MultipartCNode extends MultipartD1Node implements CNode
 
         try {
         	InputStream is = getRestClient(session).doPostRequest(url.getUrl(), mpe,
-        			Settings.getConfiguration().getInteger("D1Client.CNode.create.timeouts", null));
+        			getPolicy(Operation.CN_CREATE).getTimeout());
         	identifier = deserializeServiceType(Identifier.class, is);
         	
 		} catch (BaseException be) {
@@ -800,7 +891,7 @@ public class MultipartCNode extends MultipartD1Node implements CNode
 		Identifier identifier = null;
 		try {
 			InputStream is = getRestClient(session).doPostRequest(url.getUrl(),mpe,
-					Settings.getConfiguration().getInteger("D1Client.CNode.registerSystemMetadata.timeouts", null));
+					getPolicy(Operation.CN_REGISTER_SYSTEM_METADATA).getTimeout());
 			identifier = deserializeServiceType(Identifier.class, is);
 		} catch (BaseException be) {
 			if (be instanceof NotImplemented)         throw (NotImplemented) be;
@@ -899,9 +990,7 @@ public class MultipartCNode extends MultipartD1Node implements CNode
 		SystemMetadata sysmeta = null;
 		
 		try {
-			InputStream is = getRestClient(session).doGetRequest(url.getUrl(),
-					Settings.getConfiguration().getInteger("D1Client.D1Node.getSystemMetadata.timeout", null));
-			sysmeta = deserializeServiceType(SystemMetadata.class,is);
+			sysmeta = fetchSystemMetadata(session, pid, url.getUrl(), SystemMetadata.class);
 			
 		} catch (BaseException be) {
             if (be instanceof InvalidToken)      throw (InvalidToken) be;
@@ -2092,7 +2181,7 @@ public class MultipartCNode extends MultipartD1Node implements CNode
         InputStream is = null;
         try {
             is = getRestClient(session).doPutRequest(url.getUrl(),mpe,
-					Settings.getConfiguration().getInteger("D1Client.CNode.replication.timeout", null));
+					getPolicy(Operation.CN_REPLICATION).getTimeout());
 			
 		} catch (BaseException be) {
 			if (be instanceof ServiceFailure)         throw (ServiceFailure) be;
@@ -2153,7 +2242,7 @@ public class MultipartCNode extends MultipartD1Node implements CNode
     	InputStream is = null;
         try {
             is = getRestClient(session).doPutRequest(url.getUrl(),mpe,
-					Settings.getConfiguration().getInteger("D1Client.CNode.replication.timeout", null));
+					getPolicy(Operation.CN_REPLICATION).getTimeout());
 	
 		} catch (BaseException be) {
 			if (be instanceof NotImplemented)         throw (NotImplemented) be;
@@ -2206,8 +2295,7 @@ public class MultipartCNode extends MultipartD1Node implements CNode
 
         InputStream is = null;
         try {
-            is = getRestClient(session).doGetRequest(url.getUrl(),
-                    Settings.getConfiguration().getInteger("D1Client.CNode.replication.timeout", null));
+            is = doGetRequest(session, url.getUrl(), Operation.CN_REPLICATION);
 
 		} catch (BaseException be) {
 			if (be instanceof NotImplemented)         throw (NotImplemented) be;
@@ -2270,7 +2358,7 @@ public class MultipartCNode extends MultipartD1Node implements CNode
 		InputStream is = null;
         try {
             is = getRestClient(session).doPutRequest(url.getUrl(),mpe,
-					Settings.getConfiguration().getInteger("D1Client.CNode.replication.timeout", null));
+					getPolicy(Operation.CN_REPLICATION).getTimeout());
 
 		} catch (BaseException be) {
 			if (be instanceof NotImplemented)         throw (NotImplemented) be;
@@ -2327,7 +2415,7 @@ public class MultipartCNode extends MultipartD1Node implements CNode
 		InputStream is = null;
         try {
             is = getRestClient(session).doPutRequest(url.getUrl(),mpe,
-					Settings.getConfiguration().getInteger("D1Client.CNode.replication.timeout", null));
+					getPolicy(Operation.CN_REPLICATION).getTimeout());
 
 		} catch (BaseException be) {
 			if (be instanceof NotImplemented)         throw (NotImplemented) be;
@@ -29,9 +29,11 @@ import org.apache.commons.logging.LogFactory;
 import org.dataone.client.exception.ClientSideException;
 import org.dataone.client.rest.MultipartD1Node;
 import org.dataone.client.rest.MultipartRestClient;
+import org.dataone.client.rest.RequestPolicy.Operation;
 import org.dataone.client.utils.ExceptionUtils;
+import org.dataone.client.utils.StreamingListReader;
+import org.dataone.client.utils.StreamingListReader.EntryHandler;
 import org.dataone.client.v1.MNode;
-import org.dataone.configuration.Settings;
 import org.dataone.mimemultipart.SimpleMultipartEntity;
 import org.dataone.service.exceptions.BaseException;
 import org.dataone.service.exceptions.IdentifierNotUnique;
@@ -51,10 +53,12 @@ import org.dataone.service.types.v1.DescribeResponse;
 import org.dataone.service.types.v1.Event;
 import org.dataone.service.types.v1.Identifier;
 import org.dataone.service.types.v1.Log;
+import org.dataone.service.types.v1.LogEntry;
 import org.dataone.service.types.v1.Node;
 import org.dataone.service.types.v1.NodeReference;
 import org.dataone.service.types.v1.NodeType;
 import org.dataone.service.types.v1.ObjectFormatIdentifier;
+import org.dataone.service.types.v1.ObjectInfo;
 import org.dataone.service.types.v1.ObjectList;
 import org.dataone.service.types.v1.Permission;
 import org.dataone.service.types.v1.Session;
@@ -185,27 +189,8 @@ public class MultipartMNode extends MultipartD1Node implements MNode
       ObjectFormatIdentifier formatid, Boolean replicaStatus, Integer start, Integer count) 
     		  throws InvalidRequest, InvalidToken, NotAuthorized, NotImplemented, ServiceFailure
     {
-    	
-    	if (toDate != null && fromDate != null && !toDate.after(fromDate))
-			throw new InvalidRequest("1000", "fromDate must be before toDate in listObjects() call. "
-					+ fromDate + " " + toDate);
+		D1Url url = listObjectsUrl(fromDate, toDate, formatid, replicaStatus, start, count);
 
-		D1Url url = new D1Url(this.getNodeBaseServiceUrl(), Constants.RESOURCE_OBJECTS);
-		
-		url.addDateParamPair("fromDate", fromDate);
-		url.addDateParamPair("toDate", toDate);
-		if (formatid != null) 
-			url.addNonEmptyParamPair("formatId", formatid.getValue());
-		if (replicaStatus != null) {
-			if (replicaStatus) {
-				url.addNonEmptyParamPair("replicaStatus", 1);
-			} else {
-				url.addNonEmptyParamPair("replicaStatus", 0);
-			}
-		}
-		url.addNonEmptyParamPair("start",start);
-		url.addNonEmptyParamPair("count",count);
-		
         // send the request
         ObjectList objectList = null;
         try {
@@ -226,6 +211,68 @@ public class MultipartMNode extends MultipartD1Node implements MNode
  
         return objectList;
     }
+
+    /**
+     * Streams the ObjectInfos of a listObjects page to the handler as they are
+     * read from the response, instead of unmarshalling the whole ObjectList.
+     * This keeps memory constant only if the handler processes each entry on
+     * its own (writing it out, for example); to get the entries as a list, 
+     * the whole-list call is faster.
+     * @return the ObjectList's count, start and total, without its entries
+     * @see #listObjects(Session, Date, Date, ObjectFormatIdentifier, Boolean, Integer, Integer)
+     */
+    public ObjectList listObjects(Session session, Date fromDate, Date toDate, 
+      ObjectFormatIdentifier formatid, Boolean replicaStatus, Integer start, Integer count,
+      EntryHandler<ObjectInfo> handler) 
+    		  throws InvalidRequest, InvalidToken, NotAuthorized, NotImplemented, ServiceFailure
+    {
+		D1Url url = listObjectsUrl(fromDate, toDate, formatid, replicaStatus, start, count);
+
+        // send the request
+        try {
+        	InputStream is = getRestClient(session).doGetRequest(url.getUrl(), null);
+        	return readListEntries(StreamingListReader.objectList(is), handler);
+        } catch (BaseException be) {
+            if (be instanceof InvalidRequest)         throw (InvalidRequest) be;
+            if (be instanceof InvalidToken)           throw (InvalidToken) be;
+            if (be instanceof NotAuthorized)          throw (NotAuthorized) be;
+            if (be instanceof NotImplemented)         throw (NotImplemented) be;
+            if (be instanceof ServiceFailure)         throw (ServiceFailure) be;
+                    
+            throw ExceptionUtils.recastDataONEExceptionToServiceFailure(be);
+        } 
+        catch (ClientSideException e)            {
+        	throw ExceptionUtils.recastClientSideExceptionToServiceFailure(e); 
+        } 
+    }
+
+    /* assembles the url of a listObjects call */
+    private D1Url listObjectsUrl(Date fromDate, Date toDate, 
+      ObjectFormatIdentifier formatid, Boolean replicaStatus, Integer start, Integer count)
+            throws InvalidRequest
+    {
+    	if (toDate != null && fromDate != null && !toDate.after(fromDate))
+			throw new InvalidRequest("1000", "fromDate must be before toDate in listObjects() call. "
+					+ fromDate + " " + toDate);
+
+		D1Url url = new D1Url(this.getNodeBaseServiceUrl(), Constants.RESOURCE_OBJECTS);
+		
+		url.addDateParamPair("fromDate", fromDate);
+		url.addDateParamPair("toDate", toDate);
+		if (formatid != null) 
+			url.addNonEmptyParamPair("formatId", formatid.getValue());
+		if (replicaStatus != null) {
+			if (replicaStatus) {
+				url.addNonEmptyParamPair("replicaStatus", 1);
+			} else {
+				url.addNonEmptyParamPair("replicaStatus", 0);
+			}
+		}
+		url.addNonEmptyParamPair("start",start);
+		url.addNonEmptyParamPair("count",count);
+
+		return url;
+    }
     
     @Override
     public ObjectList listObjects(Date fromDate, Date toDate, 
@@ -291,25 +338,13 @@ public class MultipartMNode extends MultipartD1Node implements MNode
 	throws InvalidToken, InvalidRequest, ServiceFailure,
 	NotAuthorized, NotImplemented
 	{
+		D1Url url = logRecordsUrl(fromDate, toDate, event, idFilter, start, count);
 
-		D1Url url = new D1Url(this.getNodeBaseServiceUrl(), Constants.RESOURCE_LOG);
-
-		url.addDateParamPair("fromDate", fromDate);
-		url.addDateParamPair("toDate", toDate);
-            
-    	if (event != null)
-            url.addNonEmptyParamPair("event", event.xmlValue());
-    	
-    	url.addNonEmptyParamPair("start", start);  
-    	url.addNonEmptyParamPair("count", count);
-    	url.addNonEmptyParamPair("pidFilter", idFilter);
-    	
 		// send the request
 		Log log = null;
 
 		try {
-			InputStream is = getRestClient(session).doGetRequest(url.getUrl(),
-					Settings.getConfiguration().getInteger("D1Client.D1Node.getLogRecords.timeout", null));
+			InputStream is = doGetRequest(session, url.getUrl(), Operation.GET_LOG_RECORDS);
 			log = deserializeServiceType(Log.class, is);
 		} catch (BaseException be) {
 			if (be instanceof InvalidToken)           throw (InvalidToken) be;
@@ -326,6 +361,60 @@ public class MultipartMNode extends MultipartD1Node implements MNode
 
 		return log;
 	}
+
+    /**
+     * Streams the LogEntries of a getLogRecords page to the handler as they are
+     * read from the response, instead of unmarshalling the whole Log.
+     * This keeps memory constant only if the handler processes each entry on
+     * its own (writing it out, for example); to get the entries as a list, 
+     * the whole-list call is faster.
+     * @return the Log's count, start and total, without its entries
+     * @see #getLogRecords(Session, Date, Date, Event, String, Integer, Integer)
+     */
+	public Log getLogRecords(Session session, Date fromDate, Date toDate,
+			Event event, String idFilter, Integer start, Integer count,
+			EntryHandler<LogEntry> handler) 
+	throws InvalidToken, InvalidRequest, ServiceFailure,
+	NotAuthorized, NotImplemented
+	{
+		D1Url url = logRecordsUrl(fromDate, toDate, event, idFilter, start, count);
+
+		// send the request
+		try {
+			InputStream is = doGetRequest(session, url.getUrl(), Operation.GET_LOG_RECORDS);
+			return readListEntries(StreamingListReader.v1Log(is), handler);
+		} catch (BaseException be) {
+			if (be instanceof InvalidToken)           throw (InvalidToken) be;
+			if (be instanceof InvalidRequest)         throw (InvalidRequest) be;
+			if (be instanceof ServiceFailure)         throw (ServiceFailure) be;
+			if (be instanceof NotAuthorized)          throw (NotAuthorized) be;
+			if (be instanceof NotImplemented)         throw (NotImplemented) be;
+
+			throw ExceptionUtils.recastDataONEExceptionToServiceFailure(be);
+		} 
+		catch (ClientSideException e)            {
+			throw ExceptionUtils.recastClientSideExceptionToServiceFailure(e); 
+		} 
+	}
+
+    /* assembles the url of a getLogRecords call */
+    private D1Url logRecordsUrl(Date fromDate, Date toDate,
+			Event event, String idFilter, Integer start, Integer count)
+    {
+		D1Url url = new D1Url(this.getNodeBaseServiceUrl(), Constants.RESOURCE_LOG);
+
+		url.addDateParamPair("fromDate", fromDate);
+		url.addDateParamPair("toDate", toDate);
+            
+    	if (event != null)
+            url.addNonEmptyParamPair("event", event.xmlValue());
+    	
+    	url.addNonEmptyParamPair("start", start);  
+    	url.addNonEmptyParamPair("count", count);
+    	url.addNonEmptyParamPair("pidFilter", idFilter);
+
+		return url;
+    }
 	
 	public Log getLogRecords(Date fromDate, Date toDate,
 			Event event, String idFilter, Integer start, Integer count) 
@@ -356,9 +445,7 @@ public class MultipartMNode extends MultipartD1Node implements MNode
 		SystemMetadata sysmeta = null;
 		
 		try {
-		    InputStream is = getRestClient(session).doGetRequest(url.getUrl(),
-					Settings.getConfiguration().getInteger("D1Client.D1Node.getSystemMetadata.timeout", null));
-			sysmeta = deserializeServiceType(SystemMetadata.class,is);
+		    sysmeta = fetchSystemMetadata(session, pid, url.getUrl(), SystemMetadata.class);
 			
 		} catch (BaseException be) {
             if (be instanceof InvalidToken)      throw (InvalidToken) be;
@@ -549,10 +636,10 @@ public class MultipartMNode extends MultipartD1Node implements MNode
     {
     	D1Url url = new D1Url(this.getNodeBaseServiceUrl(), Constants.RESOURCE_OBJECTS);
 
-    	SimpleMultipartEntity mpe = new SimpleMultipartEntity();
+    	SimpleMultipartEntity mpe = newUploadEntity();
     	try {
     		mpe.addParamPart("pid", pid.getValue());
-			mpe.addFilePart("object",object);
+			addObjectPart(mpe, object, sysmeta == null ? null : sysmeta.getSize());
 			mpe.addFilePart("sysmeta", sysmeta);
 		} catch (IOException e) {
 			throw ExceptionUtils.recastClientSideExceptionToServiceFailure(e);
@@ -564,7 +651,7 @@ public class MultipartMNode extends MultipartD1Node implements MNode
 
     	try {
     		InputStream is = getRestClient(session).doPostRequest(url.getUrl(),mpe, 
-    				Settings.getConfiguration().getInteger("D1Client.MNode.create.timeout", null));
+    				getPolicy(Operation.MN_CREATE).getTimeout());
     		 identifier = deserializeServiceType(Identifier.class, is);
         } catch (BaseException be) {
             if (be instanceof IdentifierNotUnique)    throw (IdentifierNotUnique) be;
@@ -612,11 +699,11 @@ public class MultipartMNode extends MultipartD1Node implements MNode
     	D1Url url = new D1Url(this.getNodeBaseServiceUrl(), Constants.RESOURCE_OBJECTS);
     	url.addNextPathElement(pid.getValue());
 
-    	SimpleMultipartEntity mpe = new SimpleMultipartEntity();
+    	SimpleMultipartEntity mpe = newUploadEntity();
 //    	mpe.addParamPart("newPid", EncodingUtilities.encodeUrlQuerySegment(newPid.getValue()));
     	mpe.addParamPart("newPid", newPid.getValue());
     	try {
-			mpe.addFilePart("object",object);
+			addObjectPart(mpe, object, sysmeta == null ? null : sysmeta.getSize());
 			mpe.addFilePart("sysmeta", sysmeta);
 		} catch (IOException e) {
 			throw ExceptionUtils.recastClientSideExceptionToServiceFailure(e);
@@ -628,8 +715,7 @@ public class MultipartMNode extends MultipartD1Node implements MNode
     	
     	try {
     		InputStream is = getRestClient(session).doPutRequest(url.getUrl(),mpe, 
-    				Settings.getConfiguration()
-    				.getInteger("D1Client.MNode.update.timeout",null));
+    				getPolicy(Operation.MN_UPDATE).getTimeout());
     		
     		identifier = deserializeServiceType(Identifier.class, is);
         } catch (BaseException be) {
@@ -748,7 +834,7 @@ public class MultipartMNode extends MultipartD1Node implements MNode
     	InputStream is = null;
     	try {
 			is = getRestClient(session).doPostRequest(url.getUrl(),smpe, 
-					Settings.getConfiguration() .getInteger("D1Client.MNode.replicate.timeout",null));
+					getPolicy(Operation.MN_REPLICATE).getTimeout());
 
         } catch (BaseException be) {
             if (be instanceof NotImplemented)         throw (NotImplemented) be;
@@ -797,8 +883,7 @@ public class MultipartMNode extends MultipartD1Node implements MNode
 
         InputStream is = null;
         try {
-            is = new AutoCloseInputStream(getRestClient(session).doGetRequest(url.getUrl(), 
-                    Settings.getConfiguration().getInteger("D1Client.MNode.getReplica.timeout", null)));
+            is = new AutoCloseInputStream(doGetRequest(session, url.getUrl(), Operation.MN_GET_REPLICA));
             
         } catch (BaseException be) {
             if (be instanceof InvalidToken)           throw (InvalidToken) be;
@@ -5,8 +5,8 @@ import java.io.InputStream;
 
 import org.dataone.client.exception.ClientSideException;
 import org.dataone.client.rest.MultipartRestClient;
+import org.dataone.client.rest.RequestPolicy.Operation;
 import org.dataone.client.utils.ExceptionUtils;
-import org.dataone.configuration.Settings;
 import org.dataone.mimemultipart.SimpleMultipartEntity;
 import org.dataone.service.exceptions.BaseException;
 import org.dataone.service.exceptions.InvalidRequest;
@@ -87,13 +87,10 @@ public abstract class MultipartD1Node extends org.dataone.client.rest.MultipartD
             url.addNextPathElement(pid.getValue());
 
 
-        InputStream is = null;
         SystemMetadata sysmeta = null;
 
         try {
-            is = getRestClient(session).doGetRequest(url.getUrl(),
-                    Settings.getConfiguration().getInteger("D1Client.D1Node.getSystemMetadata.timeout", null));
-            sysmeta = deserializeServiceType(SystemMetadata.class,is);
+            sysmeta = fetchSystemMetadata(session, pid, url.getUrl(), SystemMetadata.class);
 
         } catch (BaseException be) {
             if (be instanceof InvalidToken)      throw (InvalidToken) be;
@@ -133,7 +130,7 @@ public abstract class MultipartD1Node extends org.dataone.client.rest.MultipartD
         InputStream is = null;
         try {
             is = getRestClient(session).doPutRequest(url.getUrl(),mpe,
-                    Settings.getConfiguration().getInteger("D1Client.CNode.registerSystemMetadata.timeouts", null));
+                    getPolicy(Operation.CN_REGISTER_SYSTEM_METADATA).getTimeout());
         } catch (BaseException be) {
             if (be instanceof NotImplemented)         throw (NotImplemented) be;
             if (be instanceof NotAuthorized)          throw (NotAuthorized) be;
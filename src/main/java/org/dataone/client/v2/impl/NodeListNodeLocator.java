@@ -20,14 +20,18 @@
 package org.dataone.client.v2.impl;
 
 import java.net.URI;
+import java.util.ArrayList;
 import java.util.Deque;
-import java.util.LinkedList;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.dataone.client.D1NodeFactory;
 import org.dataone.client.NodeLocator;
 import org.dataone.client.exception.ClientSideException;
 import org.dataone.client.rest.MultipartRestClient;
+import org.dataone.client.rest.RetryingMultipartRestClient;
 import org.dataone.client.v2.CNode;
 import org.dataone.client.v2.MNode;
 import org.dataone.service.types.v1.NodeType;
@@ -59,7 +63,10 @@ public class NodeListNodeLocator extends NodeLocator {
 	protected MultipartRestClient client;
 	
 	/* the cnList is the list of CNodes that will be returned by getCN */
-	protected Deque<CNode> cnList = new LinkedList<CNode>();  //LL implements Deque interface
+	protected volatile Deque<CNode> cnList = new ConcurrentLinkedDeque<CNode>();
+	
+	/* rotates getCNode through the cnList without modifying it */
+	private final AtomicInteger cnCursor = new AtomicInteger();
 
 	/**
 	 * The constructor populates the NodeLocator from MN and CN nodes from the
@@ -106,18 +113,35 @@ public class NodeListNodeLocator extends NodeLocator {
      */
     public CNode getCNode() throws ClientSideException {
         
-        if (cnList == null)
+        Deque<CNode> cns = cnList;
+        if (cns == null)
             throw new ClientSideException("LibClient Error: The CnList has not been initialized!!!");
         
-        if (cnList.size() == 1)
-            return cnList.getLast();
-            
-        if (cnList.size() == 0) 
+        // a snapshot, so concurrent callers never see a CNode missing mid-rotation
+        CNode[] snapshot = cns.toArray(new CNode[0]);
+        if (snapshot.length == 0) 
             throw new ClientSideException("No CNs are registered in the NodeLocator");
         
-        CNode nextCN = cnList.removeFirst();
-        cnList.addLast(nextCN);
-        return nextCN;
+        if (snapshot.length == 1)
+            return snapshot[0];
+        
+        int i = (cnCursor.getAndIncrement() & Integer.MAX_VALUE) % snapshot.length;
+        return snapshot[i];
+    }
+
+    /**
+     * Returns the base service urls of the CNodes in the cnList.
+     * @return
+     */
+    public List<String> getCNBaseServiceUrls() {
+        List<String> urls = new ArrayList<String>();
+        Deque<CNode> cns = cnList;
+        if (cns != null) {
+            for (CNode cn : cns) {
+                urls.add(cn.getNodeBaseServiceUrl());
+            }
+        }
+        return urls;
     }
 
     /**
@@ -143,19 +167,29 @@ public class NodeListNodeLocator extends NodeLocator {
                     }
                 }
             }
+            // hedged CN reads may go to any of the CNs
+            List<String> cnBaseUrls = new ArrayList<String>();
+            for (Node cn : cnSet) {
+                cnBaseUrls.add(cn.getBaseURL());
+            }
+            RetryingMultipartRestClient.setDefaultAlternateBaseUrls(
+                    NodeListNodeLocator.class.getName(), cnBaseUrls);
+
             if (rrCN != null) {
                 // found the round robin cn
-                cnList = new LinkedList<CNode>();
+                Deque<CNode> cns = new ConcurrentLinkedDeque<CNode>();
                 CNode rrCNode = D1NodeFactory.buildNode(CNode.class, client, URI.create(rrCN.getBaseURL()));
                 rrCNode.setNodeId(rrCN.getIdentifier());
-                cnList.add(rrCNode);
+                cns.add(rrCNode);
+                cnList = cns;
             } else {
-                cnList = new LinkedList<CNode>();
+                Deque<CNode> cns = new ConcurrentLinkedDeque<CNode>();
                 for (Node n : cnSet) {
                     CNode cNode = D1NodeFactory.buildNode(CNode.class, client, URI.create(n.getBaseURL()));
                     cNode.setNodeId(n.getIdentifier());
-                    cnList.add(cNode);
+                    cns.add(cNode);
                 }
+                cnList = cns;
             }
         }
     }
@@ -26,10 +26,12 @@ import java.io.IOException;
 import java.net.URI;
 import java.security.cert.CertificateExpiredException;
 import java.security.cert.CertificateNotYetValidException;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.log4j.Logger;
 import org.dataone.client.D1NodeFactory;
 import org.dataone.client.NodeLocator;
+import org.dataone.client.NodeLocatorCache;
 import org.dataone.client.auth.X509Session;
 import org.dataone.client.exception.ClientSideException;
 import org.dataone.client.rest.DefaultHttpMultipartRestClient;
@@ -54,11 +56,17 @@ import org.dataone.service.types.v1.Session;
  */
 public class D1Client {
 
-    private static NodeLocator nodeLocator;
-    private static long lastNLRefresh = 0;
-    private static long lastNLRefreshAttempt = 0;
     private static long NODELOCATOR_REFRESH_ATTEMPT_INTERVAL = 5000;
     private static final long NODELOCATOR_STALE_INTERVAL = 5 * 60000; // min * millisec/min 
+    
+    /* refreshes the NodeLocator in the background, so lookups never wait on listNodes() */
+    private static final NodeLocatorCache nodeLocatorCache = new NodeLocatorCache(
+            NODELOCATOR_STALE_INTERVAL, NODELOCATOR_REFRESH_ATTEMPT_INTERVAL, TimeUnit.MILLISECONDS) {
+        @Override
+        protected NodeLocator load() throws Exception {
+            return new SettingsContextNodeLocator(getMultipartRestClient());
+        }
+    };
     protected static MultipartRestClient multipartRestClient;
     
     final static Logger logger = Logger.getLogger(D1Client.class);
@@ -140,7 +148,17 @@ public class D1Client {
      * @param nodeLocator
      */
     public static void setNodeLocator(NodeLocator nodeLocator) {
-        D1Client.nodeLocator = nodeLocator;
+        nodeLocatorCache.set(nodeLocator);
+    }
+    
+    /**
+     * Stops the background refresh of the NodeLocator, for applications that
+     * unload the client before the JVM exits (such as a web application 
+     * being undeployed).  The current NodeLocator is still used, but no 
+     * longer refreshed.
+     */
+    public static void stopNodeLocatorRefresh() {
+        nodeLocatorCache.close();
     }
     
     
@@ -161,7 +179,7 @@ public class D1Client {
     throws ServiceFailure, NotImplemented
     {
         try { 
-            bestAttemptRefreshNodeLocator();
+            NodeLocator nodeLocator = bestAttemptRefreshNodeLocator();
             if (nodeLocator != null) 
                 return (CNode) nodeLocator.getCNode();
             else
@@ -216,8 +234,7 @@ public class D1Client {
             CNCore cn = D1NodeFactory.buildNode(CNCore.class, getMultipartRestClient(), URI.create(cnUrl));
             // TODO: using a NodeListNodeLocator bypasses the designatedCN behavior of SettingsContextNodeLocator
             // should we be overriding the SettingsContext setting instead?
-    		nodeLocator = new NodeListNodeLocator(cn.listNodes(), getMultipartRestClient());
-    		lastNLRefresh = System.currentTimeMillis(); 
+    		nodeLocatorCache.set(new NodeListNodeLocator(cn.listNodes(), getMultipartRestClient()));
     	} catch (ClientSideException | IOException e) {
 			ExceptionUtils.recastClientSideExceptionToServiceFailure(e);
 		}
@@ -231,7 +248,7 @@ public class D1Client {
      */
     public static MNode getMN(String mnBaseUrl) throws ServiceFailure
     {
-    	bestAttemptRefreshNodeLocator();
+    	NodeLocator nodeLocator = bestAttemptRefreshNodeLocator();
     	
     	MNode mn = null;
     	if (nodeLocator != null) {
@@ -265,7 +282,7 @@ public class D1Client {
     //TODO: do we need this method?  When do we need to micro-manage which CN to connect to?
     public static CNode getCN(String cnBaseUrl) throws ServiceFailure
     {
-        bestAttemptRefreshNodeLocator();
+        NodeLocator nodeLocator = bestAttemptRefreshNodeLocator();
         
         CNode cn = null;	
     	if (nodeLocator != null) {
@@ -298,7 +315,7 @@ public class D1Client {
      */
     public static MNode getMN(NodeReference nodeRef) throws ServiceFailure
     {
-        bestAttemptRefreshNodeLocator();
+        NodeLocator nodeLocator = bestAttemptRefreshNodeLocator();
         try {
             if (nodeLocator != null) {
                 return  (MNode) nodeLocator.getNode(nodeRef);
@@ -311,22 +328,13 @@ public class D1Client {
     }
     
 
-    private static synchronized void bestAttemptRefreshNodeLocator() {
-        
-        long now = System.currentTimeMillis();
-        if (nodeLocator == null || now - lastNLRefresh > NODELOCATOR_STALE_INTERVAL) {
-            if (now - lastNLRefreshAttempt > NODELOCATOR_REFRESH_ATTEMPT_INTERVAL) 
-                // don't want to retry immediately after failure
-                try { 
-                    lastNLRefreshAttempt = System.currentTimeMillis();
-                    NodeLocator newLocator = new SettingsContextNodeLocator(getMultipartRestClient()); 
-                    nodeLocator = newLocator;
-                    lastNLRefresh = System.currentTimeMillis();
-                } catch (Throwable e1)  {
-                    // keep the old one, but maybe warn?
-                    logger.warn("Could not refresh D1Client's NodeLocator, using previous one.", e1);
-                }
-        }
+    /*
+     * Returns the current NodeLocator without blocking, except for the very
+     * first load.  A stale NodeLocator is returned while a fresh one is built
+     * in the background (see NodeLocatorCache).
+     */
+    private static NodeLocator bestAttemptRefreshNodeLocator() {
+        return nodeLocatorCache.get();
     }
 
 }
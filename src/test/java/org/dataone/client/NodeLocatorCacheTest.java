@@ -0,0 +1,149 @@
+package org.dataone.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.dataone.client.exception.ClientSideException;
+import org.junit.Test;
+
+public class NodeLocatorCacheTest {
+
+    private static NodeLocator newNodeLocator() {
+        return new NodeLocator() {
+            @Override
+            public D1Node getCNode() throws ClientSideException {
+                return null;
+            }
+        };
+    }
+    
+    /* 
+     * a cache with a clock moved by the test, whose loads block until 
+     * released, counting the loads and the finished refreshes
+     */
+    private static class TestCache extends NodeLocatorCache {
+        
+        final AtomicLong clock = new AtomicLong(1000000);
+        final AtomicInteger loads = new AtomicInteger();
+        volatile CountDownLatch release = new CountDownLatch(0);
+        volatile CountDownLatch loading = new CountDownLatch(1);
+        volatile CountDownLatch refreshed = new CountDownLatch(1);
+        volatile boolean published;
+        volatile boolean fail = false;
+        
+        TestCache(long refreshMillis) {
+            super(refreshMillis, 0, TimeUnit.MILLISECONDS);
+        }
+        
+        @Override
+        protected NodeLocator load() throws Exception {
+            loads.incrementAndGet();
+            loading.countDown();
+            release.await(5, TimeUnit.SECONDS);
+            if (fail)
+                throw new ClientSideException("listNodes failed");
+            return newNodeLocator();
+        }
+        
+        @Override
+        protected boolean refresh() {
+            try {
+                published = super.refresh();
+                return published;
+            } finally {
+                refreshed.countDown();
+            }
+        }
+        
+        @Override
+        protected long currentTimeMillis() {
+            return clock.get();
+        }
+        
+        void advance(long millis) {
+            clock.addAndGet(millis);
+        }
+    }
+    
+    @Test
+    public void testGet_loadsOnce() {
+        TestCache cache = new TestCache(60000);
+        NodeLocator first = cache.get();
+        assertTrue("should have loaded a NodeLocator", first != null);
+        assertTrue("should return the same NodeLocator while fresh", first == cache.get());
+        assertEquals("should have loaded once", 1, cache.loads.get());
+        cache.close();
+    }
+    
+    @Test
+    public void testGet_initialLoadFailureReturnsNull() {
+        TestCache cache = new TestCache(60000);
+        cache.fail = true;
+        assertNull("should return null if the first load fails", cache.get());
+    }
+    
+    @Test
+    public void testGet_staleIsServedWhileRefreshing() throws InterruptedException {
+        TestCache cache = new TestCache(60000);
+        NodeLocator stale = cache.get();
+        cache.release = new CountDownLatch(1);
+        cache.loading = new CountDownLatch(1);
+        cache.advance(60001);
+        
+        // the load is held until released, so get() returning at all shows it didn't wait
+        NodeLocator served = cache.get();
+        assertTrue("should serve the stale NodeLocator", served == stale);
+        
+        assertTrue("a background refresh should have started", cache.loading.await(5, TimeUnit.SECONDS));
+        cache.release.countDown();
+        assertTrue("the refresh should finish", cache.refreshed.await(5, TimeUnit.SECONDS));
+        assertTrue("the refresh should publish", cache.published);
+        assertTrue("the refreshed NodeLocator should be published", cache.get() != stale);
+        assertEquals(2, cache.loads.get());
+        cache.close();
+    }
+    
+    @Test
+    public void testSet_winsOverRefreshInFlight() throws InterruptedException {
+        TestCache cache = new TestCache(60000);
+        cache.get();
+        
+        cache.release = new CountDownLatch(1);
+        cache.loading = new CountDownLatch(1);
+        cache.advance(1);
+        assertTrue("a refresh should be scheduled", cache.refreshAsync());
+        assertTrue("a background refresh should have started", cache.loading.await(5, TimeUnit.SECONDS));
+        
+        NodeLocator override = newNodeLocator();
+        cache.set(override);
+        cache.release.countDown();
+        assertTrue("the refresh should finish", cache.refreshed.await(5, TimeUnit.SECONDS));
+        assertFalse("the refresh should not publish", cache.published);
+        assertTrue("the NodeLocator set during the refresh should be kept", override == cache.get());
+        cache.close();
+    }
+    
+    @Test
+    public void testClose_stopsRefreshing() {
+        TestCache cache = new TestCache(60000);
+        NodeLocator loaded = cache.get();
+        cache.close();
+        assertTrue(cache.isClosed());
+        
+        cache.advance(60001);
+        assertTrue("a closed cache should still serve its NodeLocator", loaded == cache.get());
+        assertFalse("a closed cache should not schedule refreshes", cache.refreshAsync());
+        assertEquals("should not have loaded again", 1, cache.loads.get());
+        
+        NodeLocator override = newNodeLocator();
+        cache.set(override);
+        assertTrue("a closed cache can still be set", override == cache.get());
+    }
+}
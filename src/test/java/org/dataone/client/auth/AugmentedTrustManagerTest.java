@@ -0,0 +1,102 @@
+package org.dataone.client.auth;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Date;
+
+import javax.net.ssl.X509TrustManager;
+
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.cert.X509v3CertificateBuilder;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509ExtensionUtils;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class AugmentedTrustManagerTest {
+
+    private static KeyPair caKeys;
+    private static X509Certificate caCert;
+
+    /* a JVM TrustManager that trusts nothing */
+    private static final X509TrustManager NOTHING_TRUSTED = new X509TrustManager() {
+        public void checkClientTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+            throw new CertificateException("not trusted");
+        }
+        public void checkServerTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+            throw new CertificateException("not trusted");
+        }
+        public X509Certificate[] getAcceptedIssuers() {
+            return new X509Certificate[0];
+        }
+    };
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        caKeys = newKeyPair();
+        caCert = issue("CN=Test CA,DC=dataone,DC=org", caKeys, "CN=Test CA,DC=dataone,DC=org", caKeys, null);
+    }
+
+    private static KeyPair newKeyPair() throws Exception {
+        KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA");
+        kpg.initialize(1024);
+        return kpg.generateKeyPair();
+    }
+
+    private static X509Certificate issue(String subject, KeyPair subjectKeys, String issuer, 
+            KeyPair issuerKeys, X509Certificate issuerCert) throws Exception 
+    {
+        JcaX509ExtensionUtils utils = new JcaX509ExtensionUtils();
+        X509v3CertificateBuilder builder = new JcaX509v3CertificateBuilder(new X500Name(issuer),
+                BigInteger.valueOf(System.nanoTime()), new Date(System.currentTimeMillis() - 60000),
+                new Date(System.currentTimeMillis() + 3600000), new X500Name(subject), subjectKeys.getPublic());
+        builder.addExtension(Extension.subjectKeyIdentifier, false, 
+                utils.createSubjectKeyIdentifier(subjectKeys.getPublic()));
+        if (issuerCert != null)
+            builder.addExtension(Extension.authorityKeyIdentifier, false, 
+                    utils.createAuthorityKeyIdentifier(issuerCert));
+        return new JcaX509CertificateConverter().getCertificate(
+                builder.build(new JcaContentSignerBuilder("SHA256withRSA").build(issuerKeys.getPrivate())));
+    }
+
+    @Test
+    public void testTrustsChainIssuedByAnchorAndRemembersIt() throws Exception {
+        AugmentedTrustManager tm = new AugmentedTrustManager(NOTHING_TRUSTED, Arrays.asList(caCert), 10, 60000);
+        X509Certificate leaf = issue("CN=cn.dataone.org", newKeyPair(), 
+                "CN=Test CA,DC=dataone,DC=org", caKeys, caCert);
+
+        tm.checkServerTrusted(new X509Certificate[] { leaf }, "RSA");
+        assertEquals(1, tm.getValidatedChainCount());
+        tm.checkServerTrusted(new X509Certificate[] { leaf }, "RSA");
+        assertEquals(1, tm.getValidatedChainCount());
+        assertEquals(1, tm.getAcceptedIssuers().length);
+    }
+
+    @Test
+    public void testRejectsChainNotIssuedByAnchor() throws Exception {
+        AugmentedTrustManager tm = new AugmentedTrustManager(NOTHING_TRUSTED, Arrays.asList(caCert), 10, 60000);
+
+        // same issuer name, different key
+        KeyPair imposterKeys = newKeyPair();
+        X509Certificate imposter = issue("CN=Test CA,DC=dataone,DC=org", imposterKeys, 
+                "CN=Test CA,DC=dataone,DC=org", imposterKeys, null);
+        X509Certificate leaf = issue("CN=cn.dataone.org", newKeyPair(), 
+                "CN=Test CA,DC=dataone,DC=org", imposterKeys, imposter);
+        try {
+            tm.checkServerTrusted(new X509Certificate[] { leaf }, "RSA");
+            fail("a chain not issued by a trust anchor should be rejected");
+        } catch (CertificateException e) {
+            assertEquals(0, tm.getValidatedChainCount());
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package org.dataone.client.auth;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+
+import org.apache.commons.io.IOUtils;
+import org.dataone.client.utils.HttpUtils;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class AuthTokenSessionTest {
+
+    private HttpServer server;
+    private String url;
+
+    @Before
+    public void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                String auth = exchange.getRequestHeaders().getFirst("Authorization");
+                byte[] body = String.valueOf(auth).getBytes("UTF-8");
+                exchange.sendResponseHeaders(200, body.length);
+                OutputStream os = exchange.getResponseBody();
+                os.write(body);
+                os.close();
+            }
+        });
+        server.start();
+        url = "http://localhost:" + server.getAddress().getPort() + "/echo";
+    }
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+    }
+
+    @Test
+    public void testSessionsShareClientButSendOwnToken() throws Exception {
+        Assume.assumeTrue(HttpUtils.SHARE_AUTH_TOKEN_CLIENT);
+
+        AuthTokenSession alice = new AuthTokenSession("alice-token");
+        AuthTokenSession bob = new AuthTokenSession("bob-token");
+        assertSame(alice.getHttpClient(), bob.getHttpClient());
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals("Bearer alice-token",
+                    IOUtils.toString(alice.getMultipartRestClient().doGetRequest(url, 5000), "UTF-8"));
+            assertEquals("Bearer bob-token",
+                    IOUtils.toString(bob.getMultipartRestClient().doGetRequest(url, 5000), "UTF-8"));
+        }
+    }
+}
@@ -6,13 +6,30 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.math.BigInteger;
 import java.nio.file.Files;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Observable;
 import java.util.Observer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.openssl.jcajce.JcaPEMWriter;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
@@ -104,6 +121,176 @@ public class CertificateManagerObserverTest {
         assertTrue("9. Should receive a notification when changing a real file to the same real filename that is now missing", observations.size()==6);
 
     }
-    
 
+    private static String credentialPem(String subject) throws Exception {
+        KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA");
+        kpg.initialize(1024);
+        KeyPair keys = kpg.generateKeyPair();
+        X509Certificate cert = new JcaX509CertificateConverter().getCertificate(
+                new JcaX509v3CertificateBuilder(new X500Name(subject), BigInteger.ONE, 
+                        new Date(System.currentTimeMillis() - 60000), new Date(System.currentTimeMillis() + 3600000),
+                        new X500Name(subject), keys.getPublic())
+                .build(new JcaContentSignerBuilder("SHA256withRSA").build(keys.getPrivate())));
+
+        StringWriter pem = new StringWriter();
+        JcaPEMWriter writer = new JcaPEMWriter(pem);
+        try {
+            writer.writeObject(cert);
+            writer.writeObject(keys.getPrivate());
+        } finally {
+            writer.close();
+        }
+        return pem.toString();
+    }
+
+    private static void writeCredential(File pemFile, String subject) throws Exception {
+        writePem(pemFile, credentialPem(subject));
+    }
+
+    private static void writePem(File pemFile, String pem) throws IOException {
+        OutputStreamWriter writer = new OutputStreamWriter(new FileOutputStream(pemFile), "UTF-8");
+        try {
+            writer.write(pem);
+        } finally {
+            writer.close();
+        }
+    }
+
+    /* pads the PEM with trailing newlines to the given length */
+    private static String padded(String pem, int length) {
+        StringBuilder sb = new StringBuilder(pem);
+        while (sb.length() < length) 
+            sb.append('\n');
+        return sb.toString();
+    }
+
+    @Test
+    public void testRotatedCertificateIsReloadedAndObserved() throws Exception {
+        final List<String> observations = new LinkedList<>();
+        File pemFile = File.createTempFile("certMan.rotation.", ".pem");
+        try {
+            writeCredential(pemFile, "CN=First,DC=dataone,DC=org");
+
+            CertificateManager cm = new CertificateManager();
+            cm.setCertificateLocation(pemFile.getCanonicalPath());
+            cm.addObserver(new Observer() {
+                @Override
+                public void update(Observable o, Object arg) {
+                    observations.add("rotated");
+                }
+            });
+
+            X509Certificate first = cm.selectSession(null).getCertificate();
+            assertEquals(first, cm.selectSession(null).getCertificate());
+
+            // touching the file without changing the credential is not a change
+            pemFile.setLastModified(pemFile.lastModified() + 2000);
+            assertEquals(first, cm.selectSession(null).getCertificate());
+            assertEquals(0, observations.size());
+
+            writeCredential(pemFile, "CN=Second,DC=dataone,DC=org");
+            pemFile.setLastModified(pemFile.lastModified() + 4000);
+            X509Certificate second = cm.selectSession(null).getCertificate();
+            assertFalse(first.equals(second));
+            assertEquals("observers should be notified once of the rotation", 1, observations.size());
+            assertEquals(second, cm.selectSession(null).getCertificate());
+            assertEquals(1, observations.size());
+        } finally {
+            pemFile.delete();
+        }
+    }
+
+    @Test
+    public void testSameSizeRewriteWithinMtimeGranularityIsReloaded() throws Exception {
+        final List<String> observations = new LinkedList<>();
+        String firstPem = credentialPem("CN=First,DC=dataone,DC=org");
+        String secondPem = credentialPem("CN=Second,DC=dataone,DC=org");
+        int length = Math.max(firstPem.length(), secondPem.length()) + 1;
+
+        File pemFile = File.createTempFile("certMan.rotation.", ".pem");
+        try {
+            // whole seconds, as coarse-grained file systems record them
+            long mtime = System.currentTimeMillis() / 1000 * 1000;
+            writePem(pemFile, padded(firstPem, length));
+            pemFile.setLastModified(mtime);
+
+            CertificateManager cm = new CertificateManager();
+            cm.setCertificateLocation(pemFile.getCanonicalPath());
+            cm.addObserver(new Observer() {
+                @Override
+                public void update(Observable o, Object arg) {
+                    observations.add("rotated");
+                }
+            });
+            X509Certificate first = cm.selectSession(null).getCertificate();
+
+            // rewritten in the same tick: same modification time and size
+            writePem(pemFile, padded(secondPem, length));
+            pemFile.setLastModified(mtime);
+            assertEquals(length, pemFile.length());
+
+            X509Certificate second = cm.selectSession(null).getCertificate();
+            assertFalse("the rewritten credential should be loaded", first.equals(second));
+            assertEquals(1, observations.size());
+            assertEquals(second, cm.selectSession(null).getCertificate());
+            assertEquals(1, observations.size());
+        } finally {
+            pemFile.delete();
+        }
+    }
+
+    @Test
+    public void testConcurrentReloadNotifiesObserversOnce() throws Exception {
+        final AtomicInteger observations = new AtomicInteger();
+        File pemFile = File.createTempFile("certMan.rotation.", ".pem");
+        try {
+            writeCredential(pemFile, "CN=First,DC=dataone,DC=org");
+
+            final CertificateManager cm = new CertificateManager();
+            cm.setCertificateLocation(pemFile.getCanonicalPath());
+            cm.addObserver(new Observer() {
+                @Override
+                public void update(Observable o, Object arg) {
+                    observations.incrementAndGet();
+                }
+            });
+            X509Certificate first = cm.selectSession(null).getCertificate();
+
+            writeCredential(pemFile, "CN=Second,DC=dataone,DC=org");
+            pemFile.setLastModified(pemFile.lastModified() + 4000);
+
+            int threads = 8;
+            final CountDownLatch start = new CountDownLatch(1);
+            final List<X509Certificate> seen = Collections.synchronizedList(new ArrayList<X509Certificate>());
+            final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            try {
+                for (int i = 0; i < threads; i++) {
+                    executor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                start.await();
+                                seen.add(cm.selectSession(null).getCertificate());
+                            } catch (Throwable t) {
+                                failures.add(t);
+                            }
+                        }
+                    });
+                }
+                start.countDown();
+            } finally {
+                executor.shutdown();
+            }
+            assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
+
+            assertEquals("unexpected failures: " + failures, 0, failures.size());
+            assertEquals(threads, seen.size());
+            for (X509Certificate cert : seen) 
+                assertFalse("every caller should see the new credential", first.equals(cert));
+            assertEquals("exactly one thread should notify observers", 1, observations.get());
+        } finally {
+            pemFile.delete();
+        }
+    }
 }
@@ -135,6 +135,22 @@ public class CertificateManagerTest {
         //cm.displayCertificate(caCert);	
     }
     
+    @Test
+    public void testSSLContextReused() throws Exception {
+        CertificateManager cm = new CertificateManager();
+        SSLContext ctx = cm.getSSLContext((X509Session) null);
+        assertTrue("the SSLContext should be reused for the same key material",
+                ctx == cm.getSSLContext((X509Session) null));
+        assertTrue("socket factories should be reused for the same key material",
+                cm.getSSLConnectionSocketFactory((X509Session) null) 
+                == cm.getSSLConnectionSocketFactory((X509Session) null));
+        assertEquals(Settings.getConfiguration().getInt("tls.sessionCache.size", 1000),
+                ctx.getClientSessionContext().getSessionCacheSize());
+
+        cm.clearSSLContextCache();
+        assertFalse(ctx == cm.getSSLContext((X509Session) null));
+    }
+    
    // this was a temporary test to test against a real SSL handshake - if necessary
     // move it to d1_integration
 //    @Test
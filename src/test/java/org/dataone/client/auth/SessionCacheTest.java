@@ -0,0 +1,147 @@
+package org.dataone.client.auth;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.dataone.service.types.v1.Session;
+import org.dataone.service.types.v1.Subject;
+import org.dataone.service.types.v1.SubjectInfo;
+import org.junit.Test;
+
+public class SessionCacheTest {
+
+    private static X509Certificate newCertificate(String subject, long notAfter) throws Exception {
+        KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA");
+        kpg.initialize(1024);
+        KeyPair keys = kpg.generateKeyPair();
+        return new JcaX509CertificateConverter().getCertificate(
+                new JcaX509v3CertificateBuilder(new X500Name(subject), BigInteger.ONE, 
+                        new Date(System.currentTimeMillis() - 60000), new Date(notAfter),
+                        new X500Name(subject), keys.getPublic())
+                .build(new JcaContentSignerBuilder("SHA256withRSA").build(keys.getPrivate())));
+    }
+
+    private static Session newSession(String subjectValue) {
+        Subject subject = new Subject();
+        subject.setValue(subjectValue);
+        Session session = new Session();
+        session.setSubject(subject);
+        session.setSubjectInfo(new SubjectInfo());
+        return session;
+    }
+
+    @Test
+    public void testHitReturnsNewSessionForSameSubject() throws Exception {
+        SessionCache cache = new SessionCache(10, 60000);
+        X509Certificate cert = newCertificate("CN=Alice,DC=dataone,DC=org", System.currentTimeMillis() + 3600000);
+
+        assertNull(cache.get(cert));
+        Session original = newSession("CN=Alice,DC=dataone,DC=org");
+        cache.put(cert, original);
+
+        Session cached = cache.get(cert);
+        assertNotNull(cached);
+        assertFalse("each lookup should get its own Session", cached == original);
+        assertEquals("CN=Alice,DC=dataone,DC=org", cached.getSubject().getValue());
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    public void testRespectsCertificateExpiration() throws Exception {
+        SessionCache cache = new SessionCache(10, 60000);
+        X509Certificate expired = newCertificate("CN=Bob,DC=dataone,DC=org", System.currentTimeMillis() - 1000);
+
+        cache.put(expired, newSession("CN=Bob,DC=dataone,DC=org"));
+        assertNull("sessions of expired certificates should not be served", cache.get(expired));
+    }
+
+    @Test
+    public void testEvictsOldestWhenFull() throws Exception {
+        SessionCache cache = new SessionCache(1, 60000);
+        long notAfter = System.currentTimeMillis() + 3600000;
+        X509Certificate first = newCertificate("CN=First,DC=dataone,DC=org", notAfter);
+        X509Certificate second = newCertificate("CN=Second,DC=dataone,DC=org", notAfter);
+
+        cache.put(first, newSession("CN=First,DC=dataone,DC=org"));
+        cache.put(second, newSession("CN=Second,DC=dataone,DC=org"));
+        assertEquals(1, cache.size());
+        assertEquals(1, cache.getEvictionCount());
+        assertNull(cache.get(first));
+        assertNotNull(cache.get(second));
+    }
+
+    /* a cache whose clock is set by the test */
+    private static class ClockedSessionCache extends SessionCache {
+        long now = 0;
+
+        ClockedSessionCache(int maxEntries, long ttlMillis) {
+            super(maxEntries, ttlMillis);
+        }
+
+        @Override
+        protected long currentTimeMillis() {
+            return now;
+        }
+    }
+
+    @Test
+    public void testReputAfterExpiryIsNotEvictedEarly() throws Exception {
+        ClockedSessionCache cache = new ClockedSessionCache(2, 1000);
+        long notAfter = System.currentTimeMillis() + 3600000;
+        X509Certificate a = newCertificate("CN=A,DC=dataone,DC=org", notAfter);
+        X509Certificate b = newCertificate("CN=B,DC=dataone,DC=org", notAfter);
+        X509Certificate c = newCertificate("CN=C,DC=dataone,DC=org", notAfter);
+
+        cache.put(a, newSession("CN=A,DC=dataone,DC=org"));
+        cache.now = 1500;
+        cache.put(b, newSession("CN=B,DC=dataone,DC=org"));
+        cache.now = 2000;
+        assertNull("A should have expired", cache.get(a));
+        cache.put(a, newSession("CN=A,DC=dataone,DC=org"));
+
+        // B is now the least recently used, not the re-derived A
+        cache.put(c, newSession("CN=C,DC=dataone,DC=org"));
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getEvictionCount());
+        assertNotNull(cache.get(a));
+        assertNotNull(cache.get(c));
+        assertNull(cache.get(b));
+    }
+
+    @Test
+    public void testExpireAndReputCycles() throws Exception {
+        ClockedSessionCache cache = new ClockedSessionCache(3, 1000);
+        long notAfter = System.currentTimeMillis() + 3600000;
+        X509Certificate[] certs = new X509Certificate[5];
+        for (int i = 0; i < certs.length; i++)
+            certs[i] = newCertificate("CN=C" + i + ",DC=dataone,DC=org", notAfter);
+
+        for (int cycle = 0; cycle < 200; cycle++) {
+            cache.now = cycle * 2000L;
+            for (int i = 0; i < certs.length; i++) {
+                // everything from the last cycle has expired
+                assertNull(cache.get(certs[i]));
+                cache.put(certs[i], newSession("CN=C" + i + ",DC=dataone,DC=org"));
+                assertTrue("the cache should never exceed its size", cache.size() <= 3);
+            }
+            // the most recently put entries are the ones kept
+            assertEquals(3, cache.size());
+            for (int i = 2; i < certs.length; i++)
+                assertNotNull(cache.get(certs[i]));
+        }
+    }
+}
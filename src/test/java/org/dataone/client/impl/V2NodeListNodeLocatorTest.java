@@ -2,7 +2,9 @@ package org.dataone.client.impl;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.util.HashSet;
 import java.util.Set;
 
 import org.dataone.client.D1Node;
@@ -157,4 +159,45 @@ public class V2NodeListNodeLocatorTest {
         
     }
 
+	@Test
+	public void testGetNode_byBaseUrl() throws ClientSideException {
+		D1Node mn = nodeLoc.getNode(D1TypeBuilder.buildNodeReference("urn:node:MNhttps"));
+		
+		assertTrue("Should find the node by its base service url", 
+				mn == nodeLoc.getNode(mn.getNodeBaseServiceUrl()));
+		assertTrue("Should find the node by the Node record's baseURL", 
+				mn == nodeLoc.getNode("https://mn1.biz.org/mn"));
+		assertTrue("Should find the node regardless of trailing slash, host case, and default port", 
+				mn == nodeLoc.getNode("HTTPS://MN1.biz.org:443/mn/v2/"));
+	}
+
+	@Test(expected=ClientSideException.class)
+	public void testGetNode_byUnknownBaseUrl() throws ClientSideException {
+		nodeLoc.getNode("https://mn1.biz.org/other");
+	}
+
+	@Test
+	public void testPutNode_replacesBaseUrlIndex() throws ClientSideException {
+		NodeReference nodeRef = D1TypeBuilder.buildNodeReference("urn:node:CN1foo");
+		CNode cn = new MultipartCNode(mrc, "https://cn3.foo.org/cn");
+		nodeLoc.putNode(nodeRef, cn);
+		
+		assertTrue("Should find the new node by its base url", cn == nodeLoc.getNode("https://cn3.foo.org/cn"));
+		assertTrue("Should find the new node by its id", cn == nodeLoc.getNode(nodeRef));
+		try {
+			nodeLoc.getNode("https://cn1.foo.org/cn");
+			fail("The replaced node's base url should no longer resolve");
+		} catch (ClientSideException e) {
+			; // expected
+		}
+	}
+
+	@Test
+	public void testGetCNode_rotates() throws ClientSideException {
+		Set<String> seen = new HashSet<String>();
+		for (int i = 0; i < 4; i++) {
+			seen.add(nodeLoc.getCNode().getNodeId().getValue());
+		}
+		assertEquals("getCNode should rotate through both CNs", 2, seen.size());
+	}
 }
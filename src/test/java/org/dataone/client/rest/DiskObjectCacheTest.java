@@ -0,0 +1,113 @@
+package org.dataone.client.rest;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.nio.file.Files;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DiskObjectCacheTest {
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("diskObjectCacheTest").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        FileUtils.deleteQuietly(dir);
+    }
+
+    private static byte[] read(InputStream is) throws IOException {
+        try {
+            return IOUtils.toByteArray(is);
+        } finally {
+            is.close();
+        }
+    }
+
+    private static void put(DiskObjectCache cache, String partition, String pid, byte[] content) 
+    throws IOException {
+        read(cache.putObject(partition, pid, "MD5", DigestUtils.md5Hex(content), 
+                new ByteArrayInputStream(content)));
+    }
+
+    @Test
+    public void testPutThenGet() throws IOException {
+        DiskObjectCache cache = new DiskObjectCache(dir, 1024 * 1024, 1024, 60000);
+        byte[] content = "some immutable content".getBytes("UTF-8");
+
+        assertNull(cache.getObject("alice", "pid1"));
+        byte[] returned = read(cache.putObject("alice", "pid1", "MD5", DigestUtils.md5Hex(content),
+                new ByteArrayInputStream(content)));
+        assertArrayEquals(content, returned);
+        assertArrayEquals(content, read(cache.getObject("alice", "pid1")));
+        assertNull("entries should not be shared across partitions", cache.getObject("bob", "pid1"));
+    }
+
+    @Test
+    public void testChecksumMismatchIsNotCached() throws IOException {
+        DiskObjectCache cache = new DiskObjectCache(dir, 1024 * 1024, 1024, 60000);
+        byte[] content = "some content".getBytes("UTF-8");
+
+        byte[] returned = read(cache.putObject("alice", "pid1", "MD5", DigestUtils.md5Hex("other"),
+                new ByteArrayInputStream(content)));
+        assertArrayEquals("the downloaded content should still be returned", content, returned);
+        assertNull(cache.getObject("alice", "pid1"));
+        assertEquals(0, cache.getTotalBytes());
+        assertEquals(0, new File(dir, "tmp").list().length);
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() throws IOException, InterruptedException {
+        DiskObjectCache cache = new DiskObjectCache(dir, 250, 1024, 60000);
+        put(cache, "p", "a", new byte[100]);
+        put(cache, "p", "b", new byte[] { 1, 2, 3 });
+        put(cache, "p", "c", new byte[100]);
+        // "a" and "c" share content, so only two files exist
+        assertEquals(103, cache.getTotalBytes());
+
+        read(cache.getObject("p", "b"));
+        byte[] big = new byte[200];
+        big[0] = 7;
+        put(cache, "p", "d", big);
+
+        assertTrue(cache.getTotalBytes() <= 250);
+        assertNull("least recently used content should be evicted", cache.getObject("p", "a"));
+        assertNotNull(cache.getObject("p", "d"));
+    }
+
+    @Test
+    public void testSurvivesReopening() throws IOException {
+        byte[] content = "persistent".getBytes("UTF-8");
+        DiskObjectCache cache = new DiskObjectCache(dir, 1024 * 1024, 1024, 60000);
+        put(cache, "alice", "pid1", content);
+        cache.putSystemMetadata("alice", "http://foo/v2/meta/pid1", "<sysmeta/>".getBytes("UTF-8"),
+                BigInteger.valueOf(3));
+
+        DiskObjectCache reopened = new DiskObjectCache(dir, 1024 * 1024, 1024, 60000);
+        assertArrayEquals(content, read(reopened.getObject("alice", "pid1")));
+        DiskObjectCache.CachedSystemMetadata sysmeta = 
+                reopened.getSystemMetadata("alice", "http://foo/v2/meta/pid1");
+        assertNotNull(sysmeta);
+        assertEquals(BigInteger.valueOf(3), sysmeta.getSerialVersion());
+        assertEquals("<sysmeta/>", new String(sysmeta.getBytes(), "UTF-8"));
+        assertEquals(cache.getTotalBytes(), reopened.getTotalBytes());
+    }
+}
@@ -0,0 +1,259 @@
+package org.dataone.client.rest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.config.Registry;
+import org.apache.http.nio.conn.NoopIOSessionStrategy;
+import org.apache.http.nio.conn.SchemeIOSessionStrategy;
+import org.apache.http.nio.conn.ssl.SSLIOSessionStrategy;
+import org.dataone.client.exception.ClientSideException;
+import org.dataone.client.utils.HttpUtils;
+import org.dataone.mimemultipart.SimpleMultipartEntity;
+import org.dataone.service.exceptions.BaseException;
+import org.dataone.service.exceptions.NotFound;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class HttpAsyncMultipartRestClientTest {
+
+    private static final String NOT_FOUND_BODY =
+            "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+            + "<error detailCode=\"1020\" errorCode=\"404\" name=\"NotFound\">"
+            + "<description>No system metadata could be found for the pid</description>"
+            + "</error>";
+
+    /* what the server received for one request */
+    private static class Received {
+        String method;
+        String path;
+        String contentType;
+        String contentLength;
+        String transferEncoding;
+        String body;
+    }
+
+    /* records the callback's notifications */
+    private static class RecordingCallback<T> implements FutureCallback<T> {
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile T result;
+        volatile Exception failure;
+
+        @Override
+        public void completed(T result) {
+            this.result = result;
+            done.countDown();
+        }
+
+        @Override
+        public void failed(Exception ex) {
+            this.failure = ex;
+            done.countDown();
+        }
+
+        @Override
+        public void cancelled() {
+            done.countDown();
+        }
+    }
+
+    private HttpServer server;
+    private String baseUrl;
+    private final List<Received> received = new CopyOnWriteArrayList<Received>();
+    private HttpAsyncMultipartRestClient client;
+
+    /*
+     * /object answers "hello", /error a DataONE NotFound, /redirect a 303 to
+     * /object, and /echo records the request entity.
+     */
+    @Before
+    public void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                Received r = new Received();
+                r.method = exchange.getRequestMethod();
+                r.path = exchange.getRequestURI().getPath();
+                r.contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+                r.contentLength = exchange.getRequestHeaders().getFirst("Content-Length");
+                r.transferEncoding = exchange.getRequestHeaders().getFirst("Transfer-Encoding");
+                r.body = IOUtils.toString(exchange.getRequestBody(), "UTF-8");
+                received.add(r);
+
+                if (r.path.equals("/error")) {
+                    exchange.getResponseHeaders().set("Content-Type", "text/xml");
+                    respond(exchange, 404, NOT_FOUND_BODY);
+                } else if (r.path.equals("/redirect")) {
+                    exchange.getResponseHeaders().set("Location", baseUrl + "/object");
+                    respond(exchange, 303, "see other");
+                } else if (r.path.equals("/echo")) {
+                    respond(exchange, 200, "received");
+                } else {
+                    respond(exchange, 200, "hello");
+                }
+            }
+        });
+        server.start();
+        baseUrl = "http://localhost:" + server.getAddress().getPort();
+        client = new HttpAsyncMultipartRestClient(
+                HttpUtils.getHttpAsyncClientBuilder(null).build(), null);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (client != null)
+            client.close();
+        if (server != null)
+            server.stop(0);
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes("UTF-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        OutputStream os = exchange.getResponseBody();
+        os.write(bytes);
+        os.close();
+    }
+
+    private static String read(Future<InputStream> future) throws Exception {
+        InputStream is = future.get(10, TimeUnit.SECONDS);
+        try {
+            return IOUtils.toString(is, "UTF-8");
+        } finally {
+            is.close();
+        }
+    }
+
+    @Test
+    public void testGet() throws Exception {
+        RecordingCallback<InputStream> callback = new RecordingCallback<InputStream>();
+        Future<InputStream> future = client.doGetRequest(baseUrl + "/object", null, callback);
+        assertEquals("hello", read(future));
+        assertTrue(callback.done.await(10, TimeUnit.SECONDS));
+        assertNotNull("completed() should get the response", callback.result);
+        assertNull(callback.failure);
+        assertEquals("GET", received.get(0).method);
+    }
+
+    @Test
+    public void testErrorBodyBecomesDataONEException() throws Exception {
+        RecordingCallback<InputStream> callback = new RecordingCallback<InputStream>();
+        Future<InputStream> future = client.doGetRequest(baseUrl + "/error", null, callback);
+        try {
+            future.get(10, TimeUnit.SECONDS);
+            fail("the Future should fail with the deserialized exception");
+        } catch (ExecutionException e) {
+            assertTrue("expected NotFound, got " + e.getCause(), e.getCause() instanceof NotFound);
+            assertEquals("1020", ((BaseException) e.getCause()).getDetail_code());
+        }
+        assertTrue(callback.done.await(10, TimeUnit.SECONDS));
+        assertTrue("failed() should get the exception", callback.failure instanceof NotFound);
+        assertNull(callback.result);
+    }
+
+    @Test
+    public void testRedirectReturnedWhenNotFollowing() throws Exception {
+        Future<InputStream> future = client.doGetRequest(baseUrl + "/redirect", null, false, null);
+        assertEquals("the 303 should be returned rather than followed", "see other", read(future));
+        assertEquals(1, received.size());
+
+        future = client.doGetRequest(baseUrl + "/redirect", null, true, null);
+        assertEquals("hello", read(future));
+        assertEquals("/object", received.get(2).path);
+    }
+
+    @Test
+    public void testTransportFailureReachesCallback() throws Exception {
+        // a port nothing listens on
+        HttpServer closed = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        int port = closed.getAddress().getPort();
+        closed.stop(0);
+
+        RecordingCallback<InputStream> callback = new RecordingCallback<InputStream>();
+        Future<InputStream> future = client.doGetRequest("http://localhost:" + port + "/object",
+                2000, callback);
+        try {
+            future.get(10, TimeUnit.SECONDS);
+            fail("the request should fail");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof ClientSideException);
+        }
+        assertTrue(callback.done.await(10, TimeUnit.SECONDS));
+        assertTrue(callback.failure instanceof ClientSideException);
+    }
+
+    @Test
+    public void testThrowingCallbackDoesNotStopTheClient() throws Exception {
+        final CountDownLatch called = new CountDownLatch(1);
+        FutureCallback<InputStream> throwing = new RecordingCallback<InputStream>() {
+            @Override
+            public void completed(InputStream result) {
+                called.countDown();
+                throw new IllegalArgumentException("the application's callback failed");
+            }
+        };
+        Future<InputStream> future = client.doGetRequest(baseUrl + "/object", null, throwing);
+        assertEquals("hello", read(future));
+        assertTrue(called.await(10, TimeUnit.SECONDS));
+
+        assertTrue("the client should still be running", client.getHttpAsyncClient().isRunning());
+        assertEquals("hello", read(client.doGetRequest(baseUrl + "/object", null, null)));
+    }
+
+    @Test
+    public void testPostAndPutBufferTheEntity() throws Exception {
+        SimpleMultipartEntity mpe = new SimpleMultipartEntity();
+        mpe.addParamPart("pid", "testPid");
+        mpe.addFilePart("sysmeta", "<systemMetadata/>");
+        assertEquals("received", read(client.doPostRequest(baseUrl + "/echo", mpe, null, null)));
+
+        mpe = new SimpleMultipartEntity();
+        mpe.addParamPart("pid", "testPid2");
+        assertEquals("received", read(client.doPutRequest(baseUrl + "/echo", mpe, null, null)));
+
+        Received post = received.get(0);
+        assertEquals("POST", post.method);
+        assertTrue(post.contentType, post.contentType.startsWith("multipart/form-data"));
+        assertNull("a buffered entity should not be chunked", post.transferEncoding);
+        assertEquals(String.valueOf(post.body.getBytes("UTF-8").length), post.contentLength);
+        assertTrue(post.body.contains("testPid"));
+        assertTrue(post.body.contains("<systemMetadata/>"));
+
+        Received put = received.get(1);
+        assertEquals("PUT", put.method);
+        assertTrue(put.contentType.startsWith("multipart/form-data"));
+        assertEquals(String.valueOf(put.body.getBytes("UTF-8").length), put.contentLength);
+        assertTrue(put.body.contains("testPid2"));
+    }
+
+    @Test
+    public void testAsyncConnectionRegistry() throws Exception {
+        Registry<SchemeIOSessionStrategy> registry = HttpUtils.buildAsyncConnectionRegistry(null);
+        assertSame(NoopIOSessionStrategy.INSTANCE, registry.lookup("http"));
+        assertTrue(registry.lookup("https") instanceof SSLIOSessionStrategy);
+        assertNull(registry.lookup("ftp"));
+    }
+}
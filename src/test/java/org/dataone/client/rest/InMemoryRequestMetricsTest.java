@@ -0,0 +1,75 @@
+package org.dataone.client.rest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.http.entity.ByteArrayEntity;
+import org.junit.Test;
+
+public class InMemoryRequestMetricsTest {
+
+    @Test
+    public void testOperationAndNode() {
+        RequestTimings t = new RequestTimings(new InMemoryRequestMetrics(), "GET",
+                "https://mn.example.org:8443/knb/d1/mn/v2/object/foo%2Fbar?x=1");
+        assertEquals("https://mn.example.org:8443", t.getNode());
+        assertEquals("GET object", t.getOperation());
+
+        t = new RequestTimings(new InMemoryRequestMetrics(), "GET", "https://cn.example.org/cn/v2");
+        assertEquals("GET", t.getOperation());
+    }
+
+    @Test
+    public void testRecordsCompletedRequests() {
+        InMemoryRequestMetrics metrics = new InMemoryRequestMetrics();
+
+        RequestTimings ok = new RequestTimings(metrics, "GET", "https://cn.example.org/cn/v2/meta/foo");
+        ok.setRequestBytes(0);
+        ok.responseReceived(200);
+        ok.complete(1234, false);
+        ok.complete(1234, false);  // should be ignored
+
+        RequestTimings failed = new RequestTimings(metrics, "GET", "https://cn.example.org/cn/v2/meta/bar");
+        failed.responseReceived(404);
+        failed.complete(100, false);
+
+        assertEquals(2, metrics.getRequestCount());
+        assertEquals(1, metrics.getErrorCount());
+        assertEquals(1334, metrics.getBytesIn());
+        assertEquals("should be one entry per status", 2, metrics.getStatistics().length);
+
+        long histogramTotal = 0;
+        for (long c : metrics.getLatencyHistogram()) {
+            histogramTotal += c;
+        }
+        assertEquals(2, histogramTotal);
+
+        metrics.reset();
+        assertEquals(0, metrics.getRequestCount());
+        assertEquals(0, metrics.getStatistics().length);
+    }
+
+    @Test
+    public void testResponseEntityCompletesAtEndOfStream() throws IOException {
+        InMemoryRequestMetrics metrics = new InMemoryRequestMetrics();
+        RequestTimings t = new RequestTimings(metrics, "GET", "https://cn.example.org/cn/v2/object/foo");
+        t.responseReceived(200);
+
+        MeteredEntity.Response entity = new MeteredEntity.Response(
+                new ByteArrayEntity(new byte[5000]), t);
+        InputStream is = entity.getContent();
+        byte[] buffer = new byte[1024];
+        while (is.read(buffer) != -1) {
+            assertEquals("should not complete before the end of the body", 
+                    0, metrics.getRequestCount());
+        }
+        is.close();
+
+        assertEquals(1, metrics.getRequestCount());
+        assertEquals(5000, t.getResponseBytes());
+        assertFalse(t.isError());
+    }
+}
@@ -0,0 +1,117 @@
+package org.dataone.client.rest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.http.Header;
+import org.dataone.client.auth.X509Session;
+import org.dataone.client.v1.types.D1TypeBuilder;
+import org.dataone.client.v2.impl.MultipartMNode;
+import org.dataone.configuration.Settings;
+import org.dataone.mimemultipart.SimpleMultipartEntity;
+import org.dataone.service.exceptions.BaseException;
+import org.dataone.service.types.v2.SystemMetadata;
+import org.junit.Test;
+
+public class MultipartD1NodeSystemMetadataTest {
+
+    private static final String MN = "https://mn.example.org/mn";
+    
+    private static final String SYSMETA = 
+            "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+            + "<d1:systemMetadata xmlns:d1=\"http://ns.dataone.org/service/types/v2.0\">"
+            + "<serialVersion>3</serialVersion>"
+            + "<identifier>foo</identifier>"
+            + "<formatId>text/plain</formatId>"
+            + "<size>3</size>"
+            + "<checksum algorithm=\"MD5\">acbd18db4cc2f85cedef654fccc4a4d8</checksum>"
+            + "<submitter>CN=submitter</submitter>"
+            + "<rightsHolder>CN=rightsHolder</rightsHolder>"
+            + "</d1:systemMetadata>";
+
+    /* returns the SystemMetadata document for every GET, recording the timeouts and redirect flags */
+    private static class SystemMetadataClient implements MultipartRestClient {
+
+        final List<String> urls = new CopyOnWriteArrayList<String>();
+        final List<Integer> timeouts = new CopyOnWriteArrayList<Integer>();
+        final List<Boolean> followRedirects = new CopyOnWriteArrayList<Boolean>();
+
+        private InputStream respond(String url, Integer timeout) {
+            urls.add(url);
+            timeouts.add(timeout);
+            try {
+                return new ByteArrayInputStream(SYSMETA.getBytes("UTF-8"));
+            } catch (java.io.UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        public InputStream doGetRequest(String url, Integer timeout) throws BaseException {
+            return respond(url, timeout);
+        }
+        public InputStream doGetRequest(String url, Integer timeout, boolean followRedirect) throws BaseException {
+            followRedirects.add(followRedirect);
+            return respond(url, timeout);
+        }
+        public Header[] doGetRequestForHeaders(String url, Integer timeout) throws BaseException {
+            return new Header[0];
+        }
+        public InputStream doDeleteRequest(String url, Integer timeout) throws BaseException {
+            return respond(url, timeout);
+        }
+        public Header[] doHeadRequest(String url, Integer timeout) throws BaseException {
+            return new Header[0];
+        }
+        public InputStream doPutRequest(String url, SimpleMultipartEntity e, Integer timeout) throws BaseException {
+            return respond(url, timeout);
+        }
+        public InputStream doPostRequest(String url, SimpleMultipartEntity e, Integer timeout) throws BaseException {
+            return respond(url, timeout);
+        }
+        public String getLatestRequestUrl() {
+            return null;
+        }
+        public X509Session getSession() {
+            return null;
+        }
+    }
+
+    @Test
+    public void testGetSystemMetadataWithDefaultConfiguration() throws Exception {
+        // no getSystemMetadata timeout is configured by default
+        assertNull(RequestPolicyRegistry.getInstance()
+                .getPolicy(RequestPolicy.Operation.GET_SYSTEM_METADATA).getTimeout());
+        
+        SystemMetadataClient client = new SystemMetadataClient();
+        MultipartMNode mn = new MultipartMNode(client, MN);
+        SystemMetadata sysmeta = mn.getSystemMetadata(null, D1TypeBuilder.buildIdentifier("foo"));
+        
+        assertEquals("foo", sysmeta.getIdentifier().getValue());
+        assertEquals(3, sysmeta.getSerialVersion().intValue());
+        assertEquals(1, client.urls.size());
+        assertNull("the default timeout should be passed as null", client.timeouts.get(0));
+        assertEquals("redirects aren't followed by default", 
+                Collections.singletonList(Boolean.FALSE), client.followRedirects);
+    }
+
+    @Test
+    public void testGetSystemMetadataFollowsRedirectsPerPolicy() throws Exception {
+        String property = RequestPolicy.Operation.GET_SYSTEM_METADATA.getFollowRedirectsProperty();
+        Settings.getConfiguration().setProperty(property, true);
+        RequestPolicyRegistry.getInstance().refresh();
+        try {
+            SystemMetadataClient client = new SystemMetadataClient();
+            new MultipartMNode(client, MN).getSystemMetadata(null, D1TypeBuilder.buildIdentifier("foo"));
+            assertEquals(Collections.singletonList(Boolean.TRUE), client.followRedirects);
+        } finally {
+            Settings.getConfiguration().clearProperty(property);
+            RequestPolicyRegistry.getInstance().refresh();
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package org.dataone.client.rest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.io.IOUtils;
+import org.dataone.client.auth.CertificateManager;
+import org.dataone.client.exception.ClientSideException;
+import org.dataone.service.exceptions.BaseException;
+import org.junit.After;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class MultipartRestClientRegistryTest {
+
+    private static final String UNREGISTERED_SUBJECT = "CN=notRegistered,DC=dataone,DC=org";
+
+    /* subjects registered on the global CertificateManager, removed after each test */
+    private final List<String> registeredSubjects = new ArrayList<String>();
+    private String previousCertificateLocation;
+    private boolean certificateLocationChanged = false;
+    private HttpServer server;
+
+    @After
+    public void tearDown() {
+        CertificateManager cm = CertificateManager.getInstance();
+        for (String subject : registeredSubjects)
+            cm.unregisterCertificate(subject);
+        if (certificateLocationChanged)
+            cm.setCertificateLocation(previousCertificateLocation);
+        if (server != null)
+            server.stop(0);
+    }
+
+    private String registerTestCertificate() throws IOException {
+        CertificateManager cm = CertificateManager.getInstance();
+        String path = testCertificatePath();
+        X509Certificate xc = cm.loadCertificateFromFile(path);
+        PrivateKey pk = cm.loadPrivateKeyFromFile(path, null);
+        String subjectString = cm.getSubjectDN(xc);
+        cm.registerCertificate(subjectString, xc, pk);
+        registeredSubjects.add(subjectString);
+        return subjectString;
+    }
+
+    private static String testCertificatePath() {
+        URL url = Thread.currentThread().getContextClassLoader()
+                .getResource("org/dataone/client/rest/unitTestSelfSignedCert.pem");
+        return url.getPath();
+    }
+
+    /* serves a fixed body on a local port */
+    private String startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                byte[] body = "hello".getBytes("UTF-8");
+                exchange.sendResponseHeaders(200, body.length);
+                OutputStream os = exchange.getResponseBody();
+                os.write(body);
+                os.close();
+            }
+        });
+        server.start();
+        return "http://localhost:" + server.getAddress().getPort() + "/object";
+    }
+
+    @Test
+    public void testSameClientForSameCredentials() throws IOException, ClientSideException {
+        MultipartRestClientRegistry registry = new MultipartRestClientRegistry(5);
+        MultipartRestClient first = registry.getRestClient(UNREGISTERED_SUBJECT);
+        MultipartRestClient second = registry.getRestClient(UNREGISTERED_SUBJECT);
+        assertSame("The registry should return the cached client", first, second);
+        assertEquals(1, registry.size());
+    }
+
+    @Test
+    public void testInvalidate() throws IOException, ClientSideException {
+        MultipartRestClientRegistry registry = new MultipartRestClientRegistry(5);
+        MultipartRestClient first = registry.getRestClient(UNREGISTERED_SUBJECT);
+        registry.invalidate(UNREGISTERED_SUBJECT);
+        assertEquals(0, registry.size());
+        assertTrue("an idle invalidated client should be closed", registry.isClosed(first));
+        MultipartRestClient second = registry.getRestClient(UNREGISTERED_SUBJECT);
+        assertNotSame("An invalidated client should be replaced", first, second);
+
+        registry.invalidateAll();
+        assertEquals(0, registry.size());
+    }
+
+    @Test
+    public void testLRUEviction() throws IOException, ClientSideException {
+        String subjectString = registerTestCertificate();
+
+        MultipartRestClientRegistry registry = new MultipartRestClientRegistry(1);
+        MultipartRestClient certClient = registry.getRestClient(subjectString);
+        assertEquals(1, registry.size());
+
+        // a different credential (anonymous) should evict the certificate's client
+        registry.getRestClient(UNREGISTERED_SUBJECT);
+        assertEquals(1, registry.size());
+        assertNotSame("the evicted client should be rebuilt", 
+                certClient, registry.getRestClient(subjectString));
+    }
+
+    @Test
+    public void testInFlightRequestOutlivesInvalidation() 
+    throws IOException, ClientSideException, BaseException {
+        String url = startServer();
+        MultipartRestClientRegistry registry = new MultipartRestClientRegistry(5);
+        MultipartRestClient client = registry.getRestClient(UNREGISTERED_SUBJECT);
+
+        InputStream response = client.doGetRequest(url, null);
+        registry.invalidate(UNREGISTERED_SUBJECT);
+        assertFalse("a client with a request in flight should not be closed", registry.isClosed(client));
+        assertEquals("hello", IOUtils.toString(response, "UTF-8"));
+        response.close();
+        assertTrue("the client should be closed when its last request finishes", registry.isClosed(client));
+
+        // a caller still holding the retired client gets the current one's connections
+        InputStream later = client.doGetRequest(url, null);
+        assertEquals("hello", IOUtils.toString(later, "UTF-8"));
+        later.close();
+        assertEquals(1, registry.size());
+    }
+
+    @Test
+    public void testDefaultCertificateChangeInvalidatesRegisteredDefault() throws IOException, ClientSideException {
+        CertificateManager cm = CertificateManager.getInstance();
+        previousCertificateLocation = cm.getCertificateLocation();
+        certificateLocationChanged = true;
+        cm.setCertificateLocation(testCertificatePath());
+        cm.registerDefaultCertificate();
+        String subjectString = cm.getSubjectDN(cm.loadCertificateFromFile(testCertificatePath()));
+        registeredSubjects.add(subjectString);
+        assertTrue(cm.isDefaultCertificateSubject(subjectString));
+
+        MultipartRestClientRegistry registry = new MultipartRestClientRegistry(5);
+        registry.getRestClient(subjectString);
+        registry.getRestClient(UNREGISTERED_SUBJECT);
+        assertEquals(2, registry.size());
+
+        registry.update(cm, null);
+        assertEquals("only the default certificate's client should be invalidated", 1, registry.size());
+    }
+}
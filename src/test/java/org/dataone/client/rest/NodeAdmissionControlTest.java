@@ -0,0 +1,124 @@
+package org.dataone.client.rest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+
+import org.apache.commons.configuration.BaseConfiguration;
+import org.apache.http.HttpEntity;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.entity.InputStreamEntity;
+import org.dataone.client.exception.AdmissionRejected;
+import org.dataone.client.rest.NodeAdmissionControl.OperationClass;
+import org.dataone.client.rest.NodeAdmissionControl.Permit;
+import org.dataone.service.types.v1.NodeReference;
+import org.junit.Test;
+
+public class NodeAdmissionControlTest {
+
+    private static final RequestConfig SHORT_WAIT = 
+            RequestConfig.custom().setConnectionRequestTimeout(50).build();
+
+    private static NodeReference nodeRef(String id) {
+        NodeReference ref = new NodeReference();
+        ref.setValue(id);
+        return ref;
+    }
+
+    @Test
+    public void testClassify() {
+        assertEquals(OperationClass.READ, OperationClass.classify("GET", "https://mn.org/mn/v2/object/x"));
+        assertEquals(OperationClass.READ, OperationClass.classify("HEAD", "https://mn.org/mn/v2/object/x"));
+        assertEquals(OperationClass.WRITE, OperationClass.classify("POST", "https://mn.org/mn/v2/object"));
+        assertEquals(OperationClass.REPLICATION, OperationClass.classify("POST", "https://mn.org/mn/v2/replicate"));
+        assertEquals(OperationClass.REPLICATION, OperationClass.classify("GET", "https://mn.org/mn/v2/replica/x"));
+    }
+
+    @Test
+    public void testResolveNode() {
+        NodeAdmissionControl.registerNode(nodeRef("urn:node:testResolve"), "https://shared.host.org/mn1/");
+        assertEquals("urn:node:testResolve", 
+                NodeAdmissionControl.resolveNode("https://shared.host.org/mn1/v2/object/x"));
+        assertEquals("https://shared.host.org", 
+                NodeAdmissionControl.resolveNode("https://shared.host.org/mn2/v2/object/x"));
+    }
+
+    @Test
+    public void testBulkheadPerNodeAndClass() throws Exception {
+        BaseConfiguration config = new BaseConfiguration();
+        config.setProperty("D1Client.admission.write.maxConcurrent", 1);
+        config.setProperty("D1Client.admission.write.maxQueued", 5);
+        config.setProperty("D1Client.admission.node.SMALL.write.maxConcurrent", 1);
+        config.setProperty("D1Client.admission.node.BIG.write.maxConcurrent", 4);
+        NodeAdmissionControl ac = new NodeAdmissionControl(config);
+        NodeAdmissionControl.registerNode(nodeRef("urn:node:SMALL"), "https://small.org/mn/");
+        NodeAdmissionControl.registerNode(nodeRef("urn:node:BIG"), "https://big.org/mn/");
+
+        Permit small = ac.acquire("POST", "https://small.org/mn/v2/object", SHORT_WAIT);
+        try {
+            ac.acquire("PUT", "https://small.org/mn/v2/object/x", SHORT_WAIT);
+            fail("second write to the small node should not be admitted");
+        } catch (AdmissionRejected e) {
+            // expected
+        }
+        // reads and other nodes are limited separately
+        ac.acquire("GET", "https://small.org/mn/v2/object/x", SHORT_WAIT).release();
+        for (int i = 0; i < 4; i++)
+            ac.acquire("POST", "https://big.org/mn/v2/object", SHORT_WAIT);
+        assertEquals(1, ac.getRejectedCount());
+
+        small.release();
+        small.release();  // no effect
+        ac.acquire("POST", "https://small.org/mn/v2/object", SHORT_WAIT).release();
+    }
+
+    @Test
+    public void testPermitHeldUntilBodyConsumed() throws Exception {
+        BaseConfiguration config = new BaseConfiguration();
+        config.setProperty("D1Client.admission.read.maxConcurrent", 1);
+        NodeAdmissionControl ac = new NodeAdmissionControl(config);
+        String url = "https://body.org/mn/v2/object/x";
+
+        Permit permit = ac.acquire("GET", url, SHORT_WAIT);
+        HttpEntity entity = NodeAdmissionControl.releaseOnCompletion(
+                new InputStreamEntity(new ByteArrayInputStream(new byte[10])), permit);
+        InputStream is = entity.getContent();
+        is.read(new byte[5]);
+        try {
+            ac.acquire("GET", url, SHORT_WAIT);
+            fail("the body has not been consumed");
+        } catch (AdmissionRejected e) {
+            // expected
+        }
+        while (is.read(new byte[5]) != -1) {}
+        ac.acquire("GET", url, SHORT_WAIT).release();
+    }
+
+    @Test
+    public void testRateLimit() throws Exception {
+        BaseConfiguration config = new BaseConfiguration();
+        config.setProperty("D1Client.admission.read.ratePerSecond", 20);
+        config.setProperty("D1Client.admission.read.burst", 2);
+        NodeAdmissionControl ac = new NodeAdmissionControl(config);
+        String url = "https://rate.org/mn/v2/object/x";
+        RequestConfig longWait = RequestConfig.custom().setConnectionRequestTimeout(5000).build();
+
+        long start = System.nanoTime();
+        for (int i = 0; i < 6; i++)
+            ac.acquire("GET", url, longWait).release();
+        long elapsedMillis = (System.nanoTime() - start) / 1000000;
+        // 2 from the burst, then 4 at 50ms intervals
+        assertTrue("took " + elapsedMillis + "ms", elapsedMillis >= 150);
+
+        try {
+            for (int i = 0; i < 10; i++)
+                ac.acquire("GET", url, RequestConfig.custom().setConnectionRequestTimeout(1).build());
+            fail("rate limit should reject requests that cannot wait");
+        } catch (AdmissionRejected e) {
+            // expected
+        }
+    }
+}
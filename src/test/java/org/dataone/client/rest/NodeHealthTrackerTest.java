@@ -0,0 +1,90 @@
+package org.dataone.client.rest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.dataone.client.exception.NodeUnavailable;
+import org.dataone.client.rest.NodeHealthTracker.CircuitState;
+import org.dataone.service.types.v1.NodeReference;
+import org.junit.Test;
+
+public class NodeHealthTrackerTest {
+
+    private static NodeReference nodeRef(String id) {
+        NodeReference ref = new NodeReference();
+        ref.setValue(id);
+        return ref;
+    }
+
+    @Test
+    public void testCircuitOpensAndRecovers() throws Exception {
+        NodeHealthTracker tracker = new NodeHealthTracker(3, 100);
+        NodeReference down = nodeRef("urn:node:healthDown");
+
+        tracker.recordFailure(down.getValue());
+        tracker.recordFailure(down.getValue());
+        assertEquals(CircuitState.CLOSED, tracker.getCircuitState(down));
+        tracker.recordFailure(down.getValue());
+        assertEquals(CircuitState.OPEN, tracker.getCircuitState(down));
+        assertFalse(tracker.allowRequest(down));
+        assertFalse(tracker.isTrialDue(down));
+
+        Thread.sleep(150);
+        assertTrue(tracker.isTrialDue(down));
+        assertTrue("one trial request is let through", tracker.allowRequest(down));
+        assertEquals(CircuitState.HALF_OPEN, tracker.getCircuitState(down));
+        assertFalse("only one trial at a time", tracker.allowRequest(down));
+
+        // a failed trial opens the circuit again
+        tracker.recordFailure(down.getValue());
+        assertEquals(CircuitState.OPEN, tracker.getCircuitState(down));
+
+        Thread.sleep(150);
+        assertTrue(tracker.allowRequest(down));
+        tracker.recordSuccess(down.getValue(), 1000000);
+        assertEquals(CircuitState.CLOSED, tracker.getCircuitState(down));
+        assertTrue(tracker.allowRequest(down));
+        assertEquals(2, tracker.getHealth(down).getOpenCount());
+    }
+
+    @Test
+    public void testCheckAvailableUsesRegisteredNode() throws Exception {
+        NodeHealthTracker tracker = new NodeHealthTracker(1, 60000);
+        NodeReference ref = nodeRef("urn:node:healthRegistered");
+        NodeAdmissionControl.registerNode(ref, "https://health.example.org/mn/");
+
+        tracker.checkAvailable("https://health.example.org/mn/v2/object/x");
+        tracker.recordFailure(ref.getValue());
+        try {
+            tracker.checkAvailable("https://health.example.org/mn/v2/object/x");
+            fail("the circuit is open");
+        } catch (NodeUnavailable e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testRankByHealth() {
+        NodeHealthTracker tracker = new NodeHealthTracker(2, 60000);
+        NodeReference fast = nodeRef("urn:node:fast");
+        NodeReference slow = nodeRef("urn:node:slow");
+        NodeReference broken = nodeRef("urn:node:broken");
+        NodeReference unknown = nodeRef("urn:node:unknown");
+
+        tracker.recordSuccess(fast.getValue(), 20000000L);
+        tracker.recordSuccess(slow.getValue(), 2000000000L);
+        tracker.recordFailure(broken.getValue());
+        tracker.recordFailure(broken.getValue());
+        assertNull(tracker.getHealth(unknown));
+
+        List<NodeReference> ranked = tracker.rankByHealth(Arrays.asList(broken, slow, fast, unknown));
+        assertEquals(Arrays.asList(unknown, fast, slow, broken), ranked);
+        assertEquals(0.0, tracker.getHealth(broken).getScore(), 0.0);
+    }
+}
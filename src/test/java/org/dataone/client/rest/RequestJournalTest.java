@@ -0,0 +1,48 @@
+package org.dataone.client.rest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.List;
+
+import org.junit.Test;
+
+public class RequestJournalTest {
+
+    private static RequestJournal.Entry entry(String url, Thread t) {
+        return new RequestJournal.Entry("GET", url, "GET " + url, t,
+                System.currentTimeMillis(), 1, 200, 0, -1);
+    }
+
+    @Test
+    public void testRetainsMostRecentEntriesInOrder() {
+        RequestJournal journal = new RequestJournal(3);
+        for (int i = 0; i < 5; i++)
+            journal.record(entry("http://foo/" + i, Thread.currentThread()));
+
+        List<RequestJournal.Entry> entries = journal.getEntries();
+        assertEquals("journal should be bounded by its capacity", 3, entries.size());
+        assertEquals("http://foo/2", entries.get(0).getUrl());
+        assertEquals("http://foo/4", entries.get(2).getUrl());
+        assertEquals(5, journal.getRecordedCount());
+    }
+
+    @Test
+    public void testLatestEntryForThread() throws InterruptedException {
+        final RequestJournal journal = new RequestJournal(10);
+        journal.record(entry("http://foo/mine", Thread.currentThread()));
+
+        Thread other = new Thread() {
+            public void run() {
+                journal.record(entry("http://foo/other", this));
+            }
+        };
+        other.start();
+        other.join();
+
+        assertEquals("GET http://foo/mine", 
+                journal.getLatestEntry(Thread.currentThread()).getDescription());
+        assertEquals("GET http://foo/other", journal.getLatestEntry(other).getDescription());
+        assertNull(new RequestJournal(10).getLatestEntry(other));
+    }
+}
@@ -0,0 +1,88 @@
+package org.dataone.client.rest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.commons.configuration.BaseConfiguration;
+import org.apache.http.client.config.RequestConfig;
+import org.dataone.client.rest.RequestPolicy.Operation;
+import org.junit.Test;
+
+public class RequestPolicyRegistryTest {
+
+    @Test
+    public void testResolvesOperationSettings() {
+        BaseConfiguration config = new BaseConfiguration();
+        config.setProperty(Operation.DEFAULT.getTimeoutProperty(), 5000);
+        config.setProperty("D1Client.CNode.create.timeouts", 60000);
+        config.setProperty("D1Client.CNode.create.retries", 2);
+        config.setProperty("D1Client.CNode.create.followRedirects", true);
+
+        RequestPolicyRegistry registry = new RequestPolicyRegistry(config);
+
+        RequestPolicy create = registry.getPolicy(Operation.CN_CREATE);
+        assertEquals(Integer.valueOf(60000), create.getTimeout());
+        assertEquals(60000, create.getRequestConfig().getSocketTimeout());
+        assertEquals(2, create.getMaxRetries());
+        assertTrue(create.isFollowRedirects());
+
+        RequestPolicy get = registry.getPolicy(Operation.GET);
+        assertNull("get has no timeout of its own", get.getTimeout());
+        assertEquals("prebuilt config should use the default timeout", 
+                5000, get.getRequestConfig().getSocketTimeout());
+        assertEquals(0, get.getMaxRetries());
+        assertFalse(get.isFollowRedirects());
+    }
+
+    @Test
+    public void testRefreshesOnConfigurationChange() {
+        BaseConfiguration config = new BaseConfiguration();
+        RequestPolicyRegistry registry = new RequestPolicyRegistry(config);
+
+        RequestPolicy before = registry.getPolicy(Operation.GET_LOG_RECORDS);
+        assertSame("policies should be reused between changes", 
+                before, registry.getPolicy(Operation.GET_LOG_RECORDS));
+        assertNull(registry.getDefaultTimeout());
+
+        config.setProperty("D1Client.D1Node.getLogRecords.timeout", 120000);
+        config.setProperty(Operation.DEFAULT.getTimeoutProperty(), 1000);
+        assertEquals(Integer.valueOf(120000), registry.getPolicy(Operation.GET_LOG_RECORDS).getTimeout());
+        assertEquals(Integer.valueOf(1000), registry.getDefaultTimeout());
+
+        config.clearProperty(Operation.DEFAULT.getTimeoutProperty());
+        assertNull(registry.getDefaultTimeout());
+    }
+
+    @Test
+    public void testRequestConfigsComeFromThePolicies() {
+        BaseConfiguration config = new BaseConfiguration();
+        config.setProperty(Operation.DEFAULT.getTimeoutProperty(), 5000);
+        config.setProperty("D1Client.CNode.create.timeouts", 60000);
+        RequestPolicyRegistry registry = new RequestPolicyRegistry(config);
+
+        RequestConfig byDefault = registry.getRequestConfig(null, true);
+        assertSame("a null timeout should get the default policy's config",
+                registry.getPolicy(Operation.DEFAULT).getRequestConfig(true), byDefault);
+        assertEquals(5000, byDefault.getSocketTimeout());
+        assertTrue(byDefault.isRedirectsEnabled());
+        assertSame("a policy timeout should get the policy's config",
+                registry.getPolicy(Operation.CN_CREATE).getRequestConfig(false),
+                registry.getRequestConfig(60000, false));
+        assertFalse(registry.getRequestConfig(60000, false).isRedirectsEnabled());
+
+        RequestConfig other = registry.getRequestConfig(1234, true);
+        assertEquals("a timeout no policy has should still be applied", 1234, other.getSocketTimeout());
+        assertEquals(1234, other.getConnectTimeout());
+        assertEquals(1234, other.getConnectionRequestTimeout());
+
+        config.setProperty(Operation.DEFAULT.getTimeoutProperty(), 7000);
+        RequestConfig changed = registry.getRequestConfig(null, true);
+        assertNotSame("the configs should be rebuilt when the configuration changes", byDefault, changed);
+        assertEquals(7000, changed.getSocketTimeout());
+        assertSame(changed, registry.getRequestConfig(null, true));
+    }
+}
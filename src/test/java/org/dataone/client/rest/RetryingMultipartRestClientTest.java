@@ -0,0 +1,200 @@
+package org.dataone.client.rest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.http.Header;
+import org.dataone.client.auth.X509Session;
+import org.dataone.client.exception.ClientSideException;
+import org.dataone.mimemultipart.SimpleMultipartEntity;
+import org.dataone.service.exceptions.BaseException;
+import org.dataone.service.exceptions.NotFound;
+import org.dataone.service.exceptions.ServiceFailure;
+import org.junit.Test;
+
+public class RetryingMultipartRestClientTest {
+
+    /* fails the first 'failures' calls with the given exception, then returns the url */
+    private static class FlakyClient implements MultipartRestClient {
+
+        final List<String> calls = new CopyOnWriteArrayList<String>();
+        final AtomicInteger failures;
+        final BaseException failure;
+        final ThreadLocal<String> latestUrl = new ThreadLocal<String>();
+        /* requests to urls with this prefix wait for the latch */
+        volatile String slowPrefix;
+        final CountDownLatch slowReleased = new CountDownLatch(1);
+        final CountDownLatch slowStarted = new CountDownLatch(1);
+
+        FlakyClient(int failures, BaseException failure) {
+            this.failures = new AtomicInteger(failures);
+            this.failure = failure;
+        }
+
+        private InputStream respond(String url) throws BaseException {
+            calls.add(url);
+            latestUrl.set(url);
+            if (failures.getAndDecrement() > 0)
+                throw failure;
+            String prefix = slowPrefix;
+            if (prefix != null && url.startsWith(prefix)) {
+                slowStarted.countDown();
+                try {
+                    slowReleased.await(30, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    // cancelled
+                }
+            }
+            return new ByteArrayInputStream(url.getBytes());
+        }
+
+        public InputStream doGetRequest(String url, Integer timeout) throws BaseException {
+            return respond(url);
+        }
+        public InputStream doGetRequest(String url, Integer timeout, boolean followRedirect) throws BaseException {
+            return respond(url);
+        }
+        public Header[] doGetRequestForHeaders(String url, Integer timeout) throws BaseException {
+            respond(url);
+            return new Header[0];
+        }
+        public InputStream doDeleteRequest(String url, Integer timeout) throws BaseException {
+            return respond(url);
+        }
+        public Header[] doHeadRequest(String url, Integer timeout) throws BaseException {
+            respond(url);
+            return new Header[0];
+        }
+        public InputStream doPutRequest(String url, SimpleMultipartEntity e, Integer timeout) throws BaseException {
+            return respond(url);
+        }
+        public InputStream doPostRequest(String url, SimpleMultipartEntity e, Integer timeout) throws BaseException {
+            return respond(url);
+        }
+        public String getLatestRequestUrl() {
+            return latestUrl.get();
+        }
+        public X509Session getSession() {
+            return null;
+        }
+    }
+
+    private static final String CN1 = "https://cn1.example.org/cn";
+    private static final String CN2 = "https://cn2.example.org/cn";
+
+    @Test
+    public void testRetriesServiceFailureOnReads() throws Exception {
+        FlakyClient flaky = new FlakyClient(2, new ServiceFailure("0000", "flapping"));
+        RetryingMultipartRestClient client = new RetryingMultipartRestClient(flaky, 2, 1, 5, false, 0);
+
+        InputStream is = client.doGetRequest(CN1 + "/v2/meta/foo", null);
+        assertEquals(CN1 + "/v2/meta/foo", IOUtils.toString(is));
+        assertEquals("should have made 3 attempts", 3, flaky.calls.size());
+    }
+
+    @Test
+    public void testDoesNotRetryOtherFailures() throws ClientSideException {
+        FlakyClient flaky = new FlakyClient(1, new NotFound("0000", "missing"));
+        RetryingMultipartRestClient client = new RetryingMultipartRestClient(flaky, 2, 1, 5, false, 0);
+        try {
+            client.doGetRequest(CN1 + "/v2/object/foo", null);
+            fail("NotFound should not be retried");
+        } catch (BaseException e) {
+            assertEquals(1, flaky.calls.size());
+        }
+    }
+
+    @Test
+    public void testDoesNotRetryWrites() throws ClientSideException {
+        FlakyClient flaky = new FlakyClient(1, new ServiceFailure("0000", "flapping"));
+        RetryingMultipartRestClient client = new RetryingMultipartRestClient(flaky, 2, 1, 5, false, 0);
+        try {
+            client.doPostRequest(CN1 + "/v2/object", null, null);
+            fail("POSTs should not be retried");
+        } catch (BaseException e) {
+            assertEquals(1, flaky.calls.size());
+        }
+    }
+
+    /* makes enough fast requests for the hedge delay to be known */
+    private static void warmUp(RetryingMultipartRestClient client, String url) throws Exception {
+        for (int i = 0; i < 30; i++) {
+            client.doGetRequest(url, null).close();
+        }
+    }
+
+    @Test
+    public void testHedgesSlowReadsToAlternateCN() throws Exception {
+        FlakyClient flaky = new FlakyClient(0, null);
+        RetryingMultipartRestClient client = new RetryingMultipartRestClient(flaky, 0, 1, 5, true, 10);
+        client.setAlternateBaseUrls(Arrays.asList(CN1, CN2));
+        warmUp(client, CN1 + "/v2/object/warmup");
+
+        // the request to CN1 doesn't return until the latch is released
+        flaky.slowPrefix = CN1;
+        try {
+            InputStream is = client.doGetRequest(CN1 + "/v2/object/foo", null);
+            assertEquals("the hedged request to the other CN should win", 
+                    CN2 + "/v2/object/foo", IOUtils.toString(is));
+            assertEquals(1, Collections.frequency(flaky.calls, CN2 + "/v2/object/foo"));
+            assertEquals("the latest request url should be the winning leg's", 
+                    CN2 + "/v2/object/foo", client.getLatestRequestUrl());
+        } finally {
+            flaky.slowReleased.countDown();
+        }
+    }
+
+    @Test
+    public void testHedgeDelayIsPerNode() throws Exception {
+        FlakyClient flaky = new FlakyClient(0, null);
+        RetryingMultipartRestClient client = new RetryingMultipartRestClient(flaky, 0, 1, 5, true, 10);
+        warmUp(client, CN1 + "/v2/object/warmup");
+
+        assertTrue("the warmed-up node should have a hedge delay", 
+                client.hedgeDelayMillis(CN1 + "/v2/object/foo", "object") >= 10);
+        assertEquals("another node's latencies should not set this node's hedge delay",
+                -1, client.hedgeDelayMillis(CN2 + "/v2/object/foo", "object"));
+        assertEquals("nor should another resource's", 
+                -1, client.hedgeDelayMillis(CN1 + "/v2/meta/foo", "meta"));
+    }
+
+    @Test
+    public void testLatestRequestUrlOfUnhedgedCall() throws Exception {
+        FlakyClient flaky = new FlakyClient(1, new ServiceFailure("0000", "flapping"));
+        RetryingMultipartRestClient client = new RetryingMultipartRestClient(flaky, 2, 1, 5, true, 10);
+
+        client.doGetRequest(CN1 + "/v2/meta/foo", null).close();
+        assertEquals(CN1 + "/v2/meta/foo", client.getLatestRequestUrl());
+        client.doPostRequest(CN1 + "/v2/object", null, null).close();
+        assertEquals(CN1 + "/v2/object", client.getLatestRequestUrl());
+    }
+
+    @Test
+    public void testHedgesToDefaultAlternateBaseUrls() throws Exception {
+        FlakyClient flaky = new FlakyClient(0, null);
+        RetryingMultipartRestClient client = new RetryingMultipartRestClient(flaky, 0, 1, 5, true, 10);
+        RetryingMultipartRestClient.setDefaultAlternateBaseUrls("test", Arrays.asList(CN1, CN2));
+        try {
+            warmUp(client, CN2 + "/v2/meta/warmup");
+
+            flaky.slowPrefix = CN2;
+            InputStream is = client.doGetRequest(CN2 + "/v2/meta/foo", null);
+            assertEquals(CN1 + "/v2/meta/foo", IOUtils.toString(is));
+        } finally {
+            flaky.slowReleased.countDown();
+            RetryingMultipartRestClient.setDefaultAlternateBaseUrls("test", null);
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package org.dataone.client.rest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import org.junit.Test;
+
+public class StreamingMultipartEntityTest {
+
+    private static final byte[] OBJECT_BYTES = "some science data".getBytes();
+
+    @Test
+    public void testUnknownLengthIsChunked() throws IOException {
+        StreamingMultipartEntity mpe = new StreamingMultipartEntity();
+        mpe.addParamPart("pid", "foo");
+        mpe.addFilePart("object", new ByteArrayInputStream(OBJECT_BYTES));
+
+        assertEquals("content length should be unknown", -1, mpe.getContentLength());
+        assertTrue("entity should be sent chunked", mpe.isChunked());
+        assertFalse("a streamed entity cannot be repeated", mpe.isRepeatable());
+    }
+
+    @Test
+    public void testKnownLength() throws IOException {
+        StreamingMultipartEntity mpe = new StreamingMultipartEntity();
+        mpe.addParamPart("pid", "foo");
+        mpe.addFilePart("object", new ByteArrayInputStream(OBJECT_BYTES), OBJECT_BYTES.length);
+
+        assertTrue("content length should be known", mpe.getContentLength() > OBJECT_BYTES.length);
+        assertFalse("entity should not be chunked", mpe.isChunked());
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        mpe.writeTo(baos);
+        assertEquals("written length should match the reported length",
+                mpe.getContentLength(), baos.size());
+        assertTrue("the object should be written",
+                baos.toString().contains(new String(OBJECT_BYTES)));
+    }
+}
@@ -0,0 +1,140 @@
+package org.dataone.client.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.ConnectionRequest;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.protocol.HttpCoreContext;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class AdaptivePoolingConnectionManagerTest {
+
+    private AdaptivePoolingConnectionManager connMan;
+    private final HttpRoute route = new HttpRoute(new HttpHost("localhost", 8080));
+    /* the manager's clock, in nanoseconds, moved by the tests */
+    private final AtomicLong clock = new AtomicLong();
+
+    @Before
+    public void setUp() {
+        Registry<ConnectionSocketFactory> registry = RegistryBuilder.<ConnectionSocketFactory>create()
+                .register("http", PlainConnectionSocketFactory.getSocketFactory())
+                .build();
+        // adjust on every lease
+        connMan = new AdaptivePoolingConnectionManager(registry, 1, 3, 10, 0) {
+            @Override
+            protected long nanoTime() {
+                return clock.get();
+            }
+        };
+    }
+
+    @After
+    public void tearDown() {
+        connMan.shutdown();
+    }
+
+    // leasing doesn't open a socket, so no server is needed
+    private HttpClientConnection lease() throws Exception {
+        return connMan.requestConnection(route, null).get(5, TimeUnit.SECONDS);
+    }
+
+    private void release(HttpClientConnection conn) {
+        connMan.releaseConnection(conn, null, 0, TimeUnit.MILLISECONDS);
+    }
+
+    private void advance(long millis) {
+        clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(millis));
+    }
+
+    @Test
+    public void testGrowsOnWaitAndShrinksOnDegradedLatency() throws Exception {
+        HttpClientConnection first = lease();
+        assertEquals(1, connMan.getMaxPerRoute(route));
+        connMan.responseReceived(route, TimeUnit.MILLISECONDS.toNanos(50));
+
+        // a second caller requests a connection while the route is full
+        final ConnectionRequest request = connMan.requestConnection(route, null);
+        final AtomicReference<HttpClientConnection> second = new AtomicReference<HttpClientConnection>();
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final CountDownLatch leased = new CountDownLatch(1);
+        Thread waiter = new Thread() {
+            public void run() {
+                try {
+                    second.set(request.get(5, TimeUnit.SECONDS));
+                } catch (Throwable t) {
+                    failure.set(t);
+                } finally {
+                    leased.countDown();
+                }
+            }
+        };
+        waiter.start();
+        advance(100);
+        release(first);
+        assertTrue("the waiting caller should get the connection", leased.await(5, TimeUnit.SECONDS));
+        assertNull("the waiting caller failed: " + failure.get(), failure.get());
+        assertEquals("the route should grow after callers waited", 2, connMan.getMaxPerRoute(route));
+
+        // a slow reader holds the connection long after a prompt response
+        connMan.responseReceived(route, TimeUnit.MILLISECONDS.toNanos(60));
+        advance(300);
+        release(second.get());
+        HttpClientConnection third = lease();
+        assertEquals("a long hold with a prompt server should not shrink the route", 
+                2, connMan.getMaxPerRoute(route));
+
+        // the server takes much longer than its baseline to respond
+        connMan.responseReceived(route, TimeUnit.MILLISECONDS.toNanos(200));
+        release(third);
+        release(lease());
+        assertEquals("the route should shrink when the server slows down", 1, connMan.getMaxPerRoute(route));
+
+        List<AdaptivePoolingConnectionManager.RouteStatistics> stats = connMan.getRouteStatistics();
+        assertEquals(1, stats.size());
+        assertEquals(4, stats.get(0).getLeaseCount());
+        assertEquals(1, stats.get(0).getGrowCount());
+        assertEquals(1, stats.get(0).getShrinkCount());
+    }
+
+    @Test
+    public void testKeepAliveLearnedFromHeaders() {
+        AdaptiveKeepAliveStrategy strategy = new AdaptiveKeepAliveStrategy(5000, 60000);
+        HttpClientContext context = HttpClientContext.create();
+        context.setAttribute(HttpCoreContext.HTTP_TARGET_HOST, new HttpHost("mn.example.org"));
+
+        BasicHttpResponse advertised = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+        advertised.addHeader("Keep-Alive", "timeout=15, max=100");
+        assertEquals(15000, strategy.getKeepAliveDuration(advertised, context));
+
+        BasicHttpResponse plain = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+        assertEquals("learned timeout less the safety margin", 
+                14000, strategy.getKeepAliveDuration(plain, context));
+
+        HttpClientContext other = HttpClientContext.create();
+        other.setAttribute(HttpCoreContext.HTTP_TARGET_HOST, new HttpHost("cn.example.org"));
+        assertEquals(5000, strategy.getKeepAliveDuration(plain, other));
+        assertNull(strategy.getLearnedKeepAliveMillis("cn.example.org"));
+
+        advertised.setHeader("Keep-Alive", "timeout=600");
+        assertEquals("capped at the maximum", 60000, strategy.getKeepAliveDuration(advertised, context));
+    }
+}
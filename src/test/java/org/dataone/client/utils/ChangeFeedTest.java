@@ -0,0 +1,158 @@
+package org.dataone.client.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.dataone.client.utils.ChangeFeed.BatchHandler;
+import org.dataone.client.v1.types.D1TypeBuilder;
+import org.dataone.service.exceptions.BaseException;
+import org.dataone.service.types.v1.ObjectInfo;
+import org.dataone.service.types.v1.ObjectList;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ChangeFeedTest {
+
+    private File checkpointFile;
+    private List<ObjectInfo> objects;
+    
+    /* lists the objects (kept in date order) modified from fromDate, truncating fromDate to seconds */
+    private class TestFeed extends ChangeFeed {
+        
+        int calls = 0;
+        
+        TestFeed(int batchSize) throws IOException {
+            super(checkpointFile, null, batchSize);
+        }
+
+        @Override
+        protected ObjectList listObjects(Date fromDate, Integer start, Integer count) throws BaseException {
+            calls++;
+            long from = fromDate == null ? Long.MIN_VALUE : fromDate.getTime() / 1000 * 1000;
+            List<ObjectInfo> matching = new ArrayList<ObjectInfo>();
+            for (ObjectInfo oi : objects) {
+                if (oi.getDateSysMetadataModified().getTime() >= from)
+                    matching.add(oi);
+            }
+            ObjectList ol = new ObjectList();
+            int end = Math.min(matching.size(), start + count);
+            for (int i = start; i < end; i++)
+                ol.addObjectInfo(matching.get(i));
+            ol.setStart(start);
+            ol.setCount(Math.max(0, end - start));
+            ol.setTotal(matching.size());
+            return ol;
+        }
+    }
+    
+    private static class Collector implements BatchHandler {
+        final List<String> pids = new ArrayList<String>();
+        int batches = 0;
+        @Override
+        public void handle(List<ObjectInfo> batch) {
+            batches++;
+            for (ObjectInfo oi : batch)
+                pids.add(oi.getIdentifier().getValue());
+        }
+    }
+    
+    private void addObject(String pid, long modified) {
+        ObjectInfo oi = new ObjectInfo();
+        oi.setIdentifier(D1TypeBuilder.buildIdentifier(pid));
+        oi.setDateSysMetadataModified(new Date(modified));
+        objects.add(oi);
+    }
+    
+    @Before
+    public void setUp() throws IOException {
+        checkpointFile = File.createTempFile("changefeed", ".checkpoint");
+        checkpointFile.delete();
+        objects = new ArrayList<ObjectInfo>();
+    }
+    
+    @After
+    public void tearDown() {
+        checkpointFile.delete();
+    }
+    
+    @Test
+    public void testDeliversAllOnceInBatches() throws Exception {
+        for (int i = 0; i < 25; i++)
+            addObject("pid" + i, 10000L + 250 * i);   // several per second
+        
+        Collector c = new Collector();
+        long n = new TestFeed(10).poll(c);
+        assertEquals(25, n);
+        assertEquals(25, c.pids.size());
+        assertEquals("pid0", c.pids.get(0));
+        assertEquals("pid24", c.pids.get(24));
+        assertTrue("should have delivered several batches", c.batches >= 3);
+    }
+    
+    @Test
+    public void testResumesFromCheckpoint() throws Exception {
+        for (int i = 0; i < 5; i++)
+            addObject("pid" + i, 10000L + 100 * i);
+        new TestFeed(10).poll(new Collector());
+        
+        addObject("pid5", 10400L);   // same date as the high water
+        addObject("pid6", 20000L);
+        
+        // a new feed (as after a restart) reads the checkpoint file
+        Collector c = new Collector();
+        long n = new TestFeed(10).poll(c);
+        assertEquals("only the new objects should be delivered", 2, n);
+        assertEquals("pid5", c.pids.get(0));
+        assertEquals("pid6", c.pids.get(1));
+        
+        assertEquals(0, new TestFeed(10).poll(new Collector()));
+    }
+    
+    @Test
+    public void testManyObjectsWithOneDate() throws Exception {
+        addObject("early", 1000L);
+        for (int i = 0; i < 35; i++)
+            addObject("same" + i, 5000L);
+        addObject("late", 9000L);
+        
+        Collector c = new Collector();
+        long n = new TestFeed(10).poll(c);
+        assertEquals(37, n);
+        assertEquals("late", c.pids.get(36));
+    }
+    
+    @Test
+    public void testFailedBatchIsRedelivered() throws Exception {
+        for (int i = 0; i < 20; i++)
+            addObject("pid" + i, 10000L + 1000 * i);
+        
+        final Collector c = new Collector();
+        try {
+            new TestFeed(5).poll(new BatchHandler() {
+                @Override
+                public void handle(List<ObjectInfo> batch) {
+                    if (c.batches == 2)
+                        throw new IllegalStateException("consumer failed");
+                    c.handle(batch);
+                }
+            });
+            fail("the consumer's exception should be thrown");
+        } catch (IllegalStateException e) {
+            ; // expected
+        }
+        int handled = c.pids.size();
+        assertTrue("the first two batches should have been handled", handled > 5);
+        
+        Collector rest = new Collector();
+        assertEquals("the failed batch and the rest should be delivered", 20 - handled, new TestFeed(5).poll(rest));
+        assertEquals("pid" + handled, rest.pids.get(0));
+    }
+}
@@ -0,0 +1,84 @@
+package org.dataone.client.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpHost;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.pool.PoolStats;
+import org.junit.Test;
+
+public class HttpConnectionMonitorServiceTest {
+
+    @Test
+    public void testStarvation() {
+        HttpRoute route = new HttpRoute(new HttpHost("cn.dataone.org", 443, "https"));
+
+        ConnectionPoolStats healthy = new ConnectionPoolStats("p", 0, new PoolStats(5, 0, 1, 20),
+                Collections.singletonMap(route, new PoolStats(5, 0, 1, 5)));
+        assertFalse(healthy.isStarved());
+
+        ConnectionPoolStats starved = new ConnectionPoolStats("p", 0, new PoolStats(5, 3, 0, 20),
+                Collections.singletonMap(route, new PoolStats(5, 3, 0, 5)));
+        assertTrue(starved.isStarved());
+        assertEquals(Collections.singletonList(route), starved.getStarvedRoutes());
+    }
+
+    @Test
+    public void testRegistrationAndHistory() {
+        HttpConnectionMonitorService service = new HttpConnectionMonitorService();
+        RouteTrackingConnectionManager connMan = new RouteTrackingConnectionManager(
+                HttpUtils.buildConnectionRegistry());
+        HttpRoute route = new HttpRoute(new HttpHost("localhost", 80, "http"));
+        connMan.requestConnection(route, null).cancel();
+
+        service.addMonitor(connMan, 10, TimeUnit.SECONDS);
+        assertEquals(1, service.getMonitors().size());
+
+        service.evictStaleConnections();
+        service.evictStaleConnections();
+        List<ConnectionPoolStats> history = service.getPoolStatsHistory(connMan);
+        assertEquals(2, history.size());
+        assertTrue(history.get(1).getRouteStats().containsKey(route));
+        assertEquals(1, service.getPoolStats().size());
+
+        // re-registering keeps the history
+        service.addMonitor(connMan, 20, TimeUnit.SECONDS);
+        assertEquals(1, service.getMonitors().size());
+        assertEquals(2, service.getPoolStatsHistory(connMan).size());
+
+        service.removeMonitor(connMan);
+        assertTrue(service.getMonitors().isEmpty());
+        assertTrue(service.getPoolStatsHistory(connMan).isEmpty());
+        connMan.shutdown();
+    }
+
+    @Test
+    public void testShutdownIsUpToTheApplication() {
+        HttpConnectionMonitorService service = new HttpConnectionMonitorService();
+        RouteTrackingConnectionManager connMan = new RouteTrackingConnectionManager(
+                HttpUtils.buildConnectionRegistry());
+        HttpRoute route = new HttpRoute(new HttpHost("localhost", 80, "http"));
+        service.addMonitor(connMan);
+        assertFalse(service.isShutdown());
+
+        service.shutdown();
+        assertTrue(service.isShutdown());
+        try {
+            connMan.requestConnection(route, null).get(1, TimeUnit.SECONDS);
+            fail("the registered ConnectionManager should have been shut down");
+        } catch (IllegalStateException e) {
+            // expected
+        } catch (Exception e) {
+            fail("should fail as shut down, not with " + e);
+        }
+        // a second call does nothing
+        service.shutdown();
+    }
+}
@@ -0,0 +1,116 @@
+package org.dataone.client.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.dataone.client.utils.LogRecordHarvester.LogEntryHandler;
+import org.dataone.client.utils.PrefetchingPageIterator.Page;
+import org.dataone.service.exceptions.BaseException;
+import org.dataone.service.exceptions.ServiceFailure;
+import org.junit.Test;
+
+public class LogRecordHarvesterTest {
+
+    /* 'log entries' are their timestamps: one per second, and a dense burst */
+    private static List<Long> buildLog() {
+        List<Long> log = new ArrayList<Long>();
+        for (long t = 0; t < 100000; t += 1000)
+            log.add(t);
+        for (long t = 50000; t < 51000; t++)
+            log.add(t);
+        Collections.sort(log);
+        return log;
+    }
+    
+    private static class TestHarvester extends LogRecordHarvester<Long> {
+        
+        final List<Long> log;
+        final AtomicInteger calls = new AtomicInteger();
+        volatile long failFrom = -1;
+        
+        TestHarvester(List<Long> log) {
+            super(3, 50, 200, 10);
+            this.log = log;
+        }
+        
+        @Override
+        protected Page<Long> getLogRecords(Date fromDate, Date toDate, int start, int count) 
+        throws BaseException {
+            calls.incrementAndGet();
+            if (failFrom >= 0 && fromDate.getTime() >= failFrom)
+                throw new ServiceFailure("0000", "getLogRecords failed");
+            List<Long> inRange = new ArrayList<Long>();
+            for (Long t : log) {
+                if (t >= fromDate.getTime() && t < toDate.getTime())
+                    inRange.add(t);
+            }
+            int end = Math.min(inRange.size(), start + count);
+            List<Long> page = start >= end ? new ArrayList<Long>() : new ArrayList<Long>(inRange.subList(start, end));
+            return new Page<Long>(page, inRange.size());
+        }
+    }
+    
+    private static class Collector implements LogEntryHandler<Long> {
+        final List<Long> entries = new ArrayList<Long>();
+        @Override
+        public void handle(List<Long> page) {
+            entries.addAll(page);
+        }
+    }
+    
+    @Test
+    public void testOrderedHarvest() throws Exception {
+        List<Long> log = buildLog();
+        TestHarvester harvester = new TestHarvester(log);
+        Collector collector = new Collector();
+        
+        long n = harvester.harvest(new Date(0), new Date(100000), true, collector);
+        
+        assertEquals(log.size(), n);
+        assertEquals("ordered harvest should deliver every entry in time order", log, collector.entries);
+    }
+    
+    @Test
+    public void testUnorderedHarvest() throws Exception {
+        List<Long> log = buildLog();
+        TestHarvester harvester = new TestHarvester(log);
+        Collector collector = new Collector();
+        
+        long n = harvester.harvest(new Date(0), new Date(100000), false, collector);
+        
+        assertEquals(log.size(), n);
+        List<Long> sorted = new ArrayList<Long>(collector.entries);
+        Collections.sort(sorted);
+        assertEquals("unordered harvest should deliver every entry once", log, sorted);
+    }
+    
+    @Test
+    public void testDenseSlicesAreSplit() throws Exception {
+        List<Long> log = buildLog();
+        TestHarvester harvester = new TestHarvester(log);
+        harvester.harvest(new Date(0), new Date(100000), true, new Collector());
+        
+        // 1100 entries in pages of 50 would be 22 calls in an unsplit range,
+        // more calls show the dense slice was split (and its first pages re-fetched)
+        assertTrue("the dense slice should have been split", harvester.calls.get() > 22 + 3);
+    }
+    
+    @Test
+    public void testFailureIsThrown() throws Exception {
+        TestHarvester harvester = new TestHarvester(buildLog());
+        harvester.failFrom = 60000;
+        try {
+            harvester.harvest(new Date(0), new Date(100000), true, new Collector());
+            fail("the getLogRecords failure should be thrown");
+        } catch (ServiceFailure e) {
+            ; // expected
+        }
+    }
+}
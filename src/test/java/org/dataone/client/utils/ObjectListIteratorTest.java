@@ -0,0 +1,239 @@
+package org.dataone.client.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.http.Header;
+import org.dataone.client.auth.X509Session;
+import org.dataone.client.exception.PageFetchException;
+import org.dataone.client.rest.MultipartRestClient;
+import org.dataone.client.v1.types.D1TypeBuilder;
+import org.dataone.client.v2.impl.MultipartMNode;
+import org.dataone.mimemultipart.SimpleMultipartEntity;
+import org.dataone.service.exceptions.BaseException;
+import org.dataone.service.exceptions.ServiceFailure;
+import org.dataone.service.types.v1.Checksum;
+import org.dataone.service.types.v1.ObjectInfo;
+import org.dataone.service.types.v1.ObjectList;
+import org.dataone.service.util.TypeMarshaller;
+import org.junit.Test;
+
+public class ObjectListIteratorTest {
+
+    /* lists 'total' objects, returning at most 'serviceMax' per page, failing at 'failAt' */
+    private static class TestIterator extends ObjectListIterator {
+        
+        final int total;
+        final int serviceMax;
+        final int failAt;
+        final List<Integer> requestedCounts = new ArrayList<Integer>();
+        
+        TestIterator(int total, int serviceMax, int failAt, int initialPageSize) {
+            super(0, 2, initialPageSize, 1000, 0);
+            this.total = total;
+            this.serviceMax = serviceMax;
+            this.failAt = failAt;
+        }
+
+        @Override
+        protected ObjectList listObjects(Integer start, Integer count) throws BaseException {
+            requestedCounts.add(count);
+            if (failAt >= 0 && start >= failAt)
+                throw new ServiceFailure("0000", "listObjects failed at " + start);
+            ObjectList ol = new ObjectList();
+            int end = Math.min(total, start + Math.min(count, serviceMax));
+            for (int i = start; i < end; i++) {
+                ObjectInfo oi = new ObjectInfo();
+                oi.setIdentifier(D1TypeBuilder.buildIdentifier("pid" + i));
+                ol.addObjectInfo(oi);
+            }
+            ol.setStart(start);
+            ol.setCount(end - start);
+            ol.setTotal(total);
+            return ol;
+        }
+    }
+    
+    @Test
+    public void testIteratesAllInOrder() {
+        TestIterator it = new TestIterator(2500, 1000, -1, 300);
+        int i = 0;
+        while (it.hasNext()) {
+            assertEquals("pid" + i, it.next().getIdentifier().getValue());
+            i++;
+        }
+        assertEquals("should iterate every object", 2500, i);
+        assertEquals(2500, it.getTotal());
+        assertFalse(it.hasNext());
+    }
+    
+    @Test
+    public void testEmptyList() {
+        TestIterator it = new TestIterator(0, 1000, -1, 100);
+        assertFalse("an empty list has no items", it.hasNext());
+    }
+    
+    @Test
+    public void testServiceMaximumPageSizeIsRespected() {
+        TestIterator it = new TestIterator(450, 100, -1, 500);
+        int n = 0;
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        assertEquals(450, n);
+        for (int i = 1; i < it.requestedCounts.size(); i++) {
+            assertTrue("after a short page, pages should not exceed the service's maximum",
+                    it.requestedCounts.get(i) <= 100);
+        }
+    }
+    
+    @Test
+    public void testFailureIsThrownAfterEarlierPages() {
+        TestIterator it = new TestIterator(1000, 100, 300, 100);
+        int n = 0;
+        try {
+            while (it.hasNext()) {
+                it.next();
+                n++;
+            }
+            fail("should have thrown the page failure");
+        } catch (PageFetchException e) {
+            assertTrue("the cause should be the service exception", e.getCause() instanceof ServiceFailure);
+        }
+        assertEquals("the pages before the failure should be delivered", 300, n);
+    }
+    
+    @Test
+    public void testClose() {
+        TestIterator it = new TestIterator(100000, 100, -1, 100);
+        assertTrue(it.hasNext());
+        it.next();
+        it.close();
+        assertFalse("a closed iterator has no more items", it.hasNext());
+    }
+    
+    /* serves listObjects pages of 'total' objects, at most 'serviceMax' per page */
+    private static class ObjectListClient implements MultipartRestClient {
+        
+        private static final Pattern PAGE = Pattern.compile("start=(\\d+)&count=(\\d+)");
+        
+        final int total;
+        final int serviceMax;
+        final List<String> urls = new ArrayList<String>();
+        
+        ObjectListClient(int total, int serviceMax) {
+            this.total = total;
+            this.serviceMax = serviceMax;
+        }
+        
+        public synchronized InputStream doGetRequest(String url, Integer timeout) throws BaseException {
+            urls.add(url);
+            Matcher m = PAGE.matcher(url);
+            if (!m.find())
+                throw new ServiceFailure("0000", "no start and count in " + url);
+            int start = Integer.parseInt(m.group(1));
+            int end = Math.min(total, start + Math.min(Integer.parseInt(m.group(2)), serviceMax));
+            ObjectList ol = new ObjectList();
+            for (int i = start; i < end; i++) {
+                ObjectInfo oi = new ObjectInfo();
+                oi.setIdentifier(D1TypeBuilder.buildIdentifier("pid" + i));
+                oi.setFormatId(D1TypeBuilder.buildFormatIdentifier("text/csv"));
+                Checksum cs = new Checksum();
+                cs.setAlgorithm("MD5");
+                cs.setValue("d41d8cd98f00b204e9800998ecf8427e");
+                oi.setChecksum(cs);
+                oi.setDateSysMetadataModified(new Date(i * 1000L));
+                oi.setSize(BigInteger.valueOf(i));
+                ol.addObjectInfo(oi);
+            }
+            ol.setStart(start);
+            ol.setCount(end - start);
+            ol.setTotal(total);
+            try {
+                ByteArrayOutputStream os = new ByteArrayOutputStream();
+                TypeMarshaller.marshalTypeToOutputStream(ol, os);
+                return new ByteArrayInputStream(os.toByteArray());
+            } catch (Exception e) {
+                throw new ServiceFailure("0000", e.getMessage());
+            }
+        }
+        public InputStream doGetRequest(String url, Integer timeout, boolean followRedirect) throws BaseException {
+            return doGetRequest(url, timeout);
+        }
+        public Header[] doGetRequestForHeaders(String url, Integer timeout) throws BaseException {
+            return new Header[0];
+        }
+        public InputStream doDeleteRequest(String url, Integer timeout) throws BaseException {
+            throw new ServiceFailure("0000", "not supported");
+        }
+        public Header[] doHeadRequest(String url, Integer timeout) throws BaseException {
+            return new Header[0];
+        }
+        public InputStream doPutRequest(String url, SimpleMultipartEntity e, Integer timeout) throws BaseException {
+            throw new ServiceFailure("0000", "not supported");
+        }
+        public InputStream doPostRequest(String url, SimpleMultipartEntity e, Integer timeout) throws BaseException {
+            throw new ServiceFailure("0000", "not supported");
+        }
+        public String getLatestRequestUrl() {
+            return null;
+        }
+        public X509Session getSession() {
+            return null;
+        }
+    }
+    
+    @Test
+    public void testPagesMultipartNode() throws Exception {
+        ObjectListClient client = new ObjectListClient(25, 10);
+        ObjectListIterator it = ObjectListIterator.forNode(
+                new MultipartMNode(client, "https://mn.example.org/mn"), null, null, null, null, null, null);
+        try {
+            int i = 0;
+            while (it.hasNext()) {
+                ObjectInfo oi = it.next();
+                assertEquals("pid" + i, oi.getIdentifier().getValue());
+                assertEquals(BigInteger.valueOf(i), oi.getSize());
+                i++;
+            }
+            assertEquals(25, i);
+        } finally {
+            it.close();
+        }
+        assertTrue("the pages should be requested from the node", client.urls.size() >= 3);
+    }
+    
+    @Test
+    public void testStreamingListObjectsHandsOverEachEntry() throws Exception {
+        ObjectListClient client = new ObjectListClient(25, 10);
+        MultipartMNode mn = new MultipartMNode(client, "https://mn.example.org/mn");
+        final List<String> pids = new ArrayList<String>();
+        ObjectList header = mn.listObjects(null, null, null, null, null, null, 10, 10, 
+                new StreamingListReader.EntryHandler<ObjectInfo>() {
+                    @Override
+                    public void handle(ObjectInfo entry) {
+                        pids.add(entry.getIdentifier().getValue());
+                    }
+                });
+        assertEquals(10, pids.size());
+        assertEquals("pid10", pids.get(0));
+        assertEquals("pid19", pids.get(9));
+        assertEquals(25, header.getTotal());
+        assertEquals(10, header.getStart());
+        assertTrue("the header should not hold the entries", 
+                header.getObjectInfoList() == null || header.getObjectInfoList().isEmpty());
+    }
+}
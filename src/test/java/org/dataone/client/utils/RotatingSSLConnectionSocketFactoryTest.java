@@ -0,0 +1,86 @@
+package org.dataone.client.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+import org.apache.http.ConnectionReuseStrategy;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.conn.socket.LayeredConnectionSocketFactory;
+import org.apache.http.message.BasicHttpRequest;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.protocol.HttpContext;
+import org.junit.Test;
+
+public class RotatingSSLConnectionSocketFactoryTest {
+
+    /* hands out a marker socket so the tests can tell which factory made it */
+    private static class MarkerSocketFactory implements LayeredConnectionSocketFactory {
+        final Socket marker = new Socket();
+
+        public Socket createSocket(HttpContext context) throws IOException {
+            return marker;
+        }
+        public Socket connectSocket(int connectTimeout, Socket sock, HttpHost host,
+                InetSocketAddress remoteAddress, InetSocketAddress localAddress,
+                HttpContext context) throws IOException {
+            return marker;
+        }
+        public Socket createLayeredSocket(Socket socket, String target, int port,
+                HttpContext context) throws IOException {
+            return marker;
+        }
+    }
+
+    private static final ConnectionReuseStrategy ALWAYS = new ConnectionReuseStrategy() {
+        public boolean keepAlive(HttpResponse response, HttpContext context) {
+            return true;
+        }
+    };
+
+    @Test
+    public void testRotateSwapsSocketFactory() throws Exception {
+        MarkerSocketFactory first = new MarkerSocketFactory();
+        MarkerSocketFactory second = new MarkerSocketFactory();
+        RotatingSSLConnectionSocketFactory rsf = new RotatingSSLConnectionSocketFactory(first);
+
+        assertSame(first.marker, rsf.createLayeredSocket(null, "localhost", 443, null));
+        assertEquals(0, rsf.getGeneration());
+
+        rsf.rotate(second);
+        assertSame(second.marker, rsf.createLayeredSocket(null, "localhost", 443, null));
+        assertSame(second.marker, rsf.createSocket(null));
+        assertSame(second, rsf.getCurrentSocketFactory());
+        assertEquals(1, rsf.getGeneration());
+    }
+
+    @Test
+    public void testPreviousGenerationConnectionsAreNotKeptAlive() throws Exception {
+        RotatingSSLConnectionSocketFactory rsf = 
+                new RotatingSSLConnectionSocketFactory(new MarkerSocketFactory());
+        ConnectionReuseStrategy reuse = rsf.getConnectionReuseStrategy(ALWAYS);
+        HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+
+        HttpClientContext inFlight = HttpClientContext.create();
+        rsf.getConnectionStateInterceptor().process(new BasicHttpRequest("GET", "/"), inFlight);
+        Object firstToken = inFlight.getUserToken();
+        assertTrue("current generation is kept alive", reuse.keepAlive(response, inFlight));
+
+        rsf.rotate(new MarkerSocketFactory());
+        assertFalse("previous generation is drained", reuse.keepAlive(response, inFlight));
+
+        HttpClientContext next = HttpClientContext.create();
+        rsf.getConnectionStateInterceptor().process(new BasicHttpRequest("GET", "/"), next);
+        assertNotSame(firstToken, next.getUserToken());
+        assertTrue(reuse.keepAlive(response, next));
+    }
+}
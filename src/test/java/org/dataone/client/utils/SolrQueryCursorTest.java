@@ -0,0 +1,266 @@
+package org.dataone.client.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.dataone.client.exception.PageFetchException;
+import org.dataone.service.exceptions.BaseException;
+import org.dataone.service.exceptions.InvalidRequest;
+import org.dataone.service.exceptions.ServiceFailure;
+import org.junit.Test;
+
+public class SolrQueryCursorTest {
+
+    /* a solr query service over 'total' documents, with or without cursor support */
+    private static class TestCursor extends SolrQueryCursor {
+        
+        final int total;
+        final boolean ignoresCursor;
+        final boolean refusesCursor;
+        final int failAt;
+        final List<Map<String, String>> requests = new ArrayList<Map<String, String>>();
+        /* a request at or past blockAt waits until the reader is interrupted */
+        int blockAt = -1;
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch interrupted = new CountDownLatch(1);
+        /* a request at or past errorAt throws an Error rather than an exception */
+        int errorAt = -1;
+        
+        TestCursor(String query, int total, boolean ignoresCursor, boolean refusesCursor, int failAt) {
+            super(query, 10, 5);
+            this.total = total;
+            this.ignoresCursor = ignoresCursor;
+            this.refusesCursor = refusesCursor;
+            this.failAt = failAt;
+        }
+
+        @Override
+        protected InputStream query(String encodedQuery) throws BaseException {
+            assertTrue("the query should start with '?'", encodedQuery.startsWith("?"));
+            Map<String, String> params = new HashMap<String, String>();
+            for (String param : encodedQuery.substring(1).split("&")) {
+                String[] nv = param.split("=", 2);
+                params.put(decode(nv[0]), nv.length > 1 ? decode(nv[1]) : "");
+            }
+            requests.add(params);
+            
+            String cursorMark = this.ignoresCursor ? null : params.get("cursorMark");
+            if (cursorMark != null && this.refusesCursor)
+                throw new InvalidRequest("0000", "Cursor functionality is not available");
+            int start;
+            if (cursorMark != null)
+                start = cursorMark.equals("*") ? 0 : Integer.parseInt(cursorMark.substring(1));
+            else
+                start = params.containsKey("start") ? Integer.parseInt(params.get("start")) : 0;
+            if (failAt >= 0 && start >= failAt)
+                throw new ServiceFailure("0000", "query failed at " + start);
+            if (errorAt >= 0 && start >= errorAt)
+                throw new Error("error at " + start);
+            if (blockAt >= 0 && start >= blockAt) {
+                blocked.countDown();
+                try {
+                    new CountDownLatch(1).await();
+                } catch (InterruptedException e) {
+                    interrupted.countDown();
+                    throw new ServiceFailure("0000", "interrupted at " + start);
+                }
+            }
+            int end = Math.min(total, start + Integer.parseInt(params.get("rows")));
+            
+            StringBuilder sb = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<response>\n");
+            sb.append("<lst name=\"responseHeader\"><int name=\"status\">0</int>"
+                    + "<lst name=\"params\"><str name=\"q\">*:*</str></lst></lst>\n");
+            sb.append("<result name=\"response\" numFound=\"" + total + "\" start=\"" + start + "\">\n");
+            for (int i = start; i < end; i++) {
+                sb.append("  <doc><str name=\"id\">doc" + i + "</str>"
+                        + "<arr name=\"keywords\"><str>k" + i + "</str><str>all</str></arr>"
+                        + "<long name=\"size\">" + (i * 100) + "</long></doc>\n");
+            }
+            sb.append("</result>\n");
+            if (cursorMark != null)
+                sb.append("<str name=\"nextCursorMark\">m" + end + "</str>\n");
+            sb.append("</response>\n");
+            try {
+                return new ByteArrayInputStream(sb.toString().getBytes("UTF-8"));
+            } catch (UnsupportedEncodingException e) {
+                throw new ServiceFailure("0000", e.getMessage());
+            }
+        }
+        
+        private static String decode(String s) {
+            try {
+                return URLDecoder.decode(s, "UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+    
+    private static int readAll(SolrQueryCursor cursor) {
+        int i = 0;
+        while (cursor.hasNext()) {
+            assertEquals("doc" + i, cursor.next().getFirstValue("id"));
+            i++;
+        }
+        return i;
+    }
+    
+    @Test
+    public void testPagesWithCursorMark() {
+        TestCursor cursor = new TestCursor("?q=*:*&fl=id,keywords,size", 35, false, false, -1);
+        assertEquals("should read every document", 35, readAll(cursor));
+        assertEquals(35, cursor.getNumFound());
+        assertTrue(cursor.isUsingCursor());
+        assertEquals(4, cursor.getPagesFetched());
+        
+        for (Map<String, String> params : cursor.requests) {
+            assertFalse("cursor requests have no start", params.containsKey("start"));
+            assertEquals("id asc", params.get("sort"));
+            assertEquals("xml", params.get("wt"));
+            assertEquals("*:*", params.get("q"));
+        }
+        assertEquals("*", cursor.requests.get(0).get("cursorMark"));
+        assertEquals("m10", cursor.requests.get(1).get("cursorMark"));
+    }
+    
+    @Test
+    public void testUniqueKeyAddedToSort() {
+        TestCursor cursor = new TestCursor("q=*:*&sort=dateUploaded+desc", 5, false, false, -1);
+        readAll(cursor);
+        assertEquals("dateUploaded desc,id asc", cursor.requests.get(0).get("sort"));
+        
+        cursor = new TestCursor("q=*:*&sort=dateUploaded+desc,id+desc", 5, false, false, -1);
+        readAll(cursor);
+        assertEquals("dateUploaded desc,id desc", cursor.requests.get(0).get("sort"));
+    }
+    
+    @Test
+    public void testDocumentFields() {
+        TestCursor cursor = new TestCursor("?q=*:*", 3, false, false, -1);
+        cursor.next();
+        SolrQueryCursor.Document doc = cursor.next();
+        assertEquals("doc1", doc.getFirstValue("id"));
+        assertEquals("100", doc.getFirstValue("size"));
+        assertEquals(2, doc.getValues("keywords").size());
+        assertEquals("k1", doc.getFirstValue("keywords"));
+        assertEquals("all", doc.getValues("keywords").get(1));
+        assertEquals(1, doc.getValues("id").size());
+        assertTrue(doc.getValues("title").isEmpty());
+        assertEquals(null, doc.getFirstValue("title"));
+        cursor.close();
+    }
+    
+    @Test
+    public void testFallsBackWhenCursorIgnored() {
+        TestCursor cursor = new TestCursor("?q=*:*", 25, true, false, -1);
+        assertEquals("should read every document once", 25, readAll(cursor));
+        assertFalse(cursor.isUsingCursor());
+        assertEquals("10", cursor.requests.get(1).get("start"));
+        assertEquals("20", cursor.requests.get(2).get("start"));
+    }
+    
+    @Test
+    public void testFallsBackWhenCursorRefused() {
+        TestCursor cursor = new TestCursor("?q=*:*", 25, false, true, -1);
+        assertEquals("should read every document once", 25, readAll(cursor));
+        assertFalse(cursor.isUsingCursor());
+        assertEquals("0", cursor.requests.get(1).get("start"));
+    }
+    
+    @Test
+    public void testStartParameterUsesStartRows() {
+        TestCursor cursor = new TestCursor("?q=*:*&start=20&rows=3", 25, false, false, -1);
+        int n = 0;
+        while (cursor.hasNext()) {
+            assertEquals("doc" + (20 + n), cursor.next().getFirstValue("id"));
+            n++;
+        }
+        assertEquals(5, n);
+        assertFalse(cursor.isUsingCursor());
+        assertEquals("3", cursor.requests.get(0).get("rows"));
+        assertFalse(cursor.requests.get(0).containsKey("cursorMark"));
+    }
+    
+    @Test
+    public void testEmptyResults() {
+        TestCursor cursor = new TestCursor("?q=*:*", 0, false, false, -1);
+        assertFalse("no results", cursor.hasNext());
+        assertEquals(0, cursor.getNumFound());
+    }
+    
+    @Test
+    public void testFailureAfterEarlierDocuments() {
+        TestCursor cursor = new TestCursor("?q=*:*", 50, false, false, 20);
+        int n = 0;
+        try {
+            while (cursor.hasNext()) {
+                cursor.next();
+                n++;
+            }
+            fail("should have thrown a PageFetchException");
+        } catch (PageFetchException e) {
+            assertTrue(e.getCause() instanceof ServiceFailure);
+        }
+        assertEquals("should get the documents read before the failure", 20, n);
+        assertFalse(cursor.hasNext());
+    }
+    
+    @Test(timeout=5000)
+    public void testErrorInReaderEndsIteration() {
+        TestCursor cursor = new TestCursor("?q=*:*", 50, false, false, -1);
+        cursor.errorAt = 20;
+        int n = 0;
+        try {
+            while (cursor.hasNext()) {
+                cursor.next();
+                n++;
+            }
+            fail("should have thrown a PageFetchException");
+        } catch (PageFetchException e) {
+            assertTrue(e.getCause() instanceof Error);
+        }
+        assertEquals("should get the documents read before the error", 20, n);
+        assertFalse(cursor.hasNext());
+    }
+    
+    @Test
+    public void testCloseStopsReading() throws Exception {
+        TestCursor cursor = new TestCursor("?q=*:*", 10000, false, false, -1);
+        // the page after the one taken and the one buffered
+        cursor.blockAt = 20;
+        for (int i = 0; i < 3; i++)
+            cursor.next();
+        assertTrue("the reader should get to the third page", cursor.blocked.await(5, TimeUnit.SECONDS));
+        cursor.close();
+        assertTrue("close should interrupt the reader", cursor.interrupted.await(5, TimeUnit.SECONDS));
+        assertFalse(cursor.hasNext());
+        assertEquals("no pages past the third should be requested", 3, cursor.requests.size());
+    }
+    
+    @Test
+    public void testReaderRunsAPageAhead() throws Exception {
+        // a buffer smaller than a page still holds a whole page
+        TestCursor cursor = new TestCursor("?q=*:*", 10000, false, false, -1);
+        cursor.blockAt = 20;
+        assertEquals("doc0", cursor.next().getFirstValue("id"));
+        assertTrue("the reader should read the next page while the caller is on the first",
+                cursor.blocked.await(5, TimeUnit.SECONDS));
+        assertEquals("m20", cursor.requests.get(2).get("cursorMark"));
+        for (int i = 1; i < 20; i++)
+            assertEquals("doc" + i, cursor.next().getFirstValue("id"));
+        cursor.close();
+    }
+}
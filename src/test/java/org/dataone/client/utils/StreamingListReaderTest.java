@@ -0,0 +1,108 @@
+package org.dataone.client.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.dataone.client.utils.StreamingListReader.EntryCollector;
+import org.dataone.client.utils.StreamingListReader.EntryHandler;
+import org.dataone.client.v1.types.D1TypeBuilder;
+import org.dataone.service.types.v1.Checksum;
+import org.dataone.service.types.v1.ObjectInfo;
+import org.dataone.service.types.v1.ObjectList;
+import org.dataone.service.util.TypeMarshaller;
+import org.junit.Test;
+
+public class StreamingListReaderTest {
+
+    private static byte[] buildObjectList(int n) throws Exception {
+        ObjectList ol = new ObjectList();
+        for (int i = 0; i < n; i++) {
+            ObjectInfo oi = new ObjectInfo();
+            oi.setIdentifier(D1TypeBuilder.buildIdentifier("pid" + i));
+            oi.setFormatId(D1TypeBuilder.buildFormatIdentifier("text/csv"));
+            Checksum cs = new Checksum();
+            cs.setAlgorithm("MD5");
+            cs.setValue("d41d8cd98f00b204e9800998ecf8427e");
+            oi.setChecksum(cs);
+            oi.setDateSysMetadataModified(new Date(1000000L * i));
+            oi.setSize(BigInteger.valueOf(i));
+            ol.addObjectInfo(oi);
+        }
+        ol.setStart(0);
+        ol.setCount(n);
+        ol.setTotal(n);
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        TypeMarshaller.marshalTypeToOutputStream(ol, os);
+        return os.toByteArray();
+    }
+    
+    @Test
+    public void testObjectList() throws Exception {
+        StreamingListReader<ObjectList, ObjectInfo> reader = 
+                StreamingListReader.objectList(new ByteArrayInputStream(buildObjectList(3)));
+        for (int i = 0; i < 3; i++) {
+            ObjectInfo oi = reader.nextEntry();
+            assertEquals("pid" + i, oi.getIdentifier().getValue());
+            assertEquals("text/csv", oi.getFormatId().getValue());
+            assertEquals("MD5", oi.getChecksum().getAlgorithm());
+            assertEquals(new Date(1000000L * i), oi.getDateSysMetadataModified());
+            assertEquals(BigInteger.valueOf(i), oi.getSize());
+        }
+        assertNull("should be at the end of the list", reader.nextEntry());
+        assertNull("should stay at the end of the list", reader.nextEntry());
+    }
+    
+    @Test
+    public void testEmptyList() throws Exception {
+        StreamingListReader<ObjectList, ObjectInfo> reader = 
+                StreamingListReader.objectList(new ByteArrayInputStream(buildObjectList(0)));
+        assertNull(reader.nextEntry());
+    }
+    
+    @Test
+    public void testReadAll() throws Exception {
+        final List<String> pids = new ArrayList<String>();
+        int n = StreamingListReader.objectList(new ByteArrayInputStream(buildObjectList(250)))
+                .readAll(new EntryHandler<ObjectInfo>() {
+                    @Override
+                    public void handle(ObjectInfo entry) {
+                        pids.add(entry.getIdentifier().getValue());
+                    }
+                });
+        assertEquals(250, n);
+        assertEquals("pid249", pids.get(249));
+    }
+    
+    @Test
+    public void testClose() throws Exception {
+        StreamingListReader<ObjectList, ObjectInfo> reader = 
+                StreamingListReader.objectList(new ByteArrayInputStream(buildObjectList(5)));
+        reader.nextEntry();
+        reader.close();
+        assertNull("a closed reader returns no more entries", reader.nextEntry());
+    }
+    
+    @Test
+    public void testListHeader() throws Exception {
+        StreamingListReader<ObjectList, ObjectInfo> reader = 
+                StreamingListReader.objectList(new ByteArrayInputStream(buildObjectList(4)));
+        ObjectList header = reader.getListHeader();
+        assertEquals(4, header.getTotal());
+        assertEquals(4, header.getCount());
+        assertEquals(0, header.getStart());
+        assertTrue("the header has no entries", 
+                header.getObjectInfoList() == null || header.getObjectInfoList().isEmpty());
+        
+        EntryCollector<ObjectInfo> entries = new EntryCollector<ObjectInfo>();
+        assertEquals("the entries are still read after the header", 4, reader.readAll(entries));
+        assertEquals("pid3", entries.getEntries().get(3).getIdentifier().getValue());
+    }
+}